@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.model.v3;
+
+import io.codekvast.javaagent.model.model.v3.SamplePublications;
+import io.codekvast.javaagent.model.v2.CodeBasePublication2;
+import io.codekvast.javaagent.model.v3.PublicationFormat3.Envelope;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compares the decoding speed of the v3 format with Java serialization of the v2 publications.
+ * <p>
+ * The sizes of the encoded publications are printed during the setup.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PublicationFormat3Benchmark {
+
+    @Param({"codeBase", "invocationData"})
+    public String publication;
+
+    @Param({"v2", "v2+gzip", "v3", "v3+gzip", "v3+deflate"})
+    public String format;
+
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        CodeBasePublication2 codeBase = SamplePublications.codeBasePublication(50, 40, 20);
+        Object pub = publication.equals("codeBase") ? codeBase : SamplePublications.invocationDataPublication(codeBase, 4);
+
+        if (format.startsWith("v2")) {
+            bytes = SamplePublications.serializeV2(pub, format.endsWith("gzip"));
+        } else {
+            Envelope envelope = format.endsWith("gzip") ? Envelope.GZIP
+                : format.endsWith("deflate") ? Envelope.DEFLATE : Envelope.NONE;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            PublicationWriter3.writePublication(pub, out, envelope);
+            bytes = out.toByteArray();
+        }
+
+        System.out.printf("%n%s in %s is %d bytes%n", publication, format, bytes.length);
+    }
+
+    @Benchmark
+    public Object decode() throws IOException, ClassNotFoundException {
+        InputStream in = new ByteArrayInputStream(bytes);
+        if (format.startsWith("v3")) {
+            return PublicationReader3.readPublication(in);
+        }
+        if (format.endsWith("gzip")) {
+            in = new GZIPInputStream(in);
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(in))) {
+            return ois.readObject();
+        }
+    }
+}
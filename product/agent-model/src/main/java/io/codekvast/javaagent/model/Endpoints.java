@@ -33,9 +33,12 @@ public interface Endpoints {
         String V1_POLL_CONFIG = "/javaagent/v1/pollConfig";
         String V1_UPLOAD_CODEBASE = "/javaagent/v1/uploadCodeBase";
         String V2_UPLOAD_CODEBASE = "/javaagent/v2/uploadCodeBase";
+        String V3_UPLOAD_CODEBASE_DELTA = "/javaagent/v3/uploadCodeBaseDelta";
+        String V3_GET_METHOD_IDS = "/javaagent/v3/getMethodIds";
         String V1_UPLOAD_INVOCATION_DATA = "/javaagent/v1/uploadInvocationData";
         String V2_UPLOAD_INVOCATION_DATA = "/javaagent/v2/uploadInvocationData";
 
+        String PARAM_BASE_FINGERPRINT = "baseFingerprint";
         String PARAM_FINGERPRINT = "fingerprint";
         String PARAM_LICENSE_KEY = "licenseKey";
         String PARAM_PUBLICATION_SIZE = "numMethods";
@@ -26,6 +26,7 @@ import lombok.*;
 
 import javax.validation.constraints.Min;
 import java.io.Serializable;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -50,6 +51,13 @@ public class InvocationDataPublication2 implements Serializable {
     @Min(1_490_000_000_000L)
     private long recordingIntervalStartedAtMillis;
 
+    /**
+     * The number of invocations of each signature during the recording interval.
+     * <p>
+     * Null if the agent does not count invocations, or if it is older than this field.
+     */
+    private Map<String, Long> invocationCounts;
+
     @Override
     public String toString() {
         return String.format(
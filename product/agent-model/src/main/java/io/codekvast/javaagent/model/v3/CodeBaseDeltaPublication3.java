@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.model.v3;
+
+import io.codekvast.javaagent.model.v2.CodeBaseEntry2;
+import io.codekvast.javaagent.model.v2.CodeBasePublication2;
+import io.codekvast.javaagent.model.v2.CommonPublicationData2;
+import io.codekvast.javaagent.model.v2.MethodSignature2;
+import lombok.*;
+
+import javax.validation.constraints.Size;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * The difference between a code base and the code base of an earlier publication, identified by its fingerprint.
+ * <p>
+ * Sent instead of a {@link CodeBasePublication2} when the server has the earlier code base. An entry whose signature is
+ * in the base but has changed in some other way is both removed and added.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@Data
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+@Setter(AccessLevel.PRIVATE)
+@Builder(toBuilder = true)
+public class CodeBaseDeltaPublication3 implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The common data of the new code base.
+     */
+    @NonNull
+    private CommonPublicationData2 commonData;
+
+    /**
+     * The fingerprint of the code base that the delta applies to.
+     */
+    @NonNull
+    @Size(min = 1)
+    private String baseCodeBaseFingerprint;
+
+    @NonNull
+    private Collection<CodeBaseEntry2> addedEntries;
+
+    @NonNull
+    private Collection<String> removedSignatures;
+
+    @Override
+    public String toString() {
+        return String.format("%s(commonData=%s, addedEntries.size()=%d, removedSignatures.size()=%d)",
+                             this.getClass().getSimpleName(), commonData, addedEntries.size(), removedSignatures.size());
+    }
+
+    /**
+     * Computes the delta between two code bases.
+     *
+     * @param base        The earlier publication.
+     * @param publication The new publication.
+     * @return A delta that transforms base into publication when applied.
+     */
+    public static CodeBaseDeltaPublication3 between(CodeBasePublication2 base, CodeBasePublication2 publication) {
+        Map<String, CodeBaseEntry2> baseEntries = bySignature(base.getEntries());
+
+        List<CodeBaseEntry2> added = new ArrayList<>();
+        Set<String> removed = new HashSet<>(baseEntries.keySet());
+        for (CodeBaseEntry2 entry : publication.getEntries()) {
+            CodeBaseEntry2 baseEntry = baseEntries.get(entry.getSignature());
+            if (isSame(baseEntry, entry)) {
+                removed.remove(entry.getSignature());
+            } else {
+                added.add(entry);
+            }
+        }
+
+        return builder().commonData(publication.getCommonData())
+                        .baseCodeBaseFingerprint(base.getCommonData().getCodeBaseFingerprint())
+                        .addedEntries(added)
+                        .removedSignatures(removed)
+                        .build();
+    }
+
+    /**
+     * Applies the delta to the code base it was computed from.
+     *
+     * @param base The publication with the fingerprint {@link #getBaseCodeBaseFingerprint()}.
+     * @return The publication of the new code base.
+     * @throws IllegalArgumentException if base has another fingerprint.
+     */
+    public CodeBasePublication2 applyTo(CodeBasePublication2 base) {
+        if (!base.getCommonData().getCodeBaseFingerprint().equals(baseCodeBaseFingerprint)) {
+            throw new IllegalArgumentException("Cannot apply a delta from " + baseCodeBaseFingerprint + " to " +
+                                                   base.getCommonData().getCodeBaseFingerprint());
+        }
+
+        Map<String, CodeBaseEntry2> entries = bySignature(base.getEntries());
+        for (String signature : removedSignatures) {
+            entries.remove(signature);
+        }
+        for (CodeBaseEntry2 entry : addedEntries) {
+            entries.put(entry.getSignature(), entry);
+        }
+
+        return CodeBasePublication2.builder()
+                                   .commonData(commonData)
+                                   .entries(new ArrayList<>(entries.values()))
+                                   .build();
+    }
+
+    private static Map<String, CodeBaseEntry2> bySignature(Collection<CodeBaseEntry2> entries) {
+        Map<String, CodeBaseEntry2> result = new HashMap<>(entries.size() * 4 / 3 + 1);
+        for (CodeBaseEntry2 entry : entries) {
+            result.put(entry.getSignature(), entry);
+        }
+        return result;
+    }
+
+    private static boolean isSame(CodeBaseEntry2 e1, CodeBaseEntry2 e2) {
+        return e1 != null
+            && e1.getSignature().equals(e2.getSignature())
+            && e1.getVisibility().equals(e2.getVisibility())
+            && isSame(e1.getMethodSignature(), e2.getMethodSignature());
+    }
+
+    private static boolean isSame(MethodSignature2 m1, MethodSignature2 m2) {
+        // MethodSignature2.equals() only compares the aspectjString
+        if (m1 == null || m2 == null) {
+            return m1 == m2;
+        }
+        return m1.getAspectjString().equals(m2.getAspectjString())
+            && Objects.equals(m1.getBridge(), m2.getBridge())
+            && m1.getDeclaringType().equals(m2.getDeclaringType())
+            && m1.getExceptionTypes().equals(m2.getExceptionTypes())
+            && m1.getMethodName().equals(m2.getMethodName())
+            && m1.getModifiers().equals(m2.getModifiers())
+            && m1.getPackageName().equals(m2.getPackageName())
+            && m1.getParameterTypes().equals(m2.getParameterTypes())
+            && m1.getReturnType().equals(m2.getReturnType())
+            && Objects.equals(m1.getSynthetic(), m2.getSynthetic());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.model.v3;
+
+import io.codekvast.javaagent.model.v2.CommonPublicationData2;
+import io.codekvast.javaagent.model.v2.InvocationDataPublication2;
+import lombok.*;
+
+import javax.validation.constraints.Min;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Invocation data where the invoked methods are identified by the ids in a {@link MethodIdMapping3}.
+ * <p>
+ * Invoked signatures that have no id yet are published as strings, like in an {@link InvocationDataPublication2}.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@Data
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+@Setter(AccessLevel.PRIVATE)
+@Builder(toBuilder = true)
+public class InvocationDataPublication3 implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    @NonNull
+    private CommonPublicationData2 commonData;
+
+    @Min(1_490_000_000_000L)
+    private long recordingIntervalStartedAtMillis;
+
+    /**
+     * The ids of the invoked methods, in ascending order.
+     */
+    @NonNull
+    private long[] invokedMethodIds;
+
+    /**
+     * The number of invocations of each method in {@link #invokedMethodIds}, in the same order. Null if the agent does not
+     * count invocations.
+     */
+    private long[] methodInvocationCounts;
+
+    /**
+     * The invoked signatures that have no method id.
+     */
+    @NonNull
+    private Set<String> invocations;
+
+    /**
+     * The number of invocations of each signature in {@link #invocations}. Null if the agent does not count invocations.
+     */
+    private Map<String, Long> invocationCounts;
+
+    @Override
+    public String toString() {
+        return String.format(
+            "%1$s{commonData=%2$s, invokedMethodIds.length=%3$d, invocations.size()=%4$d, recordingIntervalStartedAt=%5$tF:%5$tT%5$tz}",
+            this.getClass().getSimpleName(), commonData, invokedMethodIds.length, invocations.size(),
+            recordingIntervalStartedAtMillis);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.model.v3;
+
+import lombok.*;
+
+import javax.validation.constraints.Size;
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * The ids that the server has assigned to the methods of an imported code base.
+ * <p>
+ * Returned to the agents, which then can publish invocations as method ids in an {@link InvocationDataPublication3}.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@Data
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+@Setter(AccessLevel.PRIVATE)
+@Builder(toBuilder = true)
+public class MethodIdMapping3 implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The fingerprint of the code base, which also is the version of the mapping.
+     */
+    @NonNull
+    @Size(min = 1)
+    private String codeBaseFingerprint;
+
+    /**
+     * The method id of each signature. Signatures that have not been imported yet are missing.
+     */
+    @NonNull
+    private Map<String, Long> methodIds;
+
+    @Override
+    public String toString() {
+        return String.format("%s(codeBaseFingerprint=%s, methodIds.size()=%d)", this.getClass().getSimpleName(),
+                             codeBaseFingerprint, methodIds.size());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.model.v3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * The v3 publication format, a compact binary encoding of {@link io.codekvast.javaagent.model.v2.CodeBasePublication2},
+ * {@link io.codekvast.javaagent.model.v2.InvocationDataPublication2}, {@link CodeBaseDeltaPublication3},
+ * {@link InvocationDataPublication3} and {@link MethodIdMapping3}.
+ * <p>
+ * The v3 classes only exist in this format.
+ * <p>
+ * A v3 publication starts with the four bytes "CKV3" and an {@link Envelope} byte, which tells if the rest is stored as
+ * is, gzipped or deflated. The rest is a type byte and the body, which for publications starts with the common
+ * publication data.
+ * <p>
+ * Integers are unsigned varints, seven bits per byte. Strings are a varint byte count followed by UTF-8.
+ * <p>
+ * Strings that repeat, such as package names, types and parameter lists, are written as dictionary references. A
+ * reference is the varint 0 followed by a new string, which is appended to the dictionary, or the 1-based index of a
+ * string written earlier. The dictionary is built as the publication is written and read, so both directions stream.
+ * <p>
+ * Lists of signatures are written in sorted order, each one as the length of the prefix it shares with the previous one
+ * followed by the rest of it.
+ * <p>
+ * Lists of method ids are written in ascending order, each one as the difference to the previous one. A run of
+ * consecutive ids thus becomes a run of ones, which the envelope compresses like a bitmap.
+ *
+ * @author olle.hallin@crisp.se
+ */
+public final class PublicationFormat3 {
+
+    /**
+     * How the payload after the header is stored. The ordinal is written as the envelope byte, so new constants must be
+     * appended.
+     */
+    public enum Envelope {NONE, GZIP, DEFLATE}
+
+    static final byte[] MAGIC = {'C', 'K', 'V', '3'};
+
+    static final int TYPE_CODE_BASE = 1;
+    static final int TYPE_INVOCATION_DATA = 2;
+    static final int TYPE_CODE_BASE_DELTA = 3;
+    static final int TYPE_INVOCATION_DATA_BY_METHOD_ID = 4;
+    static final int TYPE_METHOD_ID_MAPPING = 5;
+
+    static final int ENTRY_HAS_METHOD_SIGNATURE = 0x10;
+    static final int ENTRY_ASPECTJ_STRING_ENDS_WITH_SIGNATURE = 0x20;
+
+    static final int NO_INVOCATION_COUNTS = 0;
+    static final int INVOCATION_COUNTS_PER_INVOCATION = 1;
+    static final int INVOCATION_COUNTS_BY_SIGNATURE = 2;
+
+    static final int MAX_STRING_BYTES = 1 << 20;
+
+    private PublicationFormat3() {
+        // Only static stuff here
+    }
+
+    /**
+     * Checks if a stream starts with a v3 publication, without consuming anything.
+     *
+     * @param inputStream A stream that supports {@link InputStream#mark(int)}.
+     * @return true if the stream starts with the v3 magic bytes.
+     * @throws IOException If the stream cannot be read.
+     */
+    public static boolean isFormat3(InputStream inputStream) throws IOException {
+        byte[] head = new byte[MAGIC.length];
+        inputStream.mark(head.length);
+        try {
+            int count = 0;
+            while (count < head.length) {
+                int n = inputStream.read(head, count, head.length - count);
+                if (n < 0) {
+                    return false;
+                }
+                count += n;
+            }
+            return Arrays.equals(head, MAGIC);
+        } finally {
+            inputStream.reset();
+        }
+    }
+
+    static int encodeTriState(Boolean value, int shift) {
+        return (value == null ? 0 : value ? 2 : 1) << shift;
+    }
+
+    static Boolean decodeTriState(int flags, int shift) {
+        int bits = (flags >> shift) & 3;
+        return bits == 0 ? null : bits == 2;
+    }
+}
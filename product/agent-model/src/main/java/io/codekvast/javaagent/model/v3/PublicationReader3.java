@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.model.v3;
+
+import io.codekvast.javaagent.model.v2.CodeBaseEntry2;
+import io.codekvast.javaagent.model.v2.CodeBasePublication2;
+import io.codekvast.javaagent.model.v2.CommonPublicationData2;
+import io.codekvast.javaagent.model.v2.InvocationDataPublication2;
+import io.codekvast.javaagent.model.v2.MethodSignature2;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static io.codekvast.javaagent.model.v3.PublicationFormat3.*;
+
+/**
+ * Reads publications in the v3 format, see {@link PublicationFormat3}.
+ *
+ * @author olle.hallin@crisp.se
+ */
+public final class PublicationReader3 {
+
+    // Don't trust the sizes in the stream when allocating.
+    private static final int MAX_INITIAL_CAPACITY = 1 << 16;
+
+    private final DataInputStream in;
+    private final List<String> dictionary = new ArrayList<>();
+    private String previousSignature = "";
+
+    private PublicationReader3(DataInputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads a publication from a stream.
+     *
+     * @param inputStream The stream to read from. It is not closed.
+     * @return A {@link CodeBasePublication2}, an {@link InvocationDataPublication2}, a {@link CodeBaseDeltaPublication3},
+     * an {@link InvocationDataPublication3} or a {@link MethodIdMapping3}.
+     * @throws IOException If the stream cannot be read or does not contain a v3 publication.
+     */
+    public static Object readPublication(InputStream inputStream) throws IOException {
+        DataInputStream header = new DataInputStream(inputStream);
+        byte[] magic = new byte[MAGIC.length];
+        header.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a v3 publication");
+        }
+
+        int envelope = header.readUnsignedByte();
+        InputStream payload = new NonClosingInputStream(inputStream);
+        if (envelope == Envelope.GZIP.ordinal()) {
+            payload = new GZIPInputStream(payload);
+        } else if (envelope == Envelope.DEFLATE.ordinal()) {
+            payload = new InflaterInputStream(payload);
+        } else if (envelope != Envelope.NONE.ordinal()) {
+            throw new IOException("Unknown v3 envelope: " + envelope);
+        }
+
+        // Closing ends the inflater, but leaves inputStream open.
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(payload))) {
+            PublicationReader3 reader = new PublicationReader3(in);
+            int type = in.readUnsignedByte();
+            switch (type) {
+            case TYPE_CODE_BASE:
+                return reader.readCodeBasePublication();
+            case TYPE_INVOCATION_DATA:
+                return reader.readInvocationDataPublication();
+            case TYPE_CODE_BASE_DELTA:
+                return reader.readCodeBaseDeltaPublication();
+            case TYPE_INVOCATION_DATA_BY_METHOD_ID:
+                return reader.readInvocationDataPublication3();
+            case TYPE_METHOD_ID_MAPPING:
+                return reader.readMethodIdMapping();
+            default:
+                throw new IOException("Unknown v3 publication type: " + type);
+            }
+        }
+    }
+
+    private CodeBasePublication2 readCodeBasePublication() throws IOException {
+        return CodeBasePublication2.builder()
+                                   .commonData(readCommonData())
+                                   .entries(readCodeBaseEntries())
+                                   .build();
+    }
+
+    private CodeBaseDeltaPublication3 readCodeBaseDeltaPublication() throws IOException {
+        return CodeBaseDeltaPublication3.builder()
+                                        .commonData(readCommonData())
+                                        .baseCodeBaseFingerprint(readReference())
+                                        .addedEntries(readCodeBaseEntries())
+                                        .removedSignatures(readSignatures())
+                                        .build();
+    }
+
+    private List<CodeBaseEntry2> readCodeBaseEntries() throws IOException {
+        int size = readSize(Integer.MAX_VALUE);
+        List<CodeBaseEntry2> entries = new ArrayList<>(Math.min(size, MAX_INITIAL_CAPACITY));
+        previousSignature = "";
+        for (int i = 0; i < size; i++) {
+            entries.add(readCodeBaseEntry());
+        }
+        return entries;
+    }
+
+    private CodeBaseEntry2 readCodeBaseEntry() throws IOException {
+        int flags = in.readUnsignedByte();
+        String signature = readSignature();
+        String visibility = readReference();
+
+        MethodSignature2 methodSignature = null;
+        if ((flags & ENTRY_HAS_METHOD_SIGNATURE) != 0) {
+            String aspectjString = (flags & ENTRY_ASPECTJ_STRING_ENDS_WITH_SIGNATURE) != 0
+                ? readReference() + signature
+                : readString();
+            methodSignature = MethodSignature2.builder()
+                                              .aspectjString(aspectjString)
+                                              .bridge(decodeTriState(flags, 0))
+                                              .declaringType(readReference())
+                                              .exceptionTypes(readReference())
+                                              .methodName(readReference())
+                                              .modifiers(readReference())
+                                              .packageName(readReference())
+                                              .parameterTypes(readReference())
+                                              .returnType(readReference())
+                                              .synthetic(decodeTriState(flags, 2))
+                                              .build();
+        }
+
+        return CodeBaseEntry2.builder()
+                             .methodSignature(methodSignature)
+                             .signature(signature)
+                             .visibility(visibility)
+                             .build();
+    }
+
+    private InvocationDataPublication2 readInvocationDataPublication() throws IOException {
+        CommonPublicationData2 commonData = readCommonData();
+        long recordingIntervalStartedAtMillis = readVarint();
+
+        List<String> invocations = readSignatures();
+        Map<String, Long> counts = readInvocationCounts(invocations);
+
+        return InvocationDataPublication2.builder()
+                                         .commonData(commonData)
+                                         .invocations(new HashSet<>(invocations))
+                                         .recordingIntervalStartedAtMillis(recordingIntervalStartedAtMillis)
+                                         .invocationCounts(counts)
+                                         .build();
+    }
+
+    private InvocationDataPublication3 readInvocationDataPublication3() throws IOException {
+        CommonPublicationData2 commonData = readCommonData();
+        long recordingIntervalStartedAtMillis = readVarint();
+
+        long[] methodIds = readMethodIds();
+        long[] methodInvocationCounts;
+        int countsKind = in.readUnsignedByte();
+        switch (countsKind) {
+        case NO_INVOCATION_COUNTS:
+            methodInvocationCounts = null;
+            break;
+        case INVOCATION_COUNTS_PER_INVOCATION:
+            methodInvocationCounts = new long[methodIds.length];
+            for (int i = 0; i < methodIds.length; i++) {
+                methodInvocationCounts[i] = readVarint();
+            }
+            break;
+        default:
+            throw new IOException("Unknown kind of method invocation counts: " + countsKind);
+        }
+
+        List<String> invocations = readSignatures();
+        Map<String, Long> counts = readInvocationCounts(invocations);
+
+        return InvocationDataPublication3.builder()
+                                         .commonData(commonData)
+                                         .recordingIntervalStartedAtMillis(recordingIntervalStartedAtMillis)
+                                         .invokedMethodIds(methodIds)
+                                         .methodInvocationCounts(methodInvocationCounts)
+                                         .invocations(new HashSet<>(invocations))
+                                         .invocationCounts(counts)
+                                         .build();
+    }
+
+    private MethodIdMapping3 readMethodIdMapping() throws IOException {
+        String codeBaseFingerprint = readReference();
+
+        List<String> signatures = readSignatures();
+        Map<String, Long> methodIds = new HashMap<>(Math.min(signatures.size() * 4 / 3 + 1, MAX_INITIAL_CAPACITY));
+        for (String signature : signatures) {
+            methodIds.put(signature, readVarint());
+        }
+
+        return MethodIdMapping3.builder()
+                               .codeBaseFingerprint(codeBaseFingerprint)
+                               .methodIds(methodIds)
+                               .build();
+    }
+
+    private long[] readMethodIds() throws IOException {
+        int size = readSize(Integer.MAX_VALUE);
+        long[] result = new long[Math.min(size, MAX_INITIAL_CAPACITY)];
+        long methodId = 0L;
+        for (int i = 0; i < size; i++) {
+            if (i == result.length) {
+                result = Arrays.copyOf(result, (int) Math.min(size, result.length * 2L));
+            }
+            methodId += readVarint();
+            result[i] = methodId;
+        }
+        return result;
+    }
+
+    /**
+     * @param invocations The invoked signatures in the order they were read.
+     * @return The invocation counts, or null.
+     */
+    private Map<String, Long> readInvocationCounts(List<String> invocations) throws IOException {
+        Map<String, Long> counts;
+        int countsKind = in.readUnsignedByte();
+        switch (countsKind) {
+        case NO_INVOCATION_COUNTS:
+            counts = null;
+            break;
+        case INVOCATION_COUNTS_PER_INVOCATION:
+            counts = new HashMap<>();
+            for (String signature : invocations) {
+                counts.put(signature, readCount());
+            }
+            break;
+        case INVOCATION_COUNTS_BY_SIGNATURE:
+            counts = new HashMap<>();
+            previousSignature = "";
+            int numCounts = readSize(Integer.MAX_VALUE);
+            for (int i = 0; i < numCounts; i++) {
+                String signature = readSignature();
+                counts.put(signature, readCount());
+            }
+            break;
+        default:
+            throw new IOException("Unknown kind of invocation counts: " + countsKind);
+        }
+        return counts;
+    }
+
+    private List<String> readSignatures() throws IOException {
+        int size = readSize(Integer.MAX_VALUE);
+        List<String> result = new ArrayList<>(Math.min(size, MAX_INITIAL_CAPACITY));
+        previousSignature = "";
+        for (int i = 0; i < size; i++) {
+            result.add(readSignature());
+        }
+        return result;
+    }
+
+    private CommonPublicationData2 readCommonData() throws IOException {
+        // The builder calls are evaluated from left to right, i.e. in stream order.
+        return CommonPublicationData2.builder()
+                                     .customerId(readVarint())
+                                     .appName(readReference())
+                                     .appVersion(readReference())
+                                     .codeBaseFingerprint(readReference())
+                                     .agentVersion(readReference())
+                                     .computerId(readReference())
+                                     .environment(readReference())
+                                     .excludePackages(readReferences())
+                                     .hostname(readReference())
+                                     .jvmStartedAtMillis(readVarint())
+                                     .jvmUuid(readReference())
+                                     .methodVisibility(readReference())
+                                     .packages(readReferences())
+                                     .publishedAtMillis(readVarint())
+                                     .sequenceNumber((int) readVarint())
+                                     .tags(readReference())
+                                     .build();
+    }
+
+    private Long readCount() throws IOException {
+        long value = readVarint();
+        return value == 0L ? null : value - 1L;
+    }
+
+    private String readSignature() throws IOException {
+        int shared = readSize(previousSignature.length());
+        String signature = previousSignature.substring(0, shared) + readString();
+        previousSignature = signature;
+        return signature;
+    }
+
+    private List<String> readReferences() throws IOException {
+        int size = readSize(Integer.MAX_VALUE);
+        List<String> result = new ArrayList<>(Math.min(size, MAX_INITIAL_CAPACITY));
+        for (int i = 0; i < size; i++) {
+            result.add(readReference());
+        }
+        return result;
+    }
+
+    private String readReference() throws IOException {
+        int index = readSize(dictionary.size());
+        if (index > 0) {
+            return dictionary.get(index - 1);
+        }
+        String result = readString();
+        dictionary.add(result);
+        return result;
+    }
+
+    private String readString() throws IOException {
+        byte[] bytes = new byte[readSize(MAX_STRING_BYTES)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int readSize(int max) throws IOException {
+        long value = readVarint();
+        if (value < 0 || value > max) {
+            throw new IOException("Malformed v3 publication, " + value + " is out of range");
+        }
+        return (int) value;
+    }
+
+    private long readVarint() throws IOException {
+        long result = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed v3 publication, too long varint");
+    }
+
+    private static class NonClosingInputStream extends FilterInputStream {
+        NonClosingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+            // Leave the underlying stream open
+        }
+    }
+}
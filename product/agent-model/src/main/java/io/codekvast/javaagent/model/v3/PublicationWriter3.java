@@ -0,0 +1,365 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.model.v3;
+
+import io.codekvast.javaagent.model.v2.CodeBaseEntry2;
+import io.codekvast.javaagent.model.v2.CodeBasePublication2;
+import io.codekvast.javaagent.model.v2.CommonPublicationData2;
+import io.codekvast.javaagent.model.v2.InvocationDataPublication2;
+import io.codekvast.javaagent.model.v2.MethodSignature2;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static io.codekvast.javaagent.model.v3.PublicationFormat3.*;
+
+/**
+ * Writes publications in the v3 format, see {@link PublicationFormat3}.
+ *
+ * @author olle.hallin@crisp.se
+ */
+public final class PublicationWriter3 {
+
+    private static final Comparator<CodeBaseEntry2> BY_SIGNATURE = new Comparator<CodeBaseEntry2>() {
+        @Override
+        public int compare(CodeBaseEntry2 o1, CodeBaseEntry2 o2) {
+            return o1.getSignature().compareTo(o2.getSignature());
+        }
+    };
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private String previousSignature = "";
+
+    private PublicationWriter3(DataOutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes a publication to a stream.
+     *
+     * @param publication  A {@link CodeBasePublication2}, an {@link InvocationDataPublication2}, a
+     *                     {@link CodeBaseDeltaPublication3}, an {@link InvocationDataPublication3} or a
+     *                     {@link MethodIdMapping3}.
+     * @param outputStream The stream to write to. It is flushed but not closed.
+     * @param envelope     How to store the payload.
+     * @throws IOException If the stream cannot be written to.
+     */
+    public static void writePublication(Object publication, OutputStream outputStream, Envelope envelope)
+        throws IOException {
+        int type;
+        if (publication instanceof CodeBasePublication2) {
+            type = TYPE_CODE_BASE;
+        } else if (publication instanceof InvocationDataPublication2) {
+            type = TYPE_INVOCATION_DATA;
+        } else if (publication instanceof CodeBaseDeltaPublication3) {
+            type = TYPE_CODE_BASE_DELTA;
+        } else if (publication instanceof InvocationDataPublication3) {
+            type = TYPE_INVOCATION_DATA_BY_METHOD_ID;
+        } else if (publication instanceof MethodIdMapping3) {
+            type = TYPE_METHOD_ID_MAPPING;
+        } else {
+            throw new IllegalArgumentException("Cannot write a " + publication.getClass().getName() + " in the v3 format");
+        }
+
+        outputStream.write(MAGIC);
+        outputStream.write(envelope.ordinal());
+
+        OutputStream payload = new NonClosingOutputStream(outputStream);
+        switch (envelope) {
+        case GZIP:
+            payload = new GZIPOutputStream(payload);
+            break;
+        case DEFLATE:
+            payload = new DeflaterOutputStream(payload);
+            break;
+        default:
+            break;
+        }
+
+        // Closing finishes the compression and ends the deflater, but leaves outputStream open.
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(payload))) {
+            PublicationWriter3 writer = new PublicationWriter3(out);
+            out.write(type);
+            switch (type) {
+            case TYPE_CODE_BASE:
+                writer.writeCodeBasePublication((CodeBasePublication2) publication);
+                break;
+            case TYPE_INVOCATION_DATA:
+                writer.writeInvocationDataPublication((InvocationDataPublication2) publication);
+                break;
+            case TYPE_CODE_BASE_DELTA:
+                writer.writeCodeBaseDeltaPublication((CodeBaseDeltaPublication3) publication);
+                break;
+            case TYPE_INVOCATION_DATA_BY_METHOD_ID:
+                writer.writeInvocationDataPublication3((InvocationDataPublication3) publication);
+                break;
+            default:
+                writer.writeMethodIdMapping((MethodIdMapping3) publication);
+                break;
+            }
+        }
+    }
+
+    private void writeCodeBasePublication(CodeBasePublication2 publication) throws IOException {
+        writeCommonData(publication.getCommonData());
+        writeCodeBaseEntries(publication.getEntries());
+    }
+
+    private void writeCodeBaseDeltaPublication(CodeBaseDeltaPublication3 publication) throws IOException {
+        writeCommonData(publication.getCommonData());
+        writeReference(publication.getBaseCodeBaseFingerprint());
+        writeCodeBaseEntries(publication.getAddedEntries());
+        writeSignatures(publication.getRemovedSignatures());
+    }
+
+    private void writeCodeBaseEntries(Collection<CodeBaseEntry2> codeBaseEntries) throws IOException {
+        List<CodeBaseEntry2> entries = new ArrayList<>(codeBaseEntries);
+        Collections.sort(entries, BY_SIGNATURE);
+
+        previousSignature = "";
+        writeVarint(entries.size());
+        for (CodeBaseEntry2 entry : entries) {
+            writeCodeBaseEntry(entry);
+        }
+    }
+
+    private void writeCodeBaseEntry(CodeBaseEntry2 entry) throws IOException {
+        String signature = entry.getSignature();
+        MethodSignature2 methodSignature = entry.getMethodSignature();
+
+        int flags = 0;
+        if (methodSignature != null) {
+            flags |= ENTRY_HAS_METHOD_SIGNATURE;
+            flags |= encodeTriState(methodSignature.getBridge(), 0);
+            flags |= encodeTriState(methodSignature.getSynthetic(), 2);
+            if (methodSignature.getAspectjString().endsWith(signature)) {
+                flags |= ENTRY_ASPECTJ_STRING_ENDS_WITH_SIGNATURE;
+            }
+        }
+
+        out.write(flags);
+        writeSignature(signature);
+        writeReference(entry.getVisibility());
+
+        if (methodSignature != null) {
+            String aspectjString = methodSignature.getAspectjString();
+            if ((flags & ENTRY_ASPECTJ_STRING_ENDS_WITH_SIGNATURE) != 0) {
+                // Typically just the visibility and the return type.
+                writeReference(aspectjString.substring(0, aspectjString.length() - signature.length()));
+            } else {
+                writeString(aspectjString);
+            }
+            writeReference(methodSignature.getDeclaringType());
+            writeReference(methodSignature.getExceptionTypes());
+            writeReference(methodSignature.getMethodName());
+            writeReference(methodSignature.getModifiers());
+            writeReference(methodSignature.getPackageName());
+            writeReference(methodSignature.getParameterTypes());
+            writeReference(methodSignature.getReturnType());
+        }
+    }
+
+    private void writeInvocationDataPublication(InvocationDataPublication2 publication) throws IOException {
+        writeCommonData(publication.getCommonData());
+        writeVarint(publication.getRecordingIntervalStartedAtMillis());
+
+        List<String> invocations = writeSignatures(publication.getInvocations());
+        writeInvocationCounts(invocations, publication.getInvocationCounts());
+    }
+
+    private void writeInvocationDataPublication3(InvocationDataPublication3 publication) throws IOException {
+        writeCommonData(publication.getCommonData());
+        writeVarint(publication.getRecordingIntervalStartedAtMillis());
+        writeMethodIds(publication.getInvokedMethodIds(), publication.getMethodInvocationCounts());
+
+        List<String> invocations = writeSignatures(publication.getInvocations());
+        writeInvocationCounts(invocations, publication.getInvocationCounts());
+    }
+
+    private void writeMethodIds(long[] methodIds, long[] counts) throws IOException {
+        writeVarint(methodIds.length);
+        long previous = 0L;
+        for (long methodId : methodIds) {
+            if (methodId < previous) {
+                throw new IllegalArgumentException("Method ids must be non-negative and in ascending order");
+            }
+            writeVarint(methodId - previous);
+            previous = methodId;
+        }
+
+        if (counts == null) {
+            out.write(NO_INVOCATION_COUNTS);
+        } else if (counts.length == methodIds.length) {
+            out.write(INVOCATION_COUNTS_PER_INVOCATION);
+            for (long count : counts) {
+                writeVarint(count);
+            }
+        } else {
+            throw new IllegalArgumentException("Expected " + methodIds.length + " invocation counts, got " + counts.length);
+        }
+    }
+
+    private void writeMethodIdMapping(MethodIdMapping3 mapping) throws IOException {
+        writeReference(mapping.getCodeBaseFingerprint());
+
+        Map<String, Long> methodIds = mapping.getMethodIds();
+        for (String signature : writeSignatures(methodIds.keySet())) {
+            writeVarint(methodIds.get(signature));
+        }
+    }
+
+    /**
+     * @param invocations The invoked signatures in the order they were written.
+     * @param counts      The invocation counts, or null.
+     */
+    private void writeInvocationCounts(List<String> invocations, Map<String, Long> counts) throws IOException {
+        if (counts == null) {
+            out.write(NO_INVOCATION_COUNTS);
+        } else if (counts.size() == invocations.size() && counts.keySet().containsAll(invocations)) {
+            out.write(INVOCATION_COUNTS_PER_INVOCATION);
+            for (String signature : invocations) {
+                writeCount(counts.get(signature));
+            }
+        } else {
+            out.write(INVOCATION_COUNTS_BY_SIGNATURE);
+            SortedMap<String, Long> sortedCounts = new TreeMap<>(counts);
+            previousSignature = "";
+            writeVarint(sortedCounts.size());
+            for (Map.Entry<String, Long> entry : sortedCounts.entrySet()) {
+                writeSignature(entry.getKey());
+                writeCount(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return The signatures in the order they were written.
+     */
+    private List<String> writeSignatures(Collection<String> signatures) throws IOException {
+        List<String> result = new ArrayList<>(signatures);
+        Collections.sort(result);
+
+        previousSignature = "";
+        writeVarint(result.size());
+        for (String signature : result) {
+            writeSignature(signature);
+        }
+        return result;
+    }
+
+    private void writeCommonData(CommonPublicationData2 data) throws IOException {
+        writeVarint(data.getCustomerId());
+        writeReference(data.getAppName());
+        writeReference(data.getAppVersion());
+        writeReference(data.getCodeBaseFingerprint());
+        writeReference(data.getAgentVersion());
+        writeReference(data.getComputerId());
+        writeReference(data.getEnvironment());
+        writeReferences(data.getExcludePackages());
+        writeReference(data.getHostname());
+        writeVarint(data.getJvmStartedAtMillis());
+        writeReference(data.getJvmUuid());
+        writeReference(data.getMethodVisibility());
+        writeReferences(data.getPackages());
+        writeVarint(data.getPublishedAtMillis());
+        writeVarint(data.getSequenceNumber());
+        writeReference(data.getTags());
+    }
+
+    private void writeCount(Long count) throws IOException {
+        // Zero means null.
+        writeVarint(count == null ? 0L : count + 1L);
+    }
+
+    private void writeSignature(String signature) throws IOException {
+        int shared = commonPrefixLength(previousSignature, signature);
+        writeVarint(shared);
+        writeString(signature.substring(shared));
+        previousSignature = signature;
+    }
+
+    private static int commonPrefixLength(String s1, String s2) {
+        int max = Math.min(s1.length(), s2.length());
+        int result = 0;
+        while (result < max && s1.charAt(result) == s2.charAt(result)) {
+            result += 1;
+        }
+        if (result > 0 && Character.isHighSurrogate(s2.charAt(result - 1))) {
+            // Don't split a surrogate pair, it would not survive the UTF-8 encoding.
+            result -= 1;
+        }
+        return result;
+    }
+
+    private void writeReferences(List<String> strings) throws IOException {
+        writeVarint(strings.size());
+        for (String s : strings) {
+            writeReference(s);
+        }
+    }
+
+    private void writeReference(String s) throws IOException {
+        Integer index = dictionary.get(s);
+        if (index != null) {
+            writeVarint(index);
+        } else {
+            writeVarint(0);
+            writeString(s);
+            dictionary.put(s, dictionary.size() + 1);
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeVarint(long value) throws IOException {
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package io.codekvast.javaagent.model.model.v3;
+
+import io.codekvast.javaagent.model.v2.CodeBaseEntry2;
+import io.codekvast.javaagent.model.v2.CodeBasePublication2;
+import io.codekvast.javaagent.model.v3.CodeBaseDeltaPublication3;
+import io.codekvast.javaagent.model.v3.PublicationFormat3.Envelope;
+import io.codekvast.javaagent.model.v3.PublicationReader3;
+import io.codekvast.javaagent.model.v3.PublicationWriter3;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author olle.hallin@crisp.se
+ */
+public class CodeBaseDeltaPublication3Test {
+
+    private final CodeBasePublication2 base = withFingerprint(SamplePublications.codeBasePublication(5, 10, 10), "base");
+    private final CodeBasePublication2 publication = withFingerprint(changed(base), "new");
+
+    @Test
+    public void should_contain_only_changed_entries() {
+        CodeBaseDeltaPublication3 delta = CodeBaseDeltaPublication3.between(base, publication);
+
+        assertThat(delta.getBaseCodeBaseFingerprint(), is("base"));
+        assertThat(delta.getCommonData(), is(publication.getCommonData()));
+        assertThat(delta.getAddedEntries(), hasSize(2));
+        assertThat(delta.getRemovedSignatures(), hasSize(2));
+    }
+
+    @Test
+    public void should_be_empty_for_unchanged_code_base() {
+        CodeBaseDeltaPublication3 delta = CodeBaseDeltaPublication3.between(base, withFingerprint(base, "new"));
+
+        assertThat(delta.getAddedEntries(), empty());
+        assertThat(delta.getRemovedSignatures(), empty());
+    }
+
+    @Test
+    public void should_recreate_publication_when_applied_to_base() {
+        CodeBasePublication2 result = CodeBaseDeltaPublication3.between(base, publication).applyTo(base);
+
+        assertThat(result.getCommonData(), is(publication.getCommonData()));
+        assertThat(new HashSet<>(result.getEntries()), is(new HashSet<>(publication.getEntries())));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void should_reject_other_base() {
+        CodeBaseDeltaPublication3.between(base, publication).applyTo(publication);
+    }
+
+    @Test
+    public void should_round_trip_in_format3() throws IOException {
+        CodeBaseDeltaPublication3 delta = CodeBaseDeltaPublication3.between(base, publication);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PublicationWriter3.writePublication(delta, bytes, Envelope.GZIP);
+        CodeBaseDeltaPublication3 result =
+            (CodeBaseDeltaPublication3) PublicationReader3.readPublication(new ByteArrayInputStream(bytes.toByteArray()));
+
+        assertThat(result.getCommonData(), is(delta.getCommonData()));
+        assertThat(result.getBaseCodeBaseFingerprint(), is("base"));
+        assertThat(new HashSet<>(result.getAddedEntries()), is(new HashSet<>(delta.getAddedEntries())));
+        assertThat(new HashSet<>(result.getRemovedSignatures()), is(new HashSet<>(delta.getRemovedSignatures())));
+    }
+
+    private static CodeBasePublication2 withFingerprint(CodeBasePublication2 publication, String fingerprint) {
+        return publication.toBuilder()
+                          .commonData(publication.getCommonData().toBuilder().codeBaseFingerprint(fingerprint).build())
+                          .build();
+    }
+
+    /**
+     * Removes one entry, changes the visibility of another and adds a new one.
+     */
+    private static CodeBasePublication2 changed(CodeBasePublication2 publication) {
+        List<CodeBaseEntry2> entries = new ArrayList<>(publication.getEntries());
+        entries.remove(0);
+
+        CodeBaseEntry2 entry = entries.get(0);
+        entries.set(0, CodeBaseEntry2.builder()
+                                     .methodSignature(entry.getMethodSignature())
+                                     .signature(entry.getSignature())
+                                     .visibility("package-private")
+                                     .build());
+
+        entries.add(CodeBaseEntry2.builder().signature("com.acme.Foo.bar()").visibility("public").build());
+        return publication.toBuilder().entries(entries).build();
+    }
+}
@@ -0,0 +1,221 @@
+package io.codekvast.javaagent.model.model.v3;
+
+import io.codekvast.javaagent.model.v2.CodeBaseEntry2;
+import io.codekvast.javaagent.model.v2.CodeBasePublication2;
+import io.codekvast.javaagent.model.v2.CommonPublicationData2;
+import io.codekvast.javaagent.model.v2.InvocationDataPublication2;
+import io.codekvast.javaagent.model.v2.MethodSignature2;
+import io.codekvast.javaagent.model.v3.InvocationDataPublication3;
+import io.codekvast.javaagent.model.v3.MethodIdMapping3;
+import io.codekvast.javaagent.model.v3.PublicationFormat3;
+import io.codekvast.javaagent.model.v3.PublicationFormat3.Envelope;
+import io.codekvast.javaagent.model.v3.PublicationReader3;
+import io.codekvast.javaagent.model.v3.PublicationWriter3;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author olle.hallin@crisp.se
+ */
+public class PublicationFormat3Test {
+
+    private final CodeBasePublication2 codeBasePublication = SamplePublications.codeBasePublication(10, 20, 15);
+
+    @Test
+    public void should_round_trip_code_base_publication_in_all_envelopes() throws IOException {
+        for (Envelope envelope : Envelope.values()) {
+            CodeBasePublication2 result = (CodeBasePublication2) readPublication(write(codeBasePublication, envelope));
+
+            assertThat(envelope.name(), result.getCommonData(), is(codeBasePublication.getCommonData()));
+            assertThat(envelope.name(), new HashSet<>(result.getEntries()), is(new HashSet<>(codeBasePublication.getEntries())));
+        }
+    }
+
+    @Test
+    public void should_round_trip_all_fields_of_method_signatures() throws IOException {
+        Map<String, MethodSignature2> expected = new HashMap<>();
+        for (CodeBaseEntry2 entry : codeBasePublication.getEntries()) {
+            expected.put(entry.getSignature(), entry.getMethodSignature());
+        }
+
+        CodeBasePublication2 result = (CodeBasePublication2) readPublication(write(codeBasePublication, Envelope.NONE));
+
+        for (CodeBaseEntry2 entry : result.getEntries()) {
+            // MethodSignature2.equals() only compares the aspectjString
+            assertThat(entry.getMethodSignature().toBuilder().toString(),
+                       is(expected.get(entry.getSignature()).toBuilder().toString()));
+        }
+    }
+
+    @Test
+    public void should_round_trip_odd_code_base_entries() throws IOException {
+        List<CodeBaseEntry2> entries = Arrays.asList(
+            CodeBaseEntry2.sampleCodeBaseEntry(),
+            CodeBaseEntry2.builder().signature("com.acme.Foo.bar()").visibility("public").build(),
+            CodeBaseEntry2.builder().signature("com.acme.Foo.r\u00e4ksm\u00f6rg\u00e5s(\ud83d\ude00)").visibility("private").build(),
+            CodeBaseEntry2.builder().signature("com.acme.Foo.r\u00e4ksm\u00f6rg\u00e5s(\ud83d\ude01)").visibility("private").build());
+        CodeBasePublication2 publication = codeBasePublication.toBuilder().entries(entries).build();
+
+        CodeBasePublication2 result = (CodeBasePublication2) readPublication(write(publication, Envelope.DEFLATE));
+
+        assertThat(result.getEntries(), containsInAnyOrder(entries.toArray()));
+    }
+
+    @Test
+    public void should_round_trip_invocation_data_publication() throws IOException {
+        InvocationDataPublication2 publication = SamplePublications.invocationDataPublication(codeBasePublication, 3);
+
+        InvocationDataPublication2 result = (InvocationDataPublication2) readPublication(write(publication, Envelope.GZIP));
+
+        assertThat(result, is(publication));
+    }
+
+    @Test
+    public void should_round_trip_invocation_data_publication_without_counts() throws IOException {
+        InvocationDataPublication2 publication =
+            SamplePublications.invocationDataPublication(codeBasePublication, 3).toBuilder().invocationCounts(null).build();
+
+        InvocationDataPublication2 result = (InvocationDataPublication2) readPublication(write(publication, Envelope.NONE));
+
+        assertThat(result, is(publication));
+        assertThat(result.getInvocationCounts(), nullValue());
+    }
+
+    @Test
+    public void should_round_trip_invocation_counts_of_other_signatures() throws IOException {
+        Map<String, Long> counts = new HashMap<>();
+        counts.put("com.acme.Foo.bar()", 17L);
+        counts.put("com.acme.Foo.baz()", null);
+        InvocationDataPublication2 publication =
+            InvocationDataPublication2.builder()
+                                      .commonData(CommonPublicationData2.sampleCommonPublicationData())
+                                      .invocations(new HashSet<>(Collections.singletonList("com.acme.Foo.bar()")))
+                                      .invocationCounts(counts)
+                                      .recordingIntervalStartedAtMillis(1509461136162L)
+                                      .build();
+
+        InvocationDataPublication2 result = (InvocationDataPublication2) readPublication(write(publication, Envelope.NONE));
+
+        assertThat(result, is(publication));
+    }
+
+    @Test
+    public void should_round_trip_invocation_data_publication_by_method_id() throws IOException {
+        Map<String, Long> counts = new HashMap<>();
+        counts.put("com.acme.Foo.bar()", 17L);
+        InvocationDataPublication3 publication =
+            InvocationDataPublication3.builder()
+                                      .commonData(CommonPublicationData2.sampleCommonPublicationData())
+                                      .invokedMethodIds(new long[]{0L, 1L, 2L, 1000L, 1_000_000_000_000L})
+                                      .methodInvocationCounts(new long[]{1L, 2L, 3L, 4L, 5L})
+                                      .invocations(new HashSet<>(Collections.singletonList("com.acme.Foo.bar()")))
+                                      .invocationCounts(counts)
+                                      .recordingIntervalStartedAtMillis(1509461136162L)
+                                      .build();
+
+        InvocationDataPublication3 result = (InvocationDataPublication3) readPublication(write(publication, Envelope.GZIP));
+
+        assertThat(result, is(publication));
+    }
+
+    @Test
+    public void should_round_trip_invocation_data_publication_by_method_id_without_counts() throws IOException {
+        InvocationDataPublication3 publication =
+            InvocationDataPublication3.builder()
+                                      .commonData(CommonPublicationData2.sampleCommonPublicationData())
+                                      .invokedMethodIds(new long[]{3L, 5L, 8L})
+                                      .invocations(Collections.<String>emptySet())
+                                      .recordingIntervalStartedAtMillis(1509461136162L)
+                                      .build();
+
+        InvocationDataPublication3 result = (InvocationDataPublication3) readPublication(write(publication, Envelope.NONE));
+
+        assertThat(result, is(publication));
+        assertThat(result.getMethodInvocationCounts(), nullValue());
+        assertThat(result.getInvocationCounts(), nullValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void should_reject_unordered_method_ids() throws IOException {
+        InvocationDataPublication3 publication =
+            InvocationDataPublication3.builder()
+                                      .commonData(CommonPublicationData2.sampleCommonPublicationData())
+                                      .invokedMethodIds(new long[]{5L, 3L})
+                                      .invocations(Collections.<String>emptySet())
+                                      .recordingIntervalStartedAtMillis(1509461136162L)
+                                      .build();
+
+        write(publication, Envelope.NONE);
+    }
+
+    @Test
+    public void should_round_trip_method_id_mapping() throws IOException {
+        Map<String, Long> methodIds = new HashMap<>();
+        long id = 4711L;
+        for (CodeBaseEntry2 entry : codeBasePublication.getEntries()) {
+            methodIds.put(entry.getSignature(), id++);
+        }
+        MethodIdMapping3 mapping = MethodIdMapping3.builder().codeBaseFingerprint("fingerprint").methodIds(methodIds).build();
+
+        MethodIdMapping3 result = (MethodIdMapping3) readPublication(write(mapping, Envelope.GZIP));
+
+        assertThat(result, is(mapping));
+    }
+
+    @Test
+    public void should_be_smaller_than_v2() throws IOException {
+        InvocationDataPublication2 invocationDataPublication =
+            SamplePublications.invocationDataPublication(codeBasePublication, 2);
+
+        assertThat(write(codeBasePublication, Envelope.NONE).length * 3,
+                   lessThan(SamplePublications.serializeV2(codeBasePublication, false).length));
+        assertThat(write(codeBasePublication, Envelope.GZIP).length * 2,
+                   lessThan(SamplePublications.serializeV2(codeBasePublication, true).length));
+        assertThat(write(invocationDataPublication, Envelope.NONE).length * 2,
+                   lessThan(SamplePublications.serializeV2(invocationDataPublication, false).length));
+    }
+
+    @Test
+    public void should_recognize_format3() throws IOException {
+        InputStream v3 = new ByteArrayInputStream(write(codeBasePublication, Envelope.GZIP));
+        InputStream v2 = new ByteArrayInputStream(SamplePublications.serializeV2(codeBasePublication, false));
+        InputStream empty = new ByteArrayInputStream(new byte[0]);
+
+        assertThat(PublicationFormat3.isFormat3(v3), is(true));
+        assertThat(PublicationFormat3.isFormat3(v2), is(false));
+        assertThat(PublicationFormat3.isFormat3(empty), is(false));
+
+        // Nothing consumed
+        assertThat(PublicationReader3.readPublication(v3), instanceOf(CodeBasePublication2.class));
+    }
+
+    @Test(expected = IOException.class)
+    public void should_reject_truncated_publication() throws IOException {
+        byte[] bytes = write(codeBasePublication, Envelope.NONE);
+
+        readPublication(Arrays.copyOf(bytes, bytes.length / 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void should_reject_unknown_publication_type() throws IOException {
+        write("foobar", Envelope.NONE);
+    }
+
+    private static byte[] write(Object publication, Envelope envelope) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PublicationWriter3.writePublication(publication, out, envelope);
+        return out.toByteArray();
+    }
+
+    private static Object readPublication(byte[] bytes) throws IOException {
+        return PublicationReader3.readPublication(new ByteArrayInputStream(bytes));
+    }
+}
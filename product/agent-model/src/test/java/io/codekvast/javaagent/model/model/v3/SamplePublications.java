@@ -0,0 +1,94 @@
+package io.codekvast.javaagent.model.model.v3;
+
+import io.codekvast.javaagent.model.v2.CodeBaseEntry2;
+import io.codekvast.javaagent.model.v2.CodeBasePublication2;
+import io.codekvast.javaagent.model.v2.CommonPublicationData2;
+import io.codekvast.javaagent.model.v2.InvocationDataPublication2;
+import io.codekvast.javaagent.model.v2.MethodSignature2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Synthetic publications with the shape of a real code base. Also used by the JMH benchmarks.
+ *
+ * @author olle.hallin@crisp.se
+ */
+public class SamplePublications {
+
+    private static final String[] PARAMETER_TYPES = {"", "int", "java.lang.String", "java.lang.String, int",
+        "java.util.List<java.lang.String>", "com.acme.model.Customer, boolean"};
+    private static final String[] RETURN_TYPES = {"void", "int", "java.lang.String", "boolean", "com.acme.model.Customer"};
+
+    public static CodeBasePublication2 codeBasePublication(int numPackages, int numClasses, int numMethods) {
+        List<CodeBaseEntry2> entries = new ArrayList<>();
+        for (int p = 0; p < numPackages; p++) {
+            String packageName = "com.acme.module" + p;
+            for (int c = 0; c < numClasses; c++) {
+                String declaringType = packageName + ".Class" + c;
+                for (int m = 0; m < numMethods; m++) {
+                    String methodName = m % 3 == 0 ? "get" + "Property" + m : "method" + m;
+                    String parameterTypes = PARAMETER_TYPES[m % PARAMETER_TYPES.length];
+                    String returnType = RETURN_TYPES[m % RETURN_TYPES.length];
+                    String visibility = m % 4 == 0 ? "protected" : "public";
+                    String signature = declaringType + "." + methodName + "(" + parameterTypes + ")";
+
+                    entries.add(CodeBaseEntry2.builder()
+                                              .methodSignature(MethodSignature2.builder()
+                                                                               .aspectjString(visibility + " " + returnType + " " + signature)
+                                                                               .bridge(false)
+                                                                               .declaringType(declaringType)
+                                                                               .exceptionTypes(m % 5 == 0 ? "java.io.IOException" : "")
+                                                                               .methodName(methodName)
+                                                                               .modifiers(visibility)
+                                                                               .packageName(packageName)
+                                                                               .parameterTypes(parameterTypes)
+                                                                               .returnType(returnType)
+                                                                               .synthetic(m == 7 ? null : false)
+                                                                               .build())
+                                              .signature(signature)
+                                              .visibility(visibility)
+                                              .build());
+                }
+            }
+        }
+
+        // The order of a real publication is the iteration order of a hash map.
+        Collections.shuffle(entries, new Random(4711));
+        return CodeBasePublication2.builder()
+                                   .commonData(CommonPublicationData2.sampleCommonPublicationData())
+                                   .entries(entries)
+                                   .build();
+    }
+
+    public static InvocationDataPublication2 invocationDataPublication(CodeBasePublication2 codeBase, int every) {
+        Set<String> invocations = new HashSet<>();
+        Map<String, Long> invocationCounts = new HashMap<>();
+        int i = 0;
+        for (CodeBaseEntry2 entry : codeBase.getEntries()) {
+            if (i++ % every == 0) {
+                invocations.add(entry.getSignature());
+                invocationCounts.put(entry.getSignature(), (long) i);
+            }
+        }
+        return InvocationDataPublication2.builder()
+                                         .commonData(CommonPublicationData2.sampleCommonPublicationData())
+                                         .invocations(invocations)
+                                         .invocationCounts(invocationCounts)
+                                         .recordingIntervalStartedAtMillis(1509461136162L)
+                                         .build();
+    }
+
+    public static byte[] serializeV2(Object publication, boolean gzip) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = gzip ? new GZIPOutputStream(bytes) : bytes;
+        try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+            oos.writeObject(publication);
+        }
+        return bytes.toByteArray();
+    }
+}
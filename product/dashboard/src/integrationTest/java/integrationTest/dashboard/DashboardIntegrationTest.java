@@ -43,6 +43,7 @@ import java.sql.Timestamp;
 import java.time.Instant;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
@@ -411,6 +412,25 @@ public class DashboardIntegrationTest {
         invocationDataImporter.importPublication(publication);
     }
 
+    @Test
+    public void should_import_invocationDataPublication_with_invocationCounts() {
+        //@formatter:off
+        InvocationDataPublication2 publication = InvocationDataPublication2.builder()
+            .commonData(CommonPublicationData2.sampleCommonPublicationData())
+            .recordingIntervalStartedAtMillis(System.currentTimeMillis())
+            .invocations(new HashSet<>(Arrays.asList("signature1", "signature2")))
+            .invocationCounts(Collections.singletonMap("signature1", 17L))
+            .build();
+        //@formatter:on
+
+        invocationDataImporter.importPublication(publication);
+        invocationDataImporter.importPublication(publication);
+
+        String sql = "SELECT i.invocationCount FROM invocations i, methods m WHERE i.methodId = m.id AND m.signature = ?";
+        assertThat(jdbcTemplate.queryForObject(sql, Long.class, "signature1"), is(34L));
+        assertThat(jdbcTemplate.queryForObject(sql, Long.class, "signature2"), is(2L));
+    }
+
     @Test
     public void should_query_unknown_signature_correctly() {
         // given
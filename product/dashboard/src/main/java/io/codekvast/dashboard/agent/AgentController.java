@@ -24,6 +24,9 @@ package io.codekvast.dashboard.agent;
 import io.codekvast.common.customer.LicenseViolationException;
 import io.codekvast.javaagent.model.v1.rest.GetConfigRequest1;
 import io.codekvast.javaagent.model.v1.rest.GetConfigResponse1;
+import io.codekvast.javaagent.model.v3.MethodIdMapping3;
+import io.codekvast.javaagent.model.v3.PublicationFormat3;
+import io.codekvast.javaagent.model.v3.PublicationWriter3;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
@@ -32,6 +35,7 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.validation.Valid;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import static io.codekvast.dashboard.agent.AgentService.PublicationType.CODEBASE;
@@ -97,6 +101,47 @@ public class AgentController {
         return "OK";
     }
 
+    @RequestMapping(value = V3_UPLOAD_CODEBASE_DELTA, method = POST,
+        consumes = MULTIPART_FORM_DATA_VALUE, produces = TEXT_PLAIN_VALUE)
+    public ResponseEntity<String> uploadCodeBaseDelta3(
+        @RequestParam(PARAM_LICENSE_KEY) String licenseKey,
+        @RequestParam(PARAM_FINGERPRINT) String fingerprint,
+        @RequestParam(PARAM_BASE_FINGERPRINT) String baseFingerprint,
+        @RequestParam(PARAM_PUBLICATION_SIZE) Integer publicationSize,
+        @RequestParam(PARAM_PUBLICATION_FILE) MultipartFile file) throws IOException {
+
+        logger.debug("Received {} ({} codebase delta, {}) with licenseKey={}, fingerprint={}, baseFingerprint={}",
+                     file.getOriginalFilename(), publicationSize, humanReadableByteCount(file.getSize()), licenseKey,
+                     fingerprint, baseFingerprint);
+
+        if (agentService.saveCodeBaseDeltaPublication(licenseKey, baseFingerprint, publicationSize, file.getInputStream()) == null) {
+            // The agent will upload the full code base instead.
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("Unknown base code base " + baseFingerprint);
+        }
+        return ResponseEntity.ok("OK");
+    }
+
+    @RequestMapping(value = V3_GET_METHOD_IDS, method = POST,
+        consumes = APPLICATION_FORM_URLENCODED_VALUE, produces = APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<byte[]> getMethodIds3(
+        @RequestParam(PARAM_LICENSE_KEY) String licenseKey,
+        @RequestParam(PARAM_FINGERPRINT) String fingerprint) throws IOException {
+
+        logger.debug("Received method id request with licenseKey={}, fingerprint={}", licenseKey, fingerprint);
+
+        MethodIdMapping3 mapping = agentService.getMethodIdMapping(licenseKey, fingerprint);
+        if (mapping == null) {
+            // The agent will publish signatures until the code base has been imported.
+            return ResponseEntity.notFound().build();
+        }
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PublicationWriter3.writePublication(mapping, outputStream, PublicationFormat3.Envelope.GZIP);
+
+        logger.debug("Responds with {} ({})", mapping, humanReadableByteCount(outputStream.size()));
+        return ResponseEntity.ok(outputStream.toByteArray());
+    }
+
     @RequestMapping(value = V1_UPLOAD_INVOCATION_DATA, method = POST,
         consumes = MULTIPART_FORM_DATA_VALUE, produces = TEXT_PLAIN_VALUE)
     public String uploadInvocationData1(
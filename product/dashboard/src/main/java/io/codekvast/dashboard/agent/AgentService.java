@@ -26,6 +26,8 @@ import io.codekvast.javaagent.model.v1.rest.GetConfigRequest1;
 import io.codekvast.javaagent.model.v1.rest.GetConfigResponse1;
 import io.codekvast.javaagent.model.v2.CodeBasePublication2;
 import io.codekvast.javaagent.model.v2.InvocationDataPublication2;
+import io.codekvast.javaagent.model.v3.CodeBaseDeltaPublication3;
+import io.codekvast.javaagent.model.v3.MethodIdMapping3;
 
 import java.io.File;
 import java.io.IOException;
@@ -69,4 +71,30 @@ public interface AgentService {
      */
     File savePublication(PublicationType publicationType, String licenseKey, int publicationSize, InputStream inputStream)
         throws LicenseViolationException, IOException;
+
+    /**
+     * Apply an uploaded code base delta to an earlier imported code base, and save the resulting code base publication into
+     * the import area where it will be processed by another thread.
+     *
+     * @param licenseKey      The javaagent's licenseKey.
+     * @param baseFingerprint The fingerprint of the code base that the delta shall be applied to.
+     * @param publicationSize The size of the resulting code base. Used for price plan enforcement.
+     * @param inputStream     The data input stream.
+     * @return the resulting file in the queue directory, or null if the base code base is unknown.
+     * @throws LicenseViolationException If invalid license or license violations.
+     * @throws IOException               If the delta cannot be read or failure to create the file.
+     * @see CodeBaseDeltaPublication3
+     */
+    File saveCodeBaseDeltaPublication(String licenseKey, String baseFingerprint, int publicationSize, InputStream inputStream)
+        throws LicenseViolationException, IOException;
+
+    /**
+     * Which ids have the methods of an imported code base?
+     *
+     * @param licenseKey  The javaagent's licenseKey.
+     * @param fingerprint The fingerprint of the code base.
+     * @return The method ids, or null if the code base has not been imported.
+     * @throws LicenseViolationException If invalid license.
+     */
+    MethodIdMapping3 getMethodIdMapping(String licenseKey, String fingerprint) throws LicenseViolationException;
 }
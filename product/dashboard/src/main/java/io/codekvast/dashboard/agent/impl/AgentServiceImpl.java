@@ -27,8 +27,15 @@ import io.codekvast.common.customer.LicenseViolationException;
 import io.codekvast.common.customer.PricePlan;
 import io.codekvast.dashboard.agent.AgentService;
 import io.codekvast.dashboard.bootstrap.CodekvastDashboardSettings;
+import io.codekvast.dashboard.file_import.CodeBaseStore;
 import io.codekvast.javaagent.model.v1.rest.GetConfigRequest1;
 import io.codekvast.javaagent.model.v1.rest.GetConfigResponse1;
+import io.codekvast.javaagent.model.v2.CodeBasePublication2;
+import io.codekvast.javaagent.model.v3.CodeBaseDeltaPublication3;
+import io.codekvast.javaagent.model.v3.MethodIdMapping3;
+import io.codekvast.javaagent.model.v3.PublicationFormat3;
+import io.codekvast.javaagent.model.v3.PublicationReader3;
+import io.codekvast.javaagent.model.v3.PublicationWriter3;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -36,12 +43,12 @@ import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.nio.file.Files;
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
 
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 
@@ -58,6 +65,7 @@ public class AgentServiceImpl implements AgentService {
     private final CodekvastDashboardSettings settings;
     private final JdbcTemplate jdbcTemplate;
     private final CustomerService customerService;
+    private final CodeBaseStore codeBaseStore;
 
     @Override
     @Transactional(rollbackFor = Exception.class)
@@ -145,11 +153,76 @@ public class AgentServiceImpl implements AgentService {
         return doSaveInputStream(publicationType, inputStream);
     }
 
-    private File doSaveInputStream(PublicationType publicationType, InputStream inputStream) throws IOException {
+    @Override
+    public File saveCodeBaseDeltaPublication(@NonNull String licenseKey, @NonNull String baseFingerprint, int publicationSize,
+                                             InputStream inputStream) throws LicenseViolationException, IOException {
+
+        customerService.assertPublicationSize(licenseKey, publicationSize);
+        long customerId = customerService.getCustomerDataByLicenseKey(licenseKey).getCustomerId();
+
+        CodeBaseDeltaPublication3 delta = readCodeBaseDelta(inputStream);
+        if (!delta.getBaseCodeBaseFingerprint().equals(baseFingerprint)) {
+            throw new IOException("The code base delta is not based on " + baseFingerprint);
+        }
+
+        CodeBasePublication2 base = codeBaseStore.load(customerId, baseFingerprint);
+        if (base == null) {
+            logger.info("Rejected code base delta from customer {}, since the code base {} is unknown", customerId, baseFingerprint);
+            return null;
+        }
+
+        // The resulting code base is imported like any other, which also makes it the base of later deltas.
+        File result = createQueueFile(PublicationType.CODEBASE);
+        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(result))) {
+            PublicationWriter3.writePublication(delta.applyTo(base), outputStream, PublicationFormat3.Envelope.GZIP);
+        }
+
+        logger.info("Saved {} applied to code base {} to {}", delta, baseFingerprint, result);
+        return result;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public MethodIdMapping3 getMethodIdMapping(@NonNull String licenseKey, @NonNull String fingerprint) throws LicenseViolationException {
+        long customerId = customerService.getCustomerDataByLicenseKey(licenseKey).getCustomerId();
+
+        // The code base import creates an invocation row for each method of the code base and JVM.
+        Map<String, Long> methodIds = new HashMap<>();
+        jdbcTemplate.query("SELECT DISTINCT m.id, m.signature FROM jvms j " +
+                               "INNER JOIN invocations i ON i.customerId = j.customerId AND i.jvmId = j.id " +
+                               "INNER JOIN methods m ON m.customerId = i.customerId AND m.id = i.methodId " +
+                               "WHERE j.customerId = ? AND j.codeBaseFingerprint = ? ",
+                           rs -> {
+                               methodIds.put(rs.getString(2), rs.getLong(1));
+                           }, customerId, fingerprint);
+
+        if (methodIds.isEmpty()) {
+            logger.debug("Code base {}:{} has not been imported", customerId, fingerprint);
+            return null;
+        }
+
+        logger.debug("Code base {}:{} has {} method ids", customerId, fingerprint, methodIds.size());
+        return MethodIdMapping3.builder()
+                               .codeBaseFingerprint(fingerprint)
+                               .methodIds(methodIds)
+                               .build();
+    }
+
+    private CodeBaseDeltaPublication3 readCodeBaseDelta(InputStream inputStream) throws IOException {
         try {
-            createDirectory(settings.getQueuePath());
+            Object object = PublicationReader3.readPublication(inputStream);
+            if (!(object instanceof CodeBaseDeltaPublication3)) {
+                throw new IOException("Expected a code base delta, got a " + object.getClass().getSimpleName());
+            }
+            return (CodeBaseDeltaPublication3) object;
+        } finally {
+            inputStream.close();
+        }
+    }
 
-            File result = File.createTempFile(publicationType + "-", ".ser", settings.getQueuePath());
+    private File doSaveInputStream(PublicationType publicationType, InputStream inputStream) throws IOException {
+        try {
+            File result = createQueueFile(publicationType);
             Files.copy(inputStream, result.toPath(), REPLACE_EXISTING);
 
             logger.info("Saved uploaded {} publication to {}", publicationType, result);
@@ -159,6 +232,11 @@ public class AgentServiceImpl implements AgentService {
         }
     }
 
+    private File createQueueFile(PublicationType publicationType) throws IOException {
+        createDirectory(settings.getQueuePath());
+        return File.createTempFile(publicationType + "-", ".ser", settings.getQueuePath());
+    }
+
     private void createDirectory(File queuePath) throws IOException {
         if (!queuePath.isDirectory()) {
             logger.debug("Creating {}", settings.getQueuePath());
@@ -86,6 +86,17 @@ public class CodekvastDashboardSettings implements CodekvastCommonSettings {
      */
     private boolean deleteImportedFiles = true;
 
+    /**
+     * The path to the store of imported code bases, that are the bases of code base deltas.
+     * If null, code base deltas are rejected.
+     */
+    private File codeBaseStorePath;
+
+    /**
+     * How long shall an unused code base be kept in codeBaseStorePath?
+     */
+    private int codeBaseStoreRetentionDays = 30;
+
     /**
      * What secret should be used for signing JWT tokens?
      */
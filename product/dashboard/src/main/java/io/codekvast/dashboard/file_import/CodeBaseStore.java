@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.dashboard.file_import;
+
+import io.codekvast.javaagent.model.v2.CodeBasePublication2;
+
+/**
+ * A store of imported code bases, that are the bases of code base deltas uploaded by the agents.
+ *
+ * @author olle.hallin@crisp.se
+ */
+public interface CodeBaseStore {
+
+    /**
+     * Stores an imported code base, replacing any earlier code base with the same fingerprint.
+     *
+     * @param publication The imported publication.
+     */
+    void save(CodeBasePublication2 publication);
+
+    /**
+     * Loads a stored code base.
+     *
+     * @param customerId  The customer that has imported the code base.
+     * @param fingerprint The fingerprint of the code base.
+     * @return The stored publication, or null if unknown.
+     */
+    CodeBasePublication2 load(long customerId, String fingerprint);
+}
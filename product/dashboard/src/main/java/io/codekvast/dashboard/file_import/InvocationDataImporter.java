@@ -22,6 +22,7 @@
 package io.codekvast.dashboard.file_import;
 
 import io.codekvast.javaagent.model.v2.InvocationDataPublication2;
+import io.codekvast.javaagent.model.v3.InvocationDataPublication3;
 
 /**
  * @author olle.hallin@crisp.se
@@ -36,4 +37,13 @@ public interface InvocationDataImporter {
      */
     @SuppressWarnings("SameReturnValue")
     boolean importPublication(InvocationDataPublication2 publication);
+
+    /**
+     * Imports an InvocationDataPublication3
+     *
+     * @param publication The publication to import.
+     * @return true iff the publication was handled.
+     */
+    @SuppressWarnings("SameReturnValue")
+    boolean importPublication(InvocationDataPublication3 publication);
 }
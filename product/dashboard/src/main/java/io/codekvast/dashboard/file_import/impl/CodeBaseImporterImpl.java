@@ -22,12 +22,15 @@
 package io.codekvast.dashboard.file_import.impl;
 
 import io.codekvast.dashboard.file_import.CodeBaseImporter;
+import io.codekvast.dashboard.file_import.CodeBaseStore;
 import io.codekvast.javaagent.model.v2.CodeBasePublication2;
 import io.codekvast.javaagent.model.v2.CommonPublicationData2;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * @author olle.hallin@crisp.se
@@ -38,6 +41,7 @@ import org.springframework.transaction.annotation.Transactional;
 public class CodeBaseImporterImpl implements CodeBaseImporter {
 
     private final ImportDAO importDAO;
+    private final CodeBaseStore codeBaseStore;
 
     @Override
     @Transactional(rollbackFor = Exception.class)
@@ -51,6 +55,14 @@ public class CodeBaseImporterImpl implements CodeBaseImporter {
         long jvmId = importDAO.importJvm(data, appId, environmentId);
         importDAO.importMethods(data, customerId, appId, environmentId, jvmId, publication.getCommonData().getPublishedAtMillis(),
                                 publication.getEntries());
+
+        // Makes it the base of later code base deltas, once the methods are committed.
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                codeBaseStore.save(publication);
+            }
+        });
         return true;
     }
 }
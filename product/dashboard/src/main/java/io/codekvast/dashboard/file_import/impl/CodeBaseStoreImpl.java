@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.dashboard.file_import.impl;
+
+import io.codekvast.dashboard.bootstrap.CodekvastDashboardSettings;
+import io.codekvast.dashboard.file_import.CodeBaseStore;
+import io.codekvast.javaagent.model.v2.CodeBasePublication2;
+import io.codekvast.javaagent.model.v3.PublicationFormat3;
+import io.codekvast.javaagent.model.v3.PublicationReader3;
+import io.codekvast.javaagent.model.v3.PublicationWriter3;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Keeps the imported code bases as files in the compact v3 format, one directory per customer.
+ *
+ * A code base that has not been stored nor loaded during the retention period is deleted the next time a code base of the
+ * same customer is stored.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class CodeBaseStoreImpl implements CodeBaseStore {
+
+    private static final String FILE_SUFFIX = ".ckv3";
+
+    private final CodekvastDashboardSettings settings;
+
+    @Override
+    public void save(CodeBasePublication2 publication) {
+        if (settings.getCodeBaseStorePath() == null) {
+            return;
+        }
+
+        long customerId = publication.getCommonData().getCustomerId();
+        File file = getFile(customerId, publication.getCommonData().getCodeBaseFingerprint());
+        File tmpFile = null;
+        try {
+            File directory = file.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            deleteExpiredFiles(directory);
+
+            tmpFile = File.createTempFile(file.getName(), ".tmp", directory);
+            try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+                PublicationWriter3.writePublication(publication, outputStream, PublicationFormat3.Envelope.GZIP);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+            logger.debug("Stored code base {}:{} in {}", customerId, publication.getCommonData().getCodeBaseFingerprint(), file);
+        } catch (IOException e) {
+            logger.warn("Cannot store code base in " + file, e);
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+        }
+    }
+
+    @Override
+    public CodeBasePublication2 load(long customerId, String fingerprint) {
+        if (settings.getCodeBaseStorePath() == null) {
+            return null;
+        }
+
+        File file = getFile(customerId, fingerprint);
+        if (!file.isFile()) {
+            logger.debug("Code base {}:{} is not stored", customerId, fingerprint);
+            return null;
+        }
+
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+            CodeBasePublication2 result = (CodeBasePublication2) PublicationReader3.readPublication(inputStream);
+
+            // Postpone the expiration of code bases that are in use.
+            file.setLastModified(System.currentTimeMillis());
+            return result;
+        } catch (IOException | ClassCastException e) {
+            logger.warn("Cannot load code base from " + file, e);
+            return null;
+        }
+    }
+
+    private File getFile(long customerId, String fingerprint) {
+        // The fingerprint is supplied by the agent, so it is not used verbatim as a file name.
+        String name = DigestUtils.md5DigestAsHex(fingerprint.getBytes(StandardCharsets.UTF_8)) + FILE_SUFFIX;
+        return new File(new File(settings.getCodeBaseStorePath(), Long.toString(customerId)), name);
+    }
+
+    private void deleteExpiredFiles(File directory) {
+        long expiredBefore = System.currentTimeMillis() - Duration.ofDays(settings.getCodeBaseStoreRetentionDays()).toMillis();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.lastModified() < expiredBefore && file.delete()) {
+                    logger.debug("Deleted expired {}", file);
+                }
+            }
+        }
+    }
+}
@@ -25,6 +25,7 @@ import io.codekvast.javaagent.model.v2.CodeBaseEntry2;
 import io.codekvast.javaagent.model.v2.CommonPublicationData2;
 
 import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -83,6 +84,25 @@ public interface ImportDAO {
      * @param jvmId           The JVM ID returned by {@link #importJvm(CommonPublicationData2, long, long)}
      * @param invokedAtMillis The start of the recording interval.
      * @param invocations     The set of signatures that were invoked in this recording interval.
+     * @param invocationCounts The number of invocations per signature in this recording interval. May be null, in which case
+     *                         each signature counts as one invocation.
      */
-    void importInvocations(long customerId, long appId, long environmentId, long jvmId, long invokedAtMillis, Set<String> invocations);
+    void importInvocations(long customerId, long appId, long environmentId, long jvmId, long invokedAtMillis, Set<String> invocations,
+                           Map<String, Long> invocationCounts);
+
+    /**
+     * Inserts or updates rows into the invocations table, for methods identified by their ids. Ids of methods that do not
+     * belong to the customer are ignored.
+     *
+     * @param customerId       The customer ID
+     * @param appId            The application ID returned by {@link #importApplication(CommonPublicationData2)}
+     * @param environmentId    The value returned from {@link #importEnvironment(CommonPublicationData2)}
+     * @param jvmId            The JVM ID returned by {@link #importJvm(CommonPublicationData2, long, long)}
+     * @param invokedAtMillis  The start of the recording interval.
+     * @param methodIds        The ids of the methods that were invoked in this recording interval.
+     * @param invocationCounts The number of invocations of each method in methodIds. May be null, in which case each method
+     *                         counts as one invocation.
+     */
+    void importInvocationsByMethodId(long customerId, long appId, long environmentId, long jvmId, long invokedAtMillis,
+                                     long[] methodIds, long[] invocationCounts);
 }
@@ -30,6 +30,8 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Component;
@@ -54,6 +56,7 @@ public class ImportDAOImpl implements ImportDAO {
     private static final String PROTECTED = "protected";
     private static final String VISIBILITY_PUBLIC = "public";
     private static final String DEFAULT_ENVIRONMENT_NAME = "<default>";
+    private static final int METHOD_ID_BATCH_SIZE = 1000;
     private final JdbcTemplate jdbcTemplate;
     private final CustomerService customerService;
 
@@ -147,18 +150,74 @@ public class ImportDAOImpl implements ImportDAO {
     }
 
     @Override
-    public void importInvocations(long customerId, long appId, long environmentId, long jvmId, long invokedAtMillis, Set<String> invocations) {
+    public void importInvocations(long customerId, long appId, long environmentId, long jvmId, long invokedAtMillis, Set<String> invocations,
+                                  Map<String, Long> invocationCounts) {
         Map<String, Long> existingMethods = getExistingMethods(customerId);
         Set<Long> existingInvocations = getExistingInvocations(customerId, appId, jvmId);
 
-        doImportInvocations(customerId, appId, environmentId, jvmId, invokedAtMillis, invocations, existingMethods, existingInvocations);
+        doImportInvocations(customerId, appId, environmentId, jvmId, invokedAtMillis, invocations, invocationCounts, existingMethods,
+                            existingInvocations);
 
         customerService.assertDatabaseSize(customerId);
     }
 
+    @Override
+    public void importInvocationsByMethodId(long customerId, long appId, long environmentId, long jvmId, long invokedAtMillis,
+                                            long[] methodIds, long[] invocationCounts) {
+        // The JVM's code base import has created an invocation row for each of its methods, so the customer-wide
+        // signature map is not needed.
+        Set<Long> existingInvocations = getExistingInvocations(customerId, appId, jvmId);
+
+        long startedAtMillis = System.currentTimeMillis();
+        Set<Long> newMethodIds = new HashSet<>();
+        for (long methodId : methodIds) {
+            if (!existingInvocations.contains(methodId)) {
+                newMethodIds.add(methodId);
+            }
+        }
+        Set<Long> methodsOfCustomer = getMethodsOfCustomer(customerId, newMethodIds);
+
+        for (int i = 0; i < methodIds.length; i++) {
+            long methodId = methodIds[i];
+            long invocationCount = invocationCounts == null || invocationCounts[i] < 1L ? 1L : invocationCounts[i];
+            if (existingInvocations.contains(methodId)) {
+                logger.trace("Updating invocation {}", methodId);
+                jdbcTemplate.update(new UpdateInvocationStatement(customerId, appId, jvmId, methodId, invokedAtMillis, invocationCount));
+            } else if (methodsOfCustomer.contains(methodId)) {
+                logger.trace("Inserting invocation {}", methodId);
+                jdbcTemplate
+                    .update(new InsertInvocationStatement(customerId, appId, environmentId, jvmId, methodId, SignatureStatus2.INVOKED,
+                                                          invokedAtMillis, invocationCount));
+                existingInvocations.add(methodId);
+            } else {
+                logger.warn("Ignoring invocation of unknown method {}:{}", customerId, methodId);
+            }
+        }
+        logger.debug("Imported {} invocations by method id in {} ms", methodIds.length, System.currentTimeMillis() - startedAtMillis);
+
+        customerService.assertDatabaseSize(customerId);
+    }
+
+    private Set<Long> getMethodsOfCustomer(long customerId, Collection<Long> methodIds) {
+        Set<Long> result = new HashSet<>();
+        NamedParameterJdbcTemplate namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+        List<Long> ids = new ArrayList<>(methodIds);
+        for (int from = 0; from < ids.size(); from += METHOD_ID_BATCH_SIZE) {
+            MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue("customerId", customerId)
+                .addValue("ids", ids.subList(from, Math.min(from + METHOD_ID_BATCH_SIZE, ids.size())));
+            result.addAll(namedParameterJdbcTemplate
+                              .queryForList("SELECT id FROM methods WHERE customerId = :customerId AND id IN (:ids)", params,
+                                            Long.class));
+        }
+        return result;
+    }
+
     private void doImportInvocations(long customerId, long appId, long environmentId, long jvmId, long invokedAtMillis, Set<String> invokedSignatures,
-                                     Map<String, Long> existingMethods, Set<Long> existingInvocations) {
+                                     Map<String, Long> invocationCounts, Map<String, Long> existingMethods,
+                                     Set<Long> existingInvocations) {
         for (String signature : invokedSignatures) {
+            long invocationCount = getInvocationCount(invocationCounts, signature);
             Long methodId = existingMethods.get(signature);
             if (methodId == null) {
                 logger.trace("Inserting incomplete method {}:{}", methodId, signature);
@@ -167,16 +226,22 @@ public class ImportDAOImpl implements ImportDAO {
             }
             if (existingInvocations.contains(methodId)) {
                 logger.trace("Updating invocation {}", signature);
-                jdbcTemplate.update(new UpdateInvocationStatement(customerId, appId, jvmId, methodId, invokedAtMillis));
+                jdbcTemplate.update(new UpdateInvocationStatement(customerId, appId, jvmId, methodId, invokedAtMillis, invocationCount));
             } else {
                 logger.trace("Inserting invocation {}", signature);
                 jdbcTemplate
                     .update(new InsertInvocationStatement(customerId, appId, environmentId, jvmId, methodId, SignatureStatus2.INVOKED,
-                                                          invokedAtMillis, 1L));
+                                                          invokedAtMillis, invocationCount));
             }
         }
     }
 
+    private long getInvocationCount(Map<String, Long> invocationCounts, String signature) {
+        // Agents that don't count invocations publish each invoked signature once per recording interval.
+        Long count = invocationCounts == null ? null : invocationCounts.get(signature);
+        return count == null || count < 1L ? 1L : count;
+    }
+
     private Map<String, Long> getExistingMethods(long customerId) {
         Map<String, Long> result = new HashMap<>();
         jdbcTemplate.query("SELECT id, signature FROM methods WHERE customerId = " + customerId,
@@ -420,18 +485,20 @@ public class ImportDAOImpl implements ImportDAO {
         private final long jvmId;
         private final long methodId;
         private final long invokedAtMillis;
+        private final long invocationCount;
 
         @Override
         public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
             PreparedStatement ps =
                 con.prepareStatement(
                     "UPDATE invocations SET invokedAtMillis = GREATEST(invokedAtMillis, ?), " +
-                        "status = ?, invocationCount = invocationCount + 1 " +
+                        "status = ?, invocationCount = invocationCount + ? " +
                         "WHERE customerId = ? AND applicationId = ? AND jvmId = ? AND methodId = ?",
                     Statement.RETURN_GENERATED_KEYS);
             int column = 0;
             ps.setLong(++column, invokedAtMillis);
             ps.setString(++column, SignatureStatus2.INVOKED.name());
+            ps.setLong(++column, invocationCount);
             ps.setLong(++column, customerId);
             ps.setLong(++column, appId);
             ps.setLong(++column, jvmId);
@@ -24,6 +24,7 @@ package io.codekvast.dashboard.file_import.impl;
 import io.codekvast.dashboard.file_import.InvocationDataImporter;
 import io.codekvast.javaagent.model.v2.CommonPublicationData2;
 import io.codekvast.javaagent.model.v2.InvocationDataPublication2;
+import io.codekvast.javaagent.model.v3.InvocationDataPublication3;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
@@ -56,7 +57,27 @@ public class InvocationDataImporterImpl implements InvocationDataImporter {
         long jvmId = importDAO.importJvm(commonData, appId, environmentId);
 
         importDAO.importInvocations(customerId, appId, environmentId, jvmId, publication.getRecordingIntervalStartedAtMillis(),
-                                    new TreeSet<>(publication.getInvocations()));
+                                    new TreeSet<>(publication.getInvocations()), publication.getInvocationCounts());
+        return true;
+    }
+
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public boolean importPublication(InvocationDataPublication3 publication) {
+        logger.info("Importing {}", publication);
+
+        CommonPublicationData2 commonData = publication.getCommonData();
+        long customerId = commonData.getCustomerId();
+        long appId = importDAO.importApplication(commonData);
+        long environmentId = importDAO.importEnvironment(commonData);
+        long jvmId = importDAO.importJvm(commonData, appId, environmentId);
+
+        importDAO.importInvocationsByMethodId(customerId, appId, environmentId, jvmId, publication.getRecordingIntervalStartedAtMillis(),
+                                              publication.getInvokedMethodIds(), publication.getMethodInvocationCounts());
+        if (!publication.getInvocations().isEmpty()) {
+            importDAO.importInvocations(customerId, appId, environmentId, jvmId, publication.getRecordingIntervalStartedAtMillis(),
+                                        new TreeSet<>(publication.getInvocations()), publication.getInvocationCounts());
+        }
         return true;
     }
 }
@@ -29,6 +29,9 @@ import io.codekvast.javaagent.model.v1.CodeBasePublication;
 import io.codekvast.javaagent.model.v1.InvocationDataPublication;
 import io.codekvast.javaagent.model.v2.CodeBasePublication2;
 import io.codekvast.javaagent.model.v2.InvocationDataPublication2;
+import io.codekvast.javaagent.model.v3.InvocationDataPublication3;
+import io.codekvast.javaagent.model.v3.PublicationFormat3;
+import io.codekvast.javaagent.model.v3.PublicationReader3;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 
@@ -37,11 +40,13 @@ import javax.validation.ConstraintViolation;
 import javax.validation.Validator;
 import java.io.*;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Importer for serialized publications.
  *
- * Deserialize the object and dispatch to the specialized importer.
+ * Deserialize the object and dispatch to the specialized importer. Gzipped publications and publications in the compact
+ * v3 format are recognized by their magic numbers.
  *
  * @author olle.hallin@crisp.se
  * @see CodeBasePublication2
@@ -68,10 +73,10 @@ public class PublicationImporterImpl implements PublicationImporter {
     public boolean importPublicationFile(File file) {
         logger.info("Processing {}", file);
 
-        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        try (InputStream inputStream = openPublicationFile(file)) {
 
             long startedAt = System.currentTimeMillis();
-            Object object = ois.readObject();
+            Object object = readPublication(inputStream);
             logger.debug("Deserialized a {} in {} ms", object.getClass().getSimpleName(), System.currentTimeMillis() - startedAt);
 
             return !isValidObject(object) || handlePublication(object);
@@ -88,6 +93,29 @@ public class PublicationImporterImpl implements PublicationImporter {
         return false;
     }
 
+    /**
+     * Opens a publication file, that is gzipped if the agent was configured with httpUploadCompression=true.
+     */
+    private InputStream openPublicationFile(File file) throws IOException {
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            inputStream.mark(2);
+            int magic = inputStream.read() | inputStream.read() << 8;
+            inputStream.reset();
+            return magic == GZIPInputStream.GZIP_MAGIC ? new BufferedInputStream(new GZIPInputStream(inputStream)) : inputStream;
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+    }
+
+    private Object readPublication(InputStream inputStream) throws IOException, ClassNotFoundException {
+        if (PublicationFormat3.isFormat3(inputStream)) {
+            return PublicationReader3.readPublication(inputStream);
+        }
+        return new ObjectInputStream(inputStream).readObject();
+    }
+
     @SuppressWarnings({"InstanceofConcreteClass", "CastToConcreteClass", "ChainOfInstanceofChecks", "deprecation"})
     private boolean handlePublication(Object object) {
         if (object instanceof CodeBasePublication) {
@@ -106,6 +134,10 @@ public class PublicationImporterImpl implements PublicationImporter {
             return invocationDataImporter.importPublication((InvocationDataPublication2) object);
         }
 
+        if (object instanceof InvocationDataPublication3) {
+            return invocationDataImporter.importPublication((InvocationDataPublication3) object);
+        }
+
         logger.warn("Don't know how to handle {}", object.getClass().getSimpleName());
         return false;
     }
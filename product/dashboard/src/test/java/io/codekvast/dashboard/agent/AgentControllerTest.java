@@ -4,23 +4,32 @@ import com.google.gson.Gson;
 import io.codekvast.common.customer.LicenseViolationException;
 import io.codekvast.javaagent.model.v1.rest.GetConfigRequest1;
 import io.codekvast.javaagent.model.v1.rest.GetConfigResponse1;
+import io.codekvast.javaagent.model.v3.MethodIdMapping3;
+import io.codekvast.javaagent.model.v3.PublicationReader3;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.http.converter.ByteArrayHttpMessageConverter;
 import org.springframework.http.converter.StringHttpMessageConverter;
 import org.springframework.http.converter.json.GsonHttpMessageConverter;
 import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.InputStream;
+import java.util.Collections;
 
 import static io.codekvast.javaagent.model.Endpoints.Agent.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.verify;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.when;
 import static org.springframework.http.MediaType.*;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
@@ -42,7 +51,8 @@ public class AgentControllerTest {
     public void setup() {
         MockitoAnnotations.initMocks(this);
         this.mockMvc = MockMvcBuilders.standaloneSetup(agentController)
-                                      .setMessageConverters(new GsonHttpMessageConverter(), new StringHttpMessageConverter())
+                                      .setMessageConverters(new GsonHttpMessageConverter(), new StringHttpMessageConverter(),
+                                                            new ByteArrayHttpMessageConverter())
                                       .build();
     }
 
@@ -126,6 +136,71 @@ public class AgentControllerTest {
         assertUploadPublication(AgentService.PublicationType.INVOCATIONS, V2_UPLOAD_INVOCATION_DATA);
     }
 
+    @Test
+    public void should_accept_upload_codebase_delta_when_base_is_known() throws Exception {
+        when(agentService.saveCodeBaseDeltaPublication(eq("licenseKey"), eq("baseFingerprint"), eq(10000), any(InputStream.class)))
+            .thenReturn(new File("codebase-4711.ser"));
+
+        mockMvc.perform(uploadCodeBaseDelta())
+               .andExpect(status().isOk())
+               .andExpect(content().string("OK"));
+    }
+
+    @Test
+    public void should_reject_upload_codebase_delta_when_base_is_unknown() throws Exception {
+        when(agentService.saveCodeBaseDeltaPublication(eq("licenseKey"), eq("baseFingerprint"), eq(10000), any(InputStream.class)))
+            .thenReturn(null);
+
+        mockMvc.perform(uploadCodeBaseDelta())
+               .andExpect(status().isConflict());
+    }
+
+    @Test
+    public void should_return_method_ids_when_code_base_is_known() throws Exception {
+        MethodIdMapping3 mapping = MethodIdMapping3.builder()
+                                                   .codeBaseFingerprint("fingerprint")
+                                                   .methodIds(Collections.singletonMap("com.acme.Foo.bar()", 17L))
+                                                   .build();
+        when(agentService.getMethodIdMapping("licenseKey", "fingerprint")).thenReturn(mapping);
+
+        byte[] body = mockMvc.perform(getMethodIds())
+                             .andExpect(status().isOk())
+                             .andExpect(content().contentType(APPLICATION_OCTET_STREAM))
+                             .andReturn().getResponse().getContentAsByteArray();
+
+        assertThat(PublicationReader3.readPublication(new ByteArrayInputStream(body)), is(mapping));
+    }
+
+    @Test
+    public void should_not_find_method_ids_when_code_base_is_unknown() throws Exception {
+        when(agentService.getMethodIdMapping("licenseKey", "fingerprint")).thenReturn(null);
+
+        mockMvc.perform(getMethodIds())
+               .andExpect(status().isNotFound());
+    }
+
+    private MockHttpServletRequestBuilder getMethodIds() {
+        return post(V3_GET_METHOD_IDS)
+            .contentType(APPLICATION_FORM_URLENCODED)
+            .param(PARAM_LICENSE_KEY, "licenseKey")
+            .param(PARAM_FINGERPRINT, "fingerprint");
+    }
+
+    private MockHttpServletRequestBuilder uploadCodeBaseDelta() {
+        MockMultipartFile multipartFile =
+            new MockMultipartFile(PARAM_PUBLICATION_FILE,
+                                  "codebase-delta-9128371293719273.ckv3",
+                                  APPLICATION_OCTET_STREAM_VALUE,
+                                  "PublicationContent-delta".getBytes());
+
+        return multipart(V3_UPLOAD_CODEBASE_DELTA)
+            .file(multipartFile)
+            .param(PARAM_LICENSE_KEY, "licenseKey")
+            .param(PARAM_FINGERPRINT, "fingerprint")
+            .param(PARAM_BASE_FINGERPRINT, "baseFingerprint")
+            .param(PARAM_PUBLICATION_SIZE, "10000");
+    }
+
     private void assertUploadPublication(AgentService.PublicationType publicationType, String endpoint) throws Exception {
         String licenseKey = "licenseKey";
         String fingerprint = "fingerprint";
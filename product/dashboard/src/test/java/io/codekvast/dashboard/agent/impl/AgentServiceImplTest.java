@@ -3,8 +3,18 @@ package io.codekvast.dashboard.agent.impl;
 import io.codekvast.common.customer.*;
 import io.codekvast.dashboard.agent.AgentService;
 import io.codekvast.dashboard.bootstrap.CodekvastDashboardSettings;
+import io.codekvast.dashboard.file_import.CodeBaseStore;
 import io.codekvast.javaagent.model.v1.rest.GetConfigRequest1;
 import io.codekvast.javaagent.model.v1.rest.GetConfigResponse1;
+import io.codekvast.javaagent.model.v2.CodeBaseEntry2;
+import io.codekvast.javaagent.model.v2.CodeBasePublication2;
+import io.codekvast.javaagent.model.v2.CommonPublicationData2;
+import io.codekvast.javaagent.model.v2.MethodSignature2;
+import io.codekvast.javaagent.model.v3.CodeBaseDeltaPublication3;
+import io.codekvast.javaagent.model.v3.MethodIdMapping3;
+import io.codekvast.javaagent.model.v3.PublicationFormat3;
+import io.codekvast.javaagent.model.v3.PublicationReader3;
+import io.codekvast.javaagent.model.v3.PublicationWriter3;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -12,11 +22,16 @@ import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 
-import java.io.ByteArrayInputStream;
-import java.io.File;
+import java.io.*;
+import java.sql.ResultSet;
 import java.sql.Timestamp;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 
 import static java.time.temporal.ChronoUnit.DAYS;
 import static org.hamcrest.CoreMatchers.endsWith;
@@ -25,7 +40,9 @@ import static org.hamcrest.CoreMatchers.startsWith;
 import static org.junit.Assert.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
@@ -40,6 +57,9 @@ public class AgentServiceImplTest {
     @Mock
     private CustomerService customerService;
 
+    @Mock
+    private CodeBaseStore codeBaseStore;
+
     private final CodekvastDashboardSettings settings = new CodekvastDashboardSettings();
     private final GetConfigRequest1 request = GetConfigRequest1.sample();
 
@@ -52,7 +72,7 @@ public class AgentServiceImplTest {
         settings.setQueuePath(temporaryFolder.getRoot());
         settings.setQueuePathPollIntervalSeconds(60);
 
-        service = new AgentServiceImpl(settings, jdbcTemplate, customerService);
+        service = new AgentServiceImpl(settings, jdbcTemplate, customerService, codeBaseStore);
 
         setupCustomerData(null, null);
     }
@@ -174,6 +194,111 @@ public class AgentServiceImplTest {
         service.savePublication(AgentService.PublicationType.CODEBASE, null, 0, null);
     }
 
+    @Test
+    public void should_save_codebase_delta_applied_to_stored_codebase() throws Exception {
+        // given
+        CodeBasePublication2 base = createCodeBasePublication("base", "m1", "m2", "m3");
+        CodeBasePublication2 publication = createCodeBasePublication("new", "m2", "m3", "m4");
+        when(codeBaseStore.load(1L, "base")).thenReturn(base);
+
+        // when
+        File resultingFile = service.saveCodeBaseDeltaPublication("key", "base", 3, serializeDelta(base, publication));
+
+        // then
+        assertThat(resultingFile, notNullValue());
+        assertThat(resultingFile.getName(), startsWith("codebase-"));
+        assertThat(resultingFile.getName(), endsWith(".ser"));
+
+        CodeBasePublication2 result;
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(resultingFile))) {
+            result = (CodeBasePublication2) PublicationReader3.readPublication(inputStream);
+        }
+        assertThat(result.getCommonData(), is(publication.getCommonData()));
+        assertThat(new HashSet<>(result.getEntries()), is(new HashSet<>(publication.getEntries())));
+    }
+
+    @Test
+    public void should_reject_codebase_delta_when_base_is_unknown() throws Exception {
+        // given
+        CodeBasePublication2 base = createCodeBasePublication("base", "m1");
+        CodeBasePublication2 publication = createCodeBasePublication("new", "m1", "m2");
+        when(codeBaseStore.load(1L, "base")).thenReturn(null);
+
+        // when
+        File resultingFile = service.saveCodeBaseDeltaPublication("key", "base", 2, serializeDelta(base, publication));
+
+        // then
+        assertThat(resultingFile, nullValue());
+        assertThat(temporaryFolder.getRoot().list().length, is(0));
+    }
+
+    @Test(expected = LicenseViolationException.class)
+    public void should_have_checked_licenseKey_of_codebase_delta() throws Exception {
+        // given
+        int publicationSize = 4711;
+        doThrow(new LicenseViolationException("stub")).when(customerService).assertPublicationSize(anyString(), eq(publicationSize));
+
+        // when
+        service.saveCodeBaseDeltaPublication("key", "base", publicationSize, null);
+    }
+
+    @Test
+    public void should_return_method_ids_of_imported_codebase() throws Exception {
+        // given
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.getLong(1)).thenReturn(17L, 18L);
+        when(resultSet.getString(2)).thenReturn("Foo.m1()", "Bar.m3()");
+        doAnswer(invocation -> {
+            RowCallbackHandler handler = invocation.getArgument(1);
+            handler.processRow(resultSet);
+            handler.processRow(resultSet);
+            return null;
+        }).when(jdbcTemplate).query(anyString(), any(RowCallbackHandler.class), eq(1L), eq("fingerprint"));
+
+        // when
+        MethodIdMapping3 mapping = service.getMethodIdMapping("key", "fingerprint");
+
+        // then
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("Foo.m1()", 17L);
+        expected.put("Bar.m3()", 18L);
+        assertThat(mapping.getCodeBaseFingerprint(), is("fingerprint"));
+        assertThat(mapping.getMethodIds(), is(expected));
+    }
+
+    @Test
+    public void should_not_return_method_ids_of_unknown_codebase() throws Exception {
+        // when
+        MethodIdMapping3 mapping = service.getMethodIdMapping("key", "fingerprint");
+
+        // then
+        assertThat(mapping, nullValue());
+    }
+
+    private CodeBasePublication2 createCodeBasePublication(String fingerprint, String... methodNames) {
+        CodeBaseEntry2[] entries = new CodeBaseEntry2[methodNames.length];
+        for (int i = 0; i < methodNames.length; i++) {
+            entries[i] = CodeBaseEntry2.builder()
+                                       .methodSignature(MethodSignature2.createSampleMethodSignature())
+                                       .signature("Foo." + methodNames[i] + "()")
+                                       .visibility("public")
+                                       .build();
+        }
+        return CodeBasePublication2.builder()
+                                   .commonData(CommonPublicationData2.sampleCommonPublicationData().toBuilder()
+                                                                     .codeBaseFingerprint(fingerprint)
+                                                                     .build())
+                                   .entries(Arrays.asList(entries))
+                                   .build();
+    }
+
+    private InputStream serializeDelta(CodeBasePublication2 base, CodeBasePublication2 publication) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PublicationWriter3.writePublication(CodeBaseDeltaPublication3.between(base, publication), outputStream,
+                                            PublicationFormat3.Envelope.GZIP);
+        return new ByteArrayInputStream(outputStream.toByteArray());
+    }
+
     private void setupCustomerData(Instant collectionStartedAt, Instant trialPeriodEndsAt) {
         CustomerData customerData = CustomerData.builder()
                                                 .customerId(1L)
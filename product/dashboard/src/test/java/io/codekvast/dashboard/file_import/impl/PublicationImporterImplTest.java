@@ -4,18 +4,24 @@ import io.codekvast.dashboard.file_import.CodeBaseImporter;
 import io.codekvast.dashboard.file_import.InvocationDataImporter;
 import io.codekvast.dashboard.file_import.PublicationImporter;
 import io.codekvast.javaagent.model.v2.CodeBasePublication2;
+import io.codekvast.javaagent.model.v2.CommonPublicationData2;
 import io.codekvast.javaagent.model.v2.InvocationDataPublication2;
+import io.codekvast.javaagent.model.v3.InvocationDataPublication3;
+import io.codekvast.javaagent.model.v3.PublicationFormat3;
+import io.codekvast.javaagent.model.v3.PublicationWriter3;
 import org.assertj.core.util.Files;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.util.StreamUtils;
 
 import javax.validation.ConstraintViolation;
 import javax.validation.Validator;
 import java.io.*;
 import java.net.URISyntaxException;
 import java.util.Collections;
+import java.util.zip.GZIPOutputStream;
 
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
@@ -78,6 +84,77 @@ public class PublicationImporterImplTest {
         verifyNoMoreInteractions(codeBaseImporter, invocationDataImporter, validator);
     }
 
+    @Test
+    public void should_import_gzipped_publication() throws Exception {
+        // given
+        File file = Files.newTemporaryFile();
+        file.deleteOnExit();
+
+        try (InputStream in = getClass().getResourceAsStream("/sample-publications/codebase-v1.ser");
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(file))) {
+            StreamUtils.copy(in, out);
+        }
+        when(codeBaseImporter.importPublication(any(CodeBasePublication2.class))).thenReturn(true);
+
+        // when
+        boolean handled = publicationImporter.importPublicationFile(file);
+
+        // then
+        assertThat(handled, is(true));
+        verify(codeBaseImporter).importPublication(any(CodeBasePublication2.class));
+    }
+
+    @Test
+    public void should_import_format3_publication() throws Exception {
+        // given
+        File file = Files.newTemporaryFile();
+        file.deleteOnExit();
+
+        InvocationDataPublication2 publication =
+            InvocationDataPublication2.builder()
+                                      .commonData(CommonPublicationData2.sampleCommonPublicationData())
+                                      .invocations(Collections.singleton("com.acme.Foo.bar()"))
+                                      .recordingIntervalStartedAtMillis(1509461136162L)
+                                      .build();
+        try (OutputStream out = new FileOutputStream(file)) {
+            PublicationWriter3.writePublication(publication, out, PublicationFormat3.Envelope.DEFLATE);
+        }
+        when(invocationDataImporter.importPublication(any(InvocationDataPublication2.class))).thenReturn(true);
+
+        // when
+        boolean handled = publicationImporter.importPublicationFile(file);
+
+        // then
+        assertThat(handled, is(true));
+        verify(invocationDataImporter).importPublication(publication);
+    }
+
+    @Test
+    public void should_import_invocation_data_by_method_id() throws Exception {
+        // given
+        File file = Files.newTemporaryFile();
+        file.deleteOnExit();
+
+        InvocationDataPublication3 publication =
+            InvocationDataPublication3.builder()
+                                      .commonData(CommonPublicationData2.sampleCommonPublicationData())
+                                      .invokedMethodIds(new long[]{4L, 17L})
+                                      .invocations(Collections.singleton("com.acme.Foo.bar()"))
+                                      .recordingIntervalStartedAtMillis(1509461136162L)
+                                      .build();
+        try (OutputStream out = new FileOutputStream(file)) {
+            PublicationWriter3.writePublication(publication, out, PublicationFormat3.Envelope.GZIP);
+        }
+        when(invocationDataImporter.importPublication(any(InvocationDataPublication3.class))).thenReturn(true);
+
+        // when
+        boolean handled = publicationImporter.importPublicationFile(file);
+
+        // then
+        assertThat(handled, is(true));
+        verify(invocationDataImporter).importPublication(publication);
+    }
+
     @Test
     public void should_ignore_unrecognized_content() throws IOException {
         // given
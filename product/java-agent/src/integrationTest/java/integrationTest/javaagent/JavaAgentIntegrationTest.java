@@ -38,21 +38,22 @@ public class JavaAgentIntegrationTest {
 
     private final Gson gson = new Gson();
 
+    private AgentConfig agentConfig;
     private File agentConfigFile;
 
     @Before
     public void setUp() throws Exception {
-        AgentConfig agentConfig = AgentConfigFactory.createTemplateConfig().toBuilder()
-                                                    .serverUrl("http://localhost:" + wireMockRule.port())
-                                                    .appName("SampleApp")
-                                                    .appVersion("literal 1.0")
-                                                    .aspectjOptions("-verbose -showWeaveInfo")
-                                                    .packages("sample")
-                                                    .codeBase("build/classes/java/integrationTest")
-                                                    .bridgeAspectjMessagesToJUL(true)
-                                                    .schedulerInitialDelayMillis(0)
-                                                    .schedulerIntervalMillis(100)
-                                                    .build();
+        agentConfig = AgentConfigFactory.createTemplateConfig().toBuilder()
+                                        .serverUrl("http://localhost:" + wireMockRule.port())
+                                        .appName("SampleApp")
+                                        .appVersion("literal 1.0")
+                                        .aspectjOptions("-verbose -showWeaveInfo")
+                                        .packages("sample")
+                                        .codeBase("build/classes/java/integrationTest")
+                                        .bridgeAspectjMessagesToJUL(true)
+                                        .schedulerInitialDelayMillis(0)
+                                        .schedulerIntervalMillis(100)
+                                        .build();
         agentConfigFile = FileUtils.serializeToFile(agentConfig, "codekvast", ".conf.ser");
         agentConfigFile.deleteOnExit();
     }
@@ -84,24 +85,7 @@ public class JavaAgentIntegrationTest {
     @Test
     public void should_collect_data_when_valid_config_specified() throws Exception {
         // given
-        givenThat(post(V1_POLL_CONFIG)
-                      .willReturn(okJson(gson.toJson(
-                          GetConfigResponse1.builder()
-                                            .codeBasePublisherName("http")
-                                            .codeBasePublisherConfig("enabled=true")
-                                            .customerId(1L)
-                                            .invocationDataPublisherName("http")
-                                            .invocationDataPublisherConfig("enabled=true")
-                                            .configPollIntervalSeconds(1)
-                                            .configPollRetryIntervalSeconds(1)
-                                            .codeBasePublisherCheckIntervalSeconds(1)
-                                            .codeBasePublisherRetryIntervalSeconds(1)
-                                            .invocationDataPublisherIntervalSeconds(1)
-                                            .invocationDataPublisherRetryIntervalSeconds(1)
-                                            .build()))));
-
-        givenThat(post(V2_UPLOAD_CODEBASE).willReturn(ok()));
-        givenThat(post(V2_UPLOAD_INVOCATION_DATA).willReturn(ok()));
+        givenThatServerAcceptsEverything();
 
         List<String> command = buildJavaCommand(agentConfigFile.getAbsolutePath());
 
@@ -125,6 +109,55 @@ public class JavaAgentIntegrationTest {
         assertThat(stdout, not(containsString("[SEVERE]")));
     }
 
+    @Test
+    public void should_collect_data_with_probe_instrumentation_engine() throws Exception {
+        // given
+        givenThatServerAcceptsEverything();
+
+        File probeConfigFile = FileUtils.serializeToFile(
+            agentConfig.toBuilder().instrumentationEngine(AgentConfig.INSTRUMENTATION_ENGINE_PROBE).build(), "codekvast", ".conf.ser");
+        probeConfigFile.deleteOnExit();
+
+        List<String> command = buildJavaCommand(probeConfigFile.getAbsolutePath());
+
+        // when
+        String stdout = ProcessUtils.executeCommand(command);
+        System.out.printf("stdout = %n%s%n", stdout);
+
+        // then
+        assertThat(stdout, containsString("Found " + probeConfigFile.getAbsolutePath()));
+        assertThat(stdout, not(containsString("AspectJ Weaver Version ")));
+        assertThat(stdout, containsString("[INFO] sample.app.SampleApp - 2+2=4"));
+        assertThat(stdout, containsString("Codekvast shutdown completed in "));
+
+        verify(postRequestedFor(urlEqualTo(V2_UPLOAD_CODEBASE)));
+        verify(postRequestedFor(urlEqualTo(V2_UPLOAD_INVOCATION_DATA)));
+
+        assertThat(stdout, not(containsString("error")));
+        assertThat(stdout, not(containsString("[SEVERE]")));
+    }
+
+    private void givenThatServerAcceptsEverything() {
+        givenThat(post(V1_POLL_CONFIG)
+                      .willReturn(okJson(gson.toJson(
+                          GetConfigResponse1.builder()
+                                            .codeBasePublisherName("http")
+                                            .codeBasePublisherConfig("enabled=true")
+                                            .customerId(1L)
+                                            .invocationDataPublisherName("http")
+                                            .invocationDataPublisherConfig("enabled=true")
+                                            .configPollIntervalSeconds(1)
+                                            .configPollRetryIntervalSeconds(1)
+                                            .codeBasePublisherCheckIntervalSeconds(1)
+                                            .codeBasePublisherRetryIntervalSeconds(1)
+                                            .invocationDataPublisherIntervalSeconds(1)
+                                            .invocationDataPublisherRetryIntervalSeconds(1)
+                                            .build()))));
+
+        givenThat(post(V2_UPLOAD_CODEBASE).willReturn(ok()));
+        givenThat(post(V2_UPLOAD_INVOCATION_DATA).willReturn(ok()));
+    }
+
     private List<String> buildJavaCommand(String configPath) {
         String cp = classpath.endsWith(":") ? classpath.substring(0, classpath.length()-2) : classpath;
         List<String> command = new ArrayList<>(
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent;
+
+import io.codekvast.javaagent.util.SignatureUtils;
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.Signature;
+import org.aspectj.runtime.reflect.Factory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Provides a large, realistic set of classes and join points to the benchmarks.
+ * <p>
+ * The classes are taken from the jar files on the class path, so that the benchmarks do not depend on any particular JDK
+ * implementation of class path scanning.
+ *
+ * @author olle.hallin@crisp.se
+ */
+public final class BenchmarkClasses {
+
+    private BenchmarkClasses() {
+        // Utility class
+    }
+
+    /**
+     * Loads classes from the jars on the class path, without initializing them.
+     *
+     * @param packagePrefix Only classes in packages starting with this are loaded, e.g. "com/google/common/".
+     * @param maxClasses    The max number of classes to load.
+     * @return A list of loaded classes.
+     */
+    public static List<Class<?>> loadClasses(String packagePrefix, int maxClasses) {
+        List<Class<?>> result = new ArrayList<>();
+        ClassLoader loader = BenchmarkClasses.class.getClassLoader();
+
+        for (String path : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (!path.endsWith(".jar")) {
+                continue;
+            }
+            try (JarFile jarFile = new JarFile(path)) {
+                Enumeration<JarEntry> entries = jarFile.entries();
+                while (entries.hasMoreElements() && result.size() < maxClasses) {
+                    String name = entries.nextElement().getName();
+                    if (name.startsWith(packagePrefix) && name.endsWith(".class") && !name.contains("$")) {
+                        try {
+                            result.add(Class.forName(name.replace('/', '.').replace(".class", ""), false, loader));
+                        } catch (ClassNotFoundException | LinkageError ignore) {
+                            // Not loadable in this JVM
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read " + path, e);
+            }
+        }
+
+        if (result.isEmpty()) {
+            throw new IllegalStateException("Found no classes in " + packagePrefix);
+        }
+        return result;
+    }
+
+    /**
+     * Makes method execution join points in the same way as AspectJ does in woven code.
+     *
+     * @param classes       The classes whose methods shall be join points.
+     * @param maxJoinPoints The max number of join points to make.
+     * @return A list of join points.
+     */
+    public static List<JoinPoint.StaticPart> makeJoinPoints(List<Class<?>> classes, int maxJoinPoints) {
+        List<JoinPoint.StaticPart> result = new ArrayList<>();
+        for (Class<?> clazz : classes) {
+            Factory factory = new Factory(clazz.getSimpleName() + ".java", clazz);
+            Method[] methods;
+            try {
+                methods = clazz.getDeclaredMethods();
+            } catch (LinkageError ignore) {
+                continue;
+            }
+            for (Method method : methods) {
+                Signature signature = SignatureUtils.makeSignature(clazz, method);
+                if (signature != null) {
+                    result.add(factory.makeSJP(JoinPoint.METHOD_EXECUTION, signature, result.size()));
+                    if (result.size() >= maxJoinPoints) {
+                        return result;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+}
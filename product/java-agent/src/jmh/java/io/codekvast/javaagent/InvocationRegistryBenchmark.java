@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent;
+
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.config.AgentConfigFactory;
+import io.codekvast.javaagent.publishing.CodekvastPublishingException;
+import io.codekvast.javaagent.publishing.impl.NoOpInvocationDataPublisherImpl;
+import org.aspectj.lang.JoinPoint;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of recording an invocation, which is what the woven advice does at each method execution.
+ * <p>
+ * The "hot" signature set is a small number of join points that are recorded over and over again, which is the normal
+ * case in a warmed-up application. The "cold" set is large enough to not fit in the CPU caches, and the recording interval
+ * is restarted before each iteration, so that also the cost of adding new signatures is measured.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InvocationRegistryBenchmark {
+
+    private static final int HOT_SET_SIZE = 16;
+    private static final int COLD_SET_SIZE = 50_000;
+
+    @Param({AgentConfig.INVOCATION_REGISTRY_MODE_SIGNATURES, AgentConfig.INVOCATION_REGISTRY_MODE_INDEXED,
+        AgentConfig.INVOCATION_REGISTRY_MODE_EPOCH, AgentConfig.INVOCATION_REGISTRY_MODE_COUNTING})
+    public String mode;
+
+    @Param({"hot", "cold"})
+    public String signatureSet;
+
+    private JoinPoint.StaticPart[] joinPoints;
+    private NoOpInvocationDataPublisherImpl publisher;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        AgentConfig config = AgentConfigFactory.createSampleAgentConfig().toBuilder()
+                                               .invocationRegistryMode(mode)
+                                               .invocationRegistryCapacity(0)
+                                               .build();
+        InvocationRegistry.initialize(config);
+        publisher = new NoOpInvocationDataPublisherImpl(config);
+
+        int size = signatureSet.equals("hot") ? HOT_SET_SIZE : COLD_SET_SIZE;
+        List<JoinPoint.StaticPart> list = BenchmarkClasses.makeJoinPoints(BenchmarkClasses.loadClasses("com/google/common/", 5000), size);
+        joinPoints = list.toArray(new JoinPoint.StaticPart[0]);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() throws CodekvastPublishingException {
+        InvocationRegistry.instance.publishInvocationData(publisher);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        InvocationRegistry.initialize(null);
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup(InvocationRegistryBenchmark benchmark) {
+            // Don't let all threads walk the join points in lockstep
+            next = ThreadLocalRandom.current().nextInt(benchmark.joinPoints.length);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void register_1_thread(ThreadState threadState) {
+        register(threadState);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void register_4_threads(ThreadState threadState) {
+        register(threadState);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void register_16_threads(ThreadState threadState) {
+        register(threadState);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void register_64_threads(ThreadState threadState) {
+        register(threadState);
+    }
+
+    private void register(ThreadState threadState) {
+        int i = threadState.next;
+        InvocationRegistry.instance.registerMethodInvocation(joinPoints[i]);
+        threadState.next = i + 1 < joinPoints.length ? i + 1 : 0;
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent;
+
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.config.AgentConfigFactory;
+import io.codekvast.javaagent.publishing.CodekvastPublishingException;
+import io.codekvast.javaagent.publishing.impl.NoOpInvocationDataPublisherImpl;
+import org.aspectj.lang.JoinPoint;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a full recording interval: recording a number of distinct join points, and then starting a new recording
+ * interval and handing over the recorded signatures to a publisher.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PublishInvocationDataBenchmark {
+
+    @Param({AgentConfig.INVOCATION_REGISTRY_MODE_SIGNATURES, AgentConfig.INVOCATION_REGISTRY_MODE_INDEXED,
+        AgentConfig.INVOCATION_REGISTRY_MODE_EPOCH, AgentConfig.INVOCATION_REGISTRY_MODE_COUNTING})
+    public String mode;
+
+    @Param({"100", "10000"})
+    public int numInvokedMethods;
+
+    private JoinPoint.StaticPart[] joinPoints;
+    private NoOpInvocationDataPublisherImpl publisher;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        AgentConfig config = AgentConfigFactory.createSampleAgentConfig().toBuilder()
+                                               .invocationRegistryMode(mode)
+                                               .invocationRegistryCapacity(0)
+                                               .build();
+        InvocationRegistry.initialize(config);
+        publisher = new NoOpInvocationDataPublisherImpl(config);
+
+        List<JoinPoint.StaticPart> list =
+            BenchmarkClasses.makeJoinPoints(BenchmarkClasses.loadClasses("com/google/common/", 5000), numInvokedMethods);
+        joinPoints = list.toArray(new JoinPoint.StaticPart[0]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        InvocationRegistry.initialize(null);
+    }
+
+    @Benchmark
+    public void recordAndPublish() throws CodekvastPublishingException {
+        for (JoinPoint.StaticPart joinPoint : joinPoints) {
+            InvocationRegistry.instance.registerMethodInvocation(joinPoint);
+        }
+        InvocationRegistry.instance.publishInvocationData(publisher);
+    }
+}
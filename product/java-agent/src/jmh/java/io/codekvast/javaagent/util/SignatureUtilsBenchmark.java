@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.util;
+
+import io.codekvast.javaagent.BenchmarkClasses;
+import io.codekvast.javaagent.model.v2.MethodSignature2;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of making method signatures, which is done for each method in the code base when scanning it.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SignatureUtilsBenchmark {
+
+    private final List<Class<?>> classes = new ArrayList<>();
+    private final List<Method> methods = new ArrayList<>();
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        for (Class<?> clazz : BenchmarkClasses.loadClasses("com/google/common/", 5000)) {
+            try {
+                for (Method method : clazz.getDeclaredMethods()) {
+                    classes.add(clazz);
+                    methods.add(method);
+                }
+            } catch (LinkageError ignore) {
+                // Cannot be resolved in this JVM
+            }
+        }
+    }
+
+    @Benchmark
+    public MethodSignature2 makeMethodSignature() {
+        int i = next;
+        next = i + 1 < methods.size() ? i + 1 : 0;
+        return SignatureUtils.makeMethodSignature(classes.get(i), methods.get(i));
+    }
+
+    @Benchmark
+    public String signatureToCanonicalString() {
+        int i = next;
+        next = i + 1 < methods.size() ? i + 1 : 0;
+        return SignatureUtils.signatureToCanonicalString(SignatureUtils.makeSignature(classes.get(i), methods.get(i)));
+    }
+}
@@ -21,6 +21,7 @@
  */
 package io.codekvast.javaagent;
 
+import io.codekvast.javaagent.metrics.AgentMetrics;
 import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Before;
@@ -57,7 +58,13 @@ public abstract class AbstractMethodExecutionAspect {
 
     @Before("methodExecution() && !trivialMethodExecution()")
     public void registerInvocation(JoinPoint.StaticPart thisJointPoint) {
-        InvocationRegistry.instance.registerMethodInvocation(thisJointPoint.getSignature());
+        if (AgentMetrics.instance.isAdviceSampleDue()) {
+            long startedAt = System.nanoTime();
+            InvocationRegistry.instance.registerMethodInvocation(thisJointPoint);
+            AgentMetrics.instance.adviceSampled(System.nanoTime() - startedAt);
+        } else {
+            InvocationRegistry.instance.registerMethodInvocation(thisJointPoint);
+        }
     }
 
 }
@@ -21,21 +21,32 @@
  */
 package io.codekvast.javaagent;
 
+import io.codekvast.javaagent.attach.AgentAttacher;
+import io.codekvast.javaagent.attach.ClassRetransformer;
+import io.codekvast.javaagent.cache.ClassCache;
+import io.codekvast.javaagent.codebase.ScannedClasses;
 import io.codekvast.javaagent.config.AgentConfig;
 import io.codekvast.javaagent.config.AgentConfigFactory;
 import io.codekvast.javaagent.config.AgentConfigLocator;
 import io.codekvast.javaagent.config.MethodAnalyzer;
+import io.codekvast.javaagent.metrics.AgentMetrics;
+import io.codekvast.javaagent.probe.ProbeTransformer;
 import io.codekvast.javaagent.publishing.impl.CodeBasePublisherFactoryImpl;
 import io.codekvast.javaagent.publishing.impl.InvocationDataPublisherFactoryImpl;
 import io.codekvast.javaagent.scheduler.ConfigPollerImpl;
 import io.codekvast.javaagent.scheduler.Scheduler;
 import io.codekvast.javaagent.scheduler.SystemClockImpl;
 import io.codekvast.javaagent.util.FileUtils;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.java.Log;
 import org.aspectj.bridge.Constants;
+import org.aspectj.weaver.loadtime.ClassPreProcessorAgentAdapter;
 
 import java.io.File;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -49,6 +60,17 @@ import java.util.Set;
  *    -javaagent:/path/to/codekvast-agent-n.n.jar
  * </code></pre>
  * <p>
+ * It can also be attached to a running JVM:
+ * <pre><code>
+ *    java -jar /path/to/codekvast-agent-n.n.jar pid
+ * </code></pre>
+ * <p>
+ * Methods are instrumented by the AspectJ load-time weaver, unless the config parameter {@code instrumentationEngine} is
+ * {@code probe}. In that case a lightweight probe is inserted instead, see {@link ProbeTransformer}.
+ * <p>
+ * If the config parameter {@code weavingScope} is {@code codebase}, only the classes found by the code base scan are
+ * instrumented, see {@link ScannedClasses}.
+ * <p>
  * CodekvastAgent could also be initialized from a statically woven aspect.
  * <p>
  * In that case, the aspect should have a static block that locates the config and initializes the agent:
@@ -95,7 +117,46 @@ public class CodekvastAgent {
         initialize(config);
 
         if (config != null) {
-            org.aspectj.weaver.loadtime.Agent.premain(args, instrumentation);
+            if (isProbeEngine(config)) {
+                instrumentation.addTransformer(new ProbeTransformer(config, ClassCache.open(config)), true);
+            } else if (ScannedClasses.instance.isEnabled()) {
+                instrumentation.addTransformer(new ScannedClassesFilter(new ClassPreProcessorAgentAdapter()));
+            } else {
+                org.aspectj.weaver.loadtime.Agent.premain(args, instrumentation);
+            }
+        }
+    }
+
+    /**
+     * This method is invoked by the JVM when the agent is attached to a running JVM, e.g. by {@link AgentAttacher}.
+     * <p>
+     * The probe engine is always used when attaching, since the AspectJ weaver adds fields that the JVM does not
+     * accept when retransforming a class. Classes loaded after this point are instrumented as with -javaagent.
+     * Classes that already are loaded and are within the configured packages are retransformed in the background.
+     *
+     * @param args            The agent arguments given when attaching. Is used as overrides to the agent configuration file.
+     * @param instrumentation The standard instrumentation hook.
+     */
+    public static void agentmain(String args, Instrumentation instrumentation) {
+        if (scheduler != null) {
+            logger.info(NAME + " is already running.");
+            return;
+        }
+
+        AgentConfig config = ClassRetransformer.forAttach(
+            AgentConfigFactory.parseAgentConfig(AgentConfigLocator.locateConfig(), args, true));
+
+        initialize(config);
+
+        if (config != null) {
+            instrumentation.addTransformer(new ProbeTransformer(config, ClassCache.open(config)), true);
+
+            CodekvastThreadFactory.builder()
+                                  .name("retransformer")
+                                  .relativePriority(-1)
+                                  .build()
+                                  .newThread(new ClassRetransformer(instrumentation, config))
+                                  .start();
         }
     }
 
@@ -111,6 +172,8 @@ public class CodekvastAgent {
                 scheduler = null;
             }
             InvocationRegistry.initialize(null);
+            ScannedClasses.initialize(null);
+            AgentMetrics.instance.unregister();
             return;
         }
 
@@ -120,8 +183,12 @@ public class CodekvastAgent {
         }
 
         InvocationRegistry.initialize(config);
+        ScannedClasses.initialize(config);
+        AgentMetrics.instance.register(config.getNormalizedInvocationRegistryMode(), config.isAdviceTiming());
 
-        defineAspectjLoadTimeWeaverConfig(config);
+        if (!isProbeEngine(config)) {
+            defineAspectjLoadTimeWeaverConfig(config);
+        }
 
         scheduler = new Scheduler(config,
                                   new ConfigPollerImpl(config),
@@ -136,6 +203,10 @@ public class CodekvastAgent {
                                   config.getResolvedAppVersion(), getPrettyPackages(config)));
     }
 
+    private static boolean isProbeEngine(AgentConfig config) {
+        return config.getNormalizedInstrumentationEngine().equals(AgentConfig.INSTRUMENTATION_ENGINE_PROBE);
+    }
+
     private static String getPrettyPackages(AgentConfig config) {
         List<String> prefixes = config.getNormalizedPackages();
         return prefixes.size() == 1 ? "package " + prefixes.get(0) : "packages " + prefixes.toString();
@@ -152,6 +223,8 @@ public class CodekvastAgent {
                                    Constants.AOP_OSGI_XML);
 
             logger.fine(ASPECTJ_WEAVER_CONFIGURATION + "=" + System.getProperty(ASPECTJ_WEAVER_CONFIGURATION));
+
+            ClassCache.configureAspectjCache(config);
         } catch (ClassNotFoundException e) {
             logger.warning("Not using AspectJ load-time weaving.");
         }
@@ -220,6 +293,24 @@ public class CodekvastAgent {
         return "execution(public * *..*(..)) || execution(public *..new(..))";
     }
 
+    /**
+     * Hands over only the classes found by the last code base scan to the weaver, see {@link ScannedClasses}. Other
+     * classes are thus spared both the weaving and the type matching of the AspectJ weaver.
+     */
+    @RequiredArgsConstructor
+    private static class ScannedClassesFilter implements ClassFileTransformer {
+        private final ClassFileTransformer weaver;
+
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                                ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+            if (className != null && !ScannedClasses.instance.includes(className)) {
+                return null;
+            }
+            return weaver.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+        }
+    }
+
     private static class MyShutdownHook extends Thread {
 
         MyShutdownHook() {
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent;
+
+import io.codekvast.javaagent.util.StripedCounter;
+import io.codekvast.javaagent.util.StripedCounterArray;
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.Signature;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An invocation registry that counts the invocations of each method, and not only records whether it was invoked.
+ * <p>
+ * Methods are given dense integer ids in the same way as in {@link IndexedInvocationRegistry}, and each id has a striped
+ * counter. An invocation costs an atomic increment of a counter that is shared only with the threads that map to the same
+ * stripe, which is more than in the other modes but still cheap enough for finding hot methods without a profiler.
+ *
+ * @author olle.hallin@crisp.se
+ */
+class CountingInvocationRegistry extends InvocationRegistry {
+
+    private final MethodIndex methodIndex = new MethodIndex(StripedCounterArray.MAX_COUNTERS);
+    private final StripedCounterArray counters = new StripedCounterArray();
+    private final StripedCounter dropped = new StripedCounter();
+
+    // Only written by the publishing thread, but also read by getStatistics() from the JMX thread
+    private volatile long enqueued;
+
+    @Override
+    public void registerMethodInvocation(JoinPoint.StaticPart staticPart) {
+        record(methodIndex.getId(staticPart));
+    }
+
+    @Override
+    public void registerMethodInvocation(Signature signature) {
+        record(methodIndex.getId(signature));
+    }
+
+    @Override
+    public void registerMethodInvocation(int probeId) {
+        record(methodIndex.getIdOfProbe(probeId));
+    }
+
+    private void record(int id) {
+        if (id == MethodIndex.NO_ID) {
+            dropped.increment();
+        } else {
+            counters.increment(id);
+        }
+    }
+
+    @Override
+    RecordedInvocations startNewRecordingInterval() {
+        // Resetting is atomic per stripe, so a concurrent invocation is counted either in this or in the next interval.
+        Set<String> signatures = new HashSet<>();
+        Map<String, Long> counts = new HashMap<>();
+        int size = methodIndex.size();
+        for (int id = 0; id < size; id++) {
+            long count = counters.sumThenReset(id);
+            if (count > 0L) {
+                String signature = methodIndex.getSignature(id);
+                signatures.add(signature);
+
+                // The same method may have been registered both as a join point and as a signature
+                Long previous = counts.get(signature);
+                counts.put(signature, previous == null ? count : previous + count);
+            }
+        }
+        enqueued += signatures.size();
+        return new RecordedInvocations(signatures, counts);
+    }
+
+    @Override
+    public InvocationRegistryStatistics getStatistics() {
+        return InvocationRegistryStatistics.builder()
+                                           .enqueuedSignatures(enqueued)
+                                           .droppedSignatures(dropped.sum())
+                                           .signaturesInCurrentInterval(countInvokedMethods())
+                                           .build();
+    }
+
+    private int countInvokedMethods() {
+        int result = 0;
+        int size = methodIndex.size();
+        for (int id = 0; id < size; id++) {
+            if (counters.sum(id) > 0L) {
+                result += 1;
+            }
+        }
+        return result;
+    }
+}
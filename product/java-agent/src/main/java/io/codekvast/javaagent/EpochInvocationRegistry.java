@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent;
+
+import io.codekvast.javaagent.util.ConcurrentBitSet;
+import io.codekvast.javaagent.util.StripedCounter;
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.Signature;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An invocation registry that makes further invocations of a method nearly free once it has been recorded in the current
+ * recording interval.
+ * <p>
+ * Each method id has a slot with the number of the recording interval (the epoch) in which it was last recorded. If the
+ * slot holds the current epoch, the registration is done after one array read and one compare. Otherwise the method is
+ * recorded in a bitmap, in the same way as in {@link IndexedInvocationRegistry}.
+ * <p>
+ * The slots are read and written without synchronization. A thread that does not see another thread's write records the
+ * method once more, which is harmless since the bitmap ignores duplicates.
+ * <p>
+ * The id lookup of a {@link JoinPoint.StaticPart} is still an identity hash lookup, since AspectJ cannot hand over a
+ * constant id to the advice.
+ *
+ * @author olle.hallin@crisp.se
+ */
+class EpochInvocationRegistry extends InvocationRegistry {
+
+    private final MethodIndex methodIndex = new MethodIndex(ConcurrentBitSet.MAX_BITS);
+    private final ConcurrentBitSet invocations = new ConcurrentBitSet();
+    private final StripedCounter enqueued = new StripedCounter();
+    private final StripedCounter dropped = new StripedCounter();
+
+    // Starts at 1, since the slots are initialized to 0.
+    private volatile int currentEpoch = 1;
+
+    // Only grown while holding the lock.
+    private volatile int[] lastEpochs = new int[1024];
+
+    @Override
+    public void registerMethodInvocation(JoinPoint.StaticPart staticPart) {
+        registerId(methodIndex.getId(staticPart));
+    }
+
+    @Override
+    public void registerMethodInvocation(Signature signature) {
+        registerId(methodIndex.getId(signature));
+    }
+
+    @Override
+    public void registerMethodInvocation(int probeId) {
+        registerId(methodIndex.getIdOfProbe(probeId));
+    }
+
+    /**
+     * The fast path is kept small, so that the JIT compiler can inline it into the advice.
+     */
+    private void registerId(int id) {
+        int[] epochs = lastEpochs;
+        int epoch = currentEpoch;
+        if (id < 0 || id >= epochs.length || epochs[id] != epoch) {
+            record(id, epoch);
+        }
+    }
+
+    private void record(int id, int epoch) {
+        if (id == MethodIndex.NO_ID) {
+            dropped.increment();
+            return;
+        }
+
+        int[] epochs = lastEpochs;
+        if (id >= epochs.length) {
+            epochs = growLastEpochs(id);
+        }
+        epochs[id] = epoch;
+
+        if (invocations.set(id)) {
+            enqueued.increment();
+        }
+    }
+
+    private synchronized int[] growLastEpochs(int id) {
+        int[] epochs = lastEpochs;
+        if (id >= epochs.length) {
+            // Slot writes to the old array that are lost in the copy only cause a method to be recorded once more.
+            epochs = Arrays.copyOf(epochs, Math.max(epochs.length * 2, id + 1));
+            lastEpochs = epochs;
+        }
+        return epochs;
+    }
+
+    @Override
+    RecordedInvocations startNewRecordingInterval() {
+        // Drain before advancing the epoch. A thread that sees the new epoch thus sets its bit after the drain, and
+        // the method ends up in the next interval. A thread that set a slot to the old epoch but its bit after the drain
+        // also ends up in the next interval, and its slot will not match the new epoch.
+        BitSet invoked = invocations.drain();
+        currentEpoch += 1;
+
+        Set<String> result = new HashSet<>();
+        for (int id = invoked.nextSetBit(0); id >= 0; id = invoked.nextSetBit(id + 1)) {
+            result.add(methodIndex.getSignature(id));
+        }
+        return new RecordedInvocations(result, null);
+    }
+
+    @Override
+    public InvocationRegistryStatistics getStatistics() {
+        return InvocationRegistryStatistics.builder()
+                                           .enqueuedSignatures(enqueued.sum())
+                                           .droppedSignatures(dropped.sum())
+                                           .signaturesInCurrentInterval(invocations.cardinality())
+                                           .build();
+    }
+}
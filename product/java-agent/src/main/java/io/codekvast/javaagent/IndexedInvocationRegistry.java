@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent;
+
+import io.codekvast.javaagent.util.ConcurrentBitSet;
+import io.codekvast.javaagent.util.StripedCounter;
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.Signature;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An invocation registry that gives each woven method a dense integer id the first time it is executed, and records
+ * invocations as bits in a lock-free bitmap.
+ * <p>
+ * Recording an invocation is an identity hash lookup plus an atomic bit set, which is a no-op if the bit already is set.
+ * Signature strings are built at publishing time only.
+ * <p>
+ * Deduplicated registrations are not counted, since that would add a memory write to every invocation.
+ *
+ * @author olle.hallin@crisp.se
+ */
+class IndexedInvocationRegistry extends InvocationRegistry {
+
+    private final MethodIndex methodIndex = new MethodIndex(ConcurrentBitSet.MAX_BITS);
+    private final ConcurrentBitSet invocations = new ConcurrentBitSet();
+    private final StripedCounter enqueued = new StripedCounter();
+    private final StripedCounter dropped = new StripedCounter();
+
+    @Override
+    public void registerMethodInvocation(JoinPoint.StaticPart staticPart) {
+        record(methodIndex.getId(staticPart));
+    }
+
+    @Override
+    public void registerMethodInvocation(Signature signature) {
+        record(methodIndex.getId(signature));
+    }
+
+    @Override
+    public void registerMethodInvocation(int probeId) {
+        record(methodIndex.getIdOfProbe(probeId));
+    }
+
+    private void record(int id) {
+        if (id == MethodIndex.NO_ID) {
+            dropped.increment();
+        } else if (invocations.set(id)) {
+            enqueued.increment();
+        }
+    }
+
+    @Override
+    RecordedInvocations startNewRecordingInterval() {
+        // Draining is atomic per bit, so a concurrent invocation ends up either in this or in the next interval.
+        BitSet invoked = invocations.drain();
+
+        Set<String> result = new HashSet<>();
+        for (int id = invoked.nextSetBit(0); id >= 0; id = invoked.nextSetBit(id + 1)) {
+            result.add(methodIndex.getSignature(id));
+        }
+        return new RecordedInvocations(result, null);
+    }
+
+    @Override
+    public InvocationRegistryStatistics getStatistics() {
+        return InvocationRegistryStatistics.builder()
+                                           .enqueuedSignatures(enqueued.sum())
+                                           .droppedSignatures(dropped.sum())
+                                           .signaturesInCurrentInterval(invocations.cardinality())
+                                           .build();
+    }
+}
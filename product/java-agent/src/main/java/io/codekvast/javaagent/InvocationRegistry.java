@@ -22,53 +22,38 @@
 package io.codekvast.javaagent;
 
 import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.probe.ProbeMethodTable;
 import io.codekvast.javaagent.publishing.CodekvastPublishingException;
 import io.codekvast.javaagent.publishing.InvocationDataPublisher;
-import io.codekvast.javaagent.util.SignatureUtils;
 import lombok.NonNull;
 import lombok.extern.java.Log;
+import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.Signature;
 
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Collections;
 
 /**
  * This is the target of the method execution recording aspects.
  * <p>
  * It holds data about method invocations and methods for publishing the data.
+ * <p>
+ * There are different implementations, selected by the agent config parameter {@code invocationRegistryMode}.
  *
  * @author olle.hallin@crisp.se
+ * @see SignatureInvocationRegistry
+ * @see IndexedInvocationRegistry
+ * @see EpochInvocationRegistry
+ * @see CountingInvocationRegistry
  */
 @SuppressWarnings("Singleton")
 @Log
-public class InvocationRegistry {
+public abstract class InvocationRegistry {
 
     @SuppressWarnings("StaticInitializerReferencesSubClass")
     public static InvocationRegistry instance = new NullInvocationRegistry();
 
-    // Toggle between two invocation sets to avoid synchronisation
-    private final Set[] invocations;
-    private volatile int currentInvocationIndex = 0;
-
-    // Do all updates to the current set from a single worker thread
-    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
-
     private long recordingIntervalStartedAtMillis = System.currentTimeMillis();
 
-    private InvocationRegistry() {
-        this.invocations = new Set[]{new HashSet<String>(), new HashSet<String>()};
-        startWorker();
-    }
-
-    private void startWorker() {
-        if (!isNullRegistry()) {
-            Thread worker = CodekvastThreadFactory.builder().name("registry").build().newThread(new InvocationsAdder());
-            worker.start();
-        }
-    }
-
     @SuppressWarnings("MethodReturnAlwaysConstant")
     public boolean isNullRegistry() {
         return false;
@@ -85,77 +70,119 @@ public class InvocationRegistry {
             return;
         }
 
-        InvocationRegistry.instance = new InvocationRegistry();
+        String mode = config.getNormalizedInvocationRegistryMode();
+        if (mode.equals(AgentConfig.INVOCATION_REGISTRY_MODE_INDEXED)) {
+            InvocationRegistry.instance = new IndexedInvocationRegistry();
+        } else if (mode.equals(AgentConfig.INVOCATION_REGISTRY_MODE_EPOCH)) {
+            InvocationRegistry.instance = new EpochInvocationRegistry();
+        } else if (mode.equals(AgentConfig.INVOCATION_REGISTRY_MODE_COUNTING)) {
+            InvocationRegistry.instance = new CountingInvocationRegistry();
+        } else {
+            InvocationRegistry.instance = new SignatureInvocationRegistry(config.getInvocationRegistryCapacity());
+        }
+        logger.fine("Using invocationRegistryMode=" + mode);
     }
 
     /**
      * Record that this method signature was invoked in the current recording interval.
      * <p>
+     * The signature is converted to its canonical string form, see
+     * {@link io.codekvast.javaagent.util.SignatureUtils#signatureToCanonicalString(Signature)}.
+     * <p>
      * Thread-safe.
      *
      * @param signature The captured method invocation signature.
      */
-    public void registerMethodInvocation(Signature signature) {
-        String sig = SignatureUtils.signatureToString(signature);
+    public abstract void registerMethodInvocation(Signature signature);
 
-        // HashSet.contains() is thread-safe, so test first before deciding to add, but do the actual update from
-        // a background worker thread.
-        if (!invocations[currentInvocationIndex].contains(sig)) {
-            queue.add(sig);
-        }
+    /**
+     * Record that this join point was executed in the current recording interval.
+     * <p>
+     * This is what the aspect invokes. Implementations should override it if they can do better than converting the
+     * signature to a canonical string at each invocation.
+     * <p>
+     * Thread-safe.
+     *
+     * @param staticPart The static part of the captured join point.
+     */
+    public void registerMethodInvocation(JoinPoint.StaticPart staticPart) {
+        registerMethodInvocation(staticPart.getSignature());
     }
 
-    public void publishInvocationData(@NonNull InvocationDataPublisher publisher) throws CodekvastPublishingException {
-        long oldRecordingIntervalStartedAtMillis = recordingIntervalStartedAtMillis;
-        int oldIndex = currentInvocationIndex;
+    /**
+     * Record that the method with this probe id was invoked in the current recording interval.
+     * <p>
+     * This is what the probes inserted by the probe instrumentation engine invoke.
+     * <p>
+     * Thread-safe.
+     *
+     * @param probeId The id of the method, as assigned by {@link ProbeMethodTable}.
+     */
+    public abstract void registerMethodInvocation(int probeId);
 
-        toggleInvocationsIndex();
+    /**
+     * Starts a new recording interval, and publishes what was recorded in the old interval.
+     * <p>
+     * What was recorded is handed over to the publisher even if publishing fails. A publisher that can fail spools it, see
+     * {@link InvocationDataPublisher#publishSpooledInvocationData()}.
+     *
+     * @param publisher The publisher to use.
+     * @throws CodekvastPublishingException If publishing failed.
+     */
+    public synchronized void publishInvocationData(@NonNull InvocationDataPublisher publisher) throws CodekvastPublishingException {
+        long oldRecordingIntervalStartedAtMillis = recordingIntervalStartedAtMillis;
 
+        RecordedInvocations recorded;
         try {
-            // Give the InvocationAdder time to see the new currentInvocationIndex so that we
-            // avoid ConcurrentModificationException.
-            Thread.sleep(10L);
-
-            //noinspection unchecked
-            publisher.publishInvocationData(oldRecordingIntervalStartedAtMillis, invocations[oldIndex]);
-        } catch (InterruptedException ignored) {
-            // Do nothing here
-        } finally {
-            invocations[oldIndex].clear();
+            recorded = startNewRecordingInterval();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CodekvastPublishingException("Interrupted while starting a new recording interval", e);
         }
-    }
-
-    private synchronized void toggleInvocationsIndex() {
         recordingIntervalStartedAtMillis = System.currentTimeMillis();
-        currentInvocationIndex = currentInvocationIndex == 0 ? 1 : 0;
+
+        logger.fine("Publishing " + recorded.getSignatures().size() + " invocations, " + getStatistics());
+        publisher.publishInvocationData(oldRecordingIntervalStartedAtMillis, recorded.getSignatures(), recorded.getCounts());
     }
 
-    private class InvocationsAdder implements Runnable {
-        @SuppressWarnings("unchecked")
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    invocations[currentInvocationIndex].add(queue.take());
-                } catch (InterruptedException e) {
-                    logger.fine("Interrupted");
-                    return;
-                }
-            }
-        }
+    /**
+     * Makes subsequent invocations go into a new recording interval.
+     *
+     * @return What was recorded in the old recording interval. No more invocations will be added to it.
+     * @throws InterruptedException If interrupted while waiting for the interval switch.
+     */
+    abstract RecordedInvocations startNewRecordingInterval() throws InterruptedException;
+
+    /**
+     * @return Counters for what has been registered so far.
+     */
+    public InvocationRegistryStatistics getStatistics() {
+        return InvocationRegistryStatistics.builder().build();
     }
 
     @SuppressWarnings("MethodReturnAlwaysConstant")
     private static class NullInvocationRegistry extends InvocationRegistry {
-        private NullInvocationRegistry() {
-            super();
-        }
 
         @Override
         public void registerMethodInvocation(Signature signature) {
             // No operation
         }
 
+        @Override
+        public void registerMethodInvocation(JoinPoint.StaticPart staticPart) {
+            // No operation
+        }
+
+        @Override
+        public void registerMethodInvocation(int probeId) {
+            // No operation
+        }
+
+        @Override
+        RecordedInvocations startNewRecordingInterval() {
+            return new RecordedInvocations(Collections.<String>emptySet(), null);
+        }
+
         @Override
         public boolean isNullRegistry() {
             return true;
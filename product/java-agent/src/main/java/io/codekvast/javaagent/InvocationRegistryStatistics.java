@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Cumulative counters from an {@link InvocationRegistry} since it was initialized, plus the size of the current
+ * recording interval.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@Value
+@Builder
+public class InvocationRegistryStatistics {
+    /**
+     * The number of signatures that were added to a recording interval.
+     */
+    long enqueuedSignatures;
+
+    /**
+     * The number of registrations of a signature that another thread recorded in the current recording interval at the
+     * same time. Registrations of a signature that already was recorded are not counted, since that would add a memory
+     * write to every invocation.
+     */
+    long deduplicatedSignatures;
+
+    /**
+     * The number of registrations that were discarded since the recording interval was full.
+     */
+    long droppedSignatures;
+
+    /**
+     * The number of distinct signatures recorded so far in the current recording interval.
+     */
+    int signaturesInCurrentInterval;
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent;
+
+import com.google.common.collect.MapMaker;
+import io.codekvast.javaagent.probe.ProbeMethodTable;
+import io.codekvast.javaagent.util.SignatureUtils;
+import lombok.extern.java.Log;
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.Signature;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns a dense integer id to each woven method the first time it is seen.
+ * <p>
+ * Join points are identified by their {@link JoinPoint.StaticPart} instance, which AspectJ creates once per woven join
+ * point. The lookup is an identity lookup and does not involve building any strings. The static parts are weakly
+ * referenced, so that the index does not prevent classes and their class loaders from being unloaded. The ids are
+ * assigned per canonical signature, so a reloaded class gets the ids of its methods back.
+ * <p>
+ * Methods instrumented by the probe engine already have a dense probe id, which is mapped to an id by an array lookup.
+ * <p>
+ * The canonical signature string of each join point is computed once, when its id is looked up the first time.
+ * <p>
+ * Thread-safe.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@Log
+class MethodIndex {
+
+    static final int NO_ID = -1;
+
+    private final int maxIds;
+    private final ConcurrentMap<JoinPoint.StaticPart, Integer> staticPartIds = new MapMaker().weakKeys().makeMap();
+    private final ConcurrentMap<String, Integer> signatureIds = new ConcurrentHashMap<>();
+
+    // Maps probe ids to id + 1, so that 0 means not yet seen. Only grown while holding the lock.
+    private volatile int[] probeIds = new int[1024];
+
+    // Only grown while holding the lock. Readers always see a fully populated prefix.
+    private volatile String[] signatures = new String[1024];
+    private int size;
+    private boolean overflowLogged;
+
+    /**
+     * @param maxIds The max number of ids to assign. Methods not seen before the index is full are given {@link #NO_ID}.
+     */
+    MethodIndex(int maxIds) {
+        this.maxIds = maxIds;
+    }
+
+    /**
+     * Get the id of a join point.
+     *
+     * @param staticPart The join point's static part.
+     * @return the id of the join point, or {@link #NO_ID} if the index is full.
+     */
+    int getId(JoinPoint.StaticPart staticPart) {
+        Integer id = staticPartIds.get(staticPart);
+        if (id != null) {
+            return id;
+        }
+
+        int newId = register(SignatureUtils.signatureToCanonicalString(staticPart.getSignature()));
+        if (newId != NO_ID) {
+            staticPartIds.put(staticPart, newId);
+        }
+        return newId;
+    }
+
+    /**
+     * Get the id of a signature. Slower than {@link #getId(JoinPoint.StaticPart)}, since the key is the signature string.
+     *
+     * @param signature The method signature.
+     * @return the id of the signature, or {@link #NO_ID} if the index is full.
+     */
+    int getId(Signature signature) {
+        String key = SignatureUtils.signatureToCanonicalString(signature);
+        Integer id = signatureIds.get(key);
+        return id != null ? id : register(key);
+    }
+
+    /**
+     * Get the id of a method instrumented by the probe engine. The lookup is an array access.
+     *
+     * @param probeId The probe id of the method.
+     * @return the id of the method, or {@link #NO_ID} if the index is full.
+     * @see ProbeMethodTable
+     */
+    int getIdOfProbe(int probeId) {
+        int[] pids = probeIds;
+        if (probeId >= 0 && probeId < pids.length) {
+            int id = pids[probeId];
+            if (id != 0) {
+                return id - 1;
+            }
+        }
+        return registerProbe(probeId);
+    }
+
+    /**
+     * Get the canonical signature of the method that was registered with a certain id.
+     *
+     * @param id An id previously returned by one of the getId() methods.
+     * @return The canonical signature string.
+     * @see SignatureUtils#signatureToCanonicalString(Signature)
+     */
+    String getSignature(int id) {
+        return signatures[id];
+    }
+
+    /**
+     * @return The number of ids that have been assigned.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    private synchronized int registerProbe(int probeId) {
+        if (probeId < 0) {
+            return NO_ID;
+        }
+
+        int id = register(ProbeMethodTable.getSignature(probeId));
+        if (id != NO_ID) {
+            int[] pids = probeIds;
+            if (probeId >= pids.length) {
+                pids = Arrays.copyOf(pids, Math.max(pids.length * 2, probeId + 1));
+            }
+            pids[probeId] = id + 1;
+            probeIds = pids;
+        }
+        return id;
+    }
+
+    private synchronized int register(String signature) {
+        Integer id = signatureIds.get(signature);
+        if (id != null) {
+            return id;
+        }
+
+        if (size >= maxIds) {
+            if (!overflowLogged) {
+                logger.warning("Too many methods, ignoring invocations of methods not yet seen");
+                overflowLogged = true;
+            }
+            return NO_ID;
+        }
+
+        String[] sigs = signatures;
+        if (size >= sigs.length) {
+            sigs = Arrays.copyOf(sigs, sigs.length * 2);
+        }
+        sigs[size] = signature;
+        signatures = sigs;
+
+        id = size;
+        size += 1;
+        signatureIds.put(signature, id);
+        return id;
+    }
+}
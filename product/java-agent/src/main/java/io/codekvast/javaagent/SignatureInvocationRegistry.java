@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent;
+
+import com.google.common.collect.MapMaker;
+import io.codekvast.javaagent.probe.ProbeMethodTable;
+import io.codekvast.javaagent.util.SignatureUtils;
+import io.codekvast.javaagent.util.StripedCounter;
+import lombok.extern.java.Log;
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.Signature;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The original invocation registry, that records the invoked signatures as strings.
+ * <p>
+ * The canonical signature string of a join point is computed the first time it is executed, and then cached by the
+ * identity of its {@link JoinPoint.StaticPart}. Subsequent registrations do not allocate anything. The static parts are
+ * weakly referenced, so that the cache does not prevent classes and their class loaders from being unloaded.
+ * <p>
+ * Each recording interval has its own concurrent set, which is bounded. When it is full, signatures not already in it are
+ * dropped and counted.
+ * <p>
+ * Switching to a new recording interval is done with an epoch hand-off: threads that add to an interval announce
+ * themselves in the interval's writer count, and the publisher waits for the count of the old interval to reach zero
+ * after having installed the new one. Registrations of already recorded signatures do not write anything, and are thus
+ * not counted as deduplicated.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@Log
+class SignatureInvocationRegistry extends InvocationRegistry {
+
+    private final int capacity;
+
+    // Weak keys are compared by identity.
+    private final ConcurrentMap<JoinPoint.StaticPart, String> canonicalSignatures = new MapMaker().weakKeys().makeMap();
+
+    private final StripedCounter enqueued = new StripedCounter();
+    private final StripedCounter deduplicated = new StripedCounter();
+    private final StripedCounter dropped = new StripedCounter();
+
+    private volatile Interval currentInterval = new Interval();
+
+    // Only accessed by the publishing thread
+    private long droppedBefore;
+
+    /**
+     * @param capacity The max number of distinct signatures to record per recording interval. Zero or negative means
+     *                 unbounded.
+     */
+    SignatureInvocationRegistry(int capacity) {
+        this.capacity = capacity > 0 ? capacity : Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void registerMethodInvocation(JoinPoint.StaticPart staticPart) {
+        String sig = canonicalSignatures.get(staticPart);
+        if (sig == null) {
+            sig = SignatureUtils.signatureToCanonicalString(staticPart.getSignature());
+            String previous = canonicalSignatures.putIfAbsent(staticPart, sig);
+            if (previous != null) {
+                sig = previous;
+            }
+        }
+        register(sig);
+    }
+
+    @Override
+    public void registerMethodInvocation(Signature signature) {
+        register(SignatureUtils.signatureToCanonicalString(signature));
+    }
+
+    @Override
+    public void registerMethodInvocation(int probeId) {
+        register(ProbeMethodTable.getSignature(probeId));
+    }
+
+    private void register(String sig) {
+        // A signature that races with an interval switch may end up in the old interval. It is then published a bit early,
+        // which is harmless.
+        Interval current = currentInterval;
+        if (current.signatures.contains(sig)) {
+            return;
+        }
+        if (current.size.get() >= capacity) {
+            dropped.increment();
+            return;
+        }
+
+        Interval interval = enterCurrentInterval();
+        try {
+            interval.add(sig);
+        } finally {
+            interval.writers.decrementAndGet();
+        }
+    }
+
+    @Override
+    RecordedInvocations startNewRecordingInterval() {
+        Interval oldInterval = currentInterval;
+        currentInterval = new Interval();
+
+        // A writer that entered the old interval before the switch has either finished or is about to.
+        while (oldInterval.writers.get() > 0) {
+            Thread.yield();
+        }
+
+        long droppedNow = dropped.sum();
+        long numDropped = droppedNow - droppedBefore;
+        droppedBefore = droppedNow;
+        if (numDropped > 0) {
+            logger.warning(String.format("Codekvast dropped %d invocations, since more than %d distinct signatures were " +
+                                             "invoked in the recording interval", numDropped, capacity));
+        }
+        return new RecordedInvocations(new HashSet<>(oldInterval.signatures), null);
+    }
+
+    @Override
+    public InvocationRegistryStatistics getStatistics() {
+        return InvocationRegistryStatistics.builder()
+                                           .enqueuedSignatures(enqueued.sum())
+                                           .deduplicatedSignatures(deduplicated.sum())
+                                           .droppedSignatures(dropped.sum())
+                                           .signaturesInCurrentInterval(currentInterval.size.get())
+                                           .build();
+    }
+
+    private Interval enterCurrentInterval() {
+        while (true) {
+            Interval interval = currentInterval;
+            interval.writers.incrementAndGet();
+            if (interval == currentInterval) {
+                return interval;
+            }
+            // Lost a race with the publisher, try the new interval instead.
+            interval.writers.decrementAndGet();
+        }
+    }
+
+    private class Interval {
+        private final Set<String> signatures = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private final AtomicInteger writers = new AtomicInteger();
+        private final AtomicInteger size = new AtomicInteger();
+
+        private void add(String signature) {
+            // Reserve a slot before adding, so that the capacity is never exceeded.
+            if (size.incrementAndGet() > capacity) {
+                size.decrementAndGet();
+                if (signatures.contains(signature)) {
+                    deduplicated.increment();
+                } else {
+                    dropped.increment();
+                }
+            } else if (signatures.add(signature)) {
+                enqueued.increment();
+            } else {
+                size.decrementAndGet();
+                deduplicated.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.attach;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+/**
+ * A command line tool that attaches the Codekvast agent to a running JVM.
+ * <p>
+ * Usage:
+ * <pre><code>
+ *    java -jar /path/to/codekvast-agent-n.n.jar pid [agent-args]
+ * </code></pre>
+ * <p>
+ * The agent-args have the same syntax as in {@code -javaagent:codekvast-agent-n.n.jar=agent-args}.
+ * <p>
+ * The Attach API is accessed by reflection, since it lives in tools.jar in Java 8 and older, and in the jdk.attach module in
+ * later versions. In both cases it is only available in a JDK, not in a JRE.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@SuppressWarnings("UseOfSystemOutOrSystemErr")
+public class AgentAttacher {
+
+    private static final String VIRTUAL_MACHINE_CLASS = "com.sun.tools.attach.VirtualMachine";
+
+    private AgentAttacher() {
+        // Only a main method
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java -jar codekvast-agent.jar pid [agent-args]");
+            System.exit(1);
+        }
+
+        String pid = args[0];
+        String agentArgs = args.length > 1 ? args[1] : null;
+        try {
+            String agentJar = getAgentJar();
+            attach(pid, agentJar, agentArgs);
+            System.out.println("Attached " + agentJar + " to JVM " + pid);
+        } catch (Exception e) {
+            System.err.println("Cannot attach Codekvast to JVM " + pid + ": " + e);
+            System.exit(2);
+        }
+    }
+
+    static void attach(String pid, String agentJar, String agentArgs) throws Exception {
+        Class<?> vmClass = loadVirtualMachineClass();
+        try {
+            Object vm = vmClass.getMethod("attach", String.class).invoke(null, pid);
+            try {
+                vmClass.getMethod("loadAgent", String.class, String.class).invoke(vm, agentJar, agentArgs);
+            } finally {
+                vmClass.getMethod("detach").invoke(vm);
+            }
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    private static Class<?> loadVirtualMachineClass() throws Exception {
+        try {
+            return Class.forName(VIRTUAL_MACHINE_CLASS);
+        } catch (ClassNotFoundException e) {
+            File toolsJar = new File(System.getProperty("java.home"), "../lib/tools.jar").getCanonicalFile();
+            if (!toolsJar.isFile()) {
+                throw new IllegalStateException("Cannot find the Attach API. Is this a JDK?", e);
+            }
+            ClassLoader classLoader = new URLClassLoader(new URL[]{toolsJar.toURI().toURL()}, null);
+            return Class.forName(VIRTUAL_MACHINE_CLASS, true, classLoader);
+        }
+    }
+
+    private static String getAgentJar() throws Exception {
+        URL location = AgentAttacher.class.getProtectionDomain().getCodeSource().getLocation();
+        File file = new File(location.toURI());
+        if (!file.isFile()) {
+            throw new IllegalStateException(file + " is not a jar file");
+        }
+        return file.getAbsolutePath();
+    }
+}
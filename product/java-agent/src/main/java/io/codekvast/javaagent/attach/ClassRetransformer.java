@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.attach;
+
+import io.codekvast.javaagent.config.AgentConfig;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.java.Log;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Retransforms the already loaded classes that are within the configured packages, so that they are instrumented also
+ * when the agent was attached to a running JVM.
+ * <p>
+ * Each call to {@link Instrumentation#retransformClasses(Class[])} stops the JVM at a safepoint. The classes are therefore
+ * retransformed in small batches with a pause in between, so that the application is never stopped for long.
+ * <p>
+ * If a batch fails, its classes are retried one at a time, so that one class that cannot be retransformed does not
+ * prevent the others from being instrumented.
+ * <p>
+ * Only the probe engine can instrument loaded classes. The AspectJ weaver adds fields to the woven classes, and the JVM
+ * rejects retransformations that change the schema of a class. See {@link #forAttach(AgentConfig)}.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@Log
+@RequiredArgsConstructor
+public class ClassRetransformer implements Runnable {
+
+    private static final long PAUSE_BETWEEN_BATCHES_MILLIS = 10L;
+    private static final String[] AGENT_PACKAGES = {"io.codekvast.javaagent.", "ck."};
+
+    private final Instrumentation instrumentation;
+    private final AgentConfig config;
+
+    @Override
+    public void run() {
+        retransformLoadedClasses();
+    }
+
+    /**
+     * Adapts a config to attaching to a running JVM, by switching to the probe engine if another engine is configured.
+     *
+     * @param config The agent config. May be null.
+     * @return A config that uses the probe engine, or null if config is null.
+     */
+    public static AgentConfig forAttach(AgentConfig config) {
+        if (config == null || isProbeEngine(config)) {
+            return config;
+        }
+
+        String engine = config.getNormalizedInstrumentationEngine();
+        logger.warning(String.format("Using instrumentationEngine=%s instead of %s when attached to a running JVM, " +
+                                         "since %s cannot instrument already loaded classes.",
+                                     AgentConfig.INSTRUMENTATION_ENGINE_PROBE, engine, engine));
+        return config.toBuilder().instrumentationEngine(AgentConfig.INSTRUMENTATION_ENGINE_PROBE).build();
+    }
+
+    private static boolean isProbeEngine(AgentConfig config) {
+        return config.getNormalizedInstrumentationEngine().equals(AgentConfig.INSTRUMENTATION_ENGINE_PROBE);
+    }
+
+    /**
+     * Retransforms the loaded classes within the configured packages.
+     *
+     * @return The number of successfully retransformed classes.
+     */
+    int retransformLoadedClasses() {
+        if (!instrumentation.isRetransformClassesSupported()) {
+            logger.warning("The JVM does not support retransformation, already loaded classes will not be instrumented.");
+            return 0;
+        }
+        if (!isProbeEngine(config)) {
+            logger.warning(String.format("instrumentationEngine=%s cannot retransform classes, " +
+                                             "already loaded classes will not be instrumented.",
+                                         config.getNormalizedInstrumentationEngine()));
+            return 0;
+        }
+
+        long startedAt = System.currentTimeMillis();
+        List<Class<?>> classes = findClassesToRetransform();
+        int batchSize = Math.max(1, config.getRetransformBatchSize());
+        int retransformed = 0;
+        int failed = 0;
+
+        for (int from = 0; from < classes.size(); from += batchSize) {
+            List<Class<?>> batch = classes.subList(from, Math.min(from + batchSize, classes.size()));
+            try {
+                instrumentation.retransformClasses(batch.toArray(new Class<?>[0]));
+                retransformed += batch.size();
+            } catch (Throwable t) {
+                logger.fine("Failed to retransform a batch of " + batch.size() + " classes, retrying them one by one: " + t);
+                for (Class<?> clazz : batch) {
+                    if (retransform(clazz)) {
+                        retransformed += 1;
+                    } else {
+                        failed += 1;
+                    }
+                }
+            }
+
+            if (retransformed == 0 && failed >= batchSize) {
+                logger.warning(String.format("Gave up retransforming already loaded classes after %d failures, " +
+                                                 "none of them are instrumented.",
+                                             failed));
+                break;
+            }
+
+            if (!pause()) {
+                break;
+            }
+        }
+
+        logger.info(String.format("Retransformed %d of %d already loaded classes in %d ms, %d failed.",
+                                  retransformed, classes.size(), System.currentTimeMillis() - startedAt, failed));
+        return retransformed;
+    }
+
+    private boolean retransform(Class<?> clazz) {
+        try {
+            instrumentation.retransformClasses(clazz);
+            return true;
+        } catch (Throwable t) {
+            logger.log(Level.FINEST, "Cannot retransform " + clazz.getName() + ": " + t);
+            return false;
+        }
+    }
+
+    private List<Class<?>> findClassesToRetransform() {
+        List<String> packages = config.getNormalizedPackages();
+        List<String> excludePackages = config.getNormalizedExcludePackages();
+
+        List<Class<?>> result = new ArrayList<>();
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            if (isWithinPackages(clazz, packages, excludePackages) && instrumentation.isModifiableClass(clazz)) {
+                result.add(clazz);
+            }
+        }
+        return result;
+    }
+
+    static boolean isWithinPackages(Class<?> clazz, List<String> packages, List<String> excludePackages) {
+        if (clazz.isArray() || clazz.isPrimitive() || clazz.isInterface()) {
+            return false;
+        }
+
+        String name = clazz.getName();
+        for (String prefix : AGENT_PACKAGES) {
+            if (name.startsWith(prefix)) {
+                return false;
+            }
+        }
+
+        for (String prefix : excludePackages) {
+            if (name.startsWith(prefix + ".")) {
+                return false;
+            }
+        }
+
+        for (String prefix : packages) {
+            if (name.startsWith(prefix + ".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean pause() {
+        try {
+            Thread.sleep(PAUSE_BETWEEN_BATCHES_MILLIS);
+            return true;
+        } catch (InterruptedException e) {
+            logger.fine("Interrupted while retransforming classes");
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
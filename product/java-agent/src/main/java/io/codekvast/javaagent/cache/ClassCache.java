@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.cache;
+
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.probe.ProbeMethodTable;
+import io.codekvast.javaagent.util.Constants;
+import io.codekvast.javaagent.util.FileUtils;
+import lombok.extern.java.Log;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static javax.xml.bind.DatatypeConverter.printHexBinary;
+
+/**
+ * An on-disk cache of classes instrumented by the probe engine, that is reused by the next JVM start.
+ * <p>
+ * The cache directory is private to the user running the JVM, since the cached classes are handed to the JVM as they
+ * are. It contains one generation per agent version and code base location, packages, exclude packages and method
+ * visibility of the agent config. The generation is thus selected without traversing the code base. Within a generation
+ * each entry is keyed by the class name and a hash of the original class file, so a changed class is never served from
+ * the cache.
+ * <p>
+ * The probes contain method ids as constants, so the ids must be the same in the next run. Each generation therefore
+ * also holds the method id table, which is loaded into {@link ProbeMethodTable} before any class is instrumented, and
+ * appended to before an entry that uses new ids is written.
+ * <p>
+ * A generation is locked by the JVM that uses it. Old generations are evicted, least recently used first, when the
+ * total size exceeds {@code classCacheMaxMegabytes}. A generation stops growing when it alone reaches that size, and
+ * is then emptied by the next JVM that opens it, which gets rid of the entries of classes that have since changed.
+ * <p>
+ * Thread-safe.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@Log
+public class ClassCache {
+
+    private static final String FORMAT_VERSION = "1";
+    private static final String GENERATION_PREFIX = "probe-";
+    private static final String ASPECTJ_CACHE = "aspectj";
+    private static final String METHODS_FILE = "methods.txt";
+    private static final String LOCK_FILE = ".lock";
+    private static final String CLASS_SUFFIX = ".class";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] NOT_INSTRUMENTED = new byte[0];
+
+    private final File directory;
+    private final long maxBytes;
+
+    // Held as long as the JVM is running
+    private final FileLock lock;
+
+    private long sizeBytes;
+    private int persistedMethods;
+    private boolean fullLogged;
+
+    private ClassCache(File directory, long maxBytes, FileLock lock, int persistedMethods) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.lock = lock;
+        this.persistedMethods = persistedMethods;
+        this.sizeBytes = FileUtils.sizeOf(directory);
+    }
+
+    /**
+     * Opens the cache generation for the current code base and config.
+     * <p>
+     * Must be invoked before any class is instrumented, since it assigns the method ids of the previous run.
+     *
+     * @param config The agent config.
+     * @return A class cache, or null if caching is disabled or the cache cannot be used.
+     */
+    public static ClassCache open(AgentConfig config) {
+        File root = config.getClassCacheDirectory();
+        if (root == null) {
+            return null;
+        }
+
+        long startedAt = System.currentTimeMillis();
+        try {
+            if (!isCodeBaseAvailable(config)) {
+                logger.fine("The code base is not available yet, not using the class cache");
+                return null;
+            }
+
+            File directory = new File(root, GENERATION_PREFIX + sha256(generationKey(config)));
+            if (!FileUtils.mkdirsPrivate(root) || !FileUtils.mkdirsPrivate(directory)) {
+                logger.warning("Cannot use " + directory + " as a private directory, not using the class cache");
+                return null;
+            }
+
+            FileLock lock = tryLock(directory);
+            if (lock == null) {
+                logger.info(directory + " is in use by another JVM, not using the class cache");
+                return null;
+            }
+
+            long maxBytes = config.getClassCacheMaxMegabytes() * 1024L * 1024L;
+            evictOldGenerations(root, directory, maxBytes);
+            emptyIfFull(directory, maxBytes);
+
+            List<String> methods = readMethods(new File(directory, METHODS_FILE));
+            if (!ProbeMethodTable.preload(methods)) {
+                logger.warning("Cannot reuse the method ids in " + directory + ", not using the class cache");
+                lock.release();
+                return null;
+            }
+
+            //noinspection ResultOfMethodCallIgnored
+            directory.setLastModified(System.currentTimeMillis());
+
+            ClassCache result = new ClassCache(directory, maxBytes, lock, methods.size());
+            logger.fine(String.format("Opened class cache %s with %d methods and %d kB in %d ms", directory, methods.size(),
+                                      result.sizeBytes / 1024, System.currentTimeMillis() - startedAt));
+            return result;
+        } catch (Exception e) {
+            logger.warning("Cannot use the class cache in " + root + ": " + e);
+            return null;
+        }
+    }
+
+    private static boolean isCodeBaseAvailable(AgentConfig config) {
+        for (File file : config.getCodeBaseFiles()) {
+            if (file.exists()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String generationKey(AgentConfig config) {
+        return FORMAT_VERSION + "|" + Constants.AGENT_VERSION + "|" + config.getCodeBaseFiles() + "|" +
+            config.getNormalizedPackages() + "|" + config.getNormalizedExcludePackages() + "|" + config.getMethodAnalyzer();
+    }
+
+    /**
+     * Enables the AspectJ weaver's own cache of woven classes, in a subdirectory of the class cache directory.
+     * <p>
+     * AspectJ keys the entries by the class loader and the class bytes, but does not bound the size. The AspectJ cache is
+     * therefore discarded when it has grown larger than {@code classCacheMaxMegabytes}.
+     * <p>
+     * Must be invoked before the AspectJ weaver is started.
+     *
+     * @param config The agent config.
+     */
+    public static void configureAspectjCache(AgentConfig config) {
+        File root = config.getClassCacheDirectory();
+        if (root == null) {
+            return;
+        }
+
+        File directory = new File(root, ASPECTJ_CACHE);
+        if (directory.isDirectory() && FileUtils.sizeOf(directory) > config.getClassCacheMaxMegabytes() * 1024L * 1024L) {
+            logger.fine("Discarding the AspectJ cache in " + directory);
+            FileUtils.deleteRecursively(directory);
+        }
+
+        System.setProperty("aj.weaving.cache.enabled", "true");
+        System.setProperty("aj.weaving.cache.dir", directory.getAbsolutePath());
+    }
+
+    /**
+     * Computes the key of a class.
+     *
+     * @param className       The internal name of the class.
+     * @param classfileBuffer The original class file.
+     * @return The key of the class.
+     */
+    public String keyOf(String className, byte[] classfileBuffer) {
+        return className.replace('/', '.') + "-" + sha256(classfileBuffer).substring(0, 32) + CLASS_SUFFIX;
+    }
+
+    /**
+     * Gets an instrumented class from the cache.
+     *
+     * @param key The key of the class.
+     * @return The instrumented class file, an empty array if the class was not instrumented, or null if the class is not in
+     * the cache.
+     */
+    public byte[] get(String key) {
+        File file = new File(directory, key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            logger.fine("Cannot read " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores an instrumented class in the cache, unless the cache is full.
+     *
+     * @param key                 The key of the class.
+     * @param instrumentedClass   The instrumented class file, or null if the class was not instrumented.
+     */
+    public synchronized void put(String key, byte[] instrumentedClass) {
+        if (sizeBytes >= maxBytes) {
+            if (!fullLogged) {
+                logger.fine("The class cache " + directory + " is full");
+                fullLogged = true;
+            }
+            return;
+        }
+
+        byte[] bytes = instrumentedClass == null ? NOT_INSTRUMENTED : instrumentedClass;
+        File file = new File(directory, key);
+        try {
+            // The method ids used by the class must be persisted before the class itself.
+            persistNewMethods();
+
+            File tmpFile = new File(directory, key + ".tmp");
+            Files.write(tmpFile.toPath(), bytes);
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            sizeBytes += bytes.length;
+        } catch (IOException e) {
+            logger.fine("Cannot write " + file + ": " + e);
+        }
+    }
+
+    /**
+     * Releases the generation to other JVMs. The cache must not be used afterwards.
+     */
+    void close() throws IOException {
+        lock.release();
+        lock.channel().close();
+    }
+
+    private void persistNewMethods() throws IOException {
+        int size = ProbeMethodTable.size();
+        if (size > persistedMethods) {
+            try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(new File(directory, METHODS_FILE), true), UTF_8))) {
+                for (int id = persistedMethods; id < size; id++) {
+                    writer.write(ProbeMethodTable.getSignature(id));
+                    writer.write('\n');
+                }
+            }
+            persistedMethods = size;
+        }
+    }
+
+    /**
+     * Reads the method table of a generation. An incomplete last line, left by a JVM that died while writing, is truncated.
+     */
+    private static List<String> readMethods(File file) throws IOException {
+        List<String> result = new ArrayList<>();
+        if (!file.isFile()) {
+            return result;
+        }
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n') {
+            end -= 1;
+        }
+        if (end < bytes.length) {
+            try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+                channel.truncate(end);
+            }
+        }
+
+        int start = 0;
+        for (int i = 0; i < end; i++) {
+            if (bytes[i] == '\n') {
+                result.add(new String(bytes, start, i - start, UTF_8));
+                start = i + 1;
+            }
+        }
+        return result;
+    }
+
+    private static void evictOldGenerations(File root, File current, long maxBytes) throws IOException {
+        File[] generations = root.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory() && file.getName().startsWith(GENERATION_PREFIX);
+            }
+        });
+        if (generations == null) {
+            return;
+        }
+
+        long totalBytes = 0L;
+        for (File generation : generations) {
+            totalBytes += FileUtils.sizeOf(generation);
+        }
+
+        List<File> oldest = new ArrayList<>(Arrays.asList(generations));
+        oldest.remove(current);
+        Collections.sort(oldest, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+
+        for (File generation : oldest) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            FileLock lock = tryLock(generation);
+            if (lock != null) {
+                long size = FileUtils.sizeOf(generation);
+                logger.fine("Evicting " + generation + " from the class cache");
+                try {
+                    // Deleted while locked, so that no other JVM starts using it meanwhile
+                    FileUtils.deleteRecursively(generation);
+                } finally {
+                    lock.release();
+                    lock.channel().close();
+                }
+                // On platforms that cannot delete a locked file, the lock file and the directory are left
+                FileUtils.deleteRecursively(generation);
+                totalBytes -= size;
+            }
+        }
+    }
+
+    /**
+     * Empties a locked generation that has reached the size limit, but keeps the lock file.
+     */
+    private static void emptyIfFull(File directory, long maxBytes) {
+        if (FileUtils.sizeOf(directory) < maxBytes) {
+            return;
+        }
+
+        logger.fine("Emptying the full class cache " + directory);
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.getName().equals(LOCK_FILE)) {
+                    FileUtils.deleteRecursively(file);
+                }
+            }
+        }
+    }
+
+    private static FileLock tryLock(File directory) throws IOException {
+        @SuppressWarnings("resource")
+        FileChannel channel = new RandomAccessFile(new File(directory, LOCK_FILE), "rw").getChannel();
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Locked by this JVM
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+        }
+        return lock;
+    }
+
+    private static String sha256(String s) {
+        return sha256(s.getBytes(UTF_8));
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return printHexBinary(MessageDigest.getInstance("SHA-256").digest(bytes)).toLowerCase();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.codebase;
+
+import com.google.common.io.ByteStreams;
+import io.codekvast.javaagent.model.v2.MethodSignature2;
+import io.codekvast.javaagent.util.PrefixTrie;
+import lombok.extern.java.Log;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Finds the classes in archives without extracting anything to disk: Spring Boot executable jars, WAR files and EAR files.
+ * <p>
+ * Each archive is read in a single pass over its entries. Class files directly in the archive are read from it when they
+ * are analyzed, so the archives are kept open until the reader is closed. Nested archives are streamed, and the class
+ * files within the packages are analyzed as each nested archive has been read, or when they exceed
+ * {@value #MAX_PENDING_BYTES} bytes. Only their signatures are thus kept until the whole code base has been read.
+ * <p>
+ * A nested archive whose classes all are in the scan cache is not inflated at all.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@Log
+class ArchiveReader implements Closeable {
+
+    private static final String WEB_INF_CLASSES = "WEB-INF/classes/";
+    private static final String WEB_INF_LIB = "WEB-INF/lib/";
+    private static final int MAX_PENDING_BYTES = 8 * 1024 * 1024;
+
+    private final PrefixTrie packages;
+    private final ScanCache scanCache;
+    private final Analyzer analyzer;
+    private final List<ZipFile> openArchives = new ArrayList<>();
+
+    // Classes read from the current nested archive, that are not yet analyzed
+    private final List<ClassSource> pending = new ArrayList<>();
+    private long pendingBytes;
+    private boolean analysisFailed;
+
+    private int numReadArchives;
+    private int numCachedArchives;
+
+    /**
+     * @param packages  The packages to include.
+     * @param scanCache The scan cache, or null if disabled.
+     * @param analyzer  Analyzes the classes read from nested archives.
+     */
+    ArchiveReader(PrefixTrie packages, ScanCache scanCache, Analyzer analyzer) {
+        this.packages = packages;
+        this.scanCache = scanCache;
+        this.analyzer = analyzer;
+    }
+
+    /**
+     * Finds the classes in a jar file on the class path.
+     *
+     * @param file        The jar file.
+     * @param classLoader The class loader to use for loading the classes, or null.
+     * @return The classes, in the order of the jar file.
+     */
+    List<ClassSource> readJar(File file, ClassLoader classLoader) {
+        List<ClassSource> result = new ArrayList<>();
+        try {
+            ZipFile archive = open(file);
+            ClassRoot root = ClassRoot.of(file);
+            Enumeration<? extends ZipEntry> entries = archive.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (name.endsWith(".class") && !name.startsWith("META-INF/") && isWithinPackages(name)) {
+                    result.add(ClassSource.inArchive(name, archive, entry, root, classLoader));
+                }
+            }
+        } catch (IOException e) {
+            logger.severe("Cannot read " + file + ": " + e);
+        }
+        return result;
+    }
+
+    /**
+     * Finds the classes in BOOT-INF/classes and in the jars in BOOT-INF/lib.
+     *
+     * @param jarFile The executable jar. It is closed by {@link #close()}.
+     * @return The classes, in the order of the Spring Boot class path.
+     */
+    List<ClassSource> readSpringBootExecutableJar(JarFile jarFile) {
+        openArchives.add(jarFile);
+        List<ClassSource> classes = new ArrayList<>();
+        List<ClassSource> libClasses = new ArrayList<>();
+        try {
+            Attributes attributes = jarFile.getManifest().getMainAttributes();
+            readArchive(jarFile, attributes.getValue("Spring-Boot-Classes"), attributes.getValue("Spring-Boot-Lib"), classes,
+                        libClasses);
+        } catch (IOException e) {
+            logger.severe("Cannot read " + jarFile.getName() + ": " + e);
+        }
+        classes.addAll(libClasses);
+        return classes;
+    }
+
+    /**
+     * Finds the classes in WEB-INF/classes and in the jars in WEB-INF/lib.
+     *
+     * @param file The WAR file.
+     * @return The classes, in the order of the web application class path.
+     */
+    List<ClassSource> readWebArchive(File file) {
+        List<ClassSource> classes = new ArrayList<>();
+        List<ClassSource> libClasses = new ArrayList<>();
+        try {
+            readArchive(open(file), WEB_INF_CLASSES, WEB_INF_LIB, classes, libClasses);
+        } catch (IOException e) {
+            logger.severe("Cannot read " + file + ": " + e);
+        }
+        classes.addAll(libClasses);
+        return classes;
+    }
+
+    /**
+     * Finds the classes in the modules of an EAR file, i.e., in the nested jars and in the nested WAR files.
+     *
+     * @param file The EAR file.
+     * @return The classes, in the order of the modules in the EAR file.
+     */
+    List<ClassSource> readEnterpriseArchive(File file) {
+        List<ClassSource> result = new ArrayList<>();
+        try {
+            ZipFile archive = open(file);
+            Enumeration<? extends ZipEntry> entries = archive.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (name.endsWith(".jar") || name.endsWith(".war")) {
+                    readNestedArchive(archive, entry, result, result);
+                }
+            }
+        } catch (IOException e) {
+            logger.severe("Cannot read " + file + ": " + e);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        for (ZipFile archive : openArchives) {
+            try {
+                archive.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        openArchives.clear();
+        logger.fine(String.format("Read %d nested archives, %d nested archives were in the scan cache", numReadArchives,
+                                  numCachedArchives));
+    }
+
+    private ZipFile open(File file) throws IOException {
+        ZipFile result = new ZipFile(file);
+        openArchives.add(result);
+        return result;
+    }
+
+    private void readArchive(ZipFile archive, String classesDir, String libDir, List<ClassSource> classes,
+                             List<ClassSource> libClasses) throws IOException {
+        ClassRoot classesRoot = classesDir == null ? null : ClassRoot.nested(archive, classesDir);
+
+        Enumeration<? extends ZipEntry> entries = archive.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+
+            if (classesDir != null && name.startsWith(classesDir) && name.endsWith(".class")) {
+                String resourceName = name.substring(classesDir.length());
+                if (isWithinPackages(resourceName)) {
+                    classes.add(ClassSource.inArchive(resourceName, archive, entry, classesRoot, null));
+                }
+            } else if (libDir != null && name.startsWith(libDir) && name.endsWith(".jar")) {
+                readNestedArchive(archive, entry, libClasses, libClasses);
+            }
+        }
+    }
+
+    /**
+     * Reads a jar or a WAR file nested in an archive on disk. The scan cache entry of a nested archive covers all of its
+     * contents, also the jars in WEB-INF/lib of a nested WAR file.
+     */
+    private void readNestedArchive(ZipFile archive, ZipEntry entry, List<ClassSource> classes,
+                                   List<ClassSource> libClasses) throws IOException {
+        ClassRoot root = ClassRoot.nested(archive, entry.getName());
+        Set<String> cached = scanCache == null ? null : scanCache.getCompleteResourceNames(root);
+        if (cached != null) {
+            for (String resourceName : cached) {
+                classes.add(ClassSource.inMemory(resourceName, null, root));
+            }
+            numCachedArchives += 1;
+            return;
+        }
+
+        analysisFailed = false;
+        try (InputStream inputStream = new BufferedInputStream(archive.getInputStream(entry))) {
+            if (entry.getName().endsWith(".war")) {
+                List<ClassSource> warLibClasses = new ArrayList<>();
+                readStream(inputStream, root, WEB_INF_CLASSES, WEB_INF_LIB, classes, warLibClasses);
+                libClasses.addAll(warLibClasses);
+            } else {
+                readStream(inputStream, root, "", null, classes, null);
+            }
+        } finally {
+            analyzePending();
+        }
+        numReadArchives += 1;
+
+        if (scanCache != null) {
+            scanCache.setComplete(root, !analysisFailed);
+        }
+    }
+
+    /**
+     * Analyzes the pending classes, and releases their class files.
+     */
+    private void analyzePending() {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<List<MethodSignature2>> signatures = analyzer.analyze(pending);
+        for (int i = 0; i < pending.size(); i++) {
+            ClassSource classSource = pending.get(i);
+            List<MethodSignature2> classSignatures = signatures.get(i);
+            classSource.setAnalyzed(classSignatures);
+            if (classSignatures == null) {
+                analysisFailed = true;
+            } else if (scanCache != null) {
+                scanCache.put(classSource, classSignatures);
+            }
+        }
+        pending.clear();
+        pendingBytes = 0L;
+    }
+
+    private void readStream(InputStream inputStream, ClassRoot root, String classesDir, String libDir,
+                            List<ClassSource> classes, List<ClassSource> libClasses) throws IOException {
+        try (ZipInputStream zipInputStream = new ZipInputStream(new NonClosingInputStream(inputStream))) {
+            ZipEntry entry;
+            while ((entry = zipInputStream.getNextEntry()) != null) {
+                String name = entry.getName();
+                if (name.startsWith(classesDir) && name.endsWith(".class")) {
+                    String resourceName = name.substring(classesDir.length());
+                    if (isWithinPackages(resourceName)) {
+                        byte[] classFile = ByteStreams.toByteArray(zipInputStream);
+                        ClassSource classSource = ClassSource.inMemory(resourceName, classFile, root);
+                        classes.add(classSource);
+                        pending.add(classSource);
+                        pendingBytes += classFile.length;
+                        if (pendingBytes >= MAX_PENDING_BYTES) {
+                            analyzePending();
+                        }
+                    }
+                } else if (libDir != null && name.startsWith(libDir) && name.endsWith(".jar")) {
+                    readStream(zipInputStream, root, "", null, libClasses, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Analyzes classes read from nested archives.
+     */
+    interface Analyzer {
+        /**
+         * @param classSources The classes to analyze.
+         * @return The signatures of each class, in the order of the classes. Null for a class that could not be
+         * analyzed.
+         */
+        List<List<MethodSignature2>> analyze(List<ClassSource> classSources);
+    }
+
+    private boolean isWithinPackages(String resourceName) {
+        int pos = resourceName.lastIndexOf('/');
+        return packages.matches(pos < 0 ? "" : resourceName.substring(0, pos).replace('/', '.'));
+    }
+
+    /**
+     * Leaves the enclosing stream open when a nested archive has been read.
+     */
+    private static class NonClosingInputStream extends FilterInputStream {
+        private NonClosingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
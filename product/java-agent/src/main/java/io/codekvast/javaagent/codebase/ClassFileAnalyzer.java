@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.codebase;
+
+import io.codekvast.javaagent.model.v2.MethodSignature2;
+import io.codekvast.javaagent.util.PrefixTrie;
+import io.codekvast.javaagent.util.SignatureUtils;
+import org.objectweb.asm.*;
+
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+
+/**
+ * Finds the methods and constructors of a class by reading its class file, without loading the class.
+ * <p>
+ * The signatures are identical to those made by {@link SignatureUtils#makeMethodSignature(Class, java.lang.reflect.Method)}
+ * and {@link SignatureUtils#makeConstructorSignature(Class, java.lang.reflect.Constructor)}, i.e., to what AspectJ
+ * provides at an execution join point. Only the declarations are read, the method bodies are skipped.
+ *
+ * @author olle.hallin@crisp.se
+ */
+class ClassFileAnalyzer {
+
+    /**
+     * The access flags that the JVM exposes as modifiers of a java.lang.reflect.Method or Constructor. Note that they
+     * include the bridge, varargs and synthetic flags.
+     */
+    private static final int REFLECTED_METHOD_MODIFIERS = 0x1DFF;
+
+    private static final int PARSING_OPTIONS = ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES;
+
+    /**
+     * Finds the signatures of the methods and constructors of a class.
+     *
+     * @param result    The collection to add the signatures to.
+     * @param classFile The class file.
+     * @param packages  Only methods declared in these packages are added. Constructors are always added.
+     */
+    void findMethodsAndConstructors(final Collection<MethodSignature2> result, byte[] classFile, final PrefixTrie packages) {
+        new ClassReader(classFile).accept(new ClassVisitor(Opcodes.ASM6) {
+            private String internalClassName;
+            private boolean included;
+
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                internalClassName = (access & Opcodes.ACC_INTERFACE) == 0 ? name : null;
+                included = internalClassName != null && packages.matches(getPackageName(name));
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                             String[] exceptions) {
+                if (internalClassName == null || name.equals("<clinit>") || (access & Opcodes.ACC_SYNTHETIC) != 0) {
+                    return null;
+                }
+                if (name.equals("<init>") || included) {
+                    result.add(makeSignature(internalClassName, access, name, descriptor, exceptions));
+                }
+                return null;
+            }
+        }, PARSING_OPTIONS);
+    }
+
+    /**
+     * Makes a method signature from the parts of a class file.
+     *
+     * @param internalClassName The internal name of the declaring class, e.g. "com/acme/Foo$Bar".
+     * @param access            The access flags of the method.
+     * @param name              The name of the method, or "&lt;init&gt;" for a constructor.
+     * @param descriptor        The method descriptor.
+     * @param exceptions        The internal names of the declared exceptions, or null.
+     * @return A method signature.
+     */
+    static MethodSignature2 makeSignature(String internalClassName, int access, String name, String descriptor,
+                                          String[] exceptions) {
+        boolean isConstructor = name.equals("<init>");
+        int modifiers = access & REFLECTED_METHOD_MODIFIERS;
+        String modifiersString = Modifier.toString(modifiers);
+        Type[] parameterTypes = Type.getArgumentTypes(descriptor);
+        Type returnType = Type.getReturnType(descriptor);
+
+        // Same as org.aspectj.lang.Signature.toLongString()
+        StringBuilder sb = new StringBuilder();
+        if (!modifiersString.isEmpty()) {
+            sb.append(modifiersString).append(" ");
+        }
+        if (!isConstructor) {
+            sb.append(toAspectjTypeName(returnType)).append(" ");
+        }
+        sb.append(internalClassName.replace('/', '.').replace('$', '.'));
+        if (!isConstructor) {
+            sb.append(".").append(name);
+        }
+        sb.append("(");
+        String delimiter = "";
+        for (Type type : parameterTypes) {
+            sb.append(delimiter).append(toAspectjTypeName(type));
+            delimiter = ", ";
+        }
+        sb.append(")");
+        String longString = sb.toString();
+
+        return MethodSignature2.builder()
+                               .aspectjString(SignatureUtils.getVisibility(longString) + " " +
+                                                  SignatureUtils.stripModifiers(longString))
+                               .bridge((access & Opcodes.ACC_BRIDGE) != 0)
+                               .declaringType(internalClassName.replace('/', '.'))
+                               .exceptionTypes(toClassNames(exceptions))
+                               .methodName(name)
+                               .modifiers(modifiersString)
+                               .packageName(getPackageName(internalClassName))
+                               .parameterTypes(toClassNames(parameterTypes))
+                               .returnType(isConstructor ? "" : toClassName(returnType))
+                               .synthetic(false)
+                               .build();
+    }
+
+    private static String getPackageName(String internalClassName) {
+        int pos = internalClassName.lastIndexOf('/');
+        return pos < 0 ? "" : internalClassName.substring(0, pos).replace('/', '.');
+    }
+
+    /**
+     * Same as org.aspectj.runtime.reflect.StringMaker.makeTypeName() with long type names.
+     */
+    private static String toAspectjTypeName(Type type) {
+        return type.getClassName().replace('$', '.');
+    }
+
+    /**
+     * Same as {@link Class#getName()}.
+     */
+    private static String toClassName(Type type) {
+        return type.getSort() == Type.ARRAY ? type.getDescriptor().replace('/', '.') : type.getClassName();
+    }
+
+    private static String toClassNames(Type[] types) {
+        StringBuilder sb = new StringBuilder();
+        String delimiter = "";
+        for (Type type : types) {
+            sb.append(delimiter).append(toClassName(type));
+            delimiter = ", ";
+        }
+        return sb.toString();
+    }
+
+    private static String toClassNames(String[] internalNames) {
+        StringBuilder sb = new StringBuilder();
+        String delimiter = "";
+        if (internalNames != null) {
+            for (String internalName : internalNames) {
+                sb.append(delimiter).append(toClassName(Type.getObjectType(internalName)));
+                delimiter = ", ";
+            }
+        }
+        return sb.toString();
+    }
+}
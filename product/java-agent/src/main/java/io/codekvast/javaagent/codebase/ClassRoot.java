@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.codebase;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A jar file or class directory in which classes are found. It is either a file on disk, or a jar or directory nested
+ * inside an archive on disk, e.g. BOOT-INF/lib/foo.jar in a Spring Boot executable jar.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@EqualsAndHashCode(of = "id")
+@ToString(of = "id")
+class ClassRoot {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * The absolute path, followed by "!/" and the entry name for a nested root.
+     */
+    @Getter
+    private final String id;
+
+    private final File file;
+    private final String entryName;
+
+    // The open archive of a nested root, or null
+    private final ZipFile archive;
+
+    private ClassRoot(File file, String entryName, ZipFile archive) {
+        this.file = file;
+        this.entryName = entryName;
+        this.archive = archive;
+        this.id = entryName == null ? file.getAbsolutePath() : file.getAbsolutePath() + "!/" + entryName;
+    }
+
+    /**
+     * @param file A jar file or a class directory.
+     */
+    static ClassRoot of(File file) {
+        return new ClassRoot(file, null, null);
+    }
+
+    /**
+     * @param archive   The archive on disk. Its index is used by {@link #digest(MessageDigest)}, so it must be open as
+     *                  long as the root is used.
+     * @param entryName The name of a nested jar, or of a nested directory ending with a '/'.
+     */
+    static ClassRoot nested(ZipFile archive, String entryName) {
+        return new ClassRoot(new File(archive.getName()), entryName, archive);
+    }
+
+    /**
+     * Feeds a digest with what identifies the current contents of the root. Nothing is inflated, only the index of archives
+     * and the metadata of class files are read.
+     *
+     * @param md The digest to update.
+     * @throws IOException If the root cannot be read.
+     */
+    void digest(MessageDigest md) throws IOException {
+        // The archive of a nested root is modified at each redeploy, even if the nested root is not.
+        boolean plainJar = entryName == null && !file.isDirectory();
+        md.update(String.format("%s|%d|%d|", id, plainJar ? file.length() : 0L, plainJar ? file.lastModified() : 0L)
+                        .getBytes(UTF_8));
+
+        if (file.isDirectory()) {
+            digestDirectory(md, file, "");
+            return;
+        }
+
+        if (archive != null) {
+            digestArchive(md, archive);
+            return;
+        }
+        try (ZipFile zipFile = new ZipFile(file)) {
+            digestArchive(md, zipFile);
+        }
+    }
+
+    private void digestArchive(MessageDigest md, ZipFile zipFile) throws IOException {
+        if (entryName != null && !entryName.endsWith("/")) {
+            ZipEntry entry = zipFile.getEntry(entryName);
+            if (entry == null) {
+                throw new IOException(id + " does not exist");
+            }
+            md.update(String.format("%s|%d|%d|", entry.getName(), entry.getCrc(), entry.getSize()).getBytes(UTF_8));
+            return;
+        }
+
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (entryName == null || entry.getName().startsWith(entryName)) {
+                md.update(String.format("%s|%d|%d|", entry.getName(), entry.getCrc(), entry.getSize()).getBytes(UTF_8));
+            }
+        }
+    }
+
+    private static void digestDirectory(MessageDigest md, File dir, String path) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                digestDirectory(md, file, path + file.getName() + "/");
+            } else if (file.getName().endsWith(".class")) {
+                md.update(String.format("%s%s|%d|%d|", path, file.getName(), file.length(), file.lastModified())
+                                .getBytes(UTF_8));
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.codebase;
+
+import com.google.common.io.ByteStreams;
+import io.codekvast.javaagent.model.v2.MethodSignature2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A class to be scanned: a class file in a directory, an entry in an archive or a class file read from a nested archive.
+ *
+ * @author olle.hallin@crisp.se
+ */
+abstract class ClassSource {
+
+    private final String resourceName;
+    private final ClassRoot root;
+    private final ClassLoader classLoader;
+
+    // Set when the class has been analyzed while its archive was read
+    private boolean analyzed;
+    private List<MethodSignature2> signatures;
+
+    private ClassSource(String resourceName, ClassRoot root, ClassLoader classLoader) {
+        this.resourceName = resourceName;
+        this.root = root;
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * @return The resource name of the class, e.g. "com/acme/Foo$Bar.class".
+     */
+    String getResourceName() {
+        return resourceName;
+    }
+
+    /**
+     * @return The jar or directory that the class was found in.
+     */
+    ClassRoot getRoot() {
+        return root;
+    }
+
+    /**
+     * @return The contents of the class file.
+     * @throws IOException If the class file cannot be read.
+     */
+    abstract byte[] readClassFile() throws IOException;
+
+    /**
+     * Loads the class, for analyzing it by reflection.
+     *
+     * @return The loaded class.
+     * @throws ClassNotFoundException        If the class cannot be loaded.
+     * @throws UnsupportedOperationException If the class is not available to a class loader.
+     */
+    Class<?> loadClass() throws ClassNotFoundException {
+        if (classLoader == null) {
+            throw new UnsupportedOperationException("Cannot load " + resourceName + " from " + root);
+        }
+        return classLoader.loadClass(resourceName.substring(0, resourceName.length() - ".class".length()).replace('/', '.'));
+    }
+
+    /**
+     * @return true if the class already has been analyzed, see {@link #getSignatures()}.
+     */
+    boolean isAnalyzed() {
+        return analyzed;
+    }
+
+    /**
+     * @return The signatures found when the class was analyzed, or null if it could not be analyzed.
+     */
+    List<MethodSignature2> getSignatures() {
+        return signatures;
+    }
+
+    /**
+     * Records the result of analyzing the class. The class file is not needed afterwards.
+     *
+     * @param signatures The signatures of the class, or null if it could not be analyzed.
+     */
+    void setAnalyzed(List<MethodSignature2> signatures) {
+        this.analyzed = true;
+        this.signatures = signatures;
+    }
+
+    String getPackageName() {
+        int pos = resourceName.lastIndexOf('/');
+        return pos < 0 ? "" : resourceName.substring(0, pos).replace('/', '.');
+    }
+
+    @Override
+    public String toString() {
+        return resourceName;
+    }
+
+    /**
+     * @param resourceName The resource name of the class.
+     * @param classFile    The class file.
+     * @param root         The directory in which the class was found.
+     * @param classLoader  The class loader to use for loading the class, or null.
+     */
+    static ClassSource inDirectory(String resourceName, File classFile, ClassRoot root, ClassLoader classLoader) {
+        return new FileSource(resourceName, classFile, root, classLoader);
+    }
+
+    /**
+     * @param resourceName The resource name of the class.
+     * @param classFile    The contents of the class file, or null if it is not needed since the class is in the scan
+     *                     cache.
+     * @param root         The root in which the class was found.
+     */
+    static ClassSource inMemory(String resourceName, byte[] classFile, ClassRoot root) {
+        return new InMemorySource(resourceName, classFile, root);
+    }
+
+    /**
+     * @param resourceName The resource name of the class.
+     * @param archive      The archive that contains the class file. Must be open until the class has been scanned.
+     * @param entry        The class file entry.
+     * @param root         The root in which the class was found.
+     * @param classLoader  The class loader to use for loading the class, or null.
+     */
+    static ClassSource inArchive(String resourceName, ZipFile archive, ZipEntry entry, ClassRoot root,
+                                 ClassLoader classLoader) {
+        return new ArchiveEntrySource(resourceName, archive, entry, root, classLoader);
+    }
+
+    private static class FileSource extends ClassSource {
+        private final File classFile;
+
+        private FileSource(String resourceName, File classFile, ClassRoot root, ClassLoader classLoader) {
+            super(resourceName, root, classLoader);
+            this.classFile = classFile;
+        }
+
+        @Override
+        byte[] readClassFile() throws IOException {
+            return Files.readAllBytes(classFile.toPath());
+        }
+    }
+
+    private static class ArchiveEntrySource extends ClassSource {
+        private final ZipFile archive;
+        private final ZipEntry entry;
+
+        private ArchiveEntrySource(String resourceName, ZipFile archive, ZipEntry entry, ClassRoot root,
+                                   ClassLoader classLoader) {
+            super(resourceName, root, classLoader);
+            this.archive = archive;
+            this.entry = entry;
+        }
+
+        @Override
+        byte[] readClassFile() throws IOException {
+            try (InputStream inputStream = archive.getInputStream(entry)) {
+                return ByteStreams.toByteArray(inputStream);
+            }
+        }
+    }
+
+    private static class InMemorySource extends ClassSource {
+        private byte[] classFile;
+
+        private InMemorySource(String resourceName, byte[] classFile, ClassRoot root) {
+            super(resourceName, root, null);
+            this.classFile = classFile;
+        }
+
+        @Override
+        byte[] readClassFile() throws IOException {
+            if (classFile == null) {
+                throw new IOException("The class file of " + getResourceName() + " has not been read");
+            }
+            return classFile;
+        }
+
+        @Override
+        void setAnalyzed(List<MethodSignature2> signatures) {
+            super.setAnalyzed(signatures);
+            classFile = null;
+        }
+    }
+}
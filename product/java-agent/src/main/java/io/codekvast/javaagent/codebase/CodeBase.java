@@ -26,6 +26,8 @@ import io.codekvast.javaagent.model.v2.CodeBaseEntry2;
 import io.codekvast.javaagent.model.v2.CodeBasePublication2;
 import io.codekvast.javaagent.model.v2.MethodSignature2;
 import io.codekvast.javaagent.util.SignatureUtils;
+import io.codekvast.javaagent.util.StringPool;
+import lombok.AccessLevel;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.SneakyThrows;
@@ -53,14 +55,22 @@ public class CodeBase {
     @Getter
     private final AgentConfig config;
 
-    @Getter
-    private final Set<MethodSignature2> signatures = new HashSet<>();
+    // The signatures, mapped to their signature strings without modifiers, which are computed once for all publications
+    private final Map<MethodSignature2, String> signatures = new HashMap<>();
+
+    // The parts of the signatures are highly redundant, e.g. declaring types and parameter types.
+    private final StringPool stringPool = new StringPool();
 
     @Getter
     private final CodeBaseFingerprint fingerprint;
 
     private List<URL> urls;
-    private boolean needsExploding = false;
+
+    /**
+     * WAR and EAR files, which are read in place by the {@link CodeBaseScanner}.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private List<File> archives;
 
     public CodeBase(AgentConfig config) {
         this.config = config;
@@ -93,10 +103,6 @@ public class CodeBase {
     }
 
     URL[] getUrls() {
-        if (needsExploding) {
-            // TODO: implement WAR and EAR exploding
-            throw new UnsupportedOperationException("Exploding WAR or EAR not yet implemented");
-        }
         return urls.toArray(new URL[0]);
     }
 
@@ -104,6 +110,7 @@ public class CodeBase {
         long startedAt = System.currentTimeMillis();
 
         urls = new ArrayList<>();
+        archives = new ArrayList<>();
         CodeBaseFingerprint.Builder builder = CodeBaseFingerprint.builder(config);
         for (File file : codeBaseFiles) {
             if (file.isDirectory()) {
@@ -114,12 +121,9 @@ public class CodeBase {
             } else if (file.getName().endsWith(".jar")) {
                 builder.record(file);
                 addUrl(file);
-            } else if (file.getName().endsWith(".war")) {
-                builder.record(file);
-                needsExploding = true;
-            } else if (file.getName().endsWith(".ear")) {
-                builder.record(file);
-                needsExploding = true;
+            } else if (file.getName().endsWith(".war") || file.getName().endsWith(".ear")) {
+                builder.recordArchive(file);
+                archives.add(file);
             }
         }
 
@@ -168,16 +172,44 @@ public class CodeBase {
         }
     }
 
-    void addSignature(MethodSignature2 signature) {
+    /**
+     * Adds a signature found by the code base scan, unless it already has been added.
+     *
+     * @param signature The signature to add.
+     */
+    public void addSignature(MethodSignature2 signature) {
         String normalizedSignature = SignatureUtils.normalizeSignature(signature);
 
-        if (normalizedSignature != null) {
-            if (signatures.add(signature)) {
-                logger.finest("  Found " + normalizedSignature);
-            }
+        if (normalizedSignature != null && !signatures.containsKey(signature)) {
+            signatures.put(pooled(signature), SignatureUtils.stripModifiers(signature.getAspectjString()));
+            logger.finest("  Found " + normalizedSignature);
         }
     }
 
+    /**
+     * Makes a signature share its strings with the other signatures in the code base. Since serialization writes
+     * identical instances only once, it also makes the publication smaller.
+     */
+    private MethodSignature2 pooled(MethodSignature2 signature) {
+        // The Booleans are already the canonical instances, also when read from the scan cache.
+        return signature.toBuilder()
+                        .declaringType(stringPool.intern(signature.getDeclaringType()))
+                        .exceptionTypes(stringPool.intern(signature.getExceptionTypes()))
+                        .methodName(stringPool.intern(signature.getMethodName()))
+                        .modifiers(stringPool.intern(signature.getModifiers()))
+                        .packageName(stringPool.intern(signature.getPackageName()))
+                        .parameterTypes(stringPool.intern(signature.getParameterTypes()))
+                        .returnType(stringPool.intern(signature.getReturnType()))
+                        .build();
+    }
+
+    /**
+     * @return The signatures found by the code base scan.
+     */
+    public Set<MethodSignature2> getSignatures() {
+        return signatures.keySet();
+    }
+
     boolean isEmpty() {
         return signatures.isEmpty();
     }
@@ -187,14 +219,16 @@ public class CodeBase {
     }
 
     Collection<CodeBaseEntry2> getEntries() {
-        List<CodeBaseEntry2> result = new ArrayList<>();
+        List<CodeBaseEntry2> result = new ArrayList<>(signatures.size());
 
-        for (MethodSignature2 signature : signatures) {
+        // The entries refer to the signatures and their stripped signature strings instead of copying them.
+        for (Map.Entry<MethodSignature2, String> entry : signatures.entrySet()) {
+            MethodSignature2 signature = entry.getKey();
             result.add(
                 CodeBaseEntry2.builder()
                               .methodSignature(signature)
-                              .signature(SignatureUtils.stripModifiers(signature.getAspectjString()))
-                              .visibility(SignatureUtils.getVisibility(signature.getAspectjString()))
+                              .signature(entry.getValue())
+                              .visibility(stringPool.intern(SignatureUtils.getVisibility(signature.getAspectjString())))
                               .build());
         }
         return result;
@@ -26,10 +26,14 @@ import lombok.*;
 import lombok.extern.java.Log;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
+import java.util.Enumeration;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import static javax.xml.bind.DatatypeConverter.printBase64Binary;
 
@@ -64,6 +68,7 @@ public class CodeBaseFingerprint {
         private final AgentConfig config;
 
         private final Set<File> files = new TreeSet<>();
+        private final Set<File> archives = new TreeSet<>();
 
         Builder record(File file) {
             if (files.add(file)) {
@@ -74,6 +79,19 @@ public class CodeBaseFingerprint {
             return this;
         }
 
+        /**
+         * Records a WAR or EAR file by the metadata of its entries, i.e., the name, CRC and size of each entry. A redeploy
+         * of an unchanged archive thus does not change the fingerprint, even if the file is rewritten.
+         */
+        Builder recordArchive(File file) {
+            if (archives.add(file)) {
+                logger.finest("Recorded archive " + file);
+            } else {
+                logger.fine("Ignored duplicate archive " + file);
+            }
+            return this;
+        }
+
         byte[] longToBytes(long l) {
             long value = l;
             byte[] result = new byte[Long.SIZE / Byte.SIZE];
@@ -107,6 +125,30 @@ public class CodeBaseFingerprint {
                     numJarFiles += 1;
                 }
             }
+
+            for (File archive : archives) {
+                md.update(archive.getName().getBytes(utf8));
+                numJarFiles += 1;
+                try (ZipFile zipFile = new ZipFile(archive)) {
+                    Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                    while (entries.hasMoreElements()) {
+                        ZipEntry entry = entries.nextElement();
+                        md.update(entry.getName().getBytes(utf8));
+                        md.update(longToBytes(entry.getCrc()));
+                        md.update(longToBytes(entry.getSize()));
+
+                        if (entry.getName().endsWith(".class")) {
+                            numClassFiles += 1;
+                        } else if (entry.getName().endsWith(".jar") || entry.getName().endsWith(".war")) {
+                            numJarFiles += 1;
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.fine("Cannot read " + archive + ": " + e);
+                    md.update(longToBytes(archive.length()));
+                    md.update(longToBytes(archive.lastModified()));
+                }
+            }
             return new CodeBaseFingerprint(numClassFiles, numJarFiles, printBase64Binary(md.digest()));
         }
     }
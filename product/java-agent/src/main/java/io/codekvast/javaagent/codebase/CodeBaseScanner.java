@@ -22,8 +22,11 @@
 package io.codekvast.javaagent.codebase;
 
 import com.google.common.io.Files;
-import com.google.common.reflect.ClassPath;
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.metrics.AgentMetrics;
 import io.codekvast.javaagent.model.v2.MethodSignature2;
+import io.codekvast.javaagent.util.CpuBudget;
+import io.codekvast.javaagent.util.PrefixTrie;
 import io.codekvast.javaagent.util.SignatureUtils;
 import lombok.Builder;
 import lombok.Value;
@@ -32,23 +35,54 @@ import lombok.extern.java.Log;
 import java.io.*;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.logging.Level;
 
 /**
- * Analyzes a code base and detects methods to be tracked. It uses Guava ClassPath for retrieving method signature data.
+ * Analyzes a code base and detects methods to be tracked. Only the directories and jar files of the code base are searched,
+ * and directories that cannot contain any class within the packages are skipped. Spring Boot executable jars, WAR files and
+ * EAR files are read in place by {@link ArchiveReader}.
+ * <p>
+ * By default, the methods are found by reading the class files, see {@link ClassFileAnalyzer}. With
+ * {@code codeBaseScanner=reflection}, each class is instead loaded and analyzed by reflection, which fills the metaspace
+ * with a copy of the application and fails for classes with missing optional dependencies.
  *
  * @author olle.hallin@crisp.se
  */
 @Log
 public class CodeBaseScanner {
 
+    /**
+     * The number of classes analyzed by one fork/join task.
+     */
+    private static final int BATCH_SIZE = 200;
+
+    private static final ForkJoinPool.ForkJoinWorkerThreadFactory SCANNER_THREAD_FACTORY =
+        new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                };
+                thread.setName("Codekvast scanner " + thread.getPoolIndex());
+                thread.setPriority(thread.getPriority() - 1);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
     private final Level finest = getFinestLevel();
+    private final ClassFileAnalyzer classFileAnalyzer = new ClassFileAnalyzer();
 
     private Level getFinestLevel() {
         String name = System.getenv("CODEKVAST_FINEST_LEVEL");
@@ -65,24 +99,47 @@ public class CodeBaseScanner {
         long startedAt = System.currentTimeMillis();
         logger.log(finest, "Scanning " + codeBase);
 
-        Set<String> scanned = new HashSet<>();
-
-        try (ScanResult scanResult = scanCodeBase(codeBase)) {
-            for (ClassPath.ClassInfo classInfo : scanResult.getClassInfos()) {
-                if (scanned.add(classInfo.getResourceName())) {
-                    try {
-                        Class<?> clazz = classInfo.load();
-                        findConstructors(codeBase, clazz);
-                        findMethods(codeBase, clazz, codeBase.getConfig().getNormalizedPackages());
-                    } catch (Throwable t) {
-                        if (classInfo.getPackageName().contains(".WEB-INF.classes.")) {
-                            logger.log(finest, "Ignoring " + classInfo);
-                        } else {
-                            logger.warning("Cannot analyze " + classInfo + ": " + t);
-                        }
-                    }
+        AgentConfig config = codeBase.getConfig();
+        boolean useReflection = config.getNormalizedCodeBaseScanner().equals(AgentConfig.CODE_BASE_SCANNER_REFLECTION);
+
+        if (useReflection && !codeBase.getArchives().isEmpty()) {
+            logger.warning("Cannot analyze classes in WAR or EAR files by reflection, reading the class files instead");
+            useReflection = false;
+        }
+
+        // Reflection results depend on what the class loader resolves, so they are not cached.
+        ScanCache scanCache = useReflection ? null : ScanCache.open(config);
+
+        List<ClassSource> classSources = new ArrayList<>();
+        List<List<MethodSignature2>> signatures;
+
+        CpuBudgets cpuBudgets = new CpuBudgets(config.getScannerCpuPercent());
+        try (ScanResult scanResult = scanCodeBase(codeBase, scanCache, useReflection, cpuBudgets)) {
+            Set<String> scanned = new HashSet<>();
+            for (ClassSource classSource : scanResult.getClassSources()) {
+                if (scanned.add(classSource.getResourceName())) {
+                    classSources.add(classSource);
                 } else {
-                    logger.log(finest, "Ignoring duplicate " + classInfo);
+                    logger.log(finest, "Ignoring duplicate " + classSource);
+                }
+            }
+
+            signatures = findSignatures(config, classSources, scanCache, useReflection, cpuBudgets);
+            ScannedClasses.instance.update(codeBase.getFingerprint(), scanned);
+        } finally {
+            cpuBudgets.remove();
+            if (cpuBudgets.getPausedNanos() > 0L) {
+                logger.fine(String.format("Paused the scanner threads for %d ms to stay within scannerCpuPercent=%d",
+                                          TimeUnit.NANOSECONDS.toMillis(cpuBudgets.getPausedNanos()),
+                                          config.getScannerCpuPercent()));
+            }
+        }
+
+        // Merged in class path order, so that the result does not depend on the thread scheduling.
+        for (List<MethodSignature2> classSignatures : signatures) {
+            if (classSignatures != null) {
+                for (MethodSignature2 signature : classSignatures) {
+                    codeBase.addSignature(signature);
                 }
             }
         }
@@ -92,36 +149,215 @@ public class CodeBaseScanner {
                                       codeBase.getConfig().getNormalizedPackages()));
         }
 
-        int result = scanned.size();
+        int result = classSources.size();
+        long elapsedMillis = System.currentTimeMillis() - startedAt;
+        AgentMetrics.instance.codeBaseScanned(elapsedMillis, codeBase.size());
 
         logger.info(String.format("Scanned %s with package prefix %s in %d ms, found %d methods in %d classes.",
                                codeBase.getFingerprint(),
                                codeBase.getConfig().getNormalizedPackages(),
-                               System.currentTimeMillis() - startedAt,
+                               elapsedMillis,
                                codeBase.size(),
                                result));
 
         return result;
     }
 
-    private ScanResult scanCodeBase(CodeBase codeBase) {
-        File explodedDir = null;
-        URLClassLoader classLoader;
+    /**
+     * Finds the signatures of the classes, using the scan cache for classes in unchanged jars and directories.
+     *
+     * @return The signatures of each class, in the order of the classes. Null for a class that could not be analyzed.
+     */
+    private List<List<MethodSignature2>> findSignatures(AgentConfig config, List<ClassSource> classSources,
+                                                        ScanCache scanCache, boolean useReflection,
+                                                        CpuBudgets cpuBudgets) {
+        List<List<MethodSignature2>> result = new ArrayList<>();
+        List<ClassSource> misses = new ArrayList<>();
+        List<Integer> missIndexes = new ArrayList<>();
+        for (ClassSource classSource : classSources) {
+            // Classes from nested archives have been analyzed, and cached, while the archives were read.
+            List<MethodSignature2> found = classSource.isAnalyzed() ? classSource.getSignatures()
+                : scanCache == null ? null : scanCache.get(classSource);
+            if (found == null && !classSource.isAnalyzed()) {
+                missIndexes.add(result.size());
+                misses.add(classSource);
+            }
+            result.add(found);
+        }
+
+        List<List<MethodSignature2>> analyzed = analyzeClasses(config, misses, useReflection, cpuBudgets);
+        if (scanCache == null) {
+            for (int i = 0; i < misses.size(); i++) {
+                result.set(missIndexes.get(i), analyzed.get(i));
+            }
+            return result;
+        }
+
+        for (int i = 0; i < misses.size(); i++) {
+            List<MethodSignature2> classSignatures = analyzed.get(i);
+            if (classSignatures != null) {
+                result.set(missIndexes.get(i), classSignatures);
+                scanCache.put(misses.get(i), classSignatures);
+            } else {
+                scanCache.setComplete(misses.get(i).getRoot(), false);
+            }
+        }
+        scanCache.save();
+        return result;
+    }
+
+    /**
+     * Analyzes the classes in a fork/join pool of at most {@code scannerParallelism} threads. Each thread spends at most
+     * {@code scannerCpuPercent} of its time on the analysis.
+     *
+     * @return The signatures of each class, in the order of the classes. Null for a class that could not be analyzed.
+     */
+    private List<List<MethodSignature2>> analyzeClasses(AgentConfig config, List<ClassSource> classSources,
+                                                        boolean useReflection, CpuBudgets cpuBudgets) {
+        return analyzeClasses(classSources, PrefixTrie.of(config.getNormalizedPackages()), useReflection,
+                              Math.min(config.getScannerParallelism(), Runtime.getRuntime().availableProcessors()),
+                              cpuBudgets);
+    }
+
+    List<List<MethodSignature2>> analyzeClasses(List<ClassSource> classSources, PrefixTrie packages,
+                                                boolean useReflection, int parallelism, CpuBudgets cpuBudgets) {
+        AnalyzeTask task = new AnalyzeTask(classSources, 0, classSources.size(), packages, useReflection, cpuBudgets);
+        if (parallelism <= 1 || classSources.size() <= BATCH_SIZE) {
+            return task.analyzeClasses();
+        }
+
+        logger.fine("Scanning " + classSources.size() + " classes in " + parallelism + " threads");
+        ForkJoinPool pool = new ForkJoinPool(parallelism, SCANNER_THREAD_FACTORY, null, false);
+        try {
+            return pool.invoke(task);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private List<List<MethodSignature2>> analyzeClasses(List<ClassSource> classSources, PrefixTrie packages,
+                                                        boolean useReflection, CpuBudget cpuBudget) {
+        List<List<MethodSignature2>> result = new ArrayList<>();
+        for (ClassSource classSource : classSources) {
+            cpuBudget.checkpoint();
+            List<MethodSignature2> classSignatures = new ArrayList<>();
+            try {
+                if (useReflection) {
+                    Class<?> clazz = classSource.loadClass();
+                    findConstructors(classSignatures, clazz);
+                    findMethods(classSignatures, clazz, packages);
+                } else {
+                    classFileAnalyzer.findMethodsAndConstructors(classSignatures, classSource.readClassFile(), packages);
+                }
+            } catch (Throwable t) {
+                classSignatures = null;
+                if (classSource.getPackageName().contains(".WEB-INF.classes.")) {
+                    logger.log(finest, "Ignoring " + classSource);
+                } else {
+                    logger.warning("Cannot analyze " + classSource + ": " + t);
+                }
+            }
+            result.add(classSignatures);
+        }
+        return result;
+    }
+
+    private ScanResult scanCodeBase(CodeBase codeBase, ScanCache scanCache, boolean useReflection,
+                                    final CpuBudgets cpuBudgets) {
+        final AgentConfig config = codeBase.getConfig();
+        PrefixTrie packages = PrefixTrie.of(config.getNormalizedPackages());
+        ArchiveReader archiveReader = new ArchiveReader(packages, scanCache, new ArchiveReader.Analyzer() {
+            @Override
+            public List<List<MethodSignature2>> analyze(List<ClassSource> classSources) {
+                // Nested archives are never analyzed by reflection.
+                return analyzeClasses(config, classSources, false, cpuBudgets);
+            }
+        });
         JarFile springBootExecutableJar = getSpringBootExecutableJar(codeBase);
+        if (springBootExecutableJar != null && !useReflection) {
+            return ScanResult.builder()
+                             .archiveReader(archiveReader)
+                             .classSources(archiveReader.readSpringBootExecutableJar(springBootExecutableJar))
+                             .build();
+        }
+
+        File explodedDir = null;
+        URL[] urls;
         if (springBootExecutableJar != null) {
             explodedDir = Files.createTempDir();
-            URL[] urls = explodeSpringBootExecutableJar(springBootExecutableJar, explodedDir);
-            classLoader = new URLClassLoader(urls, ClassLoader.getSystemClassLoader());
+            urls = explodeSpringBootExecutableJar(springBootExecutableJar, explodedDir);
         } else {
-            classLoader = new URLClassLoader(codeBase.getUrls(), ClassLoader.getSystemClassLoader());
+            urls = codeBase.getUrls();
+        }
+
+        // Only needed when analyzing by reflection
+        ClassLoader classLoader = useReflection ? new URLClassLoader(urls, ClassLoader.getSystemClassLoader()) : null;
+
+        List<ClassSource> classSources = new ArrayList<>();
+        for (URL url : urls) {
+            File file = toFile(url);
+            if (file.isDirectory()) {
+                findClassesInDirectory(file, "", ClassRoot.of(file), classLoader, packages, classSources);
+            } else if (file.isFile()) {
+                classSources.addAll(archiveReader.readJar(file, classLoader));
+            }
+        }
+        for (File archive : codeBase.getArchives()) {
+            if (archive.getName().endsWith(".war")) {
+                classSources.addAll(archiveReader.readWebArchive(archive));
+            } else {
+                classSources.addAll(archiveReader.readEnterpriseArchive(archive));
+            }
         }
 
         return ScanResult.builder()
                          .explodedDir(explodedDir)
-                         .classInfos(getRecognizedClasses(classLoader, codeBase.getConfig().getNormalizedPackages()))
+                         .archiveReader(archiveReader)
+                         .classSources(classSources)
                          .build();
     }
 
+    private static File toFile(URL url) {
+        try {
+            return new File(url.toURI());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            // E.g. an unencoded space in the path
+            return new File(url.getPath());
+        }
+    }
+
+    /**
+     * Finds the classes in a class directory. Directories that cannot contain any class within the packages are not
+     * visited.
+     *
+     * @param dir         The directory to search.
+     * @param packageName The package name of dir, empty for the root.
+     */
+    private void findClassesInDirectory(File dir, String packageName, ClassRoot root, ClassLoader classLoader,
+                                        PrefixTrie packages, List<ClassSource> result) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+
+        boolean included = packages.matches(packageName);
+        String resourcePrefix = packageName.isEmpty() ? "" : packageName.replace('.', '/') + "/";
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                String subPackageName = packageName.isEmpty() ? name : packageName + "." + name;
+                if (packages.mayMatchStringsStartingWith(subPackageName)) {
+                    findClassesInDirectory(file, subPackageName, root, classLoader, packages, result);
+                } else {
+                    logger.log(finest, "Pruned " + file);
+                }
+            } else if (included && name.endsWith(".class")) {
+                result.add(ClassSource.inDirectory(resourcePrefix + name, file, root, classLoader));
+            }
+        }
+    }
+
     private JarFile getSpringBootExecutableJar(CodeBase codeBase) {
         if (codeBase.getUrls().length != 1) {
             return null;
@@ -134,6 +370,7 @@ public class CodeBaseScanner {
             if (mainClass != null && mainClass.contains("org.springframework.boot.loader.")) {
                 return jarFile;
             }
+            jarFile.close();
         } catch (IOException e) {
             logger.log(finest, "Cannot analyze " + url);
         }
@@ -203,31 +440,7 @@ public class CodeBaseScanner {
         }
     }
 
-    private Set<ClassPath.ClassInfo> getRecognizedClasses(ClassLoader classLoader, List<String> packages) {
-        Set<ClassPath.ClassInfo> result = new HashSet<>();
-        try {
-            ClassPath classPath = ClassPath.from(classLoader);
-            for (ClassPath.ClassInfo classInfo : classPath.getAllClasses()) {
-                boolean included = false;
-                String packageName = classInfo.getPackageName();
-                for (String aPackage : packages) {
-                    if (packageName.startsWith(aPackage)) {
-                        result.add(classInfo);
-                        logger.log(finest, "Included " + classInfo.getName());
-                        included = true;
-                    }
-                }
-                if (!included) {
-                    logger.log(finest, "Ignored " + classInfo.getName());
-                }
-            }
-        } catch (IOException e) {
-            logger.severe("Cannot create ClassPath: " + e);
-        }
-        return result;
-    }
-
-    void findConstructors(CodeBase codeBase, Class<?> clazz) {
+    void findConstructors(Collection<MethodSignature2> result, Class<?> clazz) {
         if (clazz.isInterface()) {
             logger.log(finest, "Ignoring interface " + clazz);
             return;
@@ -239,18 +452,20 @@ public class CodeBaseScanner {
 
             for (Constructor constructor : declaredConstructors) {
                 MethodSignature2 thisSignature = SignatureUtils.makeConstructorSignature(clazz, constructor);
-                codeBase.addSignature(thisSignature);
+                if (thisSignature != null) {
+                    result.add(thisSignature);
+                }
             }
 
             for (Class<?> innerClass : clazz.getDeclaredClasses()) {
-                findConstructors(codeBase, innerClass);
+                findConstructors(result, innerClass);
             }
         } catch (NoClassDefFoundError e) {
             logger.warning(String.format("Cannot analyze %s: %s", clazz, e.toString()));
         }
     }
 
-    void findMethods(CodeBase codeBase, Class<?> clazz, List<String> packages) {
+    void findMethods(Collection<MethodSignature2> result, Class<?> clazz, PrefixTrie packages) {
         if (clazz.isInterface()) {
             logger.log(finest, "Ignoring interface " + clazz);
             return;
@@ -264,11 +479,9 @@ public class CodeBaseScanner {
                 MethodSignature2 signature = SignatureUtils.makeMethodSignature(clazz, method);
 
                 String declaringPackage = method.getDeclaringClass().getPackage().getName();
-                for (String pkg : packages) {
-                    if (declaringPackage.startsWith(pkg)) {
-                        codeBase.addSignature(signature);
-                        ignored = false;
-                    }
+                if (signature != null && packages.matches(declaringPackage)) {
+                    result.add(signature);
+                    ignored = false;
                 }
                 if (ignored) {
                     logger.log(finest, "Ignored " + signature);
@@ -276,23 +489,103 @@ public class CodeBaseScanner {
             }
 
             for (Class<?> innerClass : clazz.getDeclaredClasses()) {
-                findMethods(codeBase, innerClass, packages);
+                findMethods(result, innerClass, packages);
             }
         } catch (NoClassDefFoundError e) {
             logger.warning(String.format("Cannot analyze %s: %s", clazz, e.toString()));
         }
     }
 
+    /**
+     * Analyzes a range of classes, splitting it in halves until it is small enough. The results of the halves are
+     * concatenated in order.
+     */
+    private class AnalyzeTask extends RecursiveTask<List<List<MethodSignature2>>> {
+        private final List<ClassSource> classSources;
+        private final int from;
+        private final int to;
+        private final PrefixTrie packages;
+        private final boolean useReflection;
+        private final CpuBudgets cpuBudgets;
+
+        private AnalyzeTask(List<ClassSource> classSources, int from, int to, PrefixTrie packages,
+                            boolean useReflection, CpuBudgets cpuBudgets) {
+            this.classSources = classSources;
+            this.from = from;
+            this.to = to;
+            this.packages = packages;
+            this.useReflection = useReflection;
+            this.cpuBudgets = cpuBudgets;
+        }
+
+        private List<List<MethodSignature2>> analyzeClasses() {
+            return CodeBaseScanner.this.analyzeClasses(classSources.subList(from, to), packages, useReflection,
+                                                       cpuBudgets.get());
+        }
+
+        @Override
+        protected List<List<MethodSignature2>> compute() {
+            if (to - from <= BATCH_SIZE) {
+                return analyzeClasses();
+            }
+
+            int middle = (from + to) >>> 1;
+            AnalyzeTask left = new AnalyzeTask(classSources, from, middle, packages, useReflection, cpuBudgets);
+            left.fork();
+            List<List<MethodSignature2>> rightResult =
+                new AnalyzeTask(classSources, middle, to, packages, useReflection, cpuBudgets).compute();
+
+            List<List<MethodSignature2>> result = left.join();
+            result.addAll(rightResult);
+            return result;
+        }
+    }
+
+    /**
+     * The CPU budgets of the threads of one scan. A thread keeps its budget for the whole scan, since a batch of classes
+     * often is analyzed in less than a slice.
+     */
+    static class CpuBudgets extends ThreadLocal<CpuBudget> {
+        private final int percent;
+        private final List<CpuBudget> budgets = new CopyOnWriteArrayList<>();
+
+        CpuBudgets(int percent) {
+            this.percent = percent;
+        }
+
+        @Override
+        protected CpuBudget initialValue() {
+            CpuBudget budget = new CpuBudget(percent);
+            budgets.add(budget);
+            return budget;
+        }
+
+        /**
+         * @return The total time that the threads have been told to sleep.
+         */
+        long getPausedNanos() {
+            long result = 0L;
+            for (CpuBudget budget : budgets) {
+                result += budget.getPausedNanos();
+            }
+            return result;
+        }
+    }
+
     @Value
     @Builder
     static class ScanResult implements AutoCloseable {
-        private final Set<ClassPath.ClassInfo> classInfos;
+        private final List<ClassSource> classSources;
         private final File explodedDir;
+        private final ArchiveReader archiveReader;
 
         @Override
         public void close() {
-            classInfos.clear();
+            classSources.clear();
             delete(explodedDir);
+            if (archiveReader != null) {
+                archiveReader.close();
+            }
         }
 
         private void delete(File file) {
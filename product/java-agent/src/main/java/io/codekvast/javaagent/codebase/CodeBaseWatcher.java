@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.codebase;
+
+import io.codekvast.javaagent.config.AgentConfig;
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Detects changes in a code base by file system notifications, so that the code base need not be fingerprinted at each
+ * check.
+ * <p>
+ * All directories in the code base are registered with a {@link WatchService}. A jar, WAR or EAR file in the code base
+ * is watched by registering its parent directory, as is a directory in the code base that does not exist yet. The tree
+ * of such a directory is registered when it is created. Nothing is done in between the checks, since the file system
+ * queues the events until they are polled by {@link #pollChanges()}.
+ * <p>
+ * The watcher falls back to polling, i.e., reports a possible change at each check, if the file system does not deliver
+ * notifications, if the watches cannot be registered (e.g. when the inotify limit is reached), if events have been lost,
+ * or if a watched root is deleted.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@Log
+public class CodeBaseWatcher {
+
+    private final Map<WatchKey, WatchedDirectory> watchedDirectories = new HashMap<>();
+    private final Set<Path> roots = new HashSet<>();
+    private WatchService watchService;
+
+    private CodeBaseWatcher(AgentConfig config) {
+        if (!config.getNormalizedCodeBaseChangeDetection().equals(AgentConfig.CODE_BASE_CHANGE_DETECTION_WATCH)) {
+            return;
+        }
+
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            if (watchService.getClass().getName().endsWith("PollingWatchService")) {
+                // It stats every file in the watched directories, which is what the watcher should avoid.
+                fallBackToPolling("the file system does not support notifications");
+                return;
+            }
+
+            for (File file : config.getCodeBaseFiles()) {
+                Path path = file.toPath().toAbsolutePath();
+                if (Files.isDirectory(path)) {
+                    roots.add(path);
+                    registerTree(path);
+                } else {
+                    Path parent = path.getParent();
+                    roots.add(parent);
+                    register(parent, false).fileNames.add(path.getFileName());
+                }
+            }
+            logger.fine(String.format("Watching %d directories in %s", watchedDirectories.size(), config.getCodeBaseFiles()));
+        } catch (IOException | UnsupportedOperationException e) {
+            fallBackToPolling(e.toString());
+        }
+    }
+
+    /**
+     * Creates a code base watcher.
+     *
+     * @param config The agent configuration.
+     * @return A watcher, which polls if {@code codeBaseChangeDetection=poll} or if notifications are not available.
+     */
+    public static CodeBaseWatcher create(AgentConfig config) {
+        return new CodeBaseWatcher(config);
+    }
+
+    /**
+     * @return true iff changes are detected by file system notifications.
+     */
+    public boolean isWatching() {
+        return watchService != null;
+    }
+
+    /**
+     * Checks whether the code base has changed since the previous call. Does not block.
+     *
+     * @return true if the code base may have changed. Always true when polling.
+     */
+    public boolean pollChanges() {
+        if (watchService == null) {
+            return true;
+        }
+
+        boolean changed = false;
+        WatchKey key;
+        while ((key = watchService.poll()) != null) {
+            WatchedDirectory watched = watchedDirectories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    fallBackToPolling("file system events have been lost");
+                    return true;
+                }
+                if (watched != null && isRelevant(watched, event)) {
+                    logger.finest(String.format("Detected %s of %s", event.kind().name(),
+                                                watched.path.resolve((Path) event.context())));
+                    changed = true;
+                }
+            }
+
+            if (watchService == null) {
+                // Failed to register a new directory
+                return true;
+            }
+
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+                if (watched != null && roots.contains(watched.path)) {
+                    fallBackToPolling(watched.path + " is no longer accessible");
+                    return true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Stops watching.
+     */
+    public void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            watchService = null;
+        }
+        watchedDirectories.clear();
+    }
+
+    private boolean isRelevant(WatchedDirectory watched, WatchEvent<?> event) {
+        Path name = (Path) event.context();
+        Path child = watched.path.resolve(name);
+        if (!watched.recursive && !watched.fileNames.contains(name)) {
+            return false;
+        }
+
+        if (event.kind() == ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+            if (!watched.recursive) {
+                // A code base directory that did not exist when the watcher was created
+                roots.add(child);
+            }
+            try {
+                registerTree(child);
+            } catch (IOException e) {
+                fallBackToPolling(e.toString());
+            }
+            return true;
+        }
+
+        if (!watched.recursive) {
+            return true;
+        }
+
+        String fileName = name.toString();
+        return fileName.endsWith(".class") || fileName.endsWith(".jar") || fileName.endsWith(".war") ||
+            fileName.endsWith(".ear") || isWatchedDirectory(child);
+    }
+
+    private boolean isWatchedDirectory(Path path) {
+        for (WatchedDirectory watched : watchedDirectories.values()) {
+            if (watched.recursive && watched.path.equals(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void registerTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                register(dir, true);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private WatchedDirectory register(Path dir, boolean recursive) throws IOException {
+        WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        WatchedDirectory result = watchedDirectories.get(key);
+        if (result == null) {
+            result = new WatchedDirectory(dir);
+            watchedDirectories.put(key, result);
+        }
+        result.recursive |= recursive;
+        return result;
+    }
+
+    private void fallBackToPolling(String reason) {
+        logger.info("Cannot watch the code base for changes, since " + reason + ". Falling back to polling.");
+        close();
+    }
+
+    private static class WatchedDirectory {
+        private final Path path;
+        private final Set<Path> fileNames = new HashSet<>();
+        private boolean recursive;
+
+        private WatchedDirectory(Path path) {
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.codebase;
+
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.model.v2.MethodSignature2;
+import io.codekvast.javaagent.util.FileUtils;
+import lombok.extern.java.Log;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+import static javax.xml.bind.DatatypeConverter.printHexBinary;
+
+/**
+ * An on-disk cache of scan results per jar file and class directory, that survives restarts and redeploys.
+ * <p>
+ * An entry holds the signatures of each scanned class in one {@link ClassRoot}. It is keyed by the path, size and last
+ * modified time of the root, a hash of its contents and the packages, exclude packages and method visibility of the
+ * config. A changed jar thus only causes that jar to be scanned again. The content hash of a jar is made from the
+ * name, CRC and size of each entry, which are read from the jar index without inflating anything. The content hash of
+ * a class directory is made from the path, size and last modified time of each class file.
+ * <p>
+ * An entry of a nested jar can be marked as complete, i.e., holding all classes of the jar. The nested jar then need
+ * not be read at all.
+ * <p>
+ * Entries are stored as plain data fields rather than serialized objects, since they are read inside the application
+ * JVM. The cache directory must be owned by the current user. Entries are written to a temporary file which is then
+ * atomically renamed, so concurrently starting JVMs on the same host can share the cache without locking. A corrupt or
+ * vanished entry is treated as a miss. The least recently used entries are evicted when the cache exceeds
+ * {@code scanCacheMaxMegabytes}.
+ * <p>
+ * Not thread-safe. It is only used by the thread that scans the code base.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@Log
+class ScanCache {
+
+    private static final String FORMAT_VERSION = "3";
+    private static final String ENTRY_SUFFIX = ".dat";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final long STALE_TMP_FILE_MILLIS = 60 * 60 * 1000L;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final long maxBytes;
+    private final String configKey;
+    private final Map<ClassRoot, Root> roots = new HashMap<>();
+
+    private int hits;
+    private int misses;
+
+    private ScanCache(File directory, long maxBytes, String configKey) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.configKey = configKey;
+    }
+
+    /**
+     * Opens the scan cache.
+     *
+     * @param config The agent config.
+     * @return A scan cache, or null if caching is disabled or the cache directory cannot be created or is not private.
+     */
+    static ScanCache open(AgentConfig config) {
+        File directory = config.getScanCacheDirectory();
+        if (directory == null) {
+            return null;
+        }
+        if (!FileUtils.mkdirsPrivate(directory)) {
+            logger.warning("Not using the scan cache " + directory);
+            return null;
+        }
+
+        String configKey = FORMAT_VERSION + "|" + config.getNormalizedPackages() + "|" +
+            config.getNormalizedExcludePackages() + "|" + config.getMethodAnalyzer();
+        return new ScanCache(directory, config.getScanCacheMaxMegabytes() * 1024L * 1024L, configKey);
+    }
+
+    /**
+     * Gets the cached signatures of a class.
+     *
+     * @param classSource The class.
+     * @return The signatures of the class, or null if not cached.
+     */
+    List<MethodSignature2> get(ClassSource classSource) {
+        Root root = getRoot(classSource.getRoot());
+        List<MethodSignature2> result = root == null ? null : root.entry.signatures.get(classSource.getResourceName());
+        if (result == null) {
+            misses += 1;
+        } else {
+            hits += 1;
+        }
+        return result;
+    }
+
+    /**
+     * Adds the signatures of a class to the cache entry of its root. Nothing is written until {@link #save()}.
+     *
+     * @param classSource The class.
+     * @param signatures  The signatures of the class.
+     */
+    void put(ClassSource classSource, List<MethodSignature2> signatures) {
+        Root root = getRoot(classSource.getRoot());
+        if (root != null) {
+            root.entry.signatures.put(classSource.getResourceName(), new ArrayList<>(signatures));
+            root.dirty = true;
+        }
+    }
+
+    /**
+     * Gets the names of the classes of a root, if they are all cached.
+     *
+     * @param classRoot The root.
+     * @return The resource names of all classes in the root, or null unless the entry is complete.
+     */
+    Set<String> getCompleteResourceNames(ClassRoot classRoot) {
+        Root root = getRoot(classRoot);
+        return root != null && root.entry.complete ? root.entry.signatures.keySet() : null;
+    }
+
+    /**
+     * Marks the entry of a root as holding all of its classes, or not.
+     */
+    void setComplete(ClassRoot classRoot, boolean complete) {
+        Root root = getRoot(classRoot);
+        if (root != null && root.entry.complete != complete) {
+            root.entry.complete = complete;
+            root.dirty = true;
+        }
+    }
+
+    /**
+     * Writes the modified entries and evicts old entries if the cache is too large.
+     */
+    void save() {
+        for (Root root : roots.values()) {
+            if (root.dirty) {
+                write(root);
+            }
+        }
+        evict();
+        logger.fine(String.format("Scan cache hits: %d, misses: %d", hits, misses));
+    }
+
+    private Root getRoot(ClassRoot classRoot) {
+        if (classRoot == null) {
+            return null;
+        }
+
+        Root root = roots.get(classRoot);
+        if (root == null) {
+            String key = keyOf(classRoot);
+            if (key == null) {
+                return null;
+            }
+            root = new Root(key, read(key, classRoot));
+            roots.put(classRoot, root);
+        }
+        return root;
+    }
+
+    private String keyOf(ClassRoot classRoot) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(configKey.getBytes(UTF_8));
+            classRoot.digest(md);
+            return printHexBinary(md.digest()).toLowerCase();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            logger.fine("Cannot compute the scan cache key of " + classRoot + ": " + e);
+            return null;
+        }
+    }
+
+    private Entry read(String key, ClassRoot classRoot) {
+        File file = new File(directory, key + ENTRY_SUFFIX);
+        if (file.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                Entry entry = Entry.readFrom(in);
+                if (entry.rootId.equals(classRoot.getId())) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.setLastModified(System.currentTimeMillis());
+                    return entry;
+                }
+            } catch (Exception e) {
+                logger.fine("Ignoring unreadable scan cache entry " + file + ": " + e);
+            }
+        }
+        return new Entry(classRoot.getId());
+    }
+
+    private void write(Root root) {
+        File file = new File(directory, root.key + ENTRY_SUFFIX);
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile(root.key, TMP_SUFFIX, directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                root.entry.writeTo(out);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+            root.dirty = false;
+        } catch (IOException e) {
+            logger.fine("Cannot write " + file + ": " + e);
+            FileUtils.safeDelete(tmpFile);
+        }
+    }
+
+    private void evict() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long totalBytes = 0L;
+        List<File> entries = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(TMP_SUFFIX) && file.lastModified() < now - STALE_TMP_FILE_MILLIS) {
+                // Left by a JVM that died while writing
+                FileUtils.safeDelete(file);
+            } else if (file.getName().endsWith(ENTRY_SUFFIX)) {
+                entries.add(file);
+                totalBytes += file.length();
+            }
+        }
+
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                return Long.compare(f1.lastModified(), f2.lastModified());
+            }
+        });
+
+        for (Iterator<File> iterator = entries.iterator(); iterator.hasNext() && totalBytes > maxBytes; ) {
+            File file = iterator.next();
+            long length = file.length();
+            logger.finest("Evicting " + file + " from the scan cache");
+            FileUtils.safeDelete(file);
+            totalBytes -= length;
+        }
+    }
+
+    private static class Root {
+        private final String key;
+        private final Entry entry;
+        private boolean dirty;
+
+        private Root(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+    }
+
+    private static class Entry {
+        private final String rootId;
+        private final LinkedHashMap<String, ArrayList<MethodSignature2>> signatures = new LinkedHashMap<>();
+        private boolean complete;
+
+        private Entry(String rootId) {
+            this.rootId = rootId;
+        }
+
+        private void writeTo(DataOutputStream out) throws IOException {
+            out.writeUTF(rootId);
+            out.writeBoolean(complete);
+            out.writeInt(signatures.size());
+            for (Map.Entry<String, ArrayList<MethodSignature2>> entry : signatures.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (MethodSignature2 signature : entry.getValue()) {
+                    writeSignature(out, signature);
+                }
+            }
+        }
+
+        private static Entry readFrom(DataInputStream in) throws IOException {
+            Entry entry = new Entry(in.readUTF());
+            entry.complete = in.readBoolean();
+            int numClasses = in.readInt();
+            for (int i = 0; i < numClasses; i++) {
+                String resourceName = in.readUTF();
+                int numSignatures = in.readInt();
+                ArrayList<MethodSignature2> signatures = new ArrayList<>();
+                for (int j = 0; j < numSignatures; j++) {
+                    signatures.add(readSignature(in));
+                }
+                entry.signatures.put(resourceName, signatures);
+            }
+            return entry;
+        }
+
+        private static void writeSignature(DataOutputStream out, MethodSignature2 signature) throws IOException {
+            writeString(out, signature.getAspectjString());
+            writeBoolean(out, signature.getBridge());
+            writeString(out, signature.getDeclaringType());
+            writeString(out, signature.getExceptionTypes());
+            writeString(out, signature.getMethodName());
+            writeString(out, signature.getModifiers());
+            writeString(out, signature.getPackageName());
+            writeString(out, signature.getParameterTypes());
+            writeString(out, signature.getReturnType());
+            writeBoolean(out, signature.getSynthetic());
+        }
+
+        private static MethodSignature2 readSignature(DataInputStream in) throws IOException {
+            return MethodSignature2.builder()
+                                   .aspectjString(readString(in))
+                                   .bridge(readBoolean(in))
+                                   .declaringType(readString(in))
+                                   .exceptionTypes(readString(in))
+                                   .methodName(readString(in))
+                                   .modifiers(readString(in))
+                                   .packageName(readString(in))
+                                   .parameterTypes(readString(in))
+                                   .returnType(readString(in))
+                                   .synthetic(readBoolean(in))
+                                   .build();
+        }
+
+        private static void writeString(DataOutputStream out, String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+
+        // null, false and true are written as 0, 1 and 2
+        private static void writeBoolean(DataOutputStream out, Boolean value) throws IOException {
+            out.writeByte(value == null ? 0 : value ? 2 : 1);
+        }
+
+        private static Boolean readBoolean(DataInputStream in) throws IOException {
+            byte value = in.readByte();
+            switch (value) {
+            case 0:
+                return null;
+            case 1:
+                return Boolean.FALSE;
+            case 2:
+                return Boolean.TRUE;
+            default:
+                throw new IOException("Invalid boolean " + value);
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.codebase;
+
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.util.FileUtils;
+import lombok.extern.java.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The names of the classes found by the last code base scan. When {@code weavingScope} is {@code codebase}, only these
+ * classes are instrumented, so that e.g. generated proxies and classes in other jars within the same packages are left
+ * alone.
+ * <p>
+ * Until the first scan has completed, all classes within the packages are instrumented. The names are therefore also
+ * saved in the scan cache directory together with the fingerprint of the code base. If the code base is unchanged at the
+ * next start, they are used as soon as the first code base check has fingerprinted the code base, which is done by the
+ * scheduler thread and not in premain. The file is a plain list of names, and it is only used if the directory is owned by
+ * the current user.
+ * <p>
+ * {@link #includes(String)} is invoked for each loaded class, and is a single hash lookup.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@Log
+public class ScannedClasses {
+
+    private static final String FILE_SUFFIX = ".classes";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    public static ScannedClasses instance = new ScannedClasses(false, null);
+
+    private final boolean enabled;
+
+    // Null if the scan cache is disabled
+    private final File file;
+
+    // Null until known, i.e., all classes are included.
+    private volatile Set<String> classNames;
+
+    private ScannedClasses(boolean enabled, File file) {
+        this.enabled = enabled;
+        this.file = file;
+    }
+
+    /**
+     * Initializes the instance. The code base is not fingerprinted here, see {@link #loadIfUnchanged(CodeBaseFingerprint)}.
+     *
+     * @param config The agent config. May be null, in which case all classes are included.
+     */
+    public static void initialize(AgentConfig config) {
+        if (config == null || !config.getNormalizedWeavingScope().equals(AgentConfig.WEAVING_SCOPE_CODE_BASE)) {
+            instance = new ScannedClasses(false, null);
+            return;
+        }
+
+        File file = config.getScanCacheFile("classes-", FILE_SUFFIX);
+        if (file != null && !FileUtils.mkdirsPrivate(file.getParentFile())) {
+            file = null;
+        }
+
+        instance = new ScannedClasses(true, file);
+    }
+
+    /**
+     * @return Whether the classes are limited to those found by the code base scan.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param internalClassName A class name in internal form, e.g. "com/acme/Foo$Bar".
+     * @return False if the class is known to be outside the code base.
+     */
+    public boolean includes(String internalClassName) {
+        Set<String> names = classNames;
+        return names == null || names.contains(internalClassName);
+    }
+
+    /**
+     * Replaces the names with those of a new scan, and saves them for the next start.
+     *
+     * @param fingerprint   The fingerprint of the scanned code base.
+     * @param resourceNames The resource names of the scanned classes, e.g. "com/acme/Foo$Bar.class".
+     */
+    void update(CodeBaseFingerprint fingerprint, Collection<String> resourceNames) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        Set<String> names = new HashSet<>();
+        for (String resourceName : resourceNames) {
+            names.add(resourceName.substring(0, resourceName.length() - ".class".length()));
+        }
+        classNames = names;
+        save(fingerprint, names);
+    }
+
+    /**
+     * Loads the names saved by a scan of an identical code base, unless the names already are known.
+     *
+     * @param fingerprint The fingerprint of the current code base, as computed by the first code base check.
+     */
+    public void loadIfUnchanged(CodeBaseFingerprint fingerprint) {
+        if (!isEnabled() || classNames != null || file == null || !file.isFile()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (fingerprint.getSha256().equals(in.readUTF())) {
+                int count = in.readInt();
+                Set<String> names = new HashSet<>();
+                for (int i = 0; i < count; i++) {
+                    names.add(in.readUTF());
+                }
+                classNames = names;
+                logger.fine("Limiting the weaving to " + names.size() + " classes found by the last scan");
+            } else {
+                logger.fine("The code base has changed since " + file + " was written");
+            }
+        } catch (IOException e) {
+            logger.fine("Cannot read " + file + ": " + e);
+        }
+    }
+
+    private void save(CodeBaseFingerprint fingerprint, Set<String> names) {
+        if (file == null) {
+            return;
+        }
+
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile(file.getName(), TMP_SUFFIX, file.getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeUTF(fingerprint.getSha256());
+                out.writeInt(names.size());
+                for (String name : names) {
+                    out.writeUTF(name);
+                }
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.fine("Cannot write " + file + ": " + e);
+            FileUtils.safeDelete(tmpFile);
+        }
+    }
+}
@@ -30,12 +30,16 @@ import okhttp3.OkHttpClient;
 
 import java.io.File;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import static io.codekvast.javaagent.model.Endpoints.Agent.*;
+import static javax.xml.bind.DatatypeConverter.printHexBinary;
 
 /**
  * Encapsulates the configuration that is used by the Codekvast agent.
@@ -54,6 +58,26 @@ public class AgentConfig implements Serializable {
     public static final String INVOCATIONS_BASENAME = "invocations.dat";
     public static final String JVM_BASENAME = "jvm.dat";
 
+    public static final String INVOCATION_REGISTRY_MODE_SIGNATURES = "signatures";
+    public static final String INVOCATION_REGISTRY_MODE_INDEXED = "indexed";
+    public static final String INVOCATION_REGISTRY_MODE_EPOCH = "epoch";
+    public static final String INVOCATION_REGISTRY_MODE_COUNTING = "counting";
+
+    public static final String INSTRUMENTATION_ENGINE_ASPECTJ = "aspectj";
+    public static final String INSTRUMENTATION_ENGINE_PROBE = "probe";
+
+    public static final String CODE_BASE_SCANNER_CLASSFILE = "classfile";
+    public static final String CODE_BASE_SCANNER_REFLECTION = "reflection";
+
+    public static final String CODE_BASE_CHANGE_DETECTION_WATCH = "watch";
+    public static final String CODE_BASE_CHANGE_DETECTION_POLL = "poll";
+
+    public static final String WEAVING_SCOPE_PACKAGES = "packages";
+    public static final String WEAVING_SCOPE_CODE_BASE = "codebase";
+
+    public static final String HTTP_UPLOAD_FORMAT_V2 = "v2";
+    public static final String HTTP_UPLOAD_FORMAT_V3 = "v3";
+
     @NonNull
     private String licenseKey;
 
@@ -65,9 +89,27 @@ public class AgentConfig implements Serializable {
 
     private boolean bridgeAspectjMessagesToJUL;
 
+    private boolean adviceTiming;
+
     @NonNull
     private String methodVisibility;
 
+    private String invocationRegistryMode;
+
+    private int invocationRegistryCapacity;
+
+    private String instrumentationEngine;
+
+    private String codeBaseScanner;
+
+    private String codeBaseChangeDetection;
+
+    private boolean codeBaseDeltaPublishing;
+
+    private boolean methodIdPublishing;
+
+    private String weavingScope;
+
     @NonNull
     private String appName;
 
@@ -89,6 +131,9 @@ public class AgentConfig implements Serializable {
     @NonNull
     private String tags;
 
+    private boolean httpUploadStreaming;
+    private boolean httpUploadCompression;
+    private String httpUploadFormat;
     private int httpConnectTimeoutSeconds;
     private int httpReadTimeoutSeconds;
     private int httpWriteTimeoutSeconds;
@@ -96,6 +141,16 @@ public class AgentConfig implements Serializable {
     private int httpProxyPort;
     private int schedulerInitialDelayMillis;
     private int schedulerIntervalMillis;
+    private int retransformBatchSize;
+    private String classCacheDir;
+    private int classCacheMaxMegabytes;
+    private int scannerCpuPercent;
+    private int scannerParallelism;
+    private String scanCacheDir;
+    private int scanCacheMaxMegabytes;
+    private String spoolDir;
+    private int spoolMaxMegabytes;
+    private int spoolReplayIntervalSeconds;
 
     @NonNull
     private File aspectFile;
@@ -112,10 +167,139 @@ public class AgentConfig implements Serializable {
         return ConfigUtils.getNormalizedPackages(excludePackages);
     }
 
+    /**
+     * @return The directory in which transformed classes are cached between JVM runs, or null if caching is disabled.
+     */
+    public File getClassCacheDirectory() {
+        return classCacheDir == null || classCacheDir.trim().isEmpty() ? null : new File(classCacheDir.trim());
+    }
+
+    /**
+     * @return The directory in which code base scan results are cached between JVM runs, or null if caching is disabled.
+     */
+    public File getScanCacheDirectory() {
+        return scanCacheDir == null || scanCacheDir.trim().isEmpty() ? null : new File(scanCacheDir.trim());
+    }
+
+    /**
+     * Gets a file in the scan cache directory that belongs to this code base, since JVMs of different apps may share the
+     * directory.
+     *
+     * @param prefix The prefix of the file name.
+     * @param suffix The suffix of the file name.
+     * @return The file, or null if the scan cache is disabled.
+     */
+    public File getScanCacheFile(String prefix, String suffix) {
+        File directory = getScanCacheDirectory();
+        return directory == null ? null : new File(directory, prefix + shortHashOf(getCodeBaseFiles().toString()) + suffix);
+    }
+
+    /**
+     * Gets the directory in which invocation data that could not be published is spooled until it can.
+     * <p>
+     * JVMs of different apps may share {@code spoolDir}, so each app has a subdirectory of its own.
+     *
+     * @return The directory, or null if spooling is disabled.
+     */
+    public File getSpoolDirectory() {
+        if (spoolDir == null || spoolDir.trim().isEmpty() || spoolMaxMegabytes <= 0) {
+            return null;
+        }
+        return new File(spoolDir.trim(), shortHashOf(licenseKey + "|" + appName + "|" + environment + "|" + getCodeBaseFiles()));
+    }
+
+    private static String shortHashOf(String s) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return printHexBinary(md.digest(s.getBytes("UTF-8"))).substring(0, 16);
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public List<File> getCodeBaseFiles() {
         return ConfigUtils.getCommaSeparatedFileValues(codeBase, false);
     }
 
+    public String getNormalizedInvocationRegistryMode() {
+        String mode = invocationRegistryMode == null ? "" : invocationRegistryMode.trim().toLowerCase();
+        if (mode.equals(INVOCATION_REGISTRY_MODE_INDEXED) || mode.equals(INVOCATION_REGISTRY_MODE_EPOCH) ||
+            mode.equals(INVOCATION_REGISTRY_MODE_COUNTING)) {
+            return mode;
+        }
+        if (!mode.isEmpty() && !mode.equals(INVOCATION_REGISTRY_MODE_SIGNATURES)) {
+            //noinspection UseOfSystemOutOrSystemErr
+            System.err.println("Unrecognized value for invocationRegistryMode: \"" + mode + "\", assuming \"" +
+                                   INVOCATION_REGISTRY_MODE_SIGNATURES + "\"");
+        }
+        return INVOCATION_REGISTRY_MODE_SIGNATURES;
+    }
+
+    public String getNormalizedInstrumentationEngine() {
+        String engine = instrumentationEngine == null ? "" : instrumentationEngine.trim().toLowerCase();
+        if (engine.equals(INSTRUMENTATION_ENGINE_PROBE)) {
+            return engine;
+        }
+        if (!engine.isEmpty() && !engine.equals(INSTRUMENTATION_ENGINE_ASPECTJ)) {
+            //noinspection UseOfSystemOutOrSystemErr
+            System.err.println("Unrecognized value for instrumentationEngine: \"" + engine + "\", assuming \"" +
+                                   INSTRUMENTATION_ENGINE_ASPECTJ + "\"");
+        }
+        return INSTRUMENTATION_ENGINE_ASPECTJ;
+    }
+
+    public String getNormalizedCodeBaseScanner() {
+        String scanner = codeBaseScanner == null ? "" : codeBaseScanner.trim().toLowerCase();
+        if (scanner.equals(CODE_BASE_SCANNER_REFLECTION)) {
+            return scanner;
+        }
+        if (!scanner.isEmpty() && !scanner.equals(CODE_BASE_SCANNER_CLASSFILE)) {
+            //noinspection UseOfSystemOutOrSystemErr
+            System.err.println("Unrecognized value for codeBaseScanner: \"" + scanner + "\", assuming \"" +
+                                   CODE_BASE_SCANNER_CLASSFILE + "\"");
+        }
+        return CODE_BASE_SCANNER_CLASSFILE;
+    }
+
+    public String getNormalizedCodeBaseChangeDetection() {
+        String detection = codeBaseChangeDetection == null ? "" : codeBaseChangeDetection.trim().toLowerCase();
+        if (detection.equals(CODE_BASE_CHANGE_DETECTION_POLL)) {
+            return detection;
+        }
+        if (!detection.isEmpty() && !detection.equals(CODE_BASE_CHANGE_DETECTION_WATCH)) {
+            //noinspection UseOfSystemOutOrSystemErr
+            System.err.println("Unrecognized value for codeBaseChangeDetection: \"" + detection + "\", assuming \"" +
+                                   CODE_BASE_CHANGE_DETECTION_WATCH + "\"");
+        }
+        return CODE_BASE_CHANGE_DETECTION_WATCH;
+    }
+
+    public String getNormalizedWeavingScope() {
+        String scope = weavingScope == null ? "" : weavingScope.trim().toLowerCase();
+        if (scope.equals(WEAVING_SCOPE_CODE_BASE)) {
+            return scope;
+        }
+        if (!scope.isEmpty() && !scope.equals(WEAVING_SCOPE_PACKAGES)) {
+            //noinspection UseOfSystemOutOrSystemErr
+            System.err.println("Unrecognized value for weavingScope: \"" + scope + "\", assuming \"" +
+                                   WEAVING_SCOPE_PACKAGES + "\"");
+        }
+        return WEAVING_SCOPE_PACKAGES;
+    }
+
+    public String getNormalizedHttpUploadFormat() {
+        String format = httpUploadFormat == null ? "" : httpUploadFormat.trim().toLowerCase();
+        if (format.equals(HTTP_UPLOAD_FORMAT_V3)) {
+            return format;
+        }
+        if (!format.isEmpty() && !format.equals(HTTP_UPLOAD_FORMAT_V2)) {
+            //noinspection UseOfSystemOutOrSystemErr
+            System.err.println("Unrecognized value for httpUploadFormat: \"" + format + "\", assuming \"" +
+                                   HTTP_UPLOAD_FORMAT_V2 + "\"");
+        }
+        return HTTP_UPLOAD_FORMAT_V2;
+    }
+
     public MethodAnalyzer getMethodAnalyzer() {
         return new MethodAnalyzer(this.methodVisibility);
     }
@@ -128,6 +312,14 @@ public class AgentConfig implements Serializable {
         return String.format("%s%s", serverUrl, V2_UPLOAD_CODEBASE);
     }
 
+    public String getCodeBaseDeltaUploadEndpoint() {
+        return String.format("%s%s", serverUrl, V3_UPLOAD_CODEBASE_DELTA);
+    }
+
+    public String getMethodIdsEndpoint() {
+        return String.format("%s%s", serverUrl, V3_GET_METHOD_IDS);
+    }
+
     public String getInvocationDataUploadEndpoint() {
         return String.format("%s%s", serverUrl, V2_UPLOAD_INVOCATION_DATA);
     }
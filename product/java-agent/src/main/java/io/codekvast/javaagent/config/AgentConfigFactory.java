@@ -34,18 +34,42 @@ import java.util.Properties;
  */
 public class AgentConfigFactory {
 
+    private static final boolean DEFAULT_ADVICE_TIMING = false;
     private static final boolean DEFAULT_BRIDGE_ASPECTJ_LOGGING_TO_JUL = false;
     private static final String DEFAULT_ASPECTJ_OPTIONS = "";
     private static final String DEFAULT_ENVIRONMENT = "<default>";
+    private static final String DEFAULT_CODE_BASE_CHANGE_DETECTION = AgentConfig.CODE_BASE_CHANGE_DETECTION_WATCH;
+    private static final boolean DEFAULT_CODE_BASE_DELTA_PUBLISHING = true;
+    private static final String DEFAULT_CODE_BASE_SCANNER = AgentConfig.CODE_BASE_SCANNER_CLASSFILE;
+    private static final String DEFAULT_INSTRUMENTATION_ENGINE = AgentConfig.INSTRUMENTATION_ENGINE_ASPECTJ;
+    private static final int DEFAULT_INVOCATION_REGISTRY_CAPACITY = 100_000;
+    private static final String DEFAULT_INVOCATION_REGISTRY_MODE = AgentConfig.INVOCATION_REGISTRY_MODE_SIGNATURES;
+    private static final boolean DEFAULT_METHOD_ID_PUBLISHING = true;
     private static final String DEFAULT_METHOD_VISIBILITY = SignatureUtils.PROTECTED;
+    private static final String DEFAULT_WEAVING_SCOPE = AgentConfig.WEAVING_SCOPE_PACKAGES;
     private static final String DEFAULT_SERVER_URL = "http://localhost:8081";
     private static final String DEFAULT_HTTP_PROXY_HOST = null;
     private static final int DEFAULT_HTTP_PROXY_PORT = 3128;
+    private static final boolean DEFAULT_HTTP_UPLOAD_STREAMING = true;
+    private static final boolean DEFAULT_HTTP_UPLOAD_COMPRESSION = false;
+    private static final String DEFAULT_HTTP_UPLOAD_FORMAT = AgentConfig.HTTP_UPLOAD_FORMAT_V2;
     private static final int DEFAULT_HTTP_CONNECT_TIMEOUT_SECONDS = 10;
     private static final int DEFAULT_HTTP_READ_TIMEOUT_SECONDS = 10;
     private static final int DEFAULT_HTTP_WRITE_TIMEOUT_SECONDS = 3;
     private static final int DEFAULT_SCHEDULER_INITIAL_DELAY_MILLIS = 10_000;
     private static final int DEFAULT_SCHEDULER_INTERVAL_MILLIS = 10_000;
+    private static final int DEFAULT_RETRANSFORM_BATCH_SIZE = 100;
+    private static final String DEFAULT_CLASS_CACHE_DIR = null;
+    private static final int DEFAULT_CLASS_CACHE_MAX_MEGABYTES = 100;
+    private static final int DEFAULT_SCANNER_CPU_PERCENT = 50;
+    private static final int DEFAULT_SCANNER_PARALLELISM = 2;
+    private static final String DEFAULT_SCAN_CACHE_DIR =
+        new File(System.getProperty("user.home"), ".codekvast/scan-cache").getAbsolutePath();
+    private static final int DEFAULT_SCAN_CACHE_MAX_MEGABYTES = 50;
+    private static final String DEFAULT_SPOOL_DIR =
+        new File(System.getProperty("user.home"), ".codekvast/spool").getAbsolutePath();
+    private static final int DEFAULT_SPOOL_MAX_MEGABYTES = 10;
+    private static final int DEFAULT_SPOOL_REPLAY_INTERVAL_SECONDS = 30;
 
     private static final String SAMPLE_ASPECTJ_OPTIONS = "-verbose -showWeaveInfo";
     private static final String SAMPLE_CODEBASE_URI1 = "/path/to/codebase1/";
@@ -110,6 +134,7 @@ public class AgentConfigFactory {
     private static AgentConfig buildAgentConfig(Properties props) {
 
         return AgentConfig.builder()
+                          .adviceTiming(ConfigUtils.getOptionalBooleanValue(props, "adviceTiming", DEFAULT_ADVICE_TIMING))
                           .appName(ConfigUtils.getMandatoryStringValue(props, "appName"))
                           .appVersion(ConfigUtils.getOptionalStringValue(props, "appVersion", UNSPECIFIED))
                           .aspectFile(DEFAULT_ASPECT_FILE)
@@ -117,7 +142,15 @@ public class AgentConfigFactory {
                           .bridgeAspectjMessagesToJUL(
                               ConfigUtils.getOptionalBooleanValue(props, "bridgeAspectjMessagesToJUL",
                                                                   DEFAULT_BRIDGE_ASPECTJ_LOGGING_TO_JUL))
+                          .classCacheDir(ConfigUtils.getOptionalStringValue(props, "classCacheDir", DEFAULT_CLASS_CACHE_DIR))
+                          .classCacheMaxMegabytes(
+                              ConfigUtils.getOptionalIntValue(props, "classCacheMaxMegabytes", DEFAULT_CLASS_CACHE_MAX_MEGABYTES))
                           .codeBase(ConfigUtils.getMandatoryStringValue(props, "codeBase"))
+                          .codeBaseChangeDetection(
+                              ConfigUtils.getOptionalStringValue(props, "codeBaseChangeDetection", DEFAULT_CODE_BASE_CHANGE_DETECTION))
+                          .codeBaseDeltaPublishing(
+                              ConfigUtils.getOptionalBooleanValue(props, "codeBaseDeltaPublishing", DEFAULT_CODE_BASE_DELTA_PUBLISHING))
+                          .codeBaseScanner(ConfigUtils.getOptionalStringValue(props, "codeBaseScanner", DEFAULT_CODE_BASE_SCANNER))
                           .environment(ConfigUtils.getOptionalStringValue(props, "environment", DEFAULT_ENVIRONMENT))
                           .excludePackages(ConfigUtils.getOptionalStringValue(props, "excludePackages", ""))
                           .httpConnectTimeoutSeconds(
@@ -131,15 +164,44 @@ public class AgentConfigFactory {
                           .httpWriteTimeoutSeconds(
                               ConfigUtils
                                   .getOptionalIntValue(props, "httpWriteTimeoutSeconds", DEFAULT_HTTP_WRITE_TIMEOUT_SECONDS))
+                          .httpUploadCompression(
+                              ConfigUtils.getOptionalBooleanValue(props, "httpUploadCompression", DEFAULT_HTTP_UPLOAD_COMPRESSION))
+                          .httpUploadFormat(
+                              ConfigUtils.getOptionalStringValue(props, "httpUploadFormat", DEFAULT_HTTP_UPLOAD_FORMAT))
+                          .httpUploadStreaming(
+                              ConfigUtils.getOptionalBooleanValue(props, "httpUploadStreaming", DEFAULT_HTTP_UPLOAD_STREAMING))
+                          .instrumentationEngine(
+                              ConfigUtils.getOptionalStringValue(props, "instrumentationEngine", DEFAULT_INSTRUMENTATION_ENGINE))
+                          .invocationRegistryCapacity(
+                              ConfigUtils.getOptionalIntValue(props, "invocationRegistryCapacity",
+                                                              DEFAULT_INVOCATION_REGISTRY_CAPACITY))
+                          .invocationRegistryMode(
+                              ConfigUtils.getOptionalStringValue(props, "invocationRegistryMode", DEFAULT_INVOCATION_REGISTRY_MODE))
                           .licenseKey(ConfigUtils.getOptionalStringValue(props, "licenseKey", TRIAL_LICENSE_KEY))
+                          .methodIdPublishing(
+                              ConfigUtils.getOptionalBooleanValue(props, "methodIdPublishing", DEFAULT_METHOD_ID_PUBLISHING))
                           .methodVisibility(
                               ConfigUtils.getOptionalStringValue(props, "methodVisibility", DEFAULT_METHOD_VISIBILITY))
                           .packages(ConfigUtils.getMandatoryStringValue(props, "packages"))
+                          .retransformBatchSize(
+                              ConfigUtils.getOptionalIntValue(props, "retransformBatchSize", DEFAULT_RETRANSFORM_BATCH_SIZE))
                           .serverUrl(ConfigUtils.getOptionalStringValue(props, "serverUrl", DEFAULT_SERVER_URL))
+                          .scanCacheDir(ConfigUtils.getOptionalStringValue(props, "scanCacheDir", DEFAULT_SCAN_CACHE_DIR))
+                          .scanCacheMaxMegabytes(
+                              ConfigUtils.getOptionalIntValue(props, "scanCacheMaxMegabytes", DEFAULT_SCAN_CACHE_MAX_MEGABYTES))
+                          .scannerCpuPercent(
+                              ConfigUtils.getOptionalIntValue(props, "scannerCpuPercent", DEFAULT_SCANNER_CPU_PERCENT))
+                          .scannerParallelism(
+                              ConfigUtils.getOptionalIntValue(props, "scannerParallelism", DEFAULT_SCANNER_PARALLELISM))
                           .schedulerInitialDelayMillis(
                               ConfigUtils.getOptionalIntValue(props, "schedulerInitialDelayMillis", DEFAULT_SCHEDULER_INITIAL_DELAY_MILLIS))
                           .schedulerIntervalMillis(ConfigUtils.getOptionalIntValue(props, "schedulerIntervalMillis", DEFAULT_SCHEDULER_INTERVAL_MILLIS))
+                          .spoolDir(ConfigUtils.getOptionalStringValue(props, "spoolDir", DEFAULT_SPOOL_DIR))
+                          .spoolMaxMegabytes(ConfigUtils.getOptionalIntValue(props, "spoolMaxMegabytes", DEFAULT_SPOOL_MAX_MEGABYTES))
+                          .spoolReplayIntervalSeconds(
+                              ConfigUtils.getOptionalIntValue(props, "spoolReplayIntervalSeconds", DEFAULT_SPOOL_REPLAY_INTERVAL_SECONDS))
                           .tags(ConfigUtils.getOptionalStringValue(props, TAGS_KEY, ""))
+                          .weavingScope(ConfigUtils.getOptionalStringValue(props, "weavingScope", DEFAULT_WEAVING_SCOPE))
                           .build().validate();
     }
 
@@ -188,12 +250,18 @@ public class AgentConfigFactory {
 
     public static AgentConfig createTemplateConfig() {
         return AgentConfig.builder()
+                          .adviceTiming(DEFAULT_ADVICE_TIMING)
                           .appName(UNSPECIFIED)
                           .appVersion(UNSPECIFIED)
                           .aspectFile(DEFAULT_ASPECT_FILE)
                           .aspectjOptions(SAMPLE_ASPECTJ_OPTIONS)
                           .bridgeAspectjMessagesToJUL(DEFAULT_BRIDGE_ASPECTJ_LOGGING_TO_JUL)
+                          .classCacheDir(DEFAULT_CLASS_CACHE_DIR)
+                          .classCacheMaxMegabytes(DEFAULT_CLASS_CACHE_MAX_MEGABYTES)
                           .codeBase(UNSPECIFIED)
+                          .codeBaseChangeDetection(DEFAULT_CODE_BASE_CHANGE_DETECTION)
+                          .codeBaseDeltaPublishing(DEFAULT_CODE_BASE_DELTA_PUBLISHING)
+                          .codeBaseScanner(DEFAULT_CODE_BASE_SCANNER)
                           .environment(DEFAULT_ENVIRONMENT)
                           .excludePackages("")
                           .httpConnectTimeoutSeconds(DEFAULT_HTTP_CONNECT_TIMEOUT_SECONDS)
@@ -201,13 +269,29 @@ public class AgentConfigFactory {
                           .httpProxyPort(DEFAULT_HTTP_PROXY_PORT)
                           .httpReadTimeoutSeconds(DEFAULT_HTTP_READ_TIMEOUT_SECONDS)
                           .httpWriteTimeoutSeconds(DEFAULT_HTTP_WRITE_TIMEOUT_SECONDS)
+                          .httpUploadCompression(DEFAULT_HTTP_UPLOAD_COMPRESSION)
+                          .httpUploadFormat(DEFAULT_HTTP_UPLOAD_FORMAT)
+                          .httpUploadStreaming(DEFAULT_HTTP_UPLOAD_STREAMING)
+                          .instrumentationEngine(DEFAULT_INSTRUMENTATION_ENGINE)
+                          .invocationRegistryCapacity(DEFAULT_INVOCATION_REGISTRY_CAPACITY)
+                          .invocationRegistryMode(DEFAULT_INVOCATION_REGISTRY_MODE)
                           .licenseKey(TRIAL_LICENSE_KEY)
+                          .methodIdPublishing(DEFAULT_METHOD_ID_PUBLISHING)
                           .methodVisibility(DEFAULT_METHOD_VISIBILITY)
                           .packages(UNSPECIFIED)
+                          .retransformBatchSize(DEFAULT_RETRANSFORM_BATCH_SIZE)
+                          .scanCacheDir(DEFAULT_SCAN_CACHE_DIR)
+                          .scanCacheMaxMegabytes(DEFAULT_SCAN_CACHE_MAX_MEGABYTES)
+                          .scannerCpuPercent(DEFAULT_SCANNER_CPU_PERCENT)
+                          .scannerParallelism(DEFAULT_SCANNER_PARALLELISM)
                           .schedulerInitialDelayMillis(DEFAULT_SCHEDULER_INITIAL_DELAY_MILLIS)
                           .schedulerIntervalMillis(DEFAULT_SCHEDULER_INTERVAL_MILLIS)
                           .serverUrl(DEFAULT_SERVER_URL)
+                          .spoolDir(DEFAULT_SPOOL_DIR)
+                          .spoolMaxMegabytes(DEFAULT_SPOOL_MAX_MEGABYTES)
+                          .spoolReplayIntervalSeconds(DEFAULT_SPOOL_REPLAY_INTERVAL_SECONDS)
                           .tags(createSystemPropertiesTags() + ", " + SAMPLE_TAGS)
+                          .weavingScope(DEFAULT_WEAVING_SCOPE)
                           .build();
     }
 
@@ -23,6 +23,8 @@ package io.codekvast.javaagent.config;
 
 import lombok.EqualsAndHashCode;
 
+import java.lang.reflect.Modifier;
+
 import static io.codekvast.javaagent.util.SignatureUtils.*;
 
 /**
@@ -91,6 +93,25 @@ public class MethodAnalyzer {
         return selectsPrivate;
     }
 
+    /**
+     * Decides whether a method with certain modifiers is selected.
+     *
+     * @param modifiers The method's modifiers, as in {@link Modifier}.
+     * @return true if the method's visibility is selected.
+     */
+    public boolean selectsMethod(int modifiers) {
+        if (Modifier.isPublic(modifiers)) {
+            return selectsPublic;
+        }
+        if (Modifier.isProtected(modifiers)) {
+            return selectsProtected;
+        }
+        if (Modifier.isPrivate(modifiers)) {
+            return selectsPrivate;
+        }
+        return selectsPackagePrivate;
+    }
+
     @Override
     public String toString() {
         if (selectsPrivateMethods()) {
@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.metrics;
+
+import io.codekvast.javaagent.InvocationRegistry;
+import io.codekvast.javaagent.InvocationRegistryStatistics;
+import lombok.extern.java.Log;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects metrics about the agent's own overhead, and exposes them as a JMX MXBean named {@value #OBJECT_NAME}.
+ * <p>
+ * All metrics are updated without locks. The advice executions are only timed with {@code adviceTiming=true}, and then for a
+ * random sample of them. Deciding which ones to time does not write to any shared memory.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@SuppressWarnings("Singleton")
+@Log
+public class AgentMetrics implements AgentMetricsMXBean {
+
+    public static final String OBJECT_NAME = "io.codekvast:type=Agent";
+
+    public static final AgentMetrics instance = new AgentMetrics();
+
+    // On average every 1024th advice execution is timed.
+    private static final int ADVICE_SAMPLE_RATE = 1024;
+
+    private volatile boolean adviceTiming;
+    private final AtomicLong adviceSampleCount = new AtomicLong();
+    private final AtomicLong adviceTotalNanos = new AtomicLong();
+    private final AtomicLong adviceMaxNanos = new AtomicLong();
+
+    private volatile String invocationRegistryMode = "";
+
+    private final AtomicLong codeBaseScanCount = new AtomicLong();
+    private volatile long lastCodeBaseScanMillis;
+    private volatile int lastCodeBaseScanSignatureCount;
+
+    private final AtomicLong serializationCount = new AtomicLong();
+    private final AtomicLong serializationTotalMillis = new AtomicLong();
+    private final AtomicLong serializationTotalBytes = new AtomicLong();
+
+    private final AtomicLong codeBasePublishingCount = new AtomicLong();
+    private volatile long lastCodeBasePublishingMillis;
+    private final AtomicLong codeBasePublishingFailures = new AtomicLong();
+
+    private final AtomicLong invocationDataPublishingCount = new AtomicLong();
+    private volatile long lastInvocationDataPublishingMillis;
+    private final AtomicLong invocationDataPublishingFailures = new AtomicLong();
+
+    private AgentMetrics() {
+        // Singleton
+    }
+
+    /**
+     * Registers the MXBean in the platform MBean server. Does nothing if it is already registered.
+     *
+     * @param invocationRegistryMode The invocation registry mode in use.
+     * @param adviceTiming           Whether a sample of the advice executions should be timed.
+     */
+    public void register(String invocationRegistryMode, boolean adviceTiming) {
+        this.invocationRegistryMode = invocationRegistryMode;
+        this.adviceTiming = adviceTiming;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+            logger.fine("Registered MXBean " + OBJECT_NAME);
+        } catch (InstanceAlreadyExistsException ignore) {
+            // Already registered
+        } catch (JMException | RuntimeException e) {
+            logger.warning("Cannot register MXBean " + OBJECT_NAME + ": " + e);
+        }
+    }
+
+    /**
+     * Removes the MXBean from the platform MBean server, if it is registered.
+     */
+    public void unregister() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (InstanceNotFoundException ignore) {
+            // Not registered
+        } catch (JMException | RuntimeException e) {
+            logger.fine("Cannot unregister MXBean " + OBJECT_NAME + ": " + e);
+        }
+    }
+
+    /**
+     * Decides whether the current advice execution should be timed.
+     * <p>
+     * The decision is made by the random generator of the current thread, so it does not write to any shared memory.
+     *
+     * @return true for a random sample of the invocations if advice timing is enabled, otherwise false.
+     */
+    public boolean isAdviceSampleDue() {
+        return adviceTiming && ThreadLocalRandom.current().nextInt(ADVICE_SAMPLE_RATE) == 0;
+    }
+
+    public void adviceSampled(long elapsedNanos) {
+        adviceSampleCount.incrementAndGet();
+        adviceTotalNanos.addAndGet(elapsedNanos);
+        updateMax(adviceMaxNanos, elapsedNanos);
+    }
+
+    public void codeBaseScanned(long elapsedMillis, int signatureCount) {
+        codeBaseScanCount.incrementAndGet();
+        lastCodeBaseScanMillis = elapsedMillis;
+        lastCodeBaseScanSignatureCount = signatureCount;
+    }
+
+    public void serialized(long elapsedMillis, long bytes) {
+        serializationCount.incrementAndGet();
+        serializationTotalMillis.addAndGet(elapsedMillis);
+        serializationTotalBytes.addAndGet(bytes);
+    }
+
+    public void codeBasePublished(long elapsedMillis) {
+        codeBasePublishingCount.incrementAndGet();
+        lastCodeBasePublishingMillis = elapsedMillis;
+    }
+
+    public void codeBasePublishingFailed() {
+        codeBasePublishingFailures.incrementAndGet();
+    }
+
+    public void invocationDataPublished(long elapsedMillis) {
+        invocationDataPublishingCount.incrementAndGet();
+        lastInvocationDataPublishingMillis = elapsedMillis;
+    }
+
+    public void invocationDataPublishingFailed() {
+        invocationDataPublishingFailures.incrementAndGet();
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    @Override
+    public long getAdviceSampleCount() {
+        return adviceSampleCount.get();
+    }
+
+    @Override
+    public long getAdviceAverageNanos() {
+        long count = adviceSampleCount.get();
+        return count == 0L ? 0L : adviceTotalNanos.get() / count;
+    }
+
+    @Override
+    public long getAdviceMaxNanos() {
+        return adviceMaxNanos.get();
+    }
+
+    @Override
+    public String getInvocationRegistryMode() {
+        return invocationRegistryMode;
+    }
+
+    @Override
+    public long getEnqueuedSignatures() {
+        return getRegistryStatistics().getEnqueuedSignatures();
+    }
+
+    @Override
+    public long getDeduplicatedSignatures() {
+        return getRegistryStatistics().getDeduplicatedSignatures();
+    }
+
+    @Override
+    public long getDroppedSignatures() {
+        return getRegistryStatistics().getDroppedSignatures();
+    }
+
+    @Override
+    public int getSignaturesInCurrentInterval() {
+        return getRegistryStatistics().getSignaturesInCurrentInterval();
+    }
+
+    private InvocationRegistryStatistics getRegistryStatistics() {
+        return InvocationRegistry.instance.getStatistics();
+    }
+
+    @Override
+    public long getCodeBaseScanCount() {
+        return codeBaseScanCount.get();
+    }
+
+    @Override
+    public long getLastCodeBaseScanMillis() {
+        return lastCodeBaseScanMillis;
+    }
+
+    @Override
+    public int getLastCodeBaseScanSignatureCount() {
+        return lastCodeBaseScanSignatureCount;
+    }
+
+    @Override
+    public long getSerializationCount() {
+        return serializationCount.get();
+    }
+
+    @Override
+    public long getSerializationTotalMillis() {
+        return serializationTotalMillis.get();
+    }
+
+    @Override
+    public long getSerializationTotalBytes() {
+        return serializationTotalBytes.get();
+    }
+
+    @Override
+    public long getCodeBasePublishingCount() {
+        return codeBasePublishingCount.get();
+    }
+
+    @Override
+    public long getLastCodeBasePublishingMillis() {
+        return lastCodeBasePublishingMillis;
+    }
+
+    @Override
+    public long getCodeBasePublishingFailures() {
+        return codeBasePublishingFailures.get();
+    }
+
+    @Override
+    public long getInvocationDataPublishingCount() {
+        return invocationDataPublishingCount.get();
+    }
+
+    @Override
+    public long getLastInvocationDataPublishingMillis() {
+        return lastInvocationDataPublishingMillis;
+    }
+
+    @Override
+    public long getInvocationDataPublishingFailures() {
+        return invocationDataPublishingFailures.get();
+    }
+}
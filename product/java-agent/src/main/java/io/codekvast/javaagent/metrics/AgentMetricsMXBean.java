@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.metrics;
+
+/**
+ * The JMX management interface of the Codekvast agent.
+ * <p>
+ * All durations are in milliseconds unless the name says otherwise. All counts are cumulative since the agent started.
+ *
+ * @author olle.hallin@crisp.se
+ * @see AgentMetrics
+ */
+public interface AgentMetricsMXBean {
+
+    /**
+     * @return The number of advice executions that have been timed. Only a sample of them are, and only with
+     * {@code adviceTiming=true}.
+     */
+    long getAdviceSampleCount();
+
+    /**
+     * @return The average time of the sampled advice executions, in nanoseconds.
+     */
+    long getAdviceAverageNanos();
+
+    /**
+     * @return The longest time of a sampled advice execution, in nanoseconds.
+     */
+    long getAdviceMaxNanos();
+
+    String getInvocationRegistryMode();
+
+    long getEnqueuedSignatures();
+
+    long getDeduplicatedSignatures();
+
+    long getDroppedSignatures();
+
+    int getSignaturesInCurrentInterval();
+
+    long getCodeBaseScanCount();
+
+    long getLastCodeBaseScanMillis();
+
+    int getLastCodeBaseScanSignatureCount();
+
+    long getSerializationCount();
+
+    long getSerializationTotalMillis();
+
+    long getSerializationTotalBytes();
+
+    long getCodeBasePublishingCount();
+
+    long getLastCodeBasePublishingMillis();
+
+    long getCodeBasePublishingFailures();
+
+    long getInvocationDataPublishingCount();
+
+    long getLastInvocationDataPublishingMillis();
+
+    long getInvocationDataPublishingFailures();
+}
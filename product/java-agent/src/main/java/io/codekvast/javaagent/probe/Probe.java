@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.probe;
+
+import io.codekvast.javaagent.InvocationRegistry;
+import io.codekvast.javaagent.metrics.AgentMetrics;
+
+/**
+ * The target of the probes inserted by {@link ProbeTransformer}.
+ * <p>
+ * It must be loadable from all class loaders that load instrumented classes, which is the case since the agent jar is
+ * appended to the boot class path.
+ *
+ * @author olle.hallin@crisp.se
+ */
+public final class Probe {
+
+    static final String INTERNAL_NAME = "io/codekvast/javaagent/probe/Probe";
+    static final String METHOD_NAME = "invoked";
+    static final String METHOD_DESCRIPTOR = "(I)V";
+
+    private Probe() {
+        // Only static methods
+    }
+
+    /**
+     * Invoked at the entry of each instrumented method.
+     *
+     * @param methodId The id of the method, assigned by {@link ProbeMethodTable}.
+     */
+    public static void invoked(int methodId) {
+        if (AgentMetrics.instance.isAdviceSampleDue()) {
+            long startedAt = System.nanoTime();
+            InvocationRegistry.instance.registerMethodInvocation(methodId);
+            AgentMetrics.instance.adviceSampled(System.nanoTime() - startedAt);
+        } else {
+            InvocationRegistry.instance.registerMethodInvocation(methodId);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.probe;
+
+import lombok.experimental.UtilityClass;
+import lombok.extern.java.Log;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns a dense integer id to each instrumented method, when it is instrumented.
+ * <p>
+ * The ids are global to the JVM, since they are compiled into the instrumented byte code as constants. A method that is
+ * instrumented more than once, e.g. when it is retransformed, keeps its id.
+ * <p>
+ * Thread-safe.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@UtilityClass
+@Log
+public class ProbeMethodTable {
+
+    /**
+     * The id returned when the table is full.
+     */
+    public static final int NO_ID = -1;
+
+    /**
+     * The max number of ids that will be assigned.
+     */
+    public static final int MAX_IDS = 1 << 24;
+
+    private static final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+    // Only grown while holding the lock. Readers always see a fully populated prefix.
+    private static volatile String[] signatures = new String[1024];
+    private static int size;
+    private static boolean overflowLogged;
+
+    /**
+     * Get the id of a method, assigning a new id if needed.
+     *
+     * @param canonicalSignature The canonical signature of the method.
+     * @return The id of the method, or {@link #NO_ID} if the table is full.
+     * @see io.codekvast.javaagent.util.SignatureUtils#signatureToCanonicalString(org.aspectj.lang.Signature)
+     */
+    public static int getId(String canonicalSignature) {
+        Integer id = ids.get(canonicalSignature);
+        return id != null ? id : register(canonicalSignature);
+    }
+
+    /**
+     * Get the canonical signature of a method.
+     *
+     * @param id An id previously returned by {@link #getId(String)}.
+     * @return The canonical signature.
+     */
+    public static String getSignature(int id) {
+        return signatures[id];
+    }
+
+    /**
+     * @return The number of ids that have been assigned.
+     */
+    public static synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Assigns ids to methods in a given order, so that they get the same ids as in a previous run.
+     * <p>
+     * Ids that already have been assigned must match the given order.
+     *
+     * @param canonicalSignatures The signatures, in id order.
+     * @return true if the methods have the ids given by the order. False if they do not, e.g. if there were duplicates.
+     */
+    public static synchronized boolean preload(List<String> canonicalSignatures) {
+        for (int id = 0; id < canonicalSignatures.size(); id++) {
+            String signature = canonicalSignatures.get(id);
+            if (id < size ? !signature.equals(signatures[id]) : register(signature) != id) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static synchronized int register(String signature) {
+        Integer id = ids.get(signature);
+        if (id != null) {
+            return id;
+        }
+
+        if (size >= MAX_IDS) {
+            if (!overflowLogged) {
+                logger.warning("Too many methods, not instrumenting methods not yet seen");
+                overflowLogged = true;
+            }
+            return NO_ID;
+        }
+
+        String[] sigs = signatures;
+        if (size >= sigs.length) {
+            sigs = Arrays.copyOf(sigs, sigs.length * 2);
+        }
+        sigs[size] = signature;
+        signatures = sigs;
+
+        id = size;
+        size += 1;
+        ids.put(signature, id);
+        return id;
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.probe;
+
+import io.codekvast.javaagent.cache.ClassCache;
+import io.codekvast.javaagent.codebase.ScannedClasses;
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.config.MethodAnalyzer;
+import io.codekvast.javaagent.util.PrefixTrie;
+import lombok.extern.java.Log;
+import org.objectweb.asm.*;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * A class file transformer that inserts a static probe at the entry of each method within the configured packages.
+ * <p>
+ * The probe is a method id constant and a call to {@link Probe#invoked(int)}. It is an alternative to AspectJ load-time
+ * weaving that starts faster and uses less memory, since it does not build a type world of the woven classes.
+ * <p>
+ * The same methods are instrumented as with AspectJ: methods and constructors selected by the {@link MethodAnalyzer},
+ * except abstract, native, synthetic and bridge methods, methods in interfaces, static initializers and the trivial methods
+ * equals(), hashCode(), toString() and compareTo().
+ * <p>
+ * The probe adds neither fields nor methods to the class, so it can also be applied when already loaded classes are
+ * retransformed.
+ * <p>
+ * If a {@link ClassCache} is given, classes instrumented in a previous run are taken from it.
+ * <p>
+ * Classes outside the code base are skipped when the weaving scope is the code base, see {@link ScannedClasses}.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@Log
+public class ProbeTransformer implements ClassFileTransformer {
+
+    private static final PrefixTrie AGENT_PACKAGES = PrefixTrie.of(Arrays.asList("io/codekvast/javaagent/", "ck/"));
+
+    private final MethodAnalyzer methodAnalyzer;
+    private final PrefixTrie packages;
+    private final PrefixTrie excludePackages;
+    private final ClassCache classCache;
+
+    public ProbeTransformer(AgentConfig config) {
+        this(config, null);
+    }
+
+    /**
+     * @param config     The agent config.
+     * @param classCache A cache of instrumented classes, or null.
+     */
+    public ProbeTransformer(AgentConfig config, ClassCache classCache) {
+        this.classCache = classCache;
+        this.methodAnalyzer = config.getMethodAnalyzer();
+        this.packages = PrefixTrie.of(toInternalPrefixes(config.getNormalizedPackages()));
+        this.excludePackages = PrefixTrie.of(toInternalPrefixes(config.getNormalizedExcludePackages()));
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (className == null || !isWithinPackages(className) || !ScannedClasses.instance.includes(className)) {
+            return null;
+        }
+
+        try {
+            if (classCache == null) {
+                return instrument(classfileBuffer);
+            }
+
+            String key = classCache.keyOf(className, classfileBuffer);
+            byte[] result = classCache.get(key);
+            if (result == null) {
+                result = instrument(classfileBuffer);
+                classCache.put(key, result);
+            } else if (result.length == 0) {
+                // Cached as not instrumented
+                result = null;
+            }
+            return result;
+        } catch (Throwable t) {
+            // Never let an exception escape into the class loading.
+            logger.log(Level.WARNING, "Cannot instrument " + className, t);
+            return null;
+        }
+    }
+
+    /**
+     * Inserts probes into a class.
+     *
+     * @param classfileBuffer The class file.
+     * @return The instrumented class file, or null if no method was instrumented.
+     */
+    byte[] instrument(byte[] classfileBuffer) {
+        ClassReader reader = new ClassReader(classfileBuffer);
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        ProbeClassVisitor visitor = new ProbeClassVisitor(writer);
+        reader.accept(visitor, 0);
+        return visitor.instrumentedMethods > 0 ? writer.toByteArray() : null;
+    }
+
+    boolean isWithinPackages(String internalClassName) {
+        // Called for every class that is loaded, so each check is one walk in a trie.
+        return !AGENT_PACKAGES.matches(internalClassName) && !excludePackages.matches(internalClassName) &&
+            packages.matches(internalClassName);
+    }
+
+    boolean isInstrumentable(int access, String name, String descriptor) {
+        if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE | Opcodes.ACC_SYNTHETIC | Opcodes.ACC_BRIDGE)) != 0) {
+            return false;
+        }
+        if (name.equals("<clinit>") || isTrivial(name, descriptor)) {
+            return false;
+        }
+        return methodAnalyzer.selectsMethod(access);
+    }
+
+    private static boolean isTrivial(String name, String descriptor) {
+        return (name.equals("equals") && descriptor.equals("(Ljava/lang/Object;)Z"))
+            || (name.equals("hashCode") && descriptor.equals("()I"))
+            || (name.equals("toString") && descriptor.equals("()Ljava/lang/String;"))
+            || (name.equals("compareTo") && descriptor.equals("(Ljava/lang/Object;)I"));
+    }
+
+    /**
+     * Makes the same canonical signature string as AspectJ does for an execution join point.
+     *
+     * @param internalClassName The internal name of the declaring class, e.g. "com/acme/Foo$Bar".
+     * @param name              The method name, or "&lt;init&gt;" for a constructor.
+     * @param descriptor        The method descriptor.
+     * @return The canonical signature, e.g. "com.acme.Foo.Bar.baz(int, java.lang.String[])".
+     * @see io.codekvast.javaagent.util.SignatureUtils#signatureToCanonicalString(org.aspectj.lang.Signature)
+     */
+    static String toCanonicalSignature(String internalClassName, String name, String descriptor) {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(toSourceName(Type.getObjectType(internalClassName)));
+        if (!name.equals("<init>")) {
+            sb.append('.').append(name);
+        }
+        sb.append('(');
+        String delimiter = "";
+        for (Type type : Type.getArgumentTypes(descriptor)) {
+            sb.append(delimiter).append(toSourceName(type));
+            delimiter = ", ";
+        }
+        return sb.append(')').toString();
+    }
+
+    private static String toSourceName(Type type) {
+        return type.getClassName().replace('$', '.');
+    }
+
+    private static List<String> toInternalPrefixes(List<String> packages) {
+        List<String> result = new ArrayList<>();
+        for (String p : packages) {
+            result.add(p.replace('.', '/') + "/");
+        }
+        return result;
+    }
+
+    private class ProbeClassVisitor extends ClassVisitor {
+        private String className;
+        private boolean isInterface;
+        private int instrumentedMethods;
+
+        ProbeClassVisitor(ClassVisitor cv) {
+            super(Opcodes.ASM6, cv);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            this.className = name;
+            this.isInterface = (access & Opcodes.ACC_INTERFACE) != 0;
+            super.visit(version, access, name, signature, superName, interfaces);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+            if (mv == null || isInterface || !isInstrumentable(access, name, descriptor)) {
+                return mv;
+            }
+
+            int methodId = ProbeMethodTable.getId(toCanonicalSignature(className, name, descriptor));
+            if (methodId == ProbeMethodTable.NO_ID) {
+                return mv;
+            }
+
+            instrumentedMethods += 1;
+            return new ProbeMethodVisitor(mv, methodId);
+        }
+    }
+
+    private static class ProbeMethodVisitor extends MethodVisitor {
+        private final int methodId;
+
+        ProbeMethodVisitor(MethodVisitor mv, int methodId) {
+            super(Opcodes.ASM6, mv);
+            this.methodId = methodId;
+        }
+
+        @Override
+        public void visitCode() {
+            super.visitCode();
+            super.visitLdcInsn(methodId);
+            super.visitMethodInsn(Opcodes.INVOKESTATIC, Probe.INTERNAL_NAME, Probe.METHOD_NAME, Probe.METHOD_DESCRIPTOR, false);
+        }
+    }
+}
@@ -49,4 +49,9 @@ public interface CodeBasePublisher extends Publisher {
      * @return The number of times the code base has been scanned for changes.
      */
     int getCodeBaseCheckCount();
+
+    /**
+     * Releases the resources held for detecting code base changes. Later checks fingerprint the code base each time.
+     */
+    void close();
 }
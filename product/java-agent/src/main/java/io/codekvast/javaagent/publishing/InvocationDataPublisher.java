@@ -23,6 +23,7 @@ package io.codekvast.javaagent.publishing;
 
 import io.codekvast.javaagent.codebase.CodeBaseFingerprint;
 
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -48,9 +49,17 @@ public interface InvocationDataPublisher extends Publisher {
      * Publish the invocation data.
      *
      * @param recordingIntervalStartedAtMillis When the recording of these invocations were started.
-     * @param invocations                      The set of invocations to publish.
+     * @param invocations                      The set of invocations to publish, as canonical signatures.
+     * @param invocationCounts                 The number of invocations per signature, or null if not counted.
      * @throws CodekvastPublishingException when publishing fails.
      */
-    void publishInvocationData(long recordingIntervalStartedAtMillis, Set<String> invocations)
+    void publishInvocationData(long recordingIntervalStartedAtMillis, Set<String> invocations, Map<String, Long> invocationCounts)
         throws CodekvastPublishingException;
+
+    /**
+     * Publish the oldest invocation data that was spooled to disk since it could not be published.
+     *
+     * @throws CodekvastPublishingException when publishing fails. The invocation data then remains in the spool.
+     */
+    void publishSpooledInvocationData() throws CodekvastPublishingException;
 }
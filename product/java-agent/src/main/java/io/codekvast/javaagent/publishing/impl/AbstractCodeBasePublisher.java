@@ -24,6 +24,8 @@ package io.codekvast.javaagent.publishing.impl;
 import io.codekvast.javaagent.codebase.CodeBase;
 import io.codekvast.javaagent.codebase.CodeBaseFingerprint;
 import io.codekvast.javaagent.codebase.CodeBaseScanner;
+import io.codekvast.javaagent.codebase.CodeBaseWatcher;
+import io.codekvast.javaagent.codebase.ScannedClasses;
 import io.codekvast.javaagent.config.AgentConfig;
 import io.codekvast.javaagent.publishing.CodeBasePublisher;
 import io.codekvast.javaagent.publishing.CodekvastPublishingException;
@@ -33,15 +35,26 @@ import java.util.logging.Logger;
 
 /**
  * Abstract base class for code base publishers.
+ * <p>
+ * The code base is only fingerprinted when the {@link CodeBaseWatcher} has detected a change, or when it has fallen back to
+ * polling.
  */
 abstract class AbstractCodeBasePublisher extends AbstractPublisher implements CodeBasePublisher {
 
+    // Read by the scheduler thread
     @Getter
-    private CodeBaseFingerprint codeBaseFingerprint;
+    private volatile CodeBaseFingerprint codeBaseFingerprint;
 
     @Getter
     private int codeBaseCheckCount = 0;
 
+    // Guarded by this, since it is closed by the scheduler thread
+    private CodeBaseWatcher codeBaseWatcher;
+    private boolean closed;
+
+    // Set until a check has completed without detected changes pending
+    private boolean codeBaseMayHaveChanged = true;
+
     AbstractCodeBasePublisher(Logger log, AgentConfig config) {
         super(log, config);
     }
@@ -50,13 +63,46 @@ abstract class AbstractCodeBasePublisher extends AbstractPublisher implements Co
     public void publishCodeBase() throws CodekvastPublishingException {
         if (isEnabled()) {
             codeBaseCheckCount += 1;
+            if (pollCodeBaseChanges()) {
+                codeBaseMayHaveChanged = true;
+            }
+            if (!codeBaseMayHaveChanged) {
+                logger.finest("No changes detected in the code base");
+                return;
+            }
+
             CodeBase newCodeBase = new CodeBase(getConfig());
+            if (codeBaseFingerprint == null) {
+                // Limit the weaving to the classes of the last scan already while this code base is scanned.
+                ScannedClasses.instance.loadIfUnchanged(newCodeBase.getFingerprint());
+            }
             if (!newCodeBase.getFingerprint().equals(codeBaseFingerprint)) {
                 incrementSequenceNumber();
                 new CodeBaseScanner().scanSignatures(newCodeBase);
                 doPublishCodeBase(newCodeBase);
                 codeBaseFingerprint = newCodeBase.getFingerprint();
             }
+            codeBaseMayHaveChanged = false;
+        }
+    }
+
+    private synchronized boolean pollCodeBaseChanges() {
+        if (closed) {
+            return true;
+        }
+        if (codeBaseWatcher == null) {
+            // Started before the first fingerprint, so that no change is missed in between.
+            codeBaseWatcher = CodeBaseWatcher.create(getConfig());
+        }
+        return codeBaseWatcher.pollChanges();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (codeBaseWatcher != null) {
+            codeBaseWatcher.close();
+            codeBaseWatcher = null;
         }
     }
 
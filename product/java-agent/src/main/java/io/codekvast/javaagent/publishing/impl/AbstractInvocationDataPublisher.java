@@ -25,10 +25,9 @@ import io.codekvast.javaagent.codebase.CodeBaseFingerprint;
 import io.codekvast.javaagent.config.AgentConfig;
 import io.codekvast.javaagent.publishing.CodekvastPublishingException;
 import io.codekvast.javaagent.publishing.InvocationDataPublisher;
-import io.codekvast.javaagent.util.SignatureUtils;
 import lombok.Getter;
 
-import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -50,29 +49,23 @@ public abstract class AbstractInvocationDataPublisher extends AbstractPublisher
     }
 
     @Override
-    public void publishInvocationData(long recordingIntervalStartedAtMillis, Set<String> invocations)
-        throws CodekvastPublishingException {
+    public void publishInvocationData(long recordingIntervalStartedAtMillis, Set<String> invocations,
+                                      Map<String, Long> invocationCounts) throws CodekvastPublishingException {
         if (isEnabled() && getCodeBaseFingerprint() != null) {
             incrementSequenceNumber();
 
             logger.fine("Publishing invocation data #" + this.getSequenceNumber());
 
-            doPublishInvocationData(recordingIntervalStartedAtMillis, normalizeSignatures(invocations));
+            doPublishInvocationData(recordingIntervalStartedAtMillis, invocations, invocationCounts);
         }
     }
 
-    private Set<String> normalizeSignatures(Set<String> invocations) {
-        Set<String> result = new HashSet<>();
-        for (String s : invocations) {
-            String normalizedSignature = SignatureUtils.normalizeSignature(s);
-            if (normalizedSignature != null) {
-                result.add(SignatureUtils.stripModifiers(normalizedSignature));
-            }
-        }
-        return result;
+    @Override
+    public void publishSpooledInvocationData() throws CodekvastPublishingException {
+        // Only publishers that can fail have a spool.
     }
 
-    abstract void doPublishInvocationData(long recordingIntervalStartedAtMillis, Set<String> invocations)
-        throws CodekvastPublishingException;
+    abstract void doPublishInvocationData(long recordingIntervalStartedAtMillis, Set<String> invocations,
+                                          Map<String, Long> invocationCounts) throws CodekvastPublishingException;
 
 }
@@ -23,12 +23,14 @@ package io.codekvast.javaagent.publishing.impl;
 
 import io.codekvast.javaagent.config.AgentConfig;
 import io.codekvast.javaagent.publishing.Publisher;
+import io.codekvast.javaagent.util.FileUtils;
 import lombok.Getter;
 import lombok.Setter;
 import okhttp3.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.logging.Logger;
 
 import static io.codekvast.javaagent.model.Endpoints.Agent.*;
@@ -41,16 +43,16 @@ import static io.codekvast.javaagent.model.Endpoints.Agent.*;
 @Getter
 public abstract class AbstractPublisher implements Publisher {
 
-    private static final MediaType APPLICATION_OCTET_STREAM = MediaType.parse("application/octet-stream");
     private final AgentConfig config;
     protected final Logger logger;
 
+    // Configured by the scheduler thread, while the code base publisher runs in the code base worker thread.
     @Setter
-    private boolean enabled;
+    private volatile boolean enabled;
 
-    private long customerId = -1L;
+    private volatile long customerId = -1L;
 
-    private int sequenceNumber;
+    private volatile int sequenceNumber;
 
     AbstractPublisher(Logger logger, AgentConfig config) {
         this.logger = logger;
@@ -114,20 +116,75 @@ public abstract class AbstractPublisher implements Publisher {
         return false;
     }
 
+    /**
+     * Uploads a publication to the server.
+     * <p>
+     * If {@code httpUploadStreaming} is set, the publication is serialized straight into the request. Otherwise it is
+     * serialized to a temporary file first, which is then uploaded.
+     * <p>
+     * The compact v3 format selected by {@code httpUploadFormat} is only used when streaming.
+     *
+     * @param publication     The publication to upload.
+     * @param filenamePrefix  The prefix of the file name of the publication.
+     * @param url             The URL to post the publication to.
+     * @param fingerprint     The code base fingerprint.
+     * @param publicationSize The number of entries in the publication.
+     * @return The number of bytes uploaded.
+     * @throws IOException If the upload fails.
+     */
+    long upload(Serializable publication, String filenamePrefix, String url, String fingerprint, int publicationSize)
+        throws IOException {
+        String prefix = getConfig().getFilenamePrefix(filenamePrefix);
+
+        if (getConfig().isHttpUploadStreaming()) {
+            boolean compressed = getConfig().isHttpUploadCompression();
+            boolean format3 = getConfig().getNormalizedHttpUploadFormat().equals(AgentConfig.HTTP_UPLOAD_FORMAT_V3);
+            PublicationRequestBody body = new PublicationRequestBody(publication, compressed, format3);
+            String suffix = format3 ? ".ckv3" : compressed ? ".ser.gz" : ".ser";
+            doPost(body, prefix + suffix, url, fingerprint, publicationSize);
+            return body.getBytesWritten();
+        }
+
+        File file = null;
+        try {
+            file = FileUtils.serializeToFile(publication, prefix, ".ser");
+            doPost(file, url, fingerprint, publicationSize);
+            return file.length();
+        } finally {
+            FileUtils.safeDelete(file);
+        }
+    }
+
     void doPost(File file, String url, String fingerprint, int publicationSize) throws IOException {
-        RequestBody requestBody = new MultipartBody.Builder()
+        doPost(RequestBody.create(PublicationRequestBody.APPLICATION_OCTET_STREAM, file), file.getName(), url, fingerprint,
+               publicationSize);
+    }
+
+    void doPost(RequestBody publicationBody, String filename, String url, String fingerprint, int publicationSize)
+        throws IOException {
+        doPost(publicationBody, filename, url, fingerprint, null, publicationSize);
+    }
+
+    /**
+     * @param baseFingerprint The fingerprint of the base of a code base delta, or null.
+     * @throws HttpResponseException If the server did not accept the publication.
+     */
+    void doPost(RequestBody publicationBody, String filename, String url, String fingerprint, String baseFingerprint,
+                int publicationSize) throws IOException {
+        MultipartBody.Builder builder = new MultipartBody.Builder()
             .setType(MultipartBody.FORM)
             .addFormDataPart(PARAM_LICENSE_KEY, getConfig().getLicenseKey())
             .addFormDataPart(PARAM_FINGERPRINT, fingerprint)
-            .addFormDataPart(PARAM_PUBLICATION_SIZE, String.valueOf(publicationSize))
-            .addFormDataPart(PARAM_PUBLICATION_FILE, file.getName(),
-                             RequestBody.create(APPLICATION_OCTET_STREAM, file))
-            .build();
+            .addFormDataPart(PARAM_PUBLICATION_SIZE, String.valueOf(publicationSize));
+        if (baseFingerprint != null) {
+            builder.addFormDataPart(PARAM_BASE_FINGERPRINT, baseFingerprint);
+        }
+        RequestBody requestBody = builder.addFormDataPart(PARAM_PUBLICATION_FILE, filename, publicationBody).build();
 
         Request request = new Request.Builder().url(url).post(requestBody).build();
         try (Response response = executeRequest(request)) {
             if (!response.isSuccessful()) {
-                throw new IOException(response.body().string());
+                throw new HttpResponseException(response.code(), response.body().string());
             }
         }
     }
@@ -24,18 +24,21 @@ package io.codekvast.javaagent.publishing.impl;
 import io.codekvast.javaagent.codebase.CodeBase;
 import io.codekvast.javaagent.config.AgentConfig;
 import io.codekvast.javaagent.model.v2.CodeBasePublication2;
+import io.codekvast.javaagent.model.v3.CodeBaseDeltaPublication3;
 import io.codekvast.javaagent.publishing.CodekvastPublishingException;
-import io.codekvast.javaagent.util.FileUtils;
 import io.codekvast.javaagent.util.LogUtil;
 import lombok.extern.java.Log;
 
-import java.io.File;
 import java.io.IOException;
 
 /**
  * A HTTP implementation of CodeBasePublisher.
  *
- * It uses the FileSystemCodeBasePublisherImpl for creating a file, which then is POSTed to the server.
+ * The publication is serialized straight into the POST request, or into a temporary file which then is POSTed to the
+ * server.
+ *
+ * If the server has acknowledged an earlier publication, only the difference to it is uploaded. The full code base is
+ * uploaded if the server rejects the delta, e.g. since it does not have the earlier code base.
  *
  * @author olle.hallin@crisp.se
  */
@@ -44,8 +47,11 @@ public class HttpCodeBasePublisherImpl extends AbstractCodeBasePublisher {
 
     static final String NAME = "http";
 
+    private final PublishedCodeBase publishedCodeBase;
+
     HttpCodeBasePublisherImpl(AgentConfig config) {
         super(logger, config);
+        this.publishedCodeBase = new PublishedCodeBase(config);
     }
 
     @Override
@@ -55,22 +61,67 @@ public class HttpCodeBasePublisherImpl extends AbstractCodeBasePublisher {
 
     @Override
     public void doPublishCodeBase(CodeBase codeBase) throws CodekvastPublishingException {
-        String url = getConfig().getCodeBaseUploadEndpoint();
+        CodeBasePublication2 publication = codeBase.getCodeBasePublication(getCustomerId(), this.getSequenceNumber());
 
-        File file = null;
-        try {
+        if (!uploadDelta(publication)) {
+            String url = getConfig().getCodeBaseUploadEndpoint();
+            try {
+                long bytes = upload(publication, "codebase-", url, codeBase.getFingerprint().toString(),
+                                    publication.getEntries().size());
+
+                logger.fine(String.format("Codekvast uploaded %d methods (%s) to %s", publication.getEntries().size(),
+                                          LogUtil.humanReadableByteCount(bytes), url));
+            } catch (IOException e) {
+                throw new CodekvastPublishingException("Cannot upload code base to " + url, e);
+            }
+        }
+
+        if (getConfig().isCodeBaseDeltaPublishing()) {
+            publishedCodeBase.acknowledged(publication);
+        }
+    }
+
+    /**
+     * @return true if a delta was accepted by the server, false if the full code base should be uploaded instead.
+     * @throws CodekvastPublishingException If the upload failed for another reason than an unknown base.
+     */
+    private boolean uploadDelta(CodeBasePublication2 publication) throws CodekvastPublishingException {
+        if (!getConfig().isCodeBaseDeltaPublishing()) {
+            return false;
+        }
 
-            CodeBasePublication2 publication = codeBase.getCodeBasePublication(getCustomerId(), this.getSequenceNumber());
-            file = FileUtils.serializeToFile(publication, getConfig().getFilenamePrefix("codebase-"), ".ser");
+        CodeBasePublication2 base = publishedCodeBase.get();
+        if (base == null) {
+            return false;
+        }
 
-            doPost(file, url, codeBase.getFingerprint().toString(), publication.getEntries().size());
+        CodeBaseDeltaPublication3 delta = CodeBaseDeltaPublication3.between(base, publication);
+        int deltaSize = delta.getAddedEntries().size() + delta.getRemovedSignatures().size();
+        if (deltaSize > publication.getEntries().size() / 2) {
+            logger.fine("Codekvast uploads the full code base, since more than half of it has changed");
+            return false;
+        }
+
+        String url = getConfig().getCodeBaseDeltaUploadEndpoint();
+        try {
+            PublicationRequestBody body = new PublicationRequestBody(delta, getConfig().isHttpUploadCompression(), true);
+            doPost(body, getConfig().getFilenamePrefix("codebase-delta-") + ".ckv3", url,
+                   publication.getCommonData().getCodeBaseFingerprint(), delta.getBaseCodeBaseFingerprint(),
+                   publication.getEntries().size());
 
-            logger.fine(String.format("Codekvast uploaded %d methods (%s) to %s", publication.getEntries().size(),
-                                    LogUtil.humanReadableByteCount(file.length()), url));
+            logger.fine(String.format("Codekvast uploaded %d added and %d removed methods (%s) to %s",
+                                      delta.getAddedEntries().size(), delta.getRemovedSignatures().size(),
+                                      LogUtil.humanReadableByteCount(body.getBytesWritten()), url));
+            return true;
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() != 404 && e.getStatusCode() != 409) {
+                throw new CodekvastPublishingException("Cannot upload code base delta to " + url, e);
+            }
+            // The server does not know the base, or does not support deltas.
+            logger.fine("Codekvast could not upload a code base delta to " + url + ", uploading the full code base: " + e);
+            return false;
         } catch (IOException e) {
-            throw new CodekvastPublishingException("Cannot upload code base to " + url, e);
-        } finally {
-            FileUtils.safeDelete(file);
+            throw new CodekvastPublishingException("Cannot upload code base delta to " + url, e);
         }
     }
 
@@ -22,19 +22,37 @@
 package io.codekvast.javaagent.publishing.impl;
 
 import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.model.v2.CommonPublicationData2;
 import io.codekvast.javaagent.model.v2.InvocationDataPublication2;
+import io.codekvast.javaagent.model.v3.InvocationDataPublication3;
+import io.codekvast.javaagent.model.v3.MethodIdMapping3;
+import io.codekvast.javaagent.model.v3.PublicationReader3;
 import io.codekvast.javaagent.publishing.CodekvastPublishingException;
-import io.codekvast.javaagent.util.FileUtils;
 import io.codekvast.javaagent.util.LogUtil;
 import lombok.extern.java.Log;
+import okhttp3.*;
 
 import java.io.File;
-import java.util.Set;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+import static io.codekvast.javaagent.model.Endpoints.Agent.PARAM_FINGERPRINT;
+import static io.codekvast.javaagent.model.Endpoints.Agent.PARAM_LICENSE_KEY;
 
 /**
  * A HTTP implementation of InvocationDataPublisher.
  *
- * It uses the FileSystemInvocationDataPublisherImpl for creating a file, which then is POSTed to the server.
+ * The publication is serialized straight into the POST request, or into a temporary file which then is POSTed to the
+ * server.
+ *
+ * When the server has imported the code base, it is asked for the ids of its methods. The invocations are then published
+ * as method ids in the v3 format, except for the signatures that have no id.
+ *
+ * Invocation data that cannot be uploaded because of a network or server problem is put in an
+ * {@link InvocationDataSpool}, from which the scheduler replays it once the server is reachable again. Invocation data
+ * that the server rejects, e.g. because of a license violation, is not spooled, and is dropped from the spool if it is
+ * rejected when replayed.
  *
  * @author olle.hallin@crisp.se
  */
@@ -43,8 +61,26 @@ public class HttpInvocationDataPublisherImpl extends AbstractInvocationDataPubli
 
     static final String NAME = "http";
 
+    static final long MIN_METHOD_IDS_FETCH_DELAY_MILLIS = 60 * 1000L;
+    static final long MAX_METHOD_IDS_FETCH_DELAY_MILLIS = 60 * 60 * 1000L;
+
+    // Null if spooling is disabled
+    private final InvocationDataSpool spool;
+
+    // Null until the server has returned the method ids of the current code base
+    private MethodIds methodIds;
+
+    // The code base of methodIds, and whether some invoked method of it had no id
+    private String methodIdsFingerprint;
+    private boolean methodIdsIncomplete;
+
+    // The server is asked again after an increasing delay, since the code base may not have been imported yet
+    private long methodIdsFetchDelayMillis;
+    private long nextMethodIdsFetchAtMillis;
+
     HttpInvocationDataPublisherImpl(AgentConfig config) {
         super(logger, config);
+        this.spool = InvocationDataSpool.open(config);
     }
 
     @Override
@@ -53,8 +89,8 @@ public class HttpInvocationDataPublisherImpl extends AbstractInvocationDataPubli
     }
 
     @Override
-    void doPublishInvocationData(long recordingIntervalStartedAtMillis, Set<String> invocations)
-        throws CodekvastPublishingException {
+    void doPublishInvocationData(long recordingIntervalStartedAtMillis, Set<String> invocations,
+                                 Map<String, Long> invocationCounts) throws CodekvastPublishingException {
 
         if (invocations.isEmpty()) {
             logger.fine("Codekvast detected no invocations to publish");
@@ -62,34 +98,229 @@ public class HttpInvocationDataPublisherImpl extends AbstractInvocationDataPubli
         }
 
         String url = getConfig().getInvocationDataUploadEndpoint();
-        File file = null;
         try {
-            InvocationDataPublication2 publication = createPublication(getCustomerId(), recordingIntervalStartedAtMillis, invocations);
-            file = FileUtils.serializeToFile(publication,
-                                             getConfig().getFilenamePrefix("invocations-"), ".ser");
+            MethodIds ids = getMethodIds();
+            if (ids == null) {
+                InvocationDataPublication2 publication =
+                    createPublication(getCustomerId(), recordingIntervalStartedAtMillis, invocations, invocationCounts);
+
+                long bytes = upload(publication, "invocations-", url, getCodeBaseFingerprint().toString(),
+                                    publication.getInvocations().size());
+
+                logger.fine(String.format("Codekvast uploaded %d invocations (%s) to %s", publication.getInvocations().size(),
+                                          LogUtil.humanReadableByteCount(bytes), url));
+            } else {
+                InvocationDataPublication3 publication =
+                    createPublication3(ids, getCustomerId(), recordingIntervalStartedAtMillis, invocations, invocationCounts);
+                if (!publication.getInvocations().isEmpty()) {
+                    methodIdsIncomplete = true;
+                }
 
-            doPost(file, url, getCodeBaseFingerprint().toString(), publication.getInvocations().size());
+                PublicationRequestBody body = new PublicationRequestBody(publication, getConfig().isHttpUploadCompression(), true);
+                doPost(body, getConfig().getFilenamePrefix("invocations-") + ".ckv3", url, getCodeBaseFingerprint().toString(),
+                       invocations.size());
 
-            logger.fine(String.format("Codekvast uploaded %d invocations (%s) to %s", publication.getInvocations().size(),
-                                      LogUtil.humanReadableByteCount(file.length()), url));
+                logger.fine(String.format("Codekvast uploaded %d invocations, of which %d as signatures (%s) to %s",
+                                          invocations.size(), publication.getInvocations().size(),
+                                          LogUtil.humanReadableByteCount(body.getBytesWritten()), url));
+            }
         } catch (Exception e) {
+            if (isRetryable(e)) {
+                spoolInvocationData(createPublication(getCustomerId(), recordingIntervalStartedAtMillis, invocations,
+                                                      invocationCounts));
+            }
             throw new CodekvastPublishingException("Cannot upload invocation data to " + url, e);
-        } finally {
-            FileUtils.safeDelete(file);
         }
     }
 
-    private InvocationDataPublication2 createPublication(long customerId, long recordingIntervalStartedAtMillis, Set<String> invocations) {
+    /**
+     * Replays the oldest spooled publication. Publications that the server rejects are dropped, and the next one is
+     * replayed instead.
+     */
+    @Override
+    public void publishSpooledInvocationData() throws CodekvastPublishingException {
+        if (spool == null || !isEnabled()) {
+            return;
+        }
+
+        String url = getConfig().getInvocationDataUploadEndpoint();
+        File claimed;
+        while ((claimed = spool.claimOldest()) != null) {
+            try {
+                InvocationDataPublication2 publication = spool.read(claimed);
+                if (publication != null) {
+                    long bytes = upload(publication, "invocations-", url,
+                                        publication.getCommonData().getCodeBaseFingerprint(),
+                                        publication.getInvocations().size());
+                    spool.remove(claimed);
+
+                    logger.fine(String.format("Codekvast uploaded %d spooled invocations recorded since %tF %<tT " +
+                                                  "(%s) to %s",
+                                              publication.getInvocations().size(),
+                                              new Date(publication.getRecordingIntervalStartedAtMillis()),
+                                              LogUtil.humanReadableByteCount(bytes), url));
+                    return;
+                }
+            } catch (Exception e) {
+                if (isRetryable(e)) {
+                    spool.release(claimed);
+                    throw new CodekvastPublishingException("Cannot upload spooled invocation data to " + url, e);
+                }
+                logger.warning(String.format("Codekvast dropped %s, since %s rejected it: %s", claimed, url, e));
+                spool.remove(claimed);
+            }
+        }
+    }
+
+    /**
+     * Network problems and server errors may go away by themselves. Rejections by the server and failures to create the
+     * publication will not.
+     */
+    private static boolean isRetryable(Exception e) {
+        if (e instanceof HttpResponseException) {
+            return ((HttpResponseException) e).isRetryable();
+        }
+        return e instanceof IOException;
+    }
+
+    private void spoolInvocationData(InvocationDataPublication2 publication) {
+        if (spool != null) {
+            try {
+                spool.spool(publication);
+                logger.fine("Codekvast spooled " + publication.getInvocations().size() + " invocations");
+            } catch (IOException e) {
+                logger.warning("Codekvast cannot spool invocation data: " + e);
+            }
+        }
+    }
+
+    private InvocationDataPublication2 createPublication(long customerId, long recordingIntervalStartedAtMillis, Set<String> invocations,
+                                                         Map<String, Long> invocationCounts) {
 
         return InvocationDataPublication2.builder()
-                                         .commonData(getConfig().commonPublicationData().toBuilder()
-                                                                .codeBaseFingerprint(getCodeBaseFingerprint().toString())
-                                                                .customerId(customerId)
-                                                                .sequenceNumber(this.getSequenceNumber())
-                                                                .build())
+                                         .commonData(createCommonData(customerId))
                                          .recordingIntervalStartedAtMillis(recordingIntervalStartedAtMillis)
                                          .invocations(invocations)
+                                         .invocationCounts(invocationCounts)
                                          .build();
     }
 
+    private InvocationDataPublication3 createPublication3(MethodIds ids, long customerId, long recordingIntervalStartedAtMillis,
+                                                          Set<String> invocations, Map<String, Long> invocationCounts) {
+        // Pairs of method id and invocation count, sorted by method id
+        long[][] invokedMethods = new long[invocations.size()][];
+        int numInvokedMethods = 0;
+        Set<String> signatures = new HashSet<>();
+        Map<String, Long> signatureCounts = invocationCounts == null ? null : new HashMap<String, Long>();
+
+        for (String signature : invocations) {
+            Long count = invocationCounts == null ? null : invocationCounts.get(signature);
+            long methodId = ids.getMethodId(signature);
+            if (methodId != MethodIds.NO_ID) {
+                invokedMethods[numInvokedMethods++] = new long[]{methodId, count == null ? 1L : count};
+            } else {
+                signatures.add(signature);
+                if (signatureCounts != null && count != null) {
+                    signatureCounts.put(signature, count);
+                }
+            }
+        }
+
+        Arrays.sort(invokedMethods, 0, numInvokedMethods, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] o1, long[] o2) {
+                return Long.compare(o1[0], o2[0]);
+            }
+        });
+        long[] methodIds = new long[numInvokedMethods];
+        long[] methodCounts = invocationCounts == null ? null : new long[numInvokedMethods];
+        for (int i = 0; i < numInvokedMethods; i++) {
+            methodIds[i] = invokedMethods[i][0];
+            if (methodCounts != null) {
+                methodCounts[i] = invokedMethods[i][1];
+            }
+        }
+
+        return InvocationDataPublication3.builder()
+                                         .commonData(createCommonData(customerId))
+                                         .recordingIntervalStartedAtMillis(recordingIntervalStartedAtMillis)
+                                         .invokedMethodIds(methodIds)
+                                         .methodInvocationCounts(methodCounts)
+                                         .invocations(signatures)
+                                         .invocationCounts(signatureCounts)
+                                         .build();
+    }
+
+    private CommonPublicationData2 createCommonData(long customerId) {
+        return getConfig().commonPublicationData().toBuilder()
+                          .codeBaseFingerprint(getCodeBaseFingerprint().toString())
+                          .customerId(customerId)
+                          .sequenceNumber(this.getSequenceNumber())
+                          .build();
+    }
+
+    /**
+     * Gets the method ids of the current code base. They are fetched at once for a new code base. If the server has no
+     * method ids, or if they lack some invoked method, they are fetched again after a delay that doubles each time.
+     *
+     * @return The method ids of the current code base, or null if not known by the server.
+     */
+    private MethodIds getMethodIds() {
+        if (!getConfig().isMethodIdPublishing()) {
+            return null;
+        }
+
+        String fingerprint = getCodeBaseFingerprint().toString();
+        if (!fingerprint.equals(methodIdsFingerprint)) {
+            methodIds = null;
+            methodIdsFingerprint = fingerprint;
+            methodIdsIncomplete = false;
+            methodIdsFetchDelayMillis = MIN_METHOD_IDS_FETCH_DELAY_MILLIS;
+            nextMethodIdsFetchAtMillis = 0L;
+        }
+
+        long now = currentTimeMillis();
+        if ((methodIds == null || methodIdsIncomplete) && now >= nextMethodIdsFetchAtMillis) {
+            MethodIds fetched = fetchMethodIds(fingerprint);
+            if (fetched != null) {
+                methodIds = fetched;
+                methodIdsIncomplete = false;
+            }
+            nextMethodIdsFetchAtMillis = now + methodIdsFetchDelayMillis;
+            methodIdsFetchDelayMillis = Math.min(methodIdsFetchDelayMillis * 2, MAX_METHOD_IDS_FETCH_DELAY_MILLIS);
+        }
+        return methodIds;
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private MethodIds fetchMethodIds(String fingerprint) {
+        String url = getConfig().getMethodIdsEndpoint();
+        RequestBody requestBody = new FormBody.Builder()
+            .add(PARAM_LICENSE_KEY, getConfig().getLicenseKey())
+            .add(PARAM_FINGERPRINT, fingerprint)
+            .build();
+
+        Request request = new Request.Builder().url(url).post(requestBody).build();
+        try (Response response = executeRequest(request)) {
+            if (!response.isSuccessful()) {
+                // Not imported yet, or an older server.
+                logger.fine("Codekvast got no method ids from " + url + ": " + response.code());
+                return null;
+            }
+
+            MethodIds result;
+            try (InputStream inputStream = response.body().byteStream()) {
+                result = MethodIds.of((MethodIdMapping3) PublicationReader3.readPublication(inputStream));
+            }
+            logger.fine(String.format("Codekvast got %d method ids from %s", result.size(), url));
+            return result;
+        } catch (IOException | ClassCastException e) {
+            logger.fine("Codekvast cannot get method ids from " + url + ": " + e);
+            return null;
+        }
+    }
+
 }
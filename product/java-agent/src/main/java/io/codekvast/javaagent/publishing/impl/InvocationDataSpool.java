@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.publishing.impl;
+
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.model.v2.InvocationDataPublication2;
+import io.codekvast.javaagent.model.v3.PublicationFormat3;
+import io.codekvast.javaagent.model.v3.PublicationReader3;
+import io.codekvast.javaagent.model.v3.PublicationWriter3;
+import io.codekvast.javaagent.util.FileUtils;
+import lombok.extern.java.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * An on-disk spool of invocation data that could not be published, that survives restarts.
+ * <p>
+ * Each spooled publication is a file in the v3 format, named by the start of its recording interval so that the files
+ * are replayed in the order they were recorded. The files are written to a temporary file which then is atomically
+ * renamed.
+ * <p>
+ * When the spool exceeds {@code spoolMaxMegabytes}, the oldest publication is merged with the next one of the same JVM and
+ * code base. The merged publication holds the union of their signatures and the start of the older interval. Merging
+ * costs time resolution but no invocations, and the merged file is never larger than the two it replaces. If there is no
+ * such publication, the oldest one is dropped instead.
+ * <p>
+ * JVMs of the same app on the same host share the spool. A publication is therefore claimed by renaming its file before
+ * it is replayed or merged. A claim left by a JVM that died while replaying is released after a while.
+ * <p>
+ * The spooled publications are replayed with the license key of this agent, so the spool directory must be private to
+ * the user running the JVM. A directory owned by someone else is not used.
+ * <p>
+ * Not thread-safe. It is only used by the thread that publishes invocation data.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@Log
+class InvocationDataSpool {
+
+    private static final String ENTRY_PREFIX = "invocations-";
+    private static final String ENTRY_SUFFIX = ".ckv3";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String CLAIMED_SUFFIX = ".claimed";
+    private static final long STALE_FILE_MILLIS = 60 * 60 * 1000L;
+
+    private final File directory;
+    private final long maxBytes;
+
+    InvocationDataSpool(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Opens the spool.
+     *
+     * @param config The agent config.
+     * @return A spool, or null if spooling is disabled or the spool directory cannot be used.
+     */
+    static InvocationDataSpool open(AgentConfig config) {
+        File directory = config.getSpoolDirectory();
+        if (directory == null) {
+            return null;
+        }
+        if (!FileUtils.mkdirsPrivate(directory.getParentFile()) || !FileUtils.mkdirsPrivate(directory)) {
+            logger.warning("Cannot use " + directory + " as a private directory, not spooling invocation data");
+            return null;
+        }
+        return new InvocationDataSpool(directory, config.getSpoolMaxMegabytes() * 1024L * 1024L);
+    }
+
+    /**
+     * Adds a publication to the spool, and merges old publications if the spool is too large.
+     *
+     * @param publication The publication that could not be published.
+     * @throws IOException If the publication cannot be written.
+     */
+    void spool(InvocationDataPublication2 publication) throws IOException {
+        write(publication, null);
+        trim();
+    }
+
+    /**
+     * Claims the oldest spooled publication, so that no other JVM replays it.
+     *
+     * @return The claimed file, or null if the spool is empty.
+     */
+    File claimOldest() {
+        for (File file : listEntries()) {
+            File claimed = claim(file);
+            if (claimed != null) {
+                return claimed;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a spooled publication. A file that cannot be read is removed from the spool.
+     *
+     * @param file A spooled file, or a file returned by {@link #claimOldest()}.
+     * @return The publication, or null if the file cannot be read.
+     */
+    InvocationDataPublication2 read(File file) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return (InvocationDataPublication2) PublicationReader3.readPublication(in);
+        } catch (IOException | ClassCastException e) {
+            logger.warning("Codekvast dropped unreadable spooled invocation data " + file + ": " + e);
+            FileUtils.safeDelete(file);
+            return null;
+        }
+    }
+
+    /**
+     * Removes a claimed publication that has been replayed.
+     */
+    void remove(File claimed) {
+        FileUtils.safeDelete(claimed);
+    }
+
+    /**
+     * Returns a claimed publication to the spool, so that it is replayed again later.
+     */
+    void release(File claimed) {
+        String name = claimed.getName();
+        //noinspection ResultOfMethodCallIgnored
+        claimed.renameTo(new File(directory, name.substring(0, name.length() - CLAIMED_SUFFIX.length())));
+    }
+
+    /**
+     * @return The spooled files, oldest first.
+     */
+    List<File> listEntries() {
+        List<File> result = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            long now = System.currentTimeMillis();
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(ENTRY_SUFFIX)) {
+                    result.add(file);
+                } else if (name.endsWith(CLAIMED_SUFFIX) && file.lastModified() < now - STALE_FILE_MILLIS) {
+                    // Left by a JVM that died while replaying
+                    release(file);
+                } else if (name.endsWith(TMP_SUFFIX) && file.lastModified() < now - STALE_FILE_MILLIS) {
+                    // Left by a JVM that died while spooling
+                    FileUtils.safeDelete(file);
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private void trim() throws IOException {
+        List<File> entries = listEntries();
+        // Each round removes at least one entry from the listing, unless a file cannot be renamed
+        for (int rounds = entries.size(); rounds > 0 && entries.size() > 1 && sizeOf(entries) > maxBytes; rounds--) {
+            trimOldest(entries);
+            entries = listEntries();
+        }
+
+        if (sizeOf(entries) > maxBytes) {
+            logger.warning(String.format("Codekvast dropped spooled invocation data %s, since it is larger than %d bytes",
+                                         entries, maxBytes));
+            for (File file : entries) {
+                FileUtils.safeDelete(file);
+            }
+        }
+    }
+
+    /**
+     * Merges the oldest publication with the next one of the same JVM and code base, or drops it if there is none. Both
+     * files are claimed while they are merged.
+     */
+    private void trimOldest(List<File> entries) throws IOException {
+        File olderFile = claim(entries.get(0));
+        InvocationDataPublication2 older = olderFile == null ? null : read(olderFile);
+        if (older == null) {
+            // Claimed by another JVM in the meantime, or unreadable and thus already dropped
+            return;
+        }
+
+        for (File file : entries.subList(1, entries.size())) {
+            File newerFile = claim(file);
+            InvocationDataPublication2 newer = newerFile == null ? null : read(newerFile);
+            if (newer == null) {
+                continue;
+            }
+
+            InvocationDataPublication2 merged = merge(older, newer);
+            if (merged == null) {
+                release(newerFile);
+                continue;
+            }
+
+            try {
+                write(merged, olderFile);
+            } catch (IOException e) {
+                release(newerFile);
+                release(olderFile);
+                throw e;
+            }
+            remove(newerFile);
+            release(olderFile);
+            return;
+        }
+
+        logger.warning("Codekvast dropped spooled invocation data " + entries.get(0) + ", since the spool is full");
+        remove(olderFile);
+    }
+
+    /**
+     * Merges two successive publications of the same JVM and code base.
+     *
+     * @return The merged publication, or null if the publications are of different JVMs or code bases.
+     */
+    static InvocationDataPublication2 merge(InvocationDataPublication2 older, InvocationDataPublication2 newer) {
+        if (!older.getCommonData().getJvmUuid().equals(newer.getCommonData().getJvmUuid()) ||
+            !older.getCommonData().getCodeBaseFingerprint().equals(newer.getCommonData().getCodeBaseFingerprint())) {
+            return null;
+        }
+        Set<String> invocations = new HashSet<>(older.getInvocations());
+        invocations.addAll(newer.getInvocations());
+
+        Map<String, Long> invocationCounts = null;
+        if (older.getInvocationCounts() != null && newer.getInvocationCounts() != null) {
+            invocationCounts = new HashMap<>(older.getInvocationCounts());
+            for (Map.Entry<String, Long> entry : newer.getInvocationCounts().entrySet()) {
+                Long count = invocationCounts.get(entry.getKey());
+                invocationCounts.put(entry.getKey(), count == null ? entry.getValue()
+                                                                   : entry.getValue() == null ? count : count + entry.getValue());
+            }
+        }
+
+        return InvocationDataPublication2.builder()
+                                         .commonData(newer.getCommonData())
+                                         .recordingIntervalStartedAtMillis(older.getRecordingIntervalStartedAtMillis())
+                                         .invocations(invocations)
+                                         .invocationCounts(invocationCounts)
+                                         .build();
+    }
+
+    private File claim(File file) {
+        File claimed = new File(directory, file.getName() + CLAIMED_SUFFIX);
+        if (!file.renameTo(claimed)) {
+            // Claimed by another JVM in the meantime
+            return null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        claimed.setLastModified(System.currentTimeMillis());
+        return claimed;
+    }
+
+    private static long sizeOf(List<File> files) {
+        long result = 0L;
+        for (File file : files) {
+            result += file.length();
+        }
+        return result;
+    }
+
+    /**
+     * Writes a publication to a new file, or replaces an existing one.
+     */
+    private File write(InvocationDataPublication2 publication, File existingFile) throws IOException {
+        File tmpFile = File.createTempFile(
+            String.format("%s%013d-", ENTRY_PREFIX, publication.getRecordingIntervalStartedAtMillis()), TMP_SUFFIX, directory);
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+                PublicationWriter3.writePublication(publication, out, PublicationFormat3.Envelope.GZIP);
+            }
+
+            String tmpName = tmpFile.getName();
+            File file = existingFile != null ? existingFile
+                                             : new File(directory, tmpName.substring(0, tmpName.length() - TMP_SUFFIX.length()) +
+                                                 ENTRY_SUFFIX);
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return file;
+        } finally {
+            FileUtils.safeDelete(tmpFile);
+        }
+    }
+}
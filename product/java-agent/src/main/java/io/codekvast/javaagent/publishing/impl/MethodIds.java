@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.publishing.impl;
+
+import io.codekvast.javaagent.model.v3.MethodIdMapping3;
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * The method ids of the current code base, as assigned by the server.
+ * <p>
+ * The signatures are not retained. Each one is represented by a 64-bit hash, and the hashes are kept in a sorted array
+ * with the method ids in a parallel array. Signatures whose hashes collide get no id, and are thus published as strings.
+ * <p>
+ * A signature outside of the mapping could still have the hash of one inside it, and would then be published as the
+ * wrong method. Each id is therefore stored together with a second, independent 64-bit hash of its signature, which is
+ * verified by the lookup. A signature that fails the verification gets no id, and is published as a string.
+ *
+ * @author olle.hallin@crisp.se
+ */
+class MethodIds {
+
+    static final long NO_ID = -1L;
+
+    @Getter
+    private final String codeBaseFingerprint;
+
+    private final long[] hashes;
+    private final long[] checks;
+    private final long[] methodIds;
+
+    MethodIds(String codeBaseFingerprint, long[] hashes, long[] checks, long[] methodIds) {
+        this.codeBaseFingerprint = codeBaseFingerprint;
+        this.hashes = hashes;
+        this.checks = checks;
+        this.methodIds = methodIds;
+    }
+
+    static MethodIds of(MethodIdMapping3 mapping) {
+        int size = mapping.getMethodIds().size();
+        long[][] pairs = new long[size][];
+        int i = 0;
+        for (Map.Entry<String, Long> entry : mapping.getMethodIds().entrySet()) {
+            pairs[i++] = new long[]{hash(entry.getKey()), check(entry.getKey()), entry.getValue()};
+        }
+        Arrays.sort(pairs, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] o1, long[] o2) {
+                return Long.compare(o1[0], o2[0]);
+            }
+        });
+
+        long[] hashes = new long[size];
+        long[] checks = new long[size];
+        long[] methodIds = new long[size];
+        int count = 0;
+        for (i = 0; i < size; i++) {
+            boolean collides = (i > 0 && pairs[i - 1][0] == pairs[i][0]) || (i < size - 1 && pairs[i + 1][0] == pairs[i][0]);
+            if (!collides) {
+                hashes[count] = pairs[i][0];
+                checks[count] = pairs[i][1];
+                methodIds[count] = pairs[i][2];
+                count += 1;
+            }
+        }
+        return new MethodIds(mapping.getCodeBaseFingerprint(), Arrays.copyOf(hashes, count),
+                             Arrays.copyOf(checks, count), Arrays.copyOf(methodIds, count));
+    }
+
+    /**
+     * @param signature A canonical signature.
+     * @return The method id of the signature, or {@link #NO_ID} if it is not in the mapping.
+     */
+    long getMethodId(String signature) {
+        int index = Arrays.binarySearch(hashes, hash(signature));
+        return index < 0 || checks[index] != check(signature) ? NO_ID : methodIds[index];
+    }
+
+    int size() {
+        return hashes.length;
+    }
+
+    /**
+     * 64-bit FNV-1a of the chars of a string.
+     */
+    static long hash(String s) {
+        long result = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            result ^= s.charAt(i);
+            result *= 0x100000001b3L;
+        }
+        return result;
+    }
+
+    /**
+     * A 64-bit polynomial hash of the chars of a string, with the bits mixed by the MurmurHash3 finalizer. It is
+     * independent of {@link #hash(String)}.
+     */
+    static long check(String s) {
+        long result = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            result = result * 0x9e3779b97f4a7c15L + s.charAt(i);
+        }
+        result ^= result >>> 33;
+        result *= 0xff51afd7ed558ccdL;
+        result ^= result >>> 33;
+        result *= 0xc4ceb9fe1a85ec53L;
+        result ^= result >>> 33;
+        return result;
+    }
+}
@@ -24,6 +24,7 @@ package io.codekvast.javaagent.publishing.impl;
 import io.codekvast.javaagent.config.AgentConfig;
 import lombok.extern.java.Log;
 
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -45,7 +46,8 @@ public class NoOpInvocationDataPublisherImpl extends AbstractInvocationDataPubli
     }
 
     @Override
-    public void doPublishInvocationData(long recordingIntervalStartedAtMillis, Set<String> invocations) {
+    public void doPublishInvocationData(long recordingIntervalStartedAtMillis, Set<String> invocations,
+                                        Map<String, Long> invocationCounts) {
         // Nothing here
     }
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.publishing.impl;
+
+import io.codekvast.javaagent.metrics.AgentMetrics;
+import io.codekvast.javaagent.model.v3.PublicationFormat3;
+import io.codekvast.javaagent.model.v3.PublicationWriter3;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A request body that serializes a publication straight into the HTTP request, optionally gzipped.
+ * <p>
+ * The publication is either Java-serialized or written in the compact v3 format. In the latter case the compression is
+ * done by the gzip envelope of the v3 format.
+ * <p>
+ * The length is unknown in advance, so the request is sent with chunked transfer encoding. The publication is serialized
+ * again if OkHttp retries the request.
+ *
+ * @author olle.hallin@crisp.se
+ */
+class PublicationRequestBody extends RequestBody {
+
+    static final MediaType APPLICATION_OCTET_STREAM = MediaType.parse("application/octet-stream");
+
+    private final Serializable publication;
+    private final boolean compressed;
+    private final boolean format3;
+
+    private long bytesWritten;
+
+    PublicationRequestBody(Serializable publication, boolean compressed, boolean format3) {
+        this.publication = publication;
+        this.compressed = compressed;
+        this.format3 = format3;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return APPLICATION_OCTET_STREAM;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        long startedAt = System.currentTimeMillis();
+        CountingOutputStream counter = new CountingOutputStream(sink.outputStream());
+        if (format3) {
+            PublicationWriter3.writePublication(publication, counter, compressed ? PublicationFormat3.Envelope.GZIP
+                                                                                : PublicationFormat3.Envelope.NONE);
+        } else {
+            OutputStream out = compressed ? new GZIPOutputStream(counter, 8192) : new BufferedOutputStream(counter);
+
+            // Closing the chain finishes the gzip stream, but leaves the sink open for the rest of the multipart body.
+            try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+                oos.writeObject(publication);
+            }
+        }
+        bytesWritten = counter.count;
+        AgentMetrics.instance.serialized(System.currentTimeMillis() - startedAt, bytesWritten);
+    }
+
+    /**
+     * @return The number of bytes written to the request by the last {@link #writeTo(BufferedSink)}.
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The sink is owned by OkHttp
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.publishing.impl;
+
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.model.v2.CodeBasePublication2;
+import io.codekvast.javaagent.model.v3.PublicationFormat3;
+import io.codekvast.javaagent.model.v3.PublicationReader3;
+import io.codekvast.javaagent.model.v3.PublicationWriter3;
+import io.codekvast.javaagent.util.FileUtils;
+import lombok.extern.java.Log;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The last code base publication that the server has acknowledged, which is the base of code base deltas.
+ * <p>
+ * It is kept in the scan cache directory, so that the first publication after a restart with a changed code base can be
+ * a delta, and so that it does not occupy the heap between publications. If the scan cache is disabled, it is kept in
+ * memory instead.
+ * <p>
+ * Not thread-safe. It is only used by the thread that publishes the code base.
+ *
+ * @author olle.hallin@crisp.se
+ */
+@Log
+class PublishedCodeBase {
+
+    private static final String FILE_SUFFIX = ".ckv3";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    // Null if the scan cache is disabled
+    private final File file;
+
+    // Only used if the scan cache is disabled
+    private CodeBasePublication2 publication;
+
+    PublishedCodeBase(AgentConfig config) {
+        this.file = config.getScanCacheFile("published-", FILE_SUFFIX);
+    }
+
+    /**
+     * @return The last acknowledged publication, or null if unknown.
+     */
+    CodeBasePublication2 get() {
+        return file == null ? publication : load();
+    }
+
+    /**
+     * Remembers a publication that the server has acknowledged.
+     *
+     * @param publication The publication.
+     */
+    void acknowledged(CodeBasePublication2 publication) {
+        if (file == null) {
+            this.publication = publication;
+        } else {
+            save(publication);
+        }
+    }
+
+    private CodeBasePublication2 load() {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(file))) {
+            return (CodeBasePublication2) PublicationReader3.readPublication(inputStream);
+        } catch (IOException | ClassCastException e) {
+            logger.fine("Cannot read " + file + ": " + e);
+            return null;
+        }
+    }
+
+    private void save(CodeBasePublication2 publication) {
+        File tmpFile = null;
+        try {
+            File directory = file.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            tmpFile = File.createTempFile(file.getName(), TMP_SUFFIX, directory);
+            try (OutputStream outputStream = new FileOutputStream(tmpFile)) {
+                PublicationWriter3.writePublication(publication, outputStream, PublicationFormat3.Envelope.GZIP);
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.fine("Cannot write " + file + ": " + e);
+            FileUtils.safeDelete(tmpFile);
+        }
+    }
+}
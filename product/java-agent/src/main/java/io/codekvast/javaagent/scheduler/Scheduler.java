@@ -25,6 +25,7 @@ import io.codekvast.javaagent.CodekvastThreadFactory;
 import io.codekvast.javaagent.InvocationRegistry;
 import io.codekvast.javaagent.appversion.AppVersionResolver;
 import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.metrics.AgentMetrics;
 import io.codekvast.javaagent.model.v1.rest.GetConfigResponse1;
 import io.codekvast.javaagent.publishing.CodeBasePublisher;
 import io.codekvast.javaagent.publishing.CodeBasePublisherFactory;
@@ -37,24 +38,33 @@ import lombok.extern.java.Log;
 
 import java.io.File;
 import java.util.Date;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Responsible for executing recurring tasks within the agent.
+ * <p>
+ * Config polling and invocation data publishing are done by the scheduler thread. Code base publishing, which may involve
+ * a long-running scan, is handed over to a worker thread of lower priority, so that it never delays the others.
  *
  * @author olle.hallin@crisp.se
  */
 @SuppressWarnings("ClassWithTooManyFields")
 @Log
 public class Scheduler implements Runnable {
+    private static final int FIRST_CODE_BASE_TIMEOUT_SECONDS = 10;
+
     // Collaborators
     private final AgentConfig config;
     private final ConfigPoller configPoller;
     private final CodeBasePublisherFactory codeBasePublisherFactory;
     private final InvocationDataPublisherFactory invocationDataPublisherFactory;
     private final ScheduledExecutorService executor;
+    private final ExecutorService codeBaseExecutor;
     private final SystemClock systemClock;
 
     // Mutable state
@@ -64,21 +74,38 @@ public class Scheduler implements Runnable {
     private final SchedulerState pollState;
 
     private final SchedulerState codeBasePublisherState;
-    private CodeBasePublisher codeBasePublisher;
+    private volatile CodeBasePublisher codeBasePublisher;
+    private final AtomicBoolean codeBasePublishingInProgress = new AtomicBoolean();
 
     private final SchedulerState invocationDataPublisherState;
     private InvocationDataPublisher invocationDataPublisher;
 
+    private final SchedulerState spooledInvocationDataPublisherState;
+
     public Scheduler(AgentConfig config,
                      ConfigPoller configPoller,
                      CodeBasePublisherFactory codeBasePublisherFactory,
                      InvocationDataPublisherFactory invocationDataPublisherFactory,
                      SystemClock systemClock) {
+        this(config, configPoller, codeBasePublisherFactory, invocationDataPublisherFactory, systemClock,
+             Executors.newSingleThreadExecutor(CodekvastThreadFactory.builder()
+                                                                     .name("code base publisher")
+                                                                     .relativePriority(-2)
+                                                                     .build()));
+    }
+
+    Scheduler(AgentConfig config,
+              ConfigPoller configPoller,
+              CodeBasePublisherFactory codeBasePublisherFactory,
+              InvocationDataPublisherFactory invocationDataPublisherFactory,
+              SystemClock systemClock,
+              ExecutorService codeBaseExecutor) {
         this.config = config;
         this.configPoller = configPoller;
         this.codeBasePublisherFactory = codeBasePublisherFactory;
         this.invocationDataPublisherFactory = invocationDataPublisherFactory;
         this.systemClock = systemClock;
+        this.codeBaseExecutor = codeBaseExecutor;
 
         this.pollState = new SchedulerState("configPoll", systemClock)
             .initialize(10, 10);
@@ -89,6 +116,11 @@ public class Scheduler implements Runnable {
         this.invocationDataPublisherState = new SchedulerState("invocationData", systemClock)
             .initialize(10, 10);
 
+        this.spooledInvocationDataPublisherState = new SchedulerState("spooledInvocationData", systemClock)
+            .initialize(config.getSpoolReplayIntervalSeconds(), config.getSpoolReplayIntervalSeconds());
+        // Spooled by an earlier JVM; give the first publishing a head start.
+        this.spooledInvocationDataPublisherState.scheduleNextWithJitter();
+
         this.executor = Executors.newScheduledThreadPool(1,
                                                          CodekvastThreadFactory.builder()
                                                                                .name("scheduler")
@@ -112,7 +144,12 @@ public class Scheduler implements Runnable {
     }
 
     /**
-     * Shuts down the scheduler. Performs a last publishing before returning.
+     * Shuts down the scheduler. Performs a last invocation data publishing before returning.
+     * <p>
+     * The code base is not checked for changes, since that would delay the JVM shutdown by a code base traversal and
+     * possibly a scan. A code base publishing in progress is abandoned, unless no code base has been published yet. The
+     * invocation data cannot be published before the code base, so then the code base worker is given at most
+     * {@value #FIRST_CODE_BASE_TIMEOUT_SECONDS} seconds to publish it.
      */
     public void shutdown() {
         long startedAt = systemClock.currentTimeMillis();
@@ -126,17 +163,41 @@ public class Scheduler implements Runnable {
                 logger.fine("Stop interrupted");
             }
 
+            // dynamicConfig is set by the first successful config poll
+            if (dynamicConfig != null && codeBasePublisher.getCodeBaseFingerprint() == null) {
+                awaitFirstCodeBase();
+            }
+            codeBaseExecutor.shutdownNow();
+            if (codeBasePublisher != null) {
+                codeBasePublisher.close();
+            }
+
             if (dynamicConfig != null) {
-                // We have done at least one successful config poll
+                publishLastInvocationData();
+            }
+        }
+        logger.info(String.format("Codekvast scheduler stopped in %d ms", systemClock.currentTimeMillis() - startedAt));
+    }
 
-                codeBasePublisherState.scheduleNow();
-                publishCodeBaseIfNeeded();
+    private void awaitFirstCodeBase() {
+        if (codeBasePublishingInProgress.compareAndSet(false, true)) {
+            codeBasePublisherState.scheduleNow();
+            executeCodeBasePublishing();
+        }
 
-                invocationDataPublisherState.scheduleNow();
-                publishInvocationDataIfNeeded();
+        codeBaseExecutor.shutdown();
+        try {
+            if (!codeBaseExecutor.awaitTermination(FIRST_CODE_BASE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.info("The code base was not published in time, the last invocation data is not published");
             }
+        } catch (InterruptedException e) {
+            logger.fine("Waiting for the code base publishing was interrupted");
         }
-        logger.info(String.format("Codekvast scheduler stopped in %d ms", systemClock.currentTimeMillis() - startedAt));
+    }
+
+    private void publishLastInvocationData() {
+        invocationDataPublisherState.scheduleNow();
+        publishInvocationDataIfNeeded();
     }
 
     @Override
@@ -164,6 +225,7 @@ public class Scheduler implements Runnable {
                 pollDynamicConfigIfNeeded();
                 publishCodeBaseIfNeeded();
                 publishInvocationDataIfNeeded();
+                publishSpooledInvocationDataIfNeeded();
             } catch (Throwable t) {
                 //noinspection UseOfSystemOutOrSystemErr
                 System.err.println("Codekvast scheduler failure: " + t);
@@ -210,6 +272,9 @@ public class Scheduler implements Runnable {
 
         String newName = dynamicConfig.getCodeBasePublisherName();
         if (codeBasePublisher == null || !newName.equals(codeBasePublisher.getName())) {
+            if (codeBasePublisher != null) {
+                codeBasePublisher.close();
+            }
             codeBasePublisher = codeBasePublisherFactory.create(newName, config);
             codeBasePublisherState.scheduleNow();
         }
@@ -237,16 +302,47 @@ public class Scheduler implements Runnable {
     }
 
     private void publishCodeBaseIfNeeded() {
-        if (codeBasePublisherState.isDueTime() && dynamicConfig != null) {
+        if (dynamicConfig != null && codeBasePublisherState.isDueTime() && codeBasePublishingInProgress.compareAndSet(false, true)) {
+            executeCodeBasePublishing();
+        }
+    }
+
+    /**
+     * Hands over the code base publishing to the code base worker. The caller must have set the in-progress flag.
+     */
+    private void executeCodeBasePublishing() {
+        try {
+            codeBaseExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    publishCodeBase();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.fine("Code base publisher is shut down");
+            codeBasePublishingInProgress.set(false);
+        }
+    }
+
+    /**
+     * Publishes the code base, and then clears the in-progress flag that the caller has set.
+     */
+    private void publishCodeBase() {
+        try {
             logger.finer("Checking if code base needs to be published...");
 
+            long startedAt = systemClock.currentTimeMillis();
             try {
                 codeBasePublisher.publishCodeBase();
+                AgentMetrics.instance.codeBasePublished(systemClock.currentTimeMillis() - startedAt);
                 codeBasePublisherState.scheduleNext();
             } catch (Exception e) {
                 LogUtil.logException(logger, "Failed to publish code base", e);
+                AgentMetrics.instance.codeBasePublishingFailed();
                 codeBasePublisherState.scheduleRetry();
             }
+        } finally {
+            codeBasePublishingInProgress.set(false);
         }
     }
 
@@ -259,16 +355,47 @@ public class Scheduler implements Runnable {
                 invocationDataPublisher.setCodeBaseFingerprint(codeBasePublisher.getCodeBaseFingerprint());
             }
 
+            long startedAt = systemClock.currentTimeMillis();
             try {
                 InvocationRegistry.instance.publishInvocationData(invocationDataPublisher);
+                AgentMetrics.instance.invocationDataPublished(systemClock.currentTimeMillis() - startedAt);
+                if (invocationDataPublisherState.getNumFailures() > 0) {
+                    // The server is back. Let the agents replay their spools at different points in time.
+                    spooledInvocationDataPublisherState.scheduleNextWithJitter();
+                }
                 invocationDataPublisherState.scheduleNext();
             } catch (Exception e) {
                 LogUtil.logException(logger, "Failed to publish invocation data", e);
+                AgentMetrics.instance.invocationDataPublishingFailed();
                 invocationDataPublisherState.scheduleRetry();
             }
         }
     }
 
+    /**
+     * Publishes one spooled publication of invocation data, if invocation data can be published at the moment.
+     * <p>
+     * The spool is replayed one publication per {@code spoolReplayIntervalSeconds} with some jitter, so that a server that
+     * recovers from an outage is not hit by the backlog of all agents at once.
+     */
+    private void publishSpooledInvocationDataIfNeeded() {
+        if (invocationDataPublisher != null && invocationDataPublisherState.getNumFailures() == 0 &&
+            spooledInvocationDataPublisherState.isDueTime()) {
+            logger.finer("Checking if spooled invocation data needs to be published...");
+
+            try {
+                invocationDataPublisher.publishSpooledInvocationData();
+                spooledInvocationDataPublisherState.scheduleNextWithJitter();
+            } catch (Exception e) {
+                LogUtil.logException(logger, "Failed to publish spooled invocation data", e);
+                spooledInvocationDataPublisherState.scheduleRetry();
+            }
+        }
+    }
+
+    /**
+     * The state of the code base publishing is shared with the code base worker, so the methods are synchronized.
+     */
     @Getter
     @RequiredArgsConstructor
     @Log
@@ -282,7 +409,7 @@ public class Scheduler implements Runnable {
         private int retryIntervalFactor;
         private int numFailures;
 
-        SchedulerState initialize(int intervalSeconds, int retryIntervalSeconds) {
+        synchronized SchedulerState initialize(int intervalSeconds, int retryIntervalSeconds) {
             this.intervalSeconds = intervalSeconds;
             this.retryIntervalSeconds = retryIntervalSeconds;
             this.nextEventAtMillis = 0L;
@@ -295,12 +422,12 @@ public class Scheduler implements Runnable {
             this.retryIntervalFactor = 1;
         }
 
-        void updateIntervals(int intervalSeconds, int retryIntervalSeconds) {
+        synchronized void updateIntervals(int intervalSeconds, int retryIntervalSeconds) {
             this.intervalSeconds = intervalSeconds;
             this.retryIntervalSeconds = retryIntervalSeconds;
         }
 
-        void scheduleNext() {
+        synchronized void scheduleNext() {
             nextEventAtMillis = systemClock.currentTimeMillis() + intervalSeconds * 1000L;
             if (numFailures > 0) {
                 logger.fine(name + " is exiting failure state after " + numFailures + " failures");
@@ -309,12 +436,22 @@ public class Scheduler implements Runnable {
             logger.finer(name + " will execute next at " + new Date(nextEventAtMillis));
         }
 
-        void scheduleNow() {
+        /**
+         * Like {@link #scheduleNext()}, but at a random point in time between a half and one and a half intervals from now.
+         */
+        synchronized void scheduleNextWithJitter() {
+            long intervalMillis = intervalSeconds * 1000L;
+            nextEventAtMillis = systemClock.currentTimeMillis() + intervalMillis / 2 + (long) (Math.random() * intervalMillis);
+            resetRetryCounter();
+            logger.finer(name + " will execute next at " + new Date(nextEventAtMillis));
+        }
+
+        synchronized void scheduleNow() {
             nextEventAtMillis = 0L;
             logger.fine(name + " will execute now");
         }
 
-        void scheduleRetry() {
+        synchronized void scheduleRetry() {
             int backOffLimit = 5;
 
             if (numFailures < backOffLimit) {
@@ -328,7 +465,7 @@ public class Scheduler implements Runnable {
             logger.fine(name + " has failed " + numFailures + " times, will retry at " + new Date(nextEventAtMillis));
         }
 
-        boolean isDueTime() {
+        synchronized boolean isDueTime() {
             return systemClock.currentTimeMillis() >= nextEventAtMillis;
         }
     }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.util;
+
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free bit set, suitable for recording which of a large number of dense integer ids have been seen.
+ * <p>
+ * The bits are stored in fixed-size pages that are allocated on demand, so that the set can grow without ever moving
+ * already stored bits. Setting a bit that already is set does not write to memory, which makes repeated sets of the same bit
+ * cheap also when done from many threads.
+ * <p>
+ * Thread-safe.
+ *
+ * @author olle.hallin@crisp.se
+ */
+public class ConcurrentBitSet {
+
+    private static final int PAGE_SHIFT = 16;
+    private static final int WORDS_PER_PAGE = 1 << (PAGE_SHIFT - 6);
+    private static final int MAX_PAGES = 1024;
+
+    /**
+     * The largest bit index that can be stored (exclusive).
+     */
+    public static final int MAX_BITS = MAX_PAGES << PAGE_SHIFT;
+
+    private final AtomicReferenceArray<AtomicLongArray> pages = new AtomicReferenceArray<>(MAX_PAGES);
+
+    /**
+     * Sets a bit.
+     *
+     * @param bitIndex The bit to set. Must be in the range [0, MAX_BITS).
+     * @return true if this invocation changed the bit from clear to set.
+     */
+    public boolean set(int bitIndex) {
+        AtomicLongArray page = getOrCreatePage(bitIndex >>> PAGE_SHIFT);
+        int word = (bitIndex >>> 6) & (WORDS_PER_PAGE - 1);
+        long mask = 1L << bitIndex;
+
+        long oldValue = page.get(word);
+        while ((oldValue & mask) == 0) {
+            if (page.compareAndSet(word, oldValue, oldValue | mask)) {
+                return true;
+            }
+            oldValue = page.get(word);
+        }
+        return false;
+    }
+
+    /**
+     * Tests a bit.
+     *
+     * @param bitIndex The bit to test.
+     * @return true iff the bit is set.
+     */
+    public boolean get(int bitIndex) {
+        AtomicLongArray page = pages.get(bitIndex >>> PAGE_SHIFT);
+        return page != null && (page.get((bitIndex >>> 6) & (WORDS_PER_PAGE - 1)) & (1L << bitIndex)) != 0;
+    }
+
+    /**
+     * Counts the set bits. The result is not an atomic snapshot if bits are set concurrently.
+     *
+     * @return The number of set bits.
+     */
+    public int cardinality() {
+        int result = 0;
+        for (int p = 0; p < MAX_PAGES; p++) {
+            AtomicLongArray page = pages.get(p);
+            if (page != null) {
+                for (int w = 0; w < WORDS_PER_PAGE; w++) {
+                    result += Long.bitCount(page.get(w));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Atomically clears all set bits, and returns a snapshot of them.
+     * <p>
+     * Each word is cleared with an atomic get-and-set, so a concurrent {@link #set(int)} either ends up in the returned
+     * snapshot or remains set in this bit set. No bits are lost.
+     *
+     * @return The bits that were set.
+     */
+    public BitSet drain() {
+        BitSet result = new BitSet();
+        for (int p = 0; p < MAX_PAGES; p++) {
+            AtomicLongArray page = pages.get(p);
+            if (page != null) {
+                for (int w = 0; w < WORDS_PER_PAGE; w++) {
+                    long value = page.get(w) == 0 ? 0L : page.getAndSet(w, 0L);
+                    while (value != 0) {
+                        int bit = Long.numberOfTrailingZeros(value);
+                        result.set((p << PAGE_SHIFT) + (w << 6) + bit);
+                        value &= value - 1;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private AtomicLongArray getOrCreatePage(int pageIndex) {
+        AtomicLongArray page = pages.get(pageIndex);
+        if (page == null) {
+            pages.compareAndSet(pageIndex, null, new AtomicLongArray(WORDS_PER_PAGE));
+            page = pages.get(pageIndex);
+        }
+        return page;
+    }
+}
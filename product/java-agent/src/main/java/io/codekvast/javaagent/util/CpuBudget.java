@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the share of the CPU that a thread spends on background work.
+ * <p>
+ * The thread calls {@link #checkpoint()} between units of work. When it has worked for a slice of time, it sleeps long
+ * enough to keep the work at the given percentage of the elapsed time.
+ * <p>
+ * Not thread-safe, each thread should use its own instance.
+ *
+ * @author olle.hallin@crisp.se
+ */
+public class CpuBudget {
+
+    static final long SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final int percent;
+    private long sliceStartedAtNanos = System.nanoTime();
+    private long pausedNanos;
+
+    /**
+     * @param percent The max percentage of the time to spend working. Values outside 1-99 mean no limit.
+     */
+    public CpuBudget(int percent) {
+        this.percent = percent;
+    }
+
+    public boolean isLimited() {
+        return percent > 0 && percent < 100;
+    }
+
+    /**
+     * @return The total time that the thread has been told to sleep.
+     */
+    public long getPausedNanos() {
+        return pausedNanos;
+    }
+
+    /**
+     * Sleeps if the current slice of work is used up.
+     * <p>
+     * An interrupted thread does not sleep, so that it can finish quickly.
+     */
+    public void checkpoint() {
+        if (!isLimited()) {
+            return;
+        }
+
+        long workedNanos = System.nanoTime() - sliceStartedAtNanos;
+        if (workedNanos >= SLICE_NANOS) {
+            long pauseNanos = workedNanos * (100 - percent) / percent;
+            pausedNanos += pauseNanos;
+            try {
+                TimeUnit.NANOSECONDS.sleep(pauseNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sliceStartedAtNanos = System.nanoTime();
+        }
+    }
+}
@@ -21,10 +21,15 @@
  */
 package io.codekvast.javaagent.util;
 
+import io.codekvast.javaagent.metrics.AgentMetrics;
 import lombok.experimental.UtilityClass;
 import lombok.extern.java.Log;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Properties;
@@ -84,6 +89,74 @@ public final class FileUtils {
         }
     }
 
+    /**
+     * Deletes a file or a directory with all its contents.
+     *
+     * @param file The file or directory to delete. May be null.
+     */
+    public static void deleteRecursively(File file) {
+        if (file != null) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    deleteRecursively(child);
+                }
+            }
+            safeDelete(file);
+        }
+    }
+
+    /**
+     * Makes sure that a directory in which the agent caches data between JVM runs is owned by the current user.
+     * <p>
+     * A missing directory is created, and on POSIX file systems it is made accessible by the owner only. An existing
+     * directory that is owned by someone else is refused, since another local user then could plant files in it.
+     *
+     * @param directory The directory.
+     * @return true if the directory exists and is owned by the current user.
+     */
+    public static boolean mkdirsPrivate(File directory) {
+        try {
+            Path path = directory.toPath();
+            if (!directory.isDirectory()) {
+                Files.createDirectories(path);
+                if (path.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                    Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rwx------"));
+                }
+            }
+
+            UserPrincipal owner = Files.getOwner(path);
+            UserPrincipal currentUser =
+                path.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+            if (!owner.equals(currentUser)) {
+                logger.warning(String.format("%s is owned by %s, not by %s", directory, owner.getName(), currentUser.getName()));
+                return false;
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException | SecurityException e) {
+            logger.warning("Cannot create a private directory " + directory + ": " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Computes the total size of a file or a directory with all its contents.
+     *
+     * @param file The file or directory.
+     * @return The total size in bytes.
+     */
+    public static long sizeOf(File file) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            return file.length();
+        }
+        long result = 0L;
+        for (File child : children) {
+            result += sizeOf(child);
+        }
+        return result;
+    }
+
     public static void writeToFile(String text, File file) {
         Writer writer = null;
         try {
@@ -127,7 +200,9 @@ public final class FileUtils {
         try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
             oos.writeObject(object);
         }
-        logger.fine(String.format("Serialized %s in %d ms", object.getClass().getSimpleName(), System.currentTimeMillis() - startedAt));
+        long elapsedMillis = System.currentTimeMillis() - startedAt;
+        AgentMetrics.instance.serialized(elapsedMillis, file.length());
+        logger.fine(String.format("Serialized %s in %d ms", object.getClass().getSimpleName(), elapsedMillis));
         return file;
     }
 
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An immutable set of string prefixes, e.g. package names, that answers whether a string starts with any of them in time
+ * proportional to the length of the string instead of to the number of prefixes.
+ * <p>
+ * It can also tell whether any string that starts with a given string can match, which makes it possible to skip whole
+ * directories and packages that cannot contain anything of interest.
+ * <p>
+ * Thread-safe.
+ *
+ * @author olle.hallin@crisp.se
+ */
+public final class PrefixTrie {
+
+    private final Node root = new Node();
+    private final boolean empty;
+
+    private PrefixTrie(Collection<String> prefixes) {
+        for (String prefix : prefixes) {
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.getOrAddChild(prefix.charAt(i));
+            }
+            node.terminal = true;
+        }
+        this.empty = prefixes.isEmpty();
+    }
+
+    /**
+     * @param prefixes The prefixes. An empty prefix matches everything.
+     * @return A trie of the prefixes.
+     */
+    public static PrefixTrie of(Collection<String> prefixes) {
+        return new PrefixTrie(prefixes);
+    }
+
+    /**
+     * @param s The string to match.
+     * @return true iff s starts with any of the prefixes.
+     */
+    public boolean matches(CharSequence s) {
+        Node node = root;
+        for (int i = 0; ; i++) {
+            if (node.terminal) {
+                return true;
+            }
+            if (i >= s.length()) {
+                return false;
+            }
+            node = node.getChild(s.charAt(i));
+            if (node == null) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @param s The start of strings to match, e.g. a package name.
+     * @return true iff any string that starts with s can match, i.e., if s starts with any of the prefixes or any of the
+     * prefixes starts with s.
+     */
+    public boolean mayMatchStringsStartingWith(CharSequence s) {
+        if (empty) {
+            return false;
+        }
+        Node node = root;
+        for (int i = 0; i < s.length() && !node.terminal; i++) {
+            node = node.getChild(s.charAt(i));
+            if (node == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private boolean terminal;
+
+        private Node getChild(char c) {
+            // Few children per node, a linear scan beats a hash lookup.
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private Node getOrAddChild(char c) {
+            Node result = getChild(c);
+            if (result == null) {
+                result = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = result;
+            }
+            return result;
+        }
+    }
+}
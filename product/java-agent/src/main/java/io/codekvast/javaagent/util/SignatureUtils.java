@@ -51,7 +51,7 @@ public class SignatureUtils {
     }
 
     public static String normalizeSignature(String signature) {
-        return signature == null ? null : signature.replaceAll(" final ", " ");
+        return signature == null ? null : signature.replace(" final ", " ");
     }
 
     /**
@@ -65,6 +65,22 @@ public class SignatureUtils {
         return signature == null ? null : signature.toLongString();
     }
 
+    /**
+     * Converts a signature to the canonical form in which invocations are published, that is normalized and with modifiers
+     * and return type stripped.
+     * <p>
+     * It is rather expensive, so the result should be cached per join point.
+     *
+     * @param signature The signature to convert.
+     * @return The canonical signature string.
+     * @see #signatureToString(Signature)
+     * @see #normalizeSignature(String)
+     * @see #stripModifiers(String)
+     */
+    public static String signatureToCanonicalString(Signature signature) {
+        return signature == null ? null : stripModifiers(normalizeSignature(signatureToString(signature)));
+    }
+
     public static String stripModifiers(String signature) {
         // Search backwards from the '(' for a space character...
         int pos = signature.indexOf("(");
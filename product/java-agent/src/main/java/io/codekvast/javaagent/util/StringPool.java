@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of canonical string instances, that makes equal strings share one instance.
+ * <p>
+ * Unlike {@link String#intern()}, the pool is garbage collected together with its owner, so it can be used for large sets
+ * of short-lived strings such as the signatures of a code base scan.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author olle.hallin@crisp.se
+ */
+public class StringPool {
+
+    private final Map<String, String> strings = new HashMap<>();
+
+    /**
+     * @param s A string, or null.
+     * @return The pooled instance that equals s, or null if s is null.
+     */
+    public String intern(String s) {
+        if (s == null) {
+            return null;
+        }
+        String result = strings.get(s);
+        if (result == null) {
+            strings.put(s, s);
+            result = s;
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of distinct strings in the pool.
+     */
+    public int size() {
+        return strings.size();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that can be incremented from many threads without them contending for the same cache line.
+ * <p>
+ * Each thread updates one of a number of stripes, selected by its thread id. The stripes are spread out in memory so that
+ * they do not share cache lines. Reading the value sums all stripes, and is thus more expensive than incrementing.
+ * <p>
+ * Thread-safe.
+ *
+ * @author olle.hallin@crisp.se
+ */
+public class StripedCounter {
+
+    // 8 longs = 64 bytes, the size of a cache line on most CPUs.
+    private static final int PADDING = 8;
+    private static final int MAX_STRIPES = 64;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+        int stripes = 1;
+        int processors = Runtime.getRuntime().availableProcessors();
+        while (stripes < processors && stripes < MAX_STRIPES) {
+            stripes <<= 1;
+        }
+        this.mask = stripes - 1;
+        this.cells = new AtomicLongArray(stripes * PADDING);
+    }
+
+    public void increment() {
+        add(1L);
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(stripe(), delta);
+    }
+
+    /**
+     * @return The sum of all stripes. Not an atomic snapshot if there are concurrent updates.
+     */
+    public long sum() {
+        long result = 0L;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            result += cells.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Resets the counter to zero and returns the value it had.
+     * <p>
+     * Each stripe is reset atomically, so no concurrent increment is lost: it is either included in the returned value or
+     * remains in the counter.
+     *
+     * @return The sum of all stripes before the reset.
+     */
+    public long sumThenReset() {
+        long result = 0L;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            result += cells.getAndSet(i, 0L);
+        }
+        return result;
+    }
+
+    private int stripe() {
+        long id = Thread.currentThread().getId();
+        return ((int) (id ^ (id >>> 32)) & mask) * PADDING;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2015-2018 Hallin Information Technology AB
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.  IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package io.codekvast.javaagent.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An array of counters indexed by dense integer ids, that can be incremented from many threads with little contention.
+ * <p>
+ * Each counter is split into a number of stripes, and each thread increments the stripe selected by its thread id, in
+ * the same way as {@link StripedCounter}. The stripes are stored in separate pages that are allocated on demand, so the
+ * memory used is proportional to the highest id in use times the number of stripes.
+ * <p>
+ * Thread-safe.
+ *
+ * @author olle.hallin@crisp.se
+ */
+public class StripedCounterArray {
+
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGES_PER_STRIPE = 1024;
+    private static final int MAX_STRIPES = 8;
+
+    /**
+     * The largest counter index that can be used (exclusive).
+     */
+    public static final int MAX_COUNTERS = PAGES_PER_STRIPE << PAGE_SHIFT;
+
+    private final int stripeMask;
+
+    // Page p of stripe s is at index s * PAGES_PER_STRIPE + p
+    private final AtomicReferenceArray<AtomicLongArray> pages;
+
+    public StripedCounterArray() {
+        int stripes = 1;
+        int processors = Runtime.getRuntime().availableProcessors();
+        while (stripes < processors && stripes < MAX_STRIPES) {
+            stripes <<= 1;
+        }
+        this.stripeMask = stripes - 1;
+        this.pages = new AtomicReferenceArray<>(stripes * PAGES_PER_STRIPE);
+    }
+
+    /**
+     * Increments a counter.
+     *
+     * @param index The counter to increment. Must be in the range [0, MAX_COUNTERS).
+     */
+    public void increment(int index) {
+        long threadId = Thread.currentThread().getId();
+        int stripe = (int) (threadId ^ (threadId >>> 32)) & stripeMask;
+        getOrCreatePage(stripe * PAGES_PER_STRIPE + (index >>> PAGE_SHIFT)).getAndIncrement(index & (PAGE_SIZE - 1));
+    }
+
+    /**
+     * Reads a counter without resetting it.
+     *
+     * @param index The counter to read.
+     * @return The current value of the counter.
+     */
+    public long sum(int index) {
+        long result = 0L;
+        int offset = index & (PAGE_SIZE - 1);
+        for (int p = index >>> PAGE_SHIFT; p < pages.length(); p += PAGES_PER_STRIPE) {
+            AtomicLongArray page = pages.get(p);
+            if (page != null) {
+                result += page.get(offset);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Resets a counter to zero and returns the value it had.
+     * <p>
+     * Each stripe is reset atomically, so a concurrent increment is either included in the returned value or remains in
+     * the counter.
+     *
+     * @param index The counter to reset.
+     * @return The value of the counter before the reset.
+     */
+    public long sumThenReset(int index) {
+        long result = 0L;
+        int offset = index & (PAGE_SIZE - 1);
+        for (int p = index >>> PAGE_SHIFT; p < pages.length(); p += PAGES_PER_STRIPE) {
+            AtomicLongArray page = pages.get(p);
+            if (page != null && page.get(offset) != 0L) {
+                result += page.getAndSet(offset, 0L);
+            }
+        }
+        return result;
+    }
+
+    private AtomicLongArray getOrCreatePage(int pageIndex) {
+        AtomicLongArray page = pages.get(pageIndex);
+        if (page == null) {
+            pages.compareAndSet(pageIndex, null, new AtomicLongArray(PAGE_SIZE));
+            page = pages.get(pageIndex);
+        }
+        return page;
+    }
+}
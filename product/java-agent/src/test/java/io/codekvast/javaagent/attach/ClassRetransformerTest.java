@@ -0,0 +1,117 @@
+package io.codekvast.javaagent.attach;
+
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.config.AgentConfigFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.lang.instrument.Instrumentation;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static io.codekvast.javaagent.config.AgentConfig.INSTRUMENTATION_ENGINE_ASPECTJ;
+import static io.codekvast.javaagent.config.AgentConfig.INSTRUMENTATION_ENGINE_PROBE;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author olle.hallin@crisp.se
+ */
+public class ClassRetransformerTest {
+
+    @Mock
+    private Instrumentation instrumentationMock;
+
+    private final AgentConfig config = AgentConfigFactory.createSampleAgentConfig().toBuilder()
+                                                         .instrumentationEngine(INSTRUMENTATION_ENGINE_PROBE)
+                                                         .packages("java.util")
+                                                         .excludePackages("java.util.concurrent")
+                                                         .retransformBatchSize(2)
+                                                         .build();
+
+    private ClassRetransformer retransformer;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(instrumentationMock.isRetransformClassesSupported()).thenReturn(true);
+        when(instrumentationMock.isModifiableClass(any(Class.class))).thenReturn(true);
+        when(instrumentationMock.getAllLoadedClasses()).thenReturn(new Class[]{
+            ArrayList.class, HashMap.class, List.class, String.class, ConcurrentHashMap.class, TreeMap.class, int[].class
+        });
+        retransformer = new ClassRetransformer(instrumentationMock, config);
+    }
+
+    @Test
+    public void should_retransform_classes_within_packages_in_batches() throws Exception {
+        assertThat(retransformer.retransformLoadedClasses(), is(3));
+
+        verify(instrumentationMock).retransformClasses(ArrayList.class, HashMap.class);
+        verify(instrumentationMock).retransformClasses(TreeMap.class);
+    }
+
+    @Test
+    public void should_retry_one_by_one_when_batch_fails() throws Exception {
+        doThrow(new UnsupportedOperationException("schema change")).when(instrumentationMock)
+                                                                   .retransformClasses(ArrayList.class, HashMap.class);
+        doThrow(new UnsupportedOperationException("schema change")).when(instrumentationMock)
+                                                                   .retransformClasses(HashMap.class);
+
+        assertThat(retransformer.retransformLoadedClasses(), is(2));
+
+        verify(instrumentationMock).retransformClasses(ArrayList.class);
+        verify(instrumentationMock).retransformClasses(TreeMap.class);
+    }
+
+    @Test
+    public void should_do_nothing_when_retransformation_is_unsupported() throws Exception {
+        when(instrumentationMock.isRetransformClassesSupported()).thenReturn(false);
+
+        assertThat(retransformer.retransformLoadedClasses(), is(0));
+
+        verify(instrumentationMock, never()).getAllLoadedClasses();
+    }
+
+    @Test
+    public void should_refuse_to_retransform_with_the_aspectj_engine() throws Exception {
+        // given
+        AgentConfig aspectjConfig = config.toBuilder().instrumentationEngine(INSTRUMENTATION_ENGINE_ASPECTJ).build();
+
+        // when
+        int retransformed = new ClassRetransformer(instrumentationMock, aspectjConfig).retransformLoadedClasses();
+
+        // then
+        assertThat(retransformed, is(0));
+        verify(instrumentationMock, never()).retransformClasses(any(Class[].class));
+    }
+
+    @Test
+    public void should_switch_to_the_probe_engine_when_attaching() {
+        AgentConfig aspectjConfig = config.toBuilder().instrumentationEngine(INSTRUMENTATION_ENGINE_ASPECTJ).build();
+
+        assertThat(ClassRetransformer.forAttach(aspectjConfig).getNormalizedInstrumentationEngine(),
+                   is(INSTRUMENTATION_ENGINE_PROBE));
+        assertThat(ClassRetransformer.forAttach(config), sameInstance(config));
+        assertThat(ClassRetransformer.forAttach(null), nullValue());
+    }
+
+    @Test
+    public void should_select_classes_within_packages() {
+        List<String> packages = singletonList("java.util");
+        List<String> excludePackages = singletonList("java.util.concurrent");
+
+        assertThat(ClassRetransformer.isWithinPackages(ArrayList.class, packages, excludePackages), is(true));
+        assertThat(ClassRetransformer.isWithinPackages(List.class, packages, excludePackages), is(false));
+        assertThat(ClassRetransformer.isWithinPackages(ConcurrentHashMap.class, packages, excludePackages), is(false));
+        assertThat(ClassRetransformer.isWithinPackages(ClassRetransformer.class, asList("io.codekvast"), excludePackages),
+                   is(false));
+    }
+}
@@ -0,0 +1,158 @@
+package io.codekvast.javaagent.cache;
+
+import io.codekvast.javaagent.codebase.scannertest.ScannerTest1;
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.config.AgentConfigFactory;
+import io.codekvast.javaagent.probe.ProbeMethodTable;
+import io.codekvast.javaagent.util.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author olle.hallin@crisp.se
+ */
+public class ClassCacheTest {
+
+    private static final String TEST_CLASSES_DIR = "build/classes/java/test";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private AgentConfig config;
+    private ClassCache classCache;
+
+    @Before
+    public void beforeTest() throws Exception {
+        config = AgentConfigFactory.createSampleAgentConfig().toBuilder()
+                                   .codeBase(new File(TEST_CLASSES_DIR).getAbsolutePath())
+                                   .packages(ScannerTest1.class.getPackage().getName())
+                                   .classCacheDir(temporaryFolder.getRoot().getAbsolutePath())
+                                   .classCacheMaxMegabytes(1)
+                                   .build();
+    }
+
+    @After
+    public void afterTest() {
+        System.clearProperty("aj.weaving.cache.enabled");
+        System.clearProperty("aj.weaving.cache.dir");
+    }
+
+    @Test
+    public void should_be_disabled_when_no_cache_dir() {
+        assertThat(ClassCache.open(config.toBuilder().classCacheDir(null).build()), nullValue());
+    }
+
+    @Test
+    public void should_get_what_was_put() {
+        classCache = ClassCache.open(config);
+        assertThat(classCache, notNullValue());
+
+        byte[] classFile = {1, 2, 3};
+        String key = classCache.keyOf("com/acme/Foo", classFile);
+        assertThat(key, startsWith("com.acme.Foo-"));
+        assertThat(classCache.get(key), nullValue());
+
+        classCache.put(key, new byte[]{4, 5, 6});
+        assertThat(classCache.get(key), is(new byte[]{4, 5, 6}));
+    }
+
+    @Test
+    public void should_remember_classes_that_were_not_instrumented() {
+        classCache = ClassCache.open(config);
+
+        String key = classCache.keyOf("com/acme/Foo", new byte[]{1, 2, 3});
+        classCache.put(key, null);
+        assertThat(classCache.get(key), is(new byte[0]));
+    }
+
+    @Test
+    public void should_key_by_class_file_contents() {
+        classCache = ClassCache.open(config);
+
+        assertThat(classCache.keyOf("com/acme/Foo", new byte[]{1, 2, 3}),
+                   not(is(classCache.keyOf("com/acme/Foo", new byte[]{1, 2, 4}))));
+    }
+
+    @Test
+    public void should_persist_method_ids_before_classes() throws Exception {
+        classCache = ClassCache.open(config);
+        int id = ProbeMethodTable.getId("com.acme.Foo.should_persist_method_ids_before_classes()");
+
+        classCache.put(classCache.keyOf("com/acme/Foo", new byte[]{1}), new byte[]{2});
+
+        List<String> methods = Files.readAllLines(findGeneration().toPath().resolve("methods.txt"), Charset.forName("UTF-8"));
+        assertThat(methods.size(), is(ProbeMethodTable.size()));
+        assertThat(methods.get(id), is("com.acme.Foo.should_persist_method_ids_before_classes()"));
+    }
+
+    @Test
+    public void should_not_share_generation_with_another_user() {
+        classCache = ClassCache.open(config);
+        assertThat(classCache, notNullValue());
+
+        assertThat(ClassCache.open(config), nullValue());
+    }
+
+    @Test
+    public void should_evict_old_generations_when_too_large() throws Exception {
+        File oldGeneration = temporaryFolder.newFolder("probe-old");
+        Files.write(new File(oldGeneration, "com.acme.Foo-1234.class").toPath(), new byte[2 * 1024 * 1024]);
+
+        classCache = ClassCache.open(config);
+
+        assertThat(classCache, notNullValue());
+        assertThat(oldGeneration.exists(), is(false));
+    }
+
+    @Test
+    public void should_empty_a_full_generation() throws Exception {
+        classCache = ClassCache.open(config);
+        File generation = findGeneration();
+        classCache.put(classCache.keyOf("com/acme/Foo", new byte[]{1}), new byte[2 * 1024 * 1024]);
+        classCache.close();
+
+        classCache = ClassCache.open(config);
+
+        assertThat(classCache, notNullValue());
+        assertThat(findGeneration(), is(generation));
+        assertThat(FileUtils.sizeOf(generation), is(0L));
+    }
+
+    @Test
+    public void should_create_private_generations() throws Exception {
+        classCache = ClassCache.open(config);
+
+        Path generation = findGeneration().toPath();
+        if (generation.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(generation)), is("rwx------"));
+        }
+    }
+
+    @Test
+    public void should_configure_aspectj_cache() {
+        ClassCache.configureAspectjCache(config);
+
+        assertThat(System.getProperty("aj.weaving.cache.enabled"), is("true"));
+        assertThat(System.getProperty("aj.weaving.cache.dir"),
+                   is(new File(temporaryFolder.getRoot(), "aspectj").getAbsolutePath()));
+    }
+
+    private File findGeneration() {
+        File[] generations = temporaryFolder.getRoot().listFiles();
+        assertThat(generations.length, is(1));
+        return generations[0];
+    }
+}
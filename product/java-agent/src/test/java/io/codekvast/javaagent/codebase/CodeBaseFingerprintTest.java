@@ -9,9 +9,12 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.not;
@@ -181,6 +184,36 @@ public class CodeBaseFingerprintTest {
         assertThat(fp2, not(equalTo(fp1)));
     }
 
+    @Test
+    public void should_use_entry_metadata_of_archives() throws Exception {
+        // given
+        File war = new File(folder.getRoot(), "app.war");
+        writeArchive(war, "foo");
+        CodeBaseFingerprint fp1 = CodeBaseFingerprint.builder(config).recordArchive(war).build();
+
+        // when
+        war.setLastModified(1492881351977L);
+        CodeBaseFingerprint fp2 = CodeBaseFingerprint.builder(config).recordArchive(war).build();
+
+        writeArchive(war, "bar");
+        CodeBaseFingerprint fp3 = CodeBaseFingerprint.builder(config).recordArchive(war).build();
+
+        // then
+        assertThat(fp1.getNumClassFiles(), is(1));
+        assertThat(fp1.getNumJarFiles(), is(1));
+        assertThat(fp2, equalTo(fp1));
+        assertThat(fp3, not(equalTo(fp1)));
+    }
+
+    @SneakyThrows
+    private void writeArchive(File file, String contents) {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file))) {
+            out.putNextEntry(new ZipEntry("WEB-INF/classes/Foo.class"));
+            out.write(contents.getBytes("UTF-8"));
+            out.closeEntry();
+        }
+    }
+
     @SneakyThrows
     private void writeFile(File file, String contents) {
         PrintWriter os = new PrintWriter(new FileWriter(file));
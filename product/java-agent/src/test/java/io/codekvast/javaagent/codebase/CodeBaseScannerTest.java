@@ -1,22 +1,43 @@
 package io.codekvast.javaagent.codebase;
 
+import io.codekvast.javaagent.codebase.scannertest.AbstractScannerTest;
 import io.codekvast.javaagent.codebase.scannertest.ScannerTest1;
 import io.codekvast.javaagent.codebase.scannertest.ScannerTest2;
 import io.codekvast.javaagent.codebase.scannertest.ScannerTest3;
 import io.codekvast.javaagent.codebase.scannertest.ScannerTest4;
 import io.codekvast.javaagent.codebase.scannertest.excluded.ExcludedScannerTest5;
+import io.codekvast.javaagent.config.AgentConfig;
 import io.codekvast.javaagent.config.AgentConfigFactory;
 import io.codekvast.javaagent.model.v2.CodeBaseEntry2;
+import io.codekvast.javaagent.model.v2.MethodSignature2;
+import io.codekvast.javaagent.util.PrefixTrie;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 
 import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertThat;
 
@@ -30,6 +51,7 @@ public class CodeBaseScannerTest {
 
     private final CodeBaseScanner scanner = new CodeBaseScanner();
     private CodeBase codeBase;
+    private PrefixTrie packages;
 
     @Before
     public void beforeTest() {
@@ -39,6 +61,7 @@ public class CodeBaseScannerTest {
                                     .packages(ScannerTest1.class.getPackage().getName())
                                     .excludePackages(ExcludedScannerTest5.class.getPackage().getName())
                                     .build());
+        packages = PrefixTrie.of(codeBase.getConfig().getNormalizedPackages());
     }
 
     @Test
@@ -57,27 +80,31 @@ public class CodeBaseScannerTest {
 
     @Test
     public void should_find_base_methods_of_ScannerTest2() {
-        scanner.findMethods(codeBase, ScannerTest2.class, codeBase.getConfig().getNormalizedPackages());
-        assertThat(codeBase.getSignatures().size(), is(1));
+        Set<MethodSignature2> signatures = new HashSet<>();
+        scanner.findMethods(signatures, ScannerTest2.class, packages);
+        assertThat(signatures.size(), is(1));
     }
 
     @Test
     public void should_find_base_methods_of_ScannerTest3() {
-        scanner.findMethods(codeBase, ScannerTest3.class, codeBase.getConfig().getNormalizedPackages());
+        Set<MethodSignature2> signatures = new HashSet<>();
+        scanner.findMethods(signatures, ScannerTest3.class, packages);
 
-        assertThat(codeBase.getSignatures().size(), is(1));
+        assertThat(signatures.size(), is(1));
     }
 
     @Test
     public void should_find_base_methods_of_ScannerTest4() {
-        scanner.findMethods(codeBase, ScannerTest4.class, codeBase.getConfig().getNormalizedPackages());
-        assertThat(codeBase.getSignatures().size(), is(11));
+        Set<MethodSignature2> signatures = new HashSet<>();
+        scanner.findMethods(signatures, ScannerTest4.class, packages);
+        assertThat(signatures.size(), is(11));
     }
 
     @Test
     public void should_find_constructors_of_ScannerTest4() {
-        scanner.findConstructors(codeBase, ScannerTest4.class);
-        assertThat(codeBase.getSignatures().size(), is(3));
+        Set<MethodSignature2> signatures = new HashSet<>();
+        scanner.findConstructors(signatures, ScannerTest4.class);
+        assertThat(signatures.size(), is(3));
     }
 
     @Test
@@ -90,6 +117,159 @@ public class CodeBaseScannerTest {
         assertThat(numClasses, is(4 + 7 + 1));
     }
 
+    @Test
+    public void should_make_same_signatures_from_class_files_as_by_reflection() {
+        AgentConfig config = AgentConfigFactory.createSampleAgentConfig().toBuilder()
+                                               .codeBase(new File(TEST_CLASSES_DIR).getAbsolutePath())
+                                               .packages(getClass().getPackage().getName())
+                                               .build();
+        CodeBase byReflection = new CodeBase(config.toBuilder().codeBaseScanner("reflection").build());
+        CodeBase fromClassFiles = new CodeBase(config.toBuilder().codeBaseScanner("classfile").build());
+
+        int numClassesByReflection = scanner.scanSignatures(byReflection);
+        int numClassesFromClassFiles = scanner.scanSignatures(fromClassFiles);
+
+        assertThat(numClassesFromClassFiles, is(numClassesByReflection));
+        assertThat(describe(fromClassFiles), is(describe(byReflection)));
+        assertThat(describe(fromClassFiles), hasItem(containsString("ParitySample.varargs(int, java.lang.String[])")));
+    }
+
+    @Test
+    public void should_make_same_result_when_scanning_in_parallel() {
+        // given
+        // More classes than in one batch, so that the parallel scan really is split into several tasks
+        List<Class<?>> classes = Arrays.<Class<?>>asList(AbstractScannerTest.class, ScannerTest1.class,
+                                                         ScannerTest2.class, ScannerTest3.class, ScannerTest4.class);
+        List<ClassSource> classSources = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            Class<?> clazz = classes.get(i % classes.size());
+            String resourceName = clazz.getName().replace('.', '/') + ".class";
+            classSources.add(ClassSource.inDirectory(resourceName, new File(TEST_CLASSES_DIR, resourceName), null,
+                                                     getClass().getClassLoader()));
+        }
+
+        // when
+        List<List<MethodSignature2>> sequential =
+            scanner.analyzeClasses(classSources, packages, false, 1, new CodeBaseScanner.CpuBudgets(100));
+        List<List<MethodSignature2>> parallel =
+            scanner.analyzeClasses(classSources, packages, false, 4, new CodeBaseScanner.CpuBudgets(100));
+
+        // then
+        assertThat(parallel.size(), is(500));
+        assertThat(describe(parallel), is(describe(sequential)));
+    }
+
+    @Test
+    public void should_keep_cpu_budget_of_each_thread_for_the_whole_scan() {
+        // given
+        // Each class takes about 0.1 ms to load, so a batch of classes is analyzed in less than a CPU budget slice
+        ClassLoader slowClassLoader = new ClassLoader(getClass().getClassLoader()) {
+            @Override
+            public Class<?> loadClass(String name) throws ClassNotFoundException {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+                return super.loadClass(name);
+            }
+        };
+        File classFile = new File(TEST_CLASSES_DIR, "io/codekvast/javaagent/codebase/scannertest/ScannerTest1.class");
+        List<ClassSource> classSources = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            classSources.add(ClassSource.inDirectory("io/codekvast/javaagent/codebase/scannertest/ScannerTest1.class",
+                                                     classFile, null, slowClassLoader));
+        }
+        CodeBaseScanner.CpuBudgets cpuBudgets = new CodeBaseScanner.CpuBudgets(50);
+
+        // when
+        List<List<MethodSignature2>> signatures = scanner.analyzeClasses(classSources, packages, true, 2, cpuBudgets);
+
+        // then
+        assertThat(signatures.size(), is(2000));
+        assertThat(cpuBudgets.getPausedNanos(), greaterThan(0L));
+    }
+
+    @Test
+    public void should_read_spring_boot_executable_jar_in_place() throws Exception {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.put(Attributes.Name.MAIN_CLASS, "org.springframework.boot.loader.JarLauncher");
+        attributes.putValue("Spring-Boot-Classes", "BOOT-INF/classes/");
+        attributes.putValue("Spring-Boot-Lib", "BOOT-INF/lib/");
+
+        File jarFile = temporaryFolder.newFile("app.jar");
+        Files.write(jarFile.toPath(), createArchive(manifest, "BOOT-INF/classes/", "BOOT-INF/lib/"));
+
+        assertReadInPlace(jarFile);
+    }
+
+    @Test
+    public void should_read_war_file_in_place() throws Exception {
+        File warFile = temporaryFolder.newFile("app.war");
+        Files.write(warFile.toPath(), createArchive(new Manifest(), "WEB-INF/classes/", "WEB-INF/lib/"));
+
+        assertReadInPlace(warFile);
+    }
+
+    @Test
+    public void should_read_ear_file_in_place() throws Exception {
+        File earFile = temporaryFolder.newFile("app.ear");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(earFile))) {
+            out.putNextEntry(new JarEntry("web.war"));
+            out.write(createArchive(new Manifest(), "WEB-INF/classes/", "WEB-INF/lib/"));
+            out.closeEntry();
+        }
+
+        assertReadInPlace(earFile);
+    }
+
+    private void assertReadInPlace(File archive) throws IOException {
+        AgentConfig config = AgentConfigFactory.createSampleAgentConfig().toBuilder()
+                                               .codeBase(archive.getAbsolutePath())
+                                               .packages(ScannerTest1.class.getPackage().getName())
+                                               .scanCacheDir(temporaryFolder.newFolder().getAbsolutePath())
+                                               .build();
+        CodeBase expected = new CodeBase(config);
+        List<MethodSignature2> signatures = new ArrayList<>();
+        for (Class<?> clazz : Arrays.asList(AbstractScannerTest.class, ScannerTest1.class, ScannerTest2.class)) {
+            scanner.findConstructors(signatures, clazz);
+            scanner.findMethods(signatures, clazz, PrefixTrie.of(config.getNormalizedPackages()));
+        }
+        for (MethodSignature2 signature : signatures) {
+            expected.addSignature(signature);
+        }
+
+        CodeBase inPlace = new CodeBase(config);
+        CodeBase cached = new CodeBase(config);
+
+        assertThat(scanner.scanSignatures(inPlace), is(3));
+        assertThat(scanner.scanSignatures(cached), is(3));
+        assertThat(describe(inPlace), is(describe(expected)));
+        assertThat(describe(cached), is(describe(expected)));
+    }
+
+    private byte[] createArchive(Manifest manifest, String classesDir, String libDir) throws IOException {
+        ByteArrayOutputStream lib = new ByteArrayOutputStream();
+        try (JarOutputStream out = new JarOutputStream(lib)) {
+            addClassFile(out, "", ScannerTest2.class);
+        }
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (JarOutputStream out = new JarOutputStream(result, manifest)) {
+            addClassFile(out, classesDir, AbstractScannerTest.class);
+            addClassFile(out, classesDir, ScannerTest1.class);
+            out.putNextEntry(new JarEntry(libDir + "lib.jar"));
+            out.write(lib.toByteArray());
+            out.closeEntry();
+        }
+        return result.toByteArray();
+    }
+
+    private void addClassFile(JarOutputStream out, String prefix, Class<?> clazz) throws IOException {
+        String resourceName = clazz.getName().replace('.', '/') + ".class";
+        out.putNextEntry(new JarEntry(prefix + resourceName));
+        out.write(Files.readAllBytes(new File(TEST_CLASSES_DIR, resourceName).toPath()));
+        out.closeEntry();
+    }
+
     @Test
     @Ignore("Default disabled")
     public void stability_test() {
@@ -99,4 +279,72 @@ public class CodeBaseScannerTest {
             should_handle_spring_boot_executable_jar();
         }
     }
+
+    static Set<String> describe(CodeBase codeBase) {
+        Set<String> result = new TreeSet<>();
+        for (MethodSignature2 s : codeBase.getSignatures()) {
+            result.add(describe(s));
+        }
+        return result;
+    }
+
+    private static List<String> describe(List<List<MethodSignature2>> signatures) {
+        List<String> result = new ArrayList<>();
+        for (List<MethodSignature2> classSignatures : signatures) {
+            result.add("--");
+            for (MethodSignature2 s : classSignatures) {
+                result.add(describe(s));
+            }
+        }
+        return result;
+    }
+
+    private static String describe(MethodSignature2 s) {
+        return String.format("%s|%s|%s|%s|%s|%s|%s|%s|%s|%s", s.getAspectjString(), s.getBridge(), s.getDeclaringType(),
+                             s.getExceptionTypes(), s.getMethodName(), s.getModifiers(), s.getPackageName(),
+                             s.getParameterTypes(), s.getReturnType(), s.getSynthetic());
+    }
+
+    @SuppressWarnings({"unused", "WeakerAccess"})
+    static class ParitySample implements Comparable<ParitySample> {
+        private final Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        ParitySample() {
+        }
+
+        protected ParitySample(int[][] matrix, String... names) {
+        }
+
+        public String[] varargs(int i, String... names) throws IOException, InterruptedException {
+            return names;
+        }
+
+        protected static synchronized long[][] arrays(byte[] bytes, Object[][] objects) {
+            return null;
+        }
+
+        final strictfp double packagePrivate(double d) {
+            return d;
+        }
+
+        private Inner inner(Inner inner) {
+            return inner;
+        }
+
+        @Override
+        public int compareTo(ParitySample o) {
+            return 0;
+        }
+
+        class Inner {
+            Inner(Color color) {
+            }
+        }
+
+        enum Color {RED, GREEN}
+    }
 }
@@ -5,9 +5,11 @@ import io.codekvast.javaagent.model.v2.MethodSignature2;
 import org.junit.Test;
 
 import java.net.URL;
+import java.util.Iterator;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.Matchers.hasSize;
 import static org.junit.Assert.*;
 
@@ -72,7 +74,7 @@ public class CodeBaseTest {
         int scannedClasses = new CodeBaseScanner().scanSignatures(codeBase);
 
         // then
-        assertThat(scannedClasses, is(2));
+        assertThat(scannedClasses, is(1));
         assertThat(codeBase.getSignatures(), hasSize(2));
         assertThatCodeBaseContains(codeBase, "InClassesOnly");
         assertThatCodeBaseNotContains(codeBase, "SampleApp");
@@ -96,7 +98,7 @@ public class CodeBaseTest {
         int scannedClasses = new CodeBaseScanner().scanSignatures(codeBase);
 
         // then
-        assertThat(scannedClasses, is(15));
+        assertThat(scannedClasses, is(14));
         assertThat(codeBase.getSignatures(), hasSize(37));
         assertThatCodeBaseNotContains(codeBase, "InClassesOnly");
         assertThatCodeBaseContains(codeBase, "SampleApp");
@@ -120,7 +122,7 @@ public class CodeBaseTest {
         int scannedClasses = new CodeBaseScanner().scanSignatures(codeBase);
 
         // then
-        assertThat(scannedClasses, is(16));
+        assertThat(scannedClasses, is(15));
         assertThat(codeBase.getSignatures(), hasSize(39));
         assertThatCodeBaseContains(codeBase, "InClassesOnly");
         assertThatCodeBaseContains(codeBase, "SampleApp");
@@ -144,7 +146,7 @@ public class CodeBaseTest {
         int scannedClasses = new CodeBaseScanner().scanSignatures(codeBase);
 
         // then
-        assertThat(scannedClasses, is(16));
+        assertThat(scannedClasses, is(15));
 
         assertThat(codeBase.getSignatures(), hasSize(39));
         assertThatCodeBaseContains(codeBase, "InClassesOnly");
@@ -166,7 +168,7 @@ public class CodeBaseTest {
         int scannedClasses = new CodeBaseScanner().scanSignatures(codeBase);
 
         // then
-        assertThat(scannedClasses, is(16));
+        assertThat(scannedClasses, is(15));
         assertThat(codeBase.getSignatures(), hasSize(39));
         assertThatCodeBaseContains(codeBase, "InClassesOnly");
         assertThatCodeBaseContains(codeBase, "SampleApp");
@@ -188,7 +190,7 @@ public class CodeBaseTest {
         int scannedClasses = new CodeBaseScanner().scanSignatures(codeBase);
 
         // then
-        assertThat(scannedClasses, is(16));
+        assertThat(scannedClasses, is(15));
         assertThat(codeBase.getSignatures(), hasSize(39));
         assertThatCodeBaseContains(codeBase, "InClassesOnly");
         assertThatCodeBaseContains(codeBase, "SampleApp");
@@ -208,7 +210,7 @@ public class CodeBaseTest {
         int scannedClasses = new CodeBaseScanner().scanSignatures(codeBase);
 
         // then
-        assertThat(scannedClasses, is(7));
+        assertThat(scannedClasses, is(6));
         CodeBaseFingerprint fingerprint = codeBase.getFingerprint();
         assertThat(fingerprint.getNumClassFiles(), is(0));
         assertThat(fingerprint.getNumJarFiles(), is(1));
@@ -219,6 +221,40 @@ public class CodeBaseTest {
         assertThatCodeBaseNotContains(codeBase, "org.slf4j");
     }
 
+    @Test
+    public void should_share_equal_strings_between_signatures() {
+        // given
+        codeBase = getCodeBase(SAMPLE_APP_JAR);
+
+        // when
+        codeBase.addSignature(sampleSignature("foo"));
+        codeBase.addSignature(sampleSignature("bar"));
+
+        // then
+        assertThat(codeBase.getSignatures(), hasSize(2));
+        Iterator<MethodSignature2> iterator = codeBase.getSignatures().iterator();
+        MethodSignature2 first = iterator.next();
+        MethodSignature2 second = iterator.next();
+        assertThat(first.getDeclaringType(), sameInstance(second.getDeclaringType()));
+        assertThat(first.getParameterTypes(), sameInstance(second.getParameterTypes()));
+        assertThat(first.getReturnType(), sameInstance(second.getReturnType()));
+    }
+
+    private MethodSignature2 sampleSignature(String methodName) {
+        return MethodSignature2.builder()
+                               .aspectjString("public void sample.app.SampleApp." + methodName + "(java.lang.String)")
+                               .bridge(false)
+                               .declaringType(new String("sample.app.SampleApp"))
+                               .exceptionTypes("")
+                               .methodName(methodName)
+                               .modifiers("public")
+                               .packageName("sample.app")
+                               .parameterTypes(new String("java.lang.String"))
+                               .returnType(new String("void"))
+                               .synthetic(false)
+                               .build();
+    }
+
     private void assertThatCodeBaseContains(CodeBase codeBase, String signature) {
         for (MethodSignature2 sig : codeBase.getSignatures()) {
             if (sig.getAspectjString().contains(signature)) {
@@ -0,0 +1,118 @@
+package io.codekvast.javaagent.codebase;
+
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.config.AgentConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class CodeBaseWatcherTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File codeBaseDir;
+    private AgentConfig config;
+    private CodeBaseWatcher watcher;
+
+    @Before
+    public void beforeTest() throws IOException {
+        codeBaseDir = temporaryFolder.newFolder("classes");
+        new File(codeBaseDir, "sample").mkdir();
+        new File(codeBaseDir, "sample/Foo.class").createNewFile();
+        config = AgentConfigFactory.createSampleAgentConfig().toBuilder()
+                                   .codeBase(codeBaseDir.getAbsolutePath())
+                                   .codeBaseChangeDetection(AgentConfig.CODE_BASE_CHANGE_DETECTION_WATCH)
+                                   .build();
+    }
+
+    @After
+    public void afterTest() {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    @Test
+    public void should_always_report_changes_when_polling() {
+        watcher = CodeBaseWatcher.create(config.toBuilder().codeBaseChangeDetection("poll").build());
+
+        assertThat(watcher.isWatching(), is(false));
+        assertThat(watcher.pollChanges(), is(true));
+        assertThat(watcher.pollChanges(), is(true));
+    }
+
+    @Test
+    public void should_report_no_changes_when_nothing_changed() {
+        watcher = CodeBaseWatcher.create(config);
+        assumeTrue(watcher.isWatching());
+
+        assertThat(watcher.pollChanges(), is(false));
+    }
+
+    @Test
+    public void should_detect_new_class_file_in_sub_directory() throws Exception {
+        watcher = CodeBaseWatcher.create(config);
+        assumeTrue(watcher.isWatching());
+
+        new File(codeBaseDir, "sample/Bar.class").createNewFile();
+
+        assertThat(awaitChanges(), is(true));
+        assertThat(watcher.pollChanges(), is(false));
+    }
+
+    @Test
+    public void should_detect_class_file_in_new_directory() throws Exception {
+        watcher = CodeBaseWatcher.create(config);
+        assumeTrue(watcher.isWatching());
+
+        File newDir = new File(codeBaseDir, "sample/more");
+        newDir.mkdir();
+        assertThat(awaitChanges(), is(true));
+
+        new File(newDir, "Baz.class").createNewFile();
+        assertThat(awaitChanges(), is(true));
+    }
+
+    @Test
+    public void should_watch_code_base_directory_created_later() throws Exception {
+        File laterDir = new File(temporaryFolder.getRoot(), "later");
+        watcher = CodeBaseWatcher.create(config.toBuilder().codeBase(laterDir.getAbsolutePath()).build());
+        assumeTrue(watcher.isWatching());
+
+        laterDir.mkdir();
+        assertThat(awaitChanges(), is(true));
+
+        new File(laterDir, "Foo.class").createNewFile();
+        assertThat(awaitChanges(), is(true));
+    }
+
+    @Test
+    public void should_ignore_unrelated_files() throws Exception {
+        watcher = CodeBaseWatcher.create(config);
+        assumeTrue(watcher.isWatching());
+
+        new File(codeBaseDir, "sample/readme.txt").createNewFile();
+
+        assertThat(awaitChanges(), is(false));
+    }
+
+    private boolean awaitChanges() throws InterruptedException {
+        for (int i = 0; i < 20; i++) {
+            if (watcher.pollChanges()) {
+                return true;
+            }
+            Thread.sleep(50);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,83 @@
+package io.codekvast.javaagent.codebase;
+
+import io.codekvast.javaagent.codebase.scannertest.ScannerTest1;
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.config.AgentConfigFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FilenameFilter;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author olle.hallin@crisp.se
+ */
+public class ScanCacheTest {
+
+    private static final String TEST_CLASSES_DIR = "build/classes/java/test";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final CodeBaseScanner scanner = new CodeBaseScanner();
+    private AgentConfig config;
+
+    @Before
+    public void beforeTest() {
+        config = AgentConfigFactory.createSampleAgentConfig().toBuilder()
+                                   .codeBase(new File(TEST_CLASSES_DIR).getAbsolutePath())
+                                   .packages(ScannerTest1.class.getPackage().getName())
+                                   .scanCacheDir(temporaryFolder.getRoot().getAbsolutePath())
+                                   .build();
+    }
+
+    @Test
+    public void should_make_same_result_from_cache() {
+        CodeBase first = new CodeBase(config);
+        int numClassesFirst = scanner.scanSignatures(first);
+        assertThat(countEntries() > 0, is(true));
+
+        CodeBase second = new CodeBase(config);
+        int numClassesSecond = scanner.scanSignatures(second);
+
+        assertThat(numClassesSecond, is(numClassesFirst));
+        assertThat(CodeBaseScannerTest.describe(second), is(CodeBaseScannerTest.describe(first)));
+    }
+
+    @Test
+    public void should_not_reuse_entries_when_packages_change() {
+        scanner.scanSignatures(new CodeBase(config));
+        int numEntries = countEntries();
+
+        scanner.scanSignatures(new CodeBase(config.toBuilder().packages(getClass().getPackage().getName()).build()));
+
+        assertThat(countEntries() > numEntries, is(true));
+    }
+
+    @Test
+    public void should_evict_entries_when_too_large() {
+        scanner.scanSignatures(new CodeBase(config.toBuilder().scanCacheMaxMegabytes(0).build()));
+
+        assertThat(countEntries(), is(0));
+    }
+
+    @Test
+    public void should_be_disabled_when_no_cache_dir() {
+        assertThat(ScanCache.open(config.toBuilder().scanCacheDir("").build()), nullValue());
+    }
+
+    private int countEntries() {
+        return temporaryFolder.getRoot().list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".dat");
+            }
+        }).length;
+    }
+}
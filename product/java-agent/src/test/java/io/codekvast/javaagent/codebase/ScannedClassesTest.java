@@ -0,0 +1,113 @@
+package io.codekvast.javaagent.codebase;
+
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.config.AgentConfigFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ScannedClassesTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File codeBaseDir;
+    private AgentConfig config;
+
+    @Before
+    public void beforeTest() throws IOException {
+        codeBaseDir = temporaryFolder.newFolder("classes");
+        new File(codeBaseDir, "sample").mkdir();
+        new File(codeBaseDir, "sample/Foo.class").createNewFile();
+        config = AgentConfigFactory.createSampleAgentConfig().toBuilder()
+                                   .codeBase(codeBaseDir.getAbsolutePath())
+                                   .packages("sample")
+                                   .scanCacheDir(temporaryFolder.newFolder("scan-cache").getAbsolutePath())
+                                   .weavingScope(AgentConfig.WEAVING_SCOPE_CODE_BASE)
+                                   .build();
+    }
+
+    @After
+    public void afterTest() {
+        ScannedClasses.initialize(null);
+    }
+
+    @Test
+    public void should_include_all_classes_when_weaving_scope_is_packages() {
+        // when
+        ScannedClasses.initialize(config.toBuilder().weavingScope(AgentConfig.WEAVING_SCOPE_PACKAGES).build());
+        ScannedClasses.instance.update(new CodeBase(config).getFingerprint(), Arrays.asList("sample/Foo.class"));
+
+        // then
+        assertThat(ScannedClasses.instance.isEnabled(), is(false));
+        assertThat(ScannedClasses.instance.includes("sample/Bar"), is(true));
+    }
+
+    @Test
+    public void should_include_all_classes_until_scanned() {
+        // when
+        ScannedClasses.initialize(config);
+
+        // then
+        assertThat(ScannedClasses.instance.isEnabled(), is(true));
+        assertThat(ScannedClasses.instance.includes("sample/Foo"), is(true));
+        assertThat(ScannedClasses.instance.includes("sample/Foo$$EnhancerByCGLIB"), is(true));
+    }
+
+    @Test
+    public void should_include_only_scanned_classes() {
+        // given
+        ScannedClasses.initialize(config);
+
+        // when
+        ScannedClasses.instance.update(new CodeBase(config).getFingerprint(), Arrays.asList("sample/Foo.class"));
+
+        // then
+        assertThat(ScannedClasses.instance.includes("sample/Foo"), is(true));
+        assertThat(ScannedClasses.instance.includes("sample/Foo$$EnhancerByCGLIB"), is(false));
+    }
+
+    @Test
+    public void should_use_scanned_classes_from_start_when_code_base_is_unchanged() {
+        // given
+        ScannedClasses.initialize(config);
+        ScannedClasses.instance.update(new CodeBase(config).getFingerprint(), Arrays.asList("sample/Foo.class"));
+
+        // when
+        ScannedClasses.initialize(config);
+
+        // then
+        assertThat(ScannedClasses.instance.includes("sample/Bar"), is(true));
+
+        // when
+        ScannedClasses.instance.loadIfUnchanged(new CodeBase(config).getFingerprint());
+
+        // then
+        assertThat(ScannedClasses.instance.includes("sample/Foo"), is(true));
+        assertThat(ScannedClasses.instance.includes("sample/Bar"), is(false));
+    }
+
+    @Test
+    public void should_include_all_classes_from_start_when_code_base_has_changed() throws IOException {
+        // given
+        ScannedClasses.initialize(config);
+        ScannedClasses.instance.update(new CodeBase(config).getFingerprint(), Arrays.asList("sample/Foo.class"));
+        new File(codeBaseDir, "sample/Bar.class").createNewFile();
+
+        // when
+        ScannedClasses.initialize(config);
+        ScannedClasses.instance.loadIfUnchanged(new CodeBase(config).getFingerprint());
+
+        // then
+        assertThat(ScannedClasses.instance.includes("sample/Bar"), is(true));
+    }
+}
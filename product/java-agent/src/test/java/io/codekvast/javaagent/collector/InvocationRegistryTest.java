@@ -1,13 +1,17 @@
 package io.codekvast.javaagent.collector;
 
 import io.codekvast.javaagent.InvocationRegistry;
+import io.codekvast.javaagent.InvocationRegistryStatistics;
 import io.codekvast.javaagent.codebase.CodeBaseFingerprint;
 import io.codekvast.javaagent.config.AgentConfig;
 import io.codekvast.javaagent.config.AgentConfigFactory;
+import io.codekvast.javaagent.probe.ProbeMethodTable;
 import io.codekvast.javaagent.publishing.CodekvastPublishingException;
 import io.codekvast.javaagent.publishing.InvocationDataPublisher;
 import io.codekvast.javaagent.util.SignatureUtils;
+import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.Signature;
+import org.aspectj.runtime.reflect.Factory;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -15,10 +19,15 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 
+import static org.hamcrest.CoreMatchers.hasItems;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
 
 public class InvocationRegistryTest {
@@ -29,8 +38,10 @@ public class InvocationRegistryTest {
     @Rule
     public final TemporaryFolder temporaryFolder = new TemporaryFolder();
 
+    private AgentConfig config;
     private Signature signature1;
     private Signature signature2;
+    private final CapturingInvocationDataPublisher publisher = new CapturingInvocationDataPublisher();
 
     @Before
     public void beforeTest() throws IOException, NoSuchMethodException {
@@ -38,7 +49,7 @@ public class InvocationRegistryTest {
             + temporaryFolder.newFolder("codebase2").getAbsolutePath();
 
         //@formatter:off
-        AgentConfig config = AgentConfigFactory.createSampleAgentConfig().toBuilder()
+        config = AgentConfigFactory.createSampleAgentConfig().toBuilder()
                                        .appName(APP_NAME)
                                        .appVersion(APP_VERSION)
                                        .codeBase(codeBase)
@@ -66,8 +77,175 @@ public class InvocationRegistryTest {
         doExtremelyConcurrentRegistrationOf(25, 1000, signature1, signature2, signature1, signature2);
     }
 
+    @Test
+    public void should_handle_concurrent_registrations_in_indexed_mode() throws Exception {
+        useInvocationRegistryMode(AgentConfig.INVOCATION_REGISTRY_MODE_INDEXED);
+        doExtremelyConcurrentRegistrationOf(25, 1000, signature1, signature2, signature1, signature2);
+    }
+
+    @Test
+    public void should_publish_registered_signatures() throws Exception {
+        InvocationRegistry.instance.registerMethodInvocation(signature1);
+        InvocationRegistry.instance.registerMethodInvocation(signature2);
+        InvocationRegistry.instance.registerMethodInvocation(signature1);
+
+        InvocationRegistry.instance.publishInvocationData(publisher);
+        assertThat(publisher.invocations, is(asStrings(signature1, signature2)));
+        assertThat(publisher.invocationCounts, is(nullValue()));
+
+        InvocationRegistry.instance.publishInvocationData(publisher);
+        assertThat(publisher.invocations, is(Collections.<String>emptySet()));
+    }
+
+    @Test
+    public void should_register_join_points() throws Exception {
+        Factory factory = new Factory("TestClass.java", TestClass.class);
+        JoinPoint.StaticPart jp1 = factory.makeSJP(JoinPoint.METHOD_EXECUTION, signature1, 1);
+
+        InvocationRegistry.instance.registerMethodInvocation(jp1);
+        InvocationRegistry.instance.registerMethodInvocation(jp1);
+
+        InvocationRegistry.instance.publishInvocationData(publisher);
+        assertThat(publisher.invocations, is(asStrings(signature1)));
+    }
+
+    @Test
+    public void should_handle_concurrent_registrations_in_epoch_mode() throws Exception {
+        useInvocationRegistryMode(AgentConfig.INVOCATION_REGISTRY_MODE_EPOCH);
+        doExtremelyConcurrentRegistrationOf(25, 1000, signature1, signature2, signature1, signature2);
+    }
+
+    @Test
+    public void should_record_again_in_new_epoch() throws Exception {
+        useInvocationRegistryMode(AgentConfig.INVOCATION_REGISTRY_MODE_EPOCH);
+        Factory factory = new Factory("TestClass.java", TestClass.class);
+        JoinPoint.StaticPart jp1 = factory.makeSJP(JoinPoint.METHOD_EXECUTION, signature1, 1);
+        JoinPoint.StaticPart jp2 = factory.makeSJP(JoinPoint.METHOD_EXECUTION, signature2, 2);
+
+        InvocationRegistry.instance.registerMethodInvocation(jp1);
+        InvocationRegistry.instance.registerMethodInvocation(jp1);
+        InvocationRegistry.instance.registerMethodInvocation(jp2);
+
+        InvocationRegistry.instance.publishInvocationData(publisher);
+        assertThat(publisher.invocations, is(asStrings(signature1, signature2)));
+
+        InvocationRegistry.instance.publishInvocationData(publisher);
+        assertThat(publisher.invocations, is(Collections.<String>emptySet()));
+
+        InvocationRegistry.instance.registerMethodInvocation(jp1);
+        InvocationRegistry.instance.registerMethodInvocation(jp1);
+        InvocationRegistry.instance.publishInvocationData(publisher);
+        assertThat(publisher.invocations, is(asStrings(signature1)));
+    }
+
+    @Test
+    public void should_handle_concurrent_registrations_in_counting_mode() throws Exception {
+        useInvocationRegistryMode(AgentConfig.INVOCATION_REGISTRY_MODE_COUNTING);
+        doExtremelyConcurrentRegistrationOf(25, 1000, signature1, signature2, signature1, signature2);
+    }
+
+    @Test
+    public void should_count_invocations_in_counting_mode() throws Exception {
+        useInvocationRegistryMode(AgentConfig.INVOCATION_REGISTRY_MODE_COUNTING);
+        Factory factory = new Factory("TestClass.java", TestClass.class);
+        JoinPoint.StaticPart jp1 = factory.makeSJP(JoinPoint.METHOD_EXECUTION, signature1, 1);
+        String sig1 = SignatureUtils.signatureToCanonicalString(signature1);
+        String sig2 = SignatureUtils.signatureToCanonicalString(signature2);
+
+        InvocationRegistry.instance.registerMethodInvocation(jp1);
+        InvocationRegistry.instance.registerMethodInvocation(jp1);
+        InvocationRegistry.instance.registerMethodInvocation(signature1);
+        InvocationRegistry.instance.registerMethodInvocation(signature2);
+
+        InvocationRegistry.instance.publishInvocationData(publisher);
+        assertThat(publisher.invocations, is(asStrings(signature1, signature2)));
+        assertThat(publisher.invocationCounts.get(sig1), is(3L));
+        assertThat(publisher.invocationCounts.get(sig2), is(1L));
+
+        InvocationRegistry.instance.registerMethodInvocation(jp1);
+        InvocationRegistry.instance.publishInvocationData(publisher);
+        assertThat(publisher.invocations, is(asStrings(signature1)));
+        assertThat(publisher.invocationCounts.get(sig1), is(1L));
+        assertThat(publisher.invocationCounts.containsKey(sig2), is(false));
+    }
+
+    @Test
+    public void should_drop_signatures_when_full() throws Exception {
+        InvocationRegistry.initialize(config.toBuilder().invocationRegistryCapacity(1).build());
+
+        InvocationRegistry.instance.registerMethodInvocation(signature1);
+        InvocationRegistry.instance.registerMethodInvocation(signature2);
+        InvocationRegistry.instance.registerMethodInvocation(signature1);
+
+        InvocationRegistry.instance.publishInvocationData(publisher);
+        assertThat(publisher.invocations, is(asStrings(signature1)));
+
+        InvocationRegistryStatistics statistics = InvocationRegistry.instance.getStatistics();
+        assertThat(statistics.getEnqueuedSignatures(), is(1L));
+        // Repeated registrations of a recorded signature are not counted
+        assertThat(statistics.getDeduplicatedSignatures(), is(0L));
+        assertThat(statistics.getDroppedSignatures(), is(1L));
+
+        // A new recording interval has room again
+        InvocationRegistry.instance.registerMethodInvocation(signature2);
+        InvocationRegistry.instance.publishInvocationData(publisher);
+        assertThat(publisher.invocations, is(asStrings(signature2)));
+    }
+
+    @Test
+    public void should_publish_registered_join_points_in_indexed_mode() throws Exception {
+        useInvocationRegistryMode(AgentConfig.INVOCATION_REGISTRY_MODE_INDEXED);
+        Factory factory = new Factory("TestClass.java", TestClass.class);
+        JoinPoint.StaticPart jp1 = factory.makeSJP(JoinPoint.METHOD_EXECUTION, signature1, 1);
+        JoinPoint.StaticPart jp2 = factory.makeSJP(JoinPoint.METHOD_EXECUTION, signature2, 2);
+
+        InvocationRegistry.instance.registerMethodInvocation(jp1);
+        InvocationRegistry.instance.registerMethodInvocation(jp2);
+        InvocationRegistry.instance.registerMethodInvocation(jp1);
+
+        InvocationRegistry.instance.publishInvocationData(publisher);
+        assertThat(publisher.invocations, is(asStrings(signature1, signature2)));
+
+        InvocationRegistry.instance.publishInvocationData(publisher);
+        assertThat(publisher.invocations, is(Collections.<String>emptySet()));
+
+        InvocationRegistry.instance.registerMethodInvocation(jp2);
+        InvocationRegistry.instance.publishInvocationData(publisher);
+        assertThat(publisher.invocations, is(asStrings(signature2)));
+    }
+
+    @Test
+    public void should_register_probe_ids_in_all_modes() throws Exception {
+        int probe1 = ProbeMethodTable.getId(SignatureUtils.signatureToCanonicalString(signature1));
+        int probe2 = ProbeMethodTable.getId(SignatureUtils.signatureToCanonicalString(signature2));
+
+        for (String mode : new String[]{AgentConfig.INVOCATION_REGISTRY_MODE_SIGNATURES, AgentConfig.INVOCATION_REGISTRY_MODE_INDEXED,
+            AgentConfig.INVOCATION_REGISTRY_MODE_EPOCH, AgentConfig.INVOCATION_REGISTRY_MODE_COUNTING}) {
+            useInvocationRegistryMode(mode);
+
+            InvocationRegistry.instance.registerMethodInvocation(probe1);
+            InvocationRegistry.instance.registerMethodInvocation(signature1);
+            InvocationRegistry.instance.registerMethodInvocation(probe2);
+
+            InvocationRegistry.instance.publishInvocationData(publisher);
+            assertThat(mode, publisher.invocations, is(asStrings(signature1, signature2)));
+        }
+    }
+
+    private void useInvocationRegistryMode(String mode) {
+        InvocationRegistry.initialize(config.toBuilder().invocationRegistryMode(mode).build());
+    }
+
+    private Set<String> asStrings(Signature... signatures) {
+        Set<String> result = new HashSet<>();
+        for (Signature signature : signatures) {
+            result.add(SignatureUtils.signatureToCanonicalString(signature));
+        }
+        return result;
+    }
+
     private void doExtremelyConcurrentRegistrationOf(int numThreads, final int numRegistrations, final Signature... signatures)
-        throws InterruptedException {
+        throws Exception {
 
         final CountDownLatch startingGun = new CountDownLatch(1);
         final CountDownLatch finishLine = new CountDownLatch(numThreads * signatures.length);
@@ -94,25 +272,33 @@ public class InvocationRegistryTest {
             }
         }
 
-        Thread publisher = new Thread(new Runnable() {
+        final Set<String> allPublished = Collections.synchronizedSet(new HashSet<String>());
+        Thread publisherThread = new Thread(new Runnable() {
             @Override
             public void run() {
-                NullInvocationDataPublisher publisher = new NullInvocationDataPublisher();
+                CapturingInvocationDataPublisher publisher = new CapturingInvocationDataPublisher();
                 try {
                     startingGun.await();
-                    //noinspection InfiniteLoopStatement
-                    while (true) {
+                    while (!Thread.currentThread().isInterrupted()) {
                         InvocationRegistry.instance.publishInvocationData(publisher);
+                        allPublished.addAll(publisher.invocations);
                     }
                 } catch (InterruptedException | CodekvastPublishingException ignore) {
                 }
             }
         });
-        publisher.start();
+        publisherThread.start();
 
         startingGun.countDown();
         finishLine.await();
-        publisher.interrupt();
+        publisherThread.interrupt();
+        publisherThread.join();
+
+        // Nothing registered after the last interrupted publishing may get lost
+        InvocationRegistry.instance.publishInvocationData(publisher);
+        allPublished.addAll(publisher.invocations);
+
+        assertThat(allPublished, hasItems(asStrings(signatures).toArray(new String[0])));
     }
 
     @SuppressWarnings({"unused", "WeakerAccess"})
@@ -126,7 +312,10 @@ public class InvocationRegistryTest {
         }
     }
 
-    private static class NullInvocationDataPublisher implements InvocationDataPublisher {
+    private static class CapturingInvocationDataPublisher implements InvocationDataPublisher {
+        private Set<String> invocations;
+        private Map<String, Long> invocationCounts;
+
         @Override
         public void setCodeBaseFingerprint(CodeBaseFingerprint fingerprint) {
 
@@ -138,7 +327,15 @@ public class InvocationRegistryTest {
         }
 
         @Override
-        public void publishInvocationData(long recordingIntervalStartedAtMillis, Set<String> invocations) {
+        public void publishInvocationData(long recordingIntervalStartedAtMillis, Set<String> invocations,
+                                          Map<String, Long> invocationCounts) {
+            this.invocations = invocations;
+            this.invocationCounts = invocationCounts;
+        }
+
+        @Override
+        public void publishSpooledInvocationData() {
+
         }
 
         @Override
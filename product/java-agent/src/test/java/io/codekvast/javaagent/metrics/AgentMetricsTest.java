@@ -0,0 +1,95 @@
+package io.codekvast.javaagent.metrics;
+
+import io.codekvast.javaagent.InvocationRegistry;
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.config.AgentConfigFactory;
+import io.codekvast.javaagent.util.SignatureUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.both;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class AgentMetricsTest {
+
+    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    private ObjectName objectName;
+
+    @Before
+    public void beforeTest() throws Exception {
+        objectName = new ObjectName(AgentMetrics.OBJECT_NAME);
+        AgentConfig config = AgentConfigFactory.createSampleAgentConfig();
+        InvocationRegistry.initialize(config);
+        AgentMetrics.instance.register(config.getNormalizedInvocationRegistryMode(), false);
+    }
+
+    @After
+    public void afterTest() {
+        AgentMetrics.instance.unregister();
+        InvocationRegistry.initialize(null);
+    }
+
+    @Test
+    public void should_register_mxbean_idempotently() {
+        AgentMetrics.instance.register("signatures", false);
+        assertThat(mBeanServer.isRegistered(objectName), is(true));
+
+        AgentMetrics.instance.unregister();
+        assertThat(mBeanServer.isRegistered(objectName), is(false));
+    }
+
+    @Test
+    public void should_expose_publishing_metrics() throws Exception {
+        long before = (Long) mBeanServer.getAttribute(objectName, "InvocationDataPublishingFailures");
+
+        AgentMetrics.instance.invocationDataPublished(17L);
+        AgentMetrics.instance.invocationDataPublishingFailed();
+
+        assertThat((Long) mBeanServer.getAttribute(objectName, "LastInvocationDataPublishingMillis"), is(17L));
+        assertThat((Long) mBeanServer.getAttribute(objectName, "InvocationDataPublishingFailures"), is(before + 1));
+        assertThat((String) mBeanServer.getAttribute(objectName, "InvocationRegistryMode"), is("signatures"));
+    }
+
+    @Test
+    public void should_not_sample_advice_executions_by_default() {
+        assertThat(countAdviceSamples(4096), is(0));
+    }
+
+    @Test
+    public void should_sample_advice_executions_when_enabled() {
+        AgentMetrics.instance.register("signatures", true);
+
+        assertThat(countAdviceSamples(102_400), both(greaterThan(10)).and(lessThan(1000)));
+
+        AgentMetrics.instance.adviceSampled(100L);
+        AgentMetrics.instance.adviceSampled(300L);
+        assertThat(AgentMetrics.instance.getAdviceMaxNanos(), greaterThanOrEqualTo(300L));
+    }
+
+    private static int countAdviceSamples(int executions) {
+        int result = 0;
+        for (int i = 0; i < executions; i++) {
+            if (AgentMetrics.instance.isAdviceSampleDue()) {
+                result += 1;
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void should_expose_registry_statistics() throws Exception {
+        InvocationRegistry.instance.registerMethodInvocation(
+            SignatureUtils.makeSignature(AgentMetricsTest.class, AgentMetricsTest.class.getMethod("should_expose_registry_statistics")));
+
+        assertThat((Integer) mBeanServer.getAttribute(objectName, "SignaturesInCurrentInterval"), is(1));
+    }
+}
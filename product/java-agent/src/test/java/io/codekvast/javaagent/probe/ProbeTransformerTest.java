@@ -0,0 +1,190 @@
+package io.codekvast.javaagent.probe;
+
+import io.codekvast.javaagent.InvocationRegistry;
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.config.AgentConfigFactory;
+import io.codekvast.javaagent.publishing.impl.NoOpInvocationDataPublisherImpl;
+import io.codekvast.javaagent.util.SignatureUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author olle.hallin@crisp.se
+ */
+public class ProbeTransformerTest {
+
+    private final AgentConfig config = AgentConfigFactory.createSampleAgentConfig().toBuilder()
+                                                         .packages("com.acme, io.codekvast")
+                                                         .excludePackages("com.acme.excluded")
+                                                         .methodVisibility("protected")
+                                                         .instrumentationEngine("probe")
+                                                         .build();
+
+    private final ProbeTransformer transformer = new ProbeTransformer(config);
+
+    @Before
+    public void beforeTest() {
+        InvocationRegistry.initialize(config);
+    }
+
+    @After
+    public void afterTest() {
+        InvocationRegistry.initialize(null);
+    }
+
+    @Test
+    public void should_make_same_canonical_signature_as_aspectj() throws Exception {
+        for (Method method : Sample.class.getDeclaredMethods()) {
+            if (!method.isSynthetic()) {
+                String expected = SignatureUtils.signatureToCanonicalString(SignatureUtils.makeSignature(Sample.class, method));
+                assertThat(ProbeTransformer.toCanonicalSignature(Type.getInternalName(Sample.class), method.getName(),
+                                                                 Type.getMethodDescriptor(method)), is(expected));
+            }
+        }
+    }
+
+    @Test
+    public void should_make_canonical_signature_of_constructor() throws Exception {
+        Constructor<Sample> constructor = Sample.class.getDeclaredConstructor(int.class);
+        assertThat(ProbeTransformer.toCanonicalSignature(Type.getInternalName(Sample.class), "<init>",
+                                                         Type.getConstructorDescriptor(constructor)),
+                   is("io.codekvast.javaagent.probe.ProbeTransformerTest.Sample(int)"));
+    }
+
+    @Test
+    public void should_select_classes_within_packages() {
+        assertThat(transformer.isWithinPackages("com/acme/Foo"), is(true));
+        assertThat(transformer.isWithinPackages("com/acme/excluded/Foo"), is(false));
+        assertThat(transformer.isWithinPackages("com/acmex/Foo"), is(false));
+        assertThat(transformer.isWithinPackages("io/codekvast/javaagent/probe/Probe"), is(false));
+    }
+
+    @Test
+    public void should_select_methods_like_aspectj() {
+        assertThat(transformer.isInstrumentable(Opcodes.ACC_PUBLIC, "foo", "()V"), is(true));
+        assertThat(transformer.isInstrumentable(Opcodes.ACC_PROTECTED, "<init>", "()V"), is(true));
+        assertThat(transformer.isInstrumentable(0, "foo", "()V"), is(false));
+        assertThat(transformer.isInstrumentable(Opcodes.ACC_PRIVATE, "foo", "()V"), is(false));
+        assertThat(transformer.isInstrumentable(Opcodes.ACC_PUBLIC | Opcodes.ACC_ABSTRACT, "foo", "()V"), is(false));
+        assertThat(transformer.isInstrumentable(Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC, "foo", "()V"), is(false));
+        assertThat(transformer.isInstrumentable(Opcodes.ACC_STATIC, "<clinit>", "()V"), is(false));
+        assertThat(transformer.isInstrumentable(Opcodes.ACC_PUBLIC, "toString", "()Ljava/lang/String;"), is(false));
+        assertThat(transformer.isInstrumentable(Opcodes.ACC_PUBLIC, "toString", "(I)Ljava/lang/String;"), is(true));
+    }
+
+    @Test
+    public void should_not_transform_classes_outside_packages() {
+        assertThat(transformer.transform(null, "org/acme/Foo", null, null, new byte[0]), nullValue());
+    }
+
+    @Test
+    public void should_record_invocations_of_instrumented_methods() throws Exception {
+        byte[] instrumented = transformer.instrument(readClassFile(Sample.class));
+        assertThat(instrumented, notNullValue());
+
+        Class<?> clazz = new SingleClassLoader(Sample.class.getName(), instrumented).loadClass(Sample.class.getName());
+        Object sample = clazz.getDeclaredConstructor(int.class).newInstance(17);
+        clazz.getMethod("publicMethod", String[].class, List.class).invoke(sample, new String[0], null);
+        clazz.getMethod("toString").invoke(sample);
+
+        CapturingPublisher publisher = new CapturingPublisher();
+        InvocationRegistry.instance.publishInvocationData(publisher);
+
+        assertThat(publisher.invocations.contains(
+            "io.codekvast.javaagent.probe.ProbeTransformerTest.Sample.publicMethod(java.lang.String[], java.util.List)"), is(true));
+        assertThat(publisher.invocations.contains("io.codekvast.javaagent.probe.ProbeTransformerTest.Sample(int)"), is(true));
+        assertThat(publisher.invocations.size(), is(2));
+    }
+
+    private static byte[] readClassFile(Class<?> clazz) throws IOException {
+        try (InputStream in = clazz.getResourceAsStream("/" + Type.getInternalName(clazz) + ".class")) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static class SingleClassLoader extends ClassLoader {
+        private final String className;
+        private final byte[] classFile;
+
+        SingleClassLoader(String className, byte[] classFile) {
+            super(SingleClassLoader.class.getClassLoader());
+            this.className = className;
+            this.classFile = classFile;
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.equals(className)) {
+                Class<?> clazz = findLoadedClass(name);
+                return clazz != null ? clazz : defineClass(name, classFile, 0, classFile.length);
+            }
+            return super.loadClass(name, resolve);
+        }
+    }
+
+    private static class CapturingPublisher extends NoOpInvocationDataPublisherImpl {
+        private Set<String> invocations;
+
+        CapturingPublisher() {
+            super(AgentConfigFactory.createSampleAgentConfig());
+        }
+
+        @Override
+        public void publishInvocationData(long recordingIntervalStartedAtMillis, Set<String> invocations,
+                                          Map<String, Long> invocationCounts) {
+            this.invocations = invocations;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public static class Sample {
+        private final int value;
+
+        public Sample(int value) {
+            this.value = value;
+        }
+
+        public int publicMethod(String[] args, List<String> list) {
+            return privateMethod(args.length);
+        }
+
+        protected static Sample.Inner protectedMethod(Inner inner, long[][] matrix) {
+            return inner;
+        }
+
+        private int privateMethod(int i) {
+            return i + value;
+        }
+
+        @Override
+        public String toString() {
+            return "Sample " + value;
+        }
+
+        public static class Inner {
+        }
+    }
+}
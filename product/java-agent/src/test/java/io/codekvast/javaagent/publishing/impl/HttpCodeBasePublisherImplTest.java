@@ -3,15 +3,26 @@ package io.codekvast.javaagent.publishing.impl;
 import io.codekvast.javaagent.codebase.CodeBase;
 import io.codekvast.javaagent.config.AgentConfig;
 import io.codekvast.javaagent.config.AgentConfigFactory;
+import io.codekvast.javaagent.model.Endpoints;
+import io.codekvast.javaagent.model.v2.CodeBasePublication2;
 import io.codekvast.javaagent.model.v2.MethodSignature2;
+import io.codekvast.javaagent.model.v3.CodeBaseDeltaPublication3;
+import io.codekvast.javaagent.model.v3.PublicationFormat3;
+import io.codekvast.javaagent.model.v3.PublicationReader3;
+import io.codekvast.javaagent.publishing.CodekvastPublishingException;
 import okhttp3.*;
+import okio.Buffer;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.util.zip.GZIPInputStream;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * @author olle.hallin@crisp.se
@@ -20,17 +31,24 @@ public class HttpCodeBasePublisherImplTest {
 
     private final AgentConfig config = AgentConfigFactory
         .createSampleAgentConfig().toBuilder()
-        .appName("appName").appVersion("appVersion").build();
+        .appName("appName").appVersion("appVersion").httpUploadStreaming(false).scanCacheDir("").build();
     private final CodeBase codeBase = new CodeBase(config);
-    private final HttpCodeBasePublisherImpl publisher = new TestableHttpCodeBasePublisherImpl();
+    private final HttpCodeBasePublisherImpl publisher = new TestableHttpCodeBasePublisherImpl(config);
 
     private File uploadedFile;
+    private RequestBody uploadedBody;
+    private String uploadedFilename;
     private int uploadedPublicationSize;
+    private String uploadedUrl;
+    private String uploadedBaseFingerprint;
+    // Negative means that deltas are accepted
+    private int rejectedDeltas = -1;
+    private int rejectedDeltaStatusCode = 409;
 
     @Test
     public void should_create_and_upload_file() throws Exception {
         // given
-        codeBase.getSignatures().add(MethodSignature2.createSampleMethodSignature());
+        codeBase.addSignature(MethodSignature2.createSampleMethodSignature());
 
         // when
         publisher.doPublishCodeBase(codeBase);
@@ -44,11 +62,171 @@ public class HttpCodeBasePublisherImplTest {
         assertThat(uploadedPublicationSize, is(1));
     }
 
+    @Test
+    public void should_stream_publication_without_file() throws Exception {
+        // given
+        codeBase.addSignature(MethodSignature2.createSampleMethodSignature());
+        HttpCodeBasePublisherImpl streamingPublisher =
+            new TestableHttpCodeBasePublisherImpl(config.toBuilder().httpUploadStreaming(true).build());
+
+        // when
+        streamingPublisher.doPublishCodeBase(codeBase);
+
+        // then
+        assertThat(uploadedFile, nullValue());
+        assertThat(uploadedFilename, is("codebase-appname-appversion-.ser"));
+        assertThat(uploadedPublicationSize, is(1));
+
+        CodeBasePublication2 publication = (CodeBasePublication2) readObject(getUploadedBytes().inputStream());
+        assertThat(publication.getEntries().size(), is(1));
+    }
+
+    @Test
+    public void should_stream_compressed_publication() throws Exception {
+        // given
+        codeBase.addSignature(MethodSignature2.createSampleMethodSignature());
+        HttpCodeBasePublisherImpl streamingPublisher =
+            new TestableHttpCodeBasePublisherImpl(
+                config.toBuilder().httpUploadStreaming(true).httpUploadCompression(true).build());
+
+        // when
+        streamingPublisher.doPublishCodeBase(codeBase);
+
+        // then
+        assertThat(uploadedFilename, is("codebase-appname-appversion-.ser.gz"));
+
+        Buffer bytes = getUploadedBytes();
+        assertThat(bytes.getByte(0), is((byte) 0x1f));
+        assertThat(bytes.getByte(1), is((byte) 0x8b));
+
+        CodeBasePublication2 publication = (CodeBasePublication2) readObject(new GZIPInputStream(bytes.inputStream()));
+        assertThat(publication.getEntries().size(), is(1));
+    }
+
+    @Test
+    public void should_stream_compressed_publication_in_format3() throws Exception {
+        // given
+        codeBase.addSignature(MethodSignature2.createSampleMethodSignature());
+        HttpCodeBasePublisherImpl streamingPublisher =
+            new TestableHttpCodeBasePublisherImpl(
+                config.toBuilder().httpUploadStreaming(true).httpUploadCompression(true)
+                      .httpUploadFormat(AgentConfig.HTTP_UPLOAD_FORMAT_V3).build());
+
+        // when
+        streamingPublisher.doPublishCodeBase(codeBase);
+
+        // then
+        assertThat(uploadedFilename, is("codebase-appname-appversion-.ckv3"));
+
+        Buffer bytes = getUploadedBytes();
+        assertThat(bytes.getByte(0), is((byte) 'C'));
+        assertThat(bytes.getByte(3), is((byte) '3'));
+        assertThat(bytes.getByte(4), is((byte) PublicationFormat3.Envelope.GZIP.ordinal()));
+
+        CodeBasePublication2 publication = (CodeBasePublication2) PublicationReader3.readPublication(bytes.inputStream());
+        assertThat(publication.getEntries().size(), is(1));
+    }
+
+    @Test
+    public void should_upload_delta_against_acknowledged_code_base() throws Exception {
+        // given
+        HttpCodeBasePublisherImpl streamingPublisher =
+            new TestableHttpCodeBasePublisherImpl(config.toBuilder().httpUploadStreaming(true).build());
+        for (int i = 0; i < 4; i++) {
+            codeBase.addSignature(createMethodSignature("method" + i));
+        }
+        streamingPublisher.doPublishCodeBase(codeBase);
+        assertThat(uploadedUrl, endsWith(Endpoints.Agent.V2_UPLOAD_CODEBASE));
+
+        // when
+        codeBase.addSignature(createMethodSignature("method4"));
+        streamingPublisher.doPublishCodeBase(codeBase);
+
+        // then
+        assertThat(uploadedUrl, endsWith(Endpoints.Agent.V3_UPLOAD_CODEBASE_DELTA));
+        assertThat(uploadedFilename, is("codebase-delta-appname-appversion-.ckv3"));
+        assertThat(uploadedBaseFingerprint, is(codeBase.getFingerprint().toString()));
+        assertThat(uploadedPublicationSize, is(5));
+
+        CodeBaseDeltaPublication3 delta =
+            (CodeBaseDeltaPublication3) PublicationReader3.readPublication(getUploadedBytes().inputStream());
+        assertThat(delta.getAddedEntries().size(), is(1));
+        assertThat(delta.getAddedEntries().iterator().next().getMethodSignature().getMethodName(), is("method4"));
+        assertThat(delta.getRemovedSignatures().size(), is(0));
+    }
+
+    @Test
+    public void should_upload_full_code_base_when_delta_is_rejected() throws Exception {
+        // given
+        HttpCodeBasePublisherImpl streamingPublisher =
+            new TestableHttpCodeBasePublisherImpl(config.toBuilder().httpUploadStreaming(true).build());
+        for (int i = 0; i < 4; i++) {
+            codeBase.addSignature(createMethodSignature("method" + i));
+        }
+        streamingPublisher.doPublishCodeBase(codeBase);
+        rejectedDeltas = 0;
+
+        // when
+        codeBase.addSignature(createMethodSignature("method4"));
+        streamingPublisher.doPublishCodeBase(codeBase);
+
+        // then
+        assertThat(rejectedDeltas, is(1));
+        assertThat(uploadedUrl, endsWith(Endpoints.Agent.V2_UPLOAD_CODEBASE));
+        assertThat(uploadedBaseFingerprint, nullValue());
+        assertThat(uploadedPublicationSize, is(5));
+    }
+
+    @Test
+    public void should_not_upload_full_code_base_when_delta_upload_fails_otherwise() throws Exception {
+        // given
+        HttpCodeBasePublisherImpl streamingPublisher =
+            new TestableHttpCodeBasePublisherImpl(config.toBuilder().httpUploadStreaming(true).build());
+        for (int i = 0; i < 4; i++) {
+            codeBase.addSignature(createMethodSignature("method" + i));
+        }
+        streamingPublisher.doPublishCodeBase(codeBase);
+        rejectedDeltas = 0;
+        rejectedDeltaStatusCode = 503;
+
+        // when
+        codeBase.addSignature(createMethodSignature("method4"));
+        try {
+            streamingPublisher.doPublishCodeBase(codeBase);
+            fail("Expected a CodekvastPublishingException");
+        } catch (CodekvastPublishingException e) {
+            // expected
+        }
+
+        // then
+        assertThat(rejectedDeltas, is(1));
+        assertThat(uploadedPublicationSize, is(4));
+    }
+
+    private MethodSignature2 createMethodSignature(String methodName) {
+        return MethodSignature2.createSampleMethodSignature().toBuilder()
+                               .aspectjString("public void declaringType." + methodName + "()")
+                               .methodName(methodName)
+                               .build();
+    }
+
+    private Buffer getUploadedBytes() throws IOException {
+        Buffer buffer = new Buffer();
+        uploadedBody.writeTo(buffer);
+        return buffer;
+    }
+
+    private Object readObject(InputStream inputStream) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(inputStream)) {
+            return ois.readObject();
+        }
+    }
+
     @SuppressWarnings("ClassTooDeepInInheritanceTree")
     private class TestableHttpCodeBasePublisherImpl extends HttpCodeBasePublisherImpl {
 
-        TestableHttpCodeBasePublisherImpl() {
-            super(HttpCodeBasePublisherImplTest.this.config);
+        TestableHttpCodeBasePublisherImpl(AgentConfig config) {
+            super(config);
         }
 
         @Override
@@ -58,8 +236,29 @@ public class HttpCodeBasePublisherImplTest {
             uploadedPublicationSize = publicationSize;
         }
 
+        @Override
+        void doPost(RequestBody publicationBody, String filename, String url, String fingerprint, String baseFingerprint,
+                    int publicationSize) throws IOException {
+            super.doPost(publicationBody, filename, url, fingerprint, baseFingerprint, publicationSize);
+            uploadedBody = publicationBody;
+            uploadedFilename = filename;
+            uploadedUrl = url;
+            uploadedBaseFingerprint = baseFingerprint;
+            uploadedPublicationSize = publicationSize;
+        }
+
         @Override
         Response executeRequest(Request request) {
+            if (rejectedDeltas >= 0 && request.url().encodedPath().endsWith(Endpoints.Agent.V3_UPLOAD_CODEBASE_DELTA)) {
+                rejectedDeltas += 1;
+                return new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(rejectedDeltaStatusCode)
+                    .message("Rejected")
+                    .body(ResponseBody.create(MediaType.parse("text/plain"), "Unknown base code base"))
+                    .build();
+            }
             return new Response.Builder()
                 .request(request)
                 .protocol(Protocol.HTTP_1_1)
@@ -70,4 +269,4 @@ public class HttpCodeBasePublisherImplTest {
         }
 
     }
-}
\ No newline at end of file
+}
@@ -3,28 +3,50 @@ package io.codekvast.javaagent.publishing.impl;
 import io.codekvast.javaagent.codebase.CodeBaseFingerprint;
 import io.codekvast.javaagent.config.AgentConfig;
 import io.codekvast.javaagent.config.AgentConfigFactory;
+import io.codekvast.javaagent.model.v3.InvocationDataPublication3;
+import io.codekvast.javaagent.model.v3.MethodIdMapping3;
+import io.codekvast.javaagent.model.v3.PublicationFormat3;
+import io.codekvast.javaagent.model.v3.PublicationReader3;
+import io.codekvast.javaagent.model.v3.PublicationWriter3;
 import okhttp3.*;
+import io.codekvast.javaagent.publishing.CodekvastPublishingException;
+import okio.Buffer;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
+
+import static io.codekvast.javaagent.model.Endpoints.Agent.V3_GET_METHOD_IDS;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 /**
  * @author olle.hallin@crisp.se
  */
 public class HttpInvocationDataPublisherImplTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     private final AgentConfig config = AgentConfigFactory
-        .createSampleAgentConfig().toBuilder().appName("appName").appVersion("appVersion").build();
+        .createSampleAgentConfig().toBuilder().appName("appName").appVersion("appVersion").httpUploadStreaming(false)
+        .spoolDir("").build();
 
     private File uploadedFile;
     private int uploadedPublicationSize;
+    private String uploadedFilename;
+    private RequestBody uploadedBody;
+    private MethodIdMapping3 methodIdMapping;
+    private int methodIdRequests;
+    private boolean serverDown;
+    private int rejectedUploads;
+    private long now = 1_500_000_000_000L;
 
     private final HttpInvocationDataPublisherImpl publisher = new TestableHttpInvocationDataPublisherImpl();
 
@@ -32,7 +54,7 @@ public class HttpInvocationDataPublisherImplTest {
     public void should_create_and_upload_file_when_invocations_exist() throws Exception {
         Set<String> invocations = new HashSet<>(Arrays.asList("a", "b", "c"));
         publisher.setCodeBaseFingerprint(CodeBaseFingerprint.builder(config).build());
-        publisher.doPublishInvocationData(System.currentTimeMillis(), invocations);
+        publisher.doPublishInvocationData(System.currentTimeMillis(), invocations, null);
 
         assertThat(uploadedFile, notNullValue());
         assertThat(uploadedFile.getName(), startsWith("invocations-appname-appversion-"));
@@ -46,16 +68,249 @@ public class HttpInvocationDataPublisherImplTest {
     public void should_not_create_and_upload_file_when_no_invocations_exist() throws Exception {
         Set<String> invocations = new HashSet<>();
         publisher.setCodeBaseFingerprint(CodeBaseFingerprint.builder(config).build());
-        publisher.doPublishInvocationData(System.currentTimeMillis(), invocations);
+        publisher.doPublishInvocationData(System.currentTimeMillis(), invocations, null);
 
         assertThat(uploadedFile, nullValue());
         assertThat(uploadedPublicationSize, is(0));
     }
 
+    @Test
+    public void should_upload_method_ids_when_server_has_method_ids() throws Exception {
+        // given
+        CodeBaseFingerprint fingerprint = CodeBaseFingerprint.builder(config).build();
+        Map<String, Long> ids = new HashMap<>();
+        ids.put("a", 17L);
+        ids.put("c", 4L);
+        methodIdMapping = MethodIdMapping3.builder().codeBaseFingerprint(fingerprint.toString()).methodIds(ids).build();
+        publisher.setCodeBaseFingerprint(fingerprint);
+
+        // when
+        publisher.doPublishInvocationData(System.currentTimeMillis(), new HashSet<>(Arrays.asList("a", "b", "c")), null);
+
+        // then
+        assertThat(uploadedFilename, startsWith("invocations-appname-appversion-"));
+        assertThat(uploadedFilename, endsWith(".ckv3"));
+        assertThat(uploadedPublicationSize, is(3));
+
+        Buffer buffer = new Buffer();
+        uploadedBody.writeTo(buffer);
+        InvocationDataPublication3 publication = (InvocationDataPublication3) PublicationReader3.readPublication(buffer.inputStream());
+        assertThat(publication.getInvokedMethodIds(), is(new long[]{4L, 17L}));
+        assertThat(publication.getInvocations(), is(Collections.singleton("b")));
+    }
+
+    @Test
+    public void should_fetch_method_ids_once_per_code_base() throws Exception {
+        // given
+        CodeBaseFingerprint fingerprint = CodeBaseFingerprint.builder(config).build();
+        methodIdMapping = MethodIdMapping3.builder()
+                                          .codeBaseFingerprint(fingerprint.toString())
+                                          .methodIds(Collections.singletonMap("a", 1L))
+                                          .build();
+        publisher.setCodeBaseFingerprint(fingerprint);
+
+        // when
+        publisher.doPublishInvocationData(System.currentTimeMillis(), Collections.singleton("a"), null);
+        publisher.doPublishInvocationData(System.currentTimeMillis(), Collections.singleton("a"), null);
+
+        // then
+        assertThat(methodIdRequests, is(1));
+    }
+
+    @Test
+    public void should_back_off_when_server_has_no_method_ids() throws Exception {
+        // given
+        CodeBaseFingerprint fingerprint = CodeBaseFingerprint.builder(config).build();
+        publisher.setCodeBaseFingerprint(fingerprint);
+
+        // when
+        publisher.doPublishInvocationData(now, Collections.singleton("a"), null);
+        now += HttpInvocationDataPublisherImpl.MIN_METHOD_IDS_FETCH_DELAY_MILLIS - 1;
+        publisher.doPublishInvocationData(now, Collections.singleton("a"), null);
+
+        // then
+        assertThat(methodIdRequests, is(1));
+        assertThat(uploadedFile.getName(), endsWith(".ser"));
+
+        // when
+        methodIdMapping = MethodIdMapping3.builder()
+                                          .codeBaseFingerprint(fingerprint.toString())
+                                          .methodIds(Collections.singletonMap("a", 1L))
+                                          .build();
+        now += 1;
+        publisher.doPublishInvocationData(now, Collections.singleton("a"), null);
+
+        // then
+        assertThat(methodIdRequests, is(2));
+        assertThat(uploadedFilename, endsWith(".ckv3"));
+
+        // when
+        now += HttpInvocationDataPublisherImpl.MAX_METHOD_IDS_FETCH_DELAY_MILLIS;
+        publisher.doPublishInvocationData(now, Collections.singleton("a"), null);
+
+        // then
+        assertThat(methodIdRequests, is(2));
+    }
+
+    @Test
+    public void should_refresh_method_ids_that_lack_an_invoked_method_after_a_delay() throws Exception {
+        // given
+        CodeBaseFingerprint fingerprint = CodeBaseFingerprint.builder(config).build();
+        methodIdMapping = MethodIdMapping3.builder()
+                                          .codeBaseFingerprint(fingerprint.toString())
+                                          .methodIds(Collections.singletonMap("a", 1L))
+                                          .build();
+        publisher.setCodeBaseFingerprint(fingerprint);
+        publisher.doPublishInvocationData(now, new HashSet<>(Arrays.asList("a", "b")), null);
+
+        Map<String, Long> ids = new HashMap<>();
+        ids.put("a", 1L);
+        ids.put("b", 2L);
+        methodIdMapping = methodIdMapping.toBuilder().methodIds(ids).build();
+
+        // when
+        now += HttpInvocationDataPublisherImpl.MIN_METHOD_IDS_FETCH_DELAY_MILLIS;
+        publisher.doPublishInvocationData(now, new HashSet<>(Arrays.asList("a", "b")), null);
+
+        // then
+        assertThat(methodIdRequests, is(2));
+
+        Buffer buffer = new Buffer();
+        uploadedBody.writeTo(buffer);
+        InvocationDataPublication3 publication = (InvocationDataPublication3) PublicationReader3.readPublication(buffer.inputStream());
+        assertThat(publication.getInvokedMethodIds(), is(new long[]{1L, 2L}));
+        assertThat(publication.getInvocations().isEmpty(), is(true));
+    }
+
+    @Test
+    public void should_upload_signatures_when_method_id_publishing_is_disabled() throws Exception {
+        // given
+        HttpInvocationDataPublisherImpl publisher =
+            new TestableHttpInvocationDataPublisherImpl(config.toBuilder().methodIdPublishing(false).build());
+        publisher.setCodeBaseFingerprint(CodeBaseFingerprint.builder(config).build());
+
+        // when
+        publisher.doPublishInvocationData(System.currentTimeMillis(), Collections.singleton("a"), null);
+
+        // then
+        assertThat(methodIdRequests, is(0));
+        assertThat(uploadedFile.getName(), endsWith(".ser"));
+    }
+
+    @Test
+    public void should_spool_invocation_data_when_upload_fails_and_replay_it_later() throws Exception {
+        // given
+        HttpInvocationDataPublisherImpl publisher = new TestableHttpInvocationDataPublisherImpl(
+            config.toBuilder().spoolDir(temporaryFolder.getRoot().getAbsolutePath()).build());
+        publisher.configure(1L, "enabled=true");
+        publisher.setCodeBaseFingerprint(CodeBaseFingerprint.builder(config).build());
+        serverDown = true;
+
+        // when
+        try {
+            publisher.doPublishInvocationData(System.currentTimeMillis(), new HashSet<>(Arrays.asList("a", "b", "c")), null);
+            fail("Expected a CodekvastPublishingException");
+        } catch (CodekvastPublishingException e) {
+            // expected
+        }
+
+        // then
+        assertThat(countSpooledFiles(temporaryFolder.getRoot()), is(1));
+
+        // when
+        try {
+            publisher.publishSpooledInvocationData();
+            fail("Expected a CodekvastPublishingException");
+        } catch (CodekvastPublishingException e) {
+            // expected
+        }
+
+        // then
+        assertThat(countSpooledFiles(temporaryFolder.getRoot()), is(1));
+
+        // when
+        serverDown = false;
+        publisher.publishSpooledInvocationData();
+
+        // then
+        assertThat(uploadedPublicationSize, is(3));
+        assertThat(countSpooledFiles(temporaryFolder.getRoot()), is(0));
+    }
+
+    @Test
+    public void should_not_spool_rejected_invocation_data() throws Exception {
+        // given
+        HttpInvocationDataPublisherImpl publisher = new TestableHttpInvocationDataPublisherImpl(
+            config.toBuilder().spoolDir(temporaryFolder.getRoot().getAbsolutePath()).build());
+        publisher.configure(1L, "enabled=true");
+        publisher.setCodeBaseFingerprint(CodeBaseFingerprint.builder(config).build());
+        rejectedUploads = 1;
+
+        // when
+        try {
+            publisher.doPublishInvocationData(System.currentTimeMillis(), new HashSet<>(Arrays.asList("a", "b", "c")), null);
+            fail("Expected a CodekvastPublishingException");
+        } catch (CodekvastPublishingException e) {
+            // expected
+        }
+
+        // then
+        assertThat(countSpooledFiles(temporaryFolder.getRoot()), is(0));
+    }
+
+    @Test
+    public void should_drop_rejected_spooled_invocation_data_and_replay_the_next() throws Exception {
+        // given
+        HttpInvocationDataPublisherImpl publisher = new TestableHttpInvocationDataPublisherImpl(
+            config.toBuilder().spoolDir(temporaryFolder.getRoot().getAbsolutePath()).build());
+        publisher.configure(1L, "enabled=true");
+        publisher.setCodeBaseFingerprint(CodeBaseFingerprint.builder(config).build());
+        serverDown = true;
+        for (int i = 1; i <= 2; i++) {
+            Set<String> invocations = new HashSet<>(Arrays.asList("a", "b", "c").subList(0, i));
+            try {
+                publisher.doPublishInvocationData(1_500_000_000_000L + i, invocations, null);
+                fail("Expected a CodekvastPublishingException");
+            } catch (CodekvastPublishingException e) {
+                // expected
+            }
+        }
+        assertThat(countSpooledFiles(temporaryFolder.getRoot()), is(2));
+
+        // when
+        serverDown = false;
+        rejectedUploads = 1;
+        publisher.publishSpooledInvocationData();
+
+        // then
+        assertThat(uploadedPublicationSize, is(2));
+        assertThat(countSpooledFiles(temporaryFolder.getRoot()), is(0));
+    }
+
+    private static int countSpooledFiles(File directory) {
+        int result = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                result += file.isDirectory() ? countSpooledFiles(file) : 1;
+            }
+        }
+        return result;
+    }
+
     private class TestableHttpInvocationDataPublisherImpl extends HttpInvocationDataPublisherImpl {
 
         TestableHttpInvocationDataPublisherImpl() {
-            super(HttpInvocationDataPublisherImplTest.this.config);
+            this(HttpInvocationDataPublisherImplTest.this.config);
+        }
+
+        TestableHttpInvocationDataPublisherImpl(AgentConfig config) {
+            super(config);
+        }
+
+        @Override
+        long currentTimeMillis() {
+            return now;
         }
 
         @Override
@@ -65,15 +320,40 @@ public class HttpInvocationDataPublisherImplTest {
             uploadedPublicationSize = publicationSize;
         }
 
+        @Override
+        void doPost(RequestBody publicationBody, String filename, String url, String fingerprint, int publicationSize)
+            throws IOException {
+            super.doPost(publicationBody, filename, url, fingerprint, publicationSize);
+            uploadedBody = publicationBody;
+            uploadedFilename = filename;
+            uploadedPublicationSize = publicationSize;
+        }
+
         @Override
         Response executeRequest(Request request) throws IOException {
-            return new Response.Builder()
-                .request(request)
-                .protocol(Protocol.HTTP_1_1)
-                .code(200)
-                .message("OK")
-                .body(ResponseBody.create(MediaType.parse("text/plain"), "OK"))
-                .build();
+            Response.Builder builder = new Response.Builder().request(request).protocol(Protocol.HTTP_1_1);
+            if (serverDown) {
+                return builder.code(503).message("Service Unavailable")
+                              .body(ResponseBody.create(MediaType.parse("text/plain"), "Down")).build();
+            }
+            if (rejectedUploads > 0 && !request.url().encodedPath().equals(V3_GET_METHOD_IDS)) {
+                rejectedUploads -= 1;
+                return builder.code(403).message("Forbidden")
+                              .body(ResponseBody.create(MediaType.parse("text/plain"), "License violation")).build();
+            }
+            if (!request.url().encodedPath().equals(V3_GET_METHOD_IDS)) {
+                return builder.code(200).message("OK").body(ResponseBody.create(MediaType.parse("text/plain"), "OK")).build();
+            }
+
+            methodIdRequests += 1;
+            if (methodIdMapping == null) {
+                return builder.code(404).message("Not Found").body(ResponseBody.create(MediaType.parse("text/plain"), "")).build();
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            PublicationWriter3.writePublication(methodIdMapping, bytes, PublicationFormat3.Envelope.GZIP);
+            return builder.code(200).message("OK")
+                          .body(ResponseBody.create(MediaType.parse("application/octet-stream"), bytes.toByteArray()))
+                          .build();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,217 @@
+package io.codekvast.javaagent.publishing.impl;
+
+import io.codekvast.javaagent.config.AgentConfig;
+import io.codekvast.javaagent.config.AgentConfigFactory;
+import io.codekvast.javaagent.model.v2.CommonPublicationData2;
+import io.codekvast.javaagent.model.v2.InvocationDataPublication2;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author olle.hallin@crisp.se
+ */
+public class InvocationDataSpoolTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private InvocationDataSpool spool;
+
+    @Before
+    public void beforeTest() {
+        spool = new InvocationDataSpool(temporaryFolder.getRoot(), 1024 * 1024L);
+    }
+
+    @Test
+    public void should_replay_in_recording_order() throws IOException {
+        // given
+        spool.spool(publication("fingerprint", 1_500_000_000_002L, "b"));
+        spool.spool(publication("fingerprint", 1_500_000_000_001L, "a"));
+
+        // when
+        File first = spool.claimOldest();
+        InvocationDataPublication2 firstPublication = spool.read(first);
+        spool.remove(first);
+        File second = spool.claimOldest();
+        InvocationDataPublication2 secondPublication = spool.read(second);
+        spool.remove(second);
+
+        // then
+        assertThat(firstPublication.getInvocations(), is(Collections.singleton("a")));
+        assertThat(secondPublication.getInvocations(), is(Collections.singleton("b")));
+        assertThat(spool.claimOldest(), nullValue());
+    }
+
+    @Test
+    public void should_not_claim_a_claimed_publication_until_released() throws IOException {
+        // given
+        spool.spool(publication("fingerprint", 1_500_000_000_001L, "a"));
+        File claimed = spool.claimOldest();
+
+        // when
+        File claimedAgain = spool.claimOldest();
+        spool.release(claimed);
+
+        // then
+        assertThat(claimedAgain, nullValue());
+        assertThat(spool.read(spool.claimOldest()).getInvocations(), is(Collections.singleton("a")));
+    }
+
+    @Test
+    public void should_merge_oldest_publications_when_full() throws IOException {
+        // given
+        spool.spool(publication("fingerprint", 1_500_000_000_001L, "a", "b"));
+        spool.spool(publication("fingerprint", 1_500_000_000_002L, "b", "c"));
+        spool = new InvocationDataSpool(temporaryFolder.getRoot(), sizeOfSpool() * 5 / 4);
+
+        // when
+        spool.spool(publication("fingerprint", 1_500_000_000_003L, "d"));
+
+        // then
+        List<File> entries = spool.listEntries();
+        assertThat(entries.size(), is(2));
+
+        InvocationDataPublication2 merged = spool.read(entries.get(0));
+        assertThat(merged.getRecordingIntervalStartedAtMillis(), is(1_500_000_000_001L));
+        assertThat(merged.getInvocations(), is((Set<String>) new HashSet<>(Arrays.asList("a", "b", "c"))));
+        assertThat(merged.getInvocationCounts().get("b"), is(2L));
+        assertThat(spool.read(entries.get(1)).getInvocations(), is(Collections.singleton("d")));
+    }
+
+    @Test
+    public void should_drop_oldest_publication_of_other_code_base_when_full() throws IOException {
+        // given
+        spool.spool(publication("fingerprint1", 1_500_000_000_001L, "a"));
+        spool.spool(publication("fingerprint2", 1_500_000_000_002L, "b"));
+        spool = new InvocationDataSpool(temporaryFolder.getRoot(), sizeOfSpool() * 5 / 4);
+
+        // when
+        spool.spool(publication("fingerprint2", 1_500_000_000_003L, "c"));
+
+        // then
+        List<File> entries = spool.listEntries();
+        assertThat(entries.size(), is(2));
+        assertThat(spool.read(entries.get(0)).getCommonData().getCodeBaseFingerprint(), is("fingerprint2"));
+    }
+
+    @Test
+    public void should_merge_only_publications_of_same_jvm_when_full() throws IOException {
+        // given
+        spool.spool(publication("jvm1", "fingerprint", 1_500_000_000_001L, "a"));
+        spool.spool(publication("jvm2", "fingerprint", 1_500_000_000_002L, "b"));
+        spool = new InvocationDataSpool(temporaryFolder.getRoot(), sizeOfSpool() * 5 / 4);
+
+        // when
+        spool.spool(publication("jvm1", "fingerprint", 1_500_000_000_003L, "c"));
+
+        // then
+        List<File> entries = spool.listEntries();
+        assertThat(entries.size(), is(2));
+
+        InvocationDataPublication2 merged = spool.read(entries.get(0));
+        assertThat(merged.getCommonData().getJvmUuid(), is("jvm1"));
+        assertThat(merged.getInvocations(), is((Set<String>) new HashSet<>(Arrays.asList("a", "c"))));
+
+        InvocationDataPublication2 other = spool.read(entries.get(1));
+        assertThat(other.getCommonData().getJvmUuid(), is("jvm2"));
+        assertThat(other.getInvocations(), is(Collections.singleton("b")));
+    }
+
+    @Test
+    public void should_not_merge_claimed_publication_when_full() throws IOException {
+        // given
+        spool.spool(publication("fingerprint", 1_500_000_000_001L, "a"));
+        spool.spool(publication("fingerprint", 1_500_000_000_002L, "b"));
+        long sizeOfSpool = sizeOfSpool();
+        File claimed = spool.claimOldest();
+        spool = new InvocationDataSpool(temporaryFolder.getRoot(), sizeOfSpool * 3 / 4);
+
+        // when
+        spool.spool(publication("fingerprint", 1_500_000_000_003L, "c"));
+
+        // then
+        List<File> entries = spool.listEntries();
+        assertThat(entries.size(), is(1));
+        assertThat(spool.read(entries.get(0)).getInvocations(), is((Set<String>) new HashSet<>(Arrays.asList("b", "c"))));
+        assertThat(spool.read(claimed).getInvocations(), is(Collections.singleton("a")));
+    }
+
+    @Test
+    public void should_drop_unreadable_publication() throws IOException {
+        // given
+        spool.spool(publication("fingerprint", 1_500_000_000_001L, "a"));
+        try (OutputStream out = new FileOutputStream(spool.listEntries().get(0))) {
+            out.write(new byte[]{1, 2, 3});
+        }
+
+        // when
+        InvocationDataPublication2 publication = spool.read(spool.claimOldest());
+
+        // then
+        assertThat(publication, nullValue());
+        assertThat(temporaryFolder.getRoot().list().length, is(0));
+    }
+
+    @Test
+    public void should_open_private_spool_directory() throws IOException {
+        // given
+        AgentConfig config = AgentConfigFactory.createSampleAgentConfig().toBuilder()
+                                               .spoolDir(new File(temporaryFolder.getRoot(), "spool").getAbsolutePath())
+                                               .build();
+
+        // when
+        spool = InvocationDataSpool.open(config);
+
+        // then
+        assertThat(spool, notNullValue());
+        Path directory = config.getSpoolDirectory().toPath();
+        if (directory.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(directory.getParent())), is("rwx------"));
+            assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(directory)), is("rwx------"));
+        }
+    }
+
+    private long sizeOfSpool() {
+        long result = 0L;
+        for (File file : spool.listEntries()) {
+            result += file.length();
+        }
+        return result;
+    }
+
+    private static InvocationDataPublication2 publication(String fingerprint, long recordingIntervalStartedAtMillis,
+                                                          String... signatures) {
+        return publication("jvmUuid", fingerprint, recordingIntervalStartedAtMillis, signatures);
+    }
+
+    private static InvocationDataPublication2 publication(String jvmUuid, String fingerprint,
+                                                          long recordingIntervalStartedAtMillis, String... signatures) {
+        Map<String, Long> counts = new HashMap<>();
+        for (String signature : signatures) {
+            counts.put(signature, 1L);
+        }
+        return InvocationDataPublication2.builder()
+                                         .commonData(CommonPublicationData2.sampleCommonPublicationData().toBuilder()
+                                                                           .codeBaseFingerprint(fingerprint)
+                                                                           .jvmUuid(jvmUuid)
+                                                                           .build())
+                                         .recordingIntervalStartedAtMillis(recordingIntervalStartedAtMillis)
+                                         .invocations(new HashSet<>(Arrays.asList(signatures)))
+                                         .invocationCounts(counts)
+                                         .build();
+    }
+}
@@ -0,0 +1,45 @@
+package io.codekvast.javaagent.publishing.impl;
+
+import io.codekvast.javaagent.model.v3.MethodIdMapping3;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class MethodIdsTest {
+
+    @Test
+    public void should_find_method_ids_of_mapped_signatures() {
+        // given
+        Map<String, Long> ids = new HashMap<>();
+        ids.put("com.acme.Foo.a()", 17L);
+        ids.put("com.acme.Foo.c()", 4L);
+
+        // when
+        MethodIdMapping3 mapping = MethodIdMapping3.builder().codeBaseFingerprint("fingerprint").methodIds(ids).build();
+        MethodIds methodIds = MethodIds.of(mapping);
+
+        // then
+        assertThat(methodIds.size(), is(2));
+        assertThat(methodIds.getMethodId("com.acme.Foo.a()"), is(17L));
+        assertThat(methodIds.getMethodId("com.acme.Foo.c()"), is(4L));
+        assertThat(methodIds.getMethodId("com.acme.Foo.b()"), is(MethodIds.NO_ID));
+    }
+
+    @Test
+    public void should_not_give_the_id_of_another_signature_with_the_same_hash() {
+        // given
+        long hash = MethodIds.hash("com.acme.Foo.b()");
+        long check = MethodIds.check("com.acme.Foo.a()");
+        MethodIds methodIds = new MethodIds("fingerprint", new long[]{hash}, new long[]{check}, new long[]{17L});
+
+        // when
+        long methodId = methodIds.getMethodId("com.acme.Foo.b()");
+
+        // then
+        assertThat(methodId, is(MethodIds.NO_ID));
+    }
+}
@@ -1,10 +1,13 @@
 package io.codekvast.javaagent.scheduler;
 
+import com.google.common.util.concurrent.MoreExecutors;
+import io.codekvast.javaagent.codebase.CodeBaseFingerprint;
 import io.codekvast.javaagent.config.AgentConfig;
 import io.codekvast.javaagent.config.AgentConfigFactory;
 import io.codekvast.javaagent.model.v1.rest.GetConfigResponse1;
 import io.codekvast.javaagent.publishing.CodeBasePublisher;
 import io.codekvast.javaagent.publishing.CodeBasePublisherFactory;
+import io.codekvast.javaagent.publishing.CodekvastPublishingException;
 import io.codekvast.javaagent.publishing.InvocationDataPublisher;
 import io.codekvast.javaagent.publishing.InvocationDataPublisherFactory;
 import io.codekvast.javaagent.publishing.impl.JulAwareOutputCapture;
@@ -18,10 +21,18 @@ import org.mockito.MockitoAnnotations;
 import org.springframework.boot.test.rule.OutputCapture;
 
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.both;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
 import static org.mockito.Mockito.*;
 
 /**
@@ -65,8 +76,10 @@ public class SchedulerTest {
     @Before
     public void setUp() {
         MockitoAnnotations.initMocks(this);
+        // Publishes the code base in the scheduler thread, so that the schedule is deterministic.
         scheduler =
-            new Scheduler(config, configPollerMock, codeBasePublisherFactoryMock, invocationDataPublisherFactoryMock, systemClockMock);
+            new Scheduler(config, configPollerMock, codeBasePublisherFactoryMock, invocationDataPublisherFactoryMock, systemClockMock,
+                          MoreExecutors.newDirectExecutorService());
 
         when(codeBasePublisherFactoryMock.create("no-op", config))
             .thenReturn(codeBasePublisher);
@@ -106,9 +119,44 @@ public class SchedulerTest {
         verifyNoMoreInteractions(configPollerMock);
 
         assertThat(codeBasePublisher.getSequenceNumber(), is(1));
+        assertThat(codeBasePublisher.getCodeBaseCheckCount(), is(2));
         assertThat(invocationDataPublisher.getSequenceNumber(), is(3));
     }
 
+    @Test
+    public void should_publish_first_code_base_before_last_invocation_data_at_shutdown() throws Exception {
+        // given
+        final CodeBaseFingerprint fingerprint = CodeBaseFingerprint.builder(config).build();
+        final AtomicInteger attempts = new AtomicInteger();
+        final AtomicBoolean published = new AtomicBoolean();
+
+        codeBasePublisher = new NoOpCodeBasePublisherImpl(config) {
+            @Override
+            public void publishCodeBase() throws CodekvastPublishingException {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new CodekvastPublishingException("Mock: No contact with server", null);
+                }
+                published.set(true);
+            }
+
+            @Override
+            public CodeBaseFingerprint getCodeBaseFingerprint() {
+                return published.get() ? fingerprint : null;
+            }
+        };
+        when(codeBasePublisherFactoryMock.create("no-op", config)).thenReturn(codeBasePublisher);
+        when(configPollerMock.doPoll()).thenReturn(configResponse);
+
+        // when
+        scheduler.run();
+        assertThat(invocationDataPublisher.getSequenceNumber(), is(0));
+        scheduler.shutdown();
+
+        // then
+        assertThat(attempts.get(), is(2));
+        assertThat(invocationDataPublisher.getSequenceNumber(), is(1));
+    }
+
     @Test
     public void should_schedule_correctly() throws Exception {
         // given
@@ -200,6 +248,51 @@ public class SchedulerTest {
         assertThat(invocationDataPublisher.getSequenceNumber(), is(2));
     }
 
+    @Test
+    public void should_publish_invocation_data_while_code_base_is_being_published() throws Exception {
+        // given
+        final CountDownLatch codeBasePublishingStarted = new CountDownLatch(1);
+        final CountDownLatch codeBasePublishingMayFinish = new CountDownLatch(1);
+        final CodeBaseFingerprint fingerprint = CodeBaseFingerprint.builder(config).build();
+
+        codeBasePublisher = new NoOpCodeBasePublisherImpl(config) {
+            @Override
+            public void publishCodeBase() {
+                codeBasePublishingStarted.countDown();
+                try {
+                    codeBasePublishingMayFinish.await();
+                } catch (InterruptedException ignore) {
+                    // Interrupted by shutdown()
+                }
+            }
+
+            @Override
+            public CodeBaseFingerprint getCodeBaseFingerprint() {
+                return fingerprint;
+            }
+        };
+        when(codeBasePublisherFactoryMock.create("no-op", config)).thenReturn(codeBasePublisher);
+        when(configPollerMock.doPoll()).thenReturn(configResponse);
+
+        scheduler = new Scheduler(config, configPollerMock, codeBasePublisherFactoryMock, invocationDataPublisherFactoryMock,
+                                  systemClockMock, Executors.newSingleThreadExecutor());
+
+        // when
+        scheduler.run();
+        assertThat(codeBasePublishingStarted.await(10, TimeUnit.SECONDS), is(true));
+        scheduler.run();
+
+        // then
+        verify(configPollerMock, times(2)).doPoll();
+        assertThat(invocationDataPublisher.getSequenceNumber(), is(2));
+
+        // when
+        scheduler.shutdown();
+
+        // then
+        assertThat(invocationDataPublisher.getSequenceNumber(), is(3));
+    }
+
     @Test
     public void should_handle_initial_poll_exceptions() throws Exception {
         when(configPollerMock.doPoll()).thenThrow(new IOException("Mock: No contact with server"));
@@ -247,4 +340,21 @@ public class SchedulerTest {
         state.scheduleNext();
         assertThat(state.getRetryIntervalFactor(), is(1));
     }
+
+    @Test
+    public void should_schedule_with_jitter_around_interval() {
+        // given
+        Scheduler.SchedulerState state = new Scheduler.SchedulerState("spool", systemClockMock)
+            .initialize(10, 10);
+        state.scheduleRetry();
+
+        for (int i = 0; i < 100; i++) {
+            // when
+            state.scheduleNextWithJitter();
+
+            // then
+            assertThat(state.getRetryIntervalFactor(), is(1));
+            assertThat(state.getNextEventAtMillis(), is(both(greaterThanOrEqualTo(T1 + 5_000L)).and(lessThan(T1 + 15_000L))));
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,85 @@
+package io.codekvast.javaagent.util;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConcurrentBitSetTest {
+
+    private final ConcurrentBitSet bitSet = new ConcurrentBitSet();
+
+    @Test
+    public void should_set_and_get_bits() {
+        assertThat(bitSet.get(17), is(false));
+        assertThat(bitSet.set(17), is(true));
+        assertThat(bitSet.set(17), is(false));
+        assertThat(bitSet.get(17), is(true));
+        assertThat(bitSet.get(18), is(false));
+    }
+
+    @Test
+    public void should_handle_page_boundaries() {
+        bitSet.set(65535);
+        bitSet.set(65536);
+        bitSet.set(ConcurrentBitSet.MAX_BITS - 1);
+
+        assertThat(bitSet.get(65535), is(true));
+        assertThat(bitSet.get(65536), is(true));
+        assertThat(bitSet.get(65537), is(false));
+        assertThat(bitSet.get(ConcurrentBitSet.MAX_BITS - 1), is(true));
+    }
+
+    @Test
+    public void should_drain_set_bits() {
+        bitSet.set(0);
+        bitSet.set(63);
+        bitSet.set(64);
+        bitSet.set(100000);
+
+        BitSet drained = bitSet.drain();
+        assertThat(drained.cardinality(), is(4));
+        assertThat(drained.get(0), is(true));
+        assertThat(drained.get(63), is(true));
+        assertThat(drained.get(64), is(true));
+        assertThat(drained.get(100000), is(true));
+
+        assertThat(bitSet.get(64), is(false));
+        assertThat(bitSet.drain().isEmpty(), is(true));
+    }
+
+    @Test
+    public void should_handle_concurrent_sets() throws Exception {
+        final int numThreads = 8;
+        final int numBits = 200000;
+        final CountDownLatch startingGun = new CountDownLatch(1);
+        final CountDownLatch finishLine = new CountDownLatch(numThreads);
+
+        for (int i = 0; i < numThreads; i++) {
+            final int offset = i;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startingGun.await();
+                        for (int bit = offset; bit < numBits; bit += numThreads) {
+                            bitSet.set(bit);
+                        }
+                    } catch (InterruptedException ignore) {
+                    } finally {
+                        finishLine.countDown();
+                    }
+                }
+            });
+            t.start();
+        }
+
+        startingGun.countDown();
+        finishLine.await();
+
+        assertThat(bitSet.drain().cardinality(), is(numBits));
+    }
+}
@@ -0,0 +1,55 @@
+package io.codekvast.javaagent.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+public class CpuBudgetTest {
+
+    @Test
+    public void should_not_limit_outside_1_to_99_percent() {
+        assertThat(new CpuBudget(0).isLimited(), is(false));
+        assertThat(new CpuBudget(100).isLimited(), is(false));
+        assertThat(new CpuBudget(50).isLimited(), is(true));
+    }
+
+    @Test
+    public void should_not_pause_before_slice_is_used_up() {
+        CpuBudget budget = new CpuBudget(50);
+
+        long startedAt = System.nanoTime();
+        budget.checkpoint();
+
+        assertThat(System.nanoTime() - startedAt, lessThan(CpuBudget.SLICE_NANOS));
+    }
+
+    @Test
+    public void should_pause_in_proportion_to_work() throws Exception {
+        CpuBudget budget = new CpuBudget(50);
+        TimeUnit.NANOSECONDS.sleep(CpuBudget.SLICE_NANOS);
+
+        long startedAt = System.nanoTime();
+        budget.checkpoint();
+
+        assertThat(System.nanoTime() - startedAt, greaterThanOrEqualTo(CpuBudget.SLICE_NANOS));
+        assertThat(budget.getPausedNanos(), greaterThanOrEqualTo(CpuBudget.SLICE_NANOS));
+    }
+
+    @Test
+    public void should_not_pause_when_interrupted() throws Exception {
+        CpuBudget budget = new CpuBudget(1);
+        TimeUnit.NANOSECONDS.sleep(CpuBudget.SLICE_NANOS);
+        Thread.currentThread().interrupt();
+
+        long startedAt = System.nanoTime();
+        budget.checkpoint();
+
+        assertThat(Thread.interrupted(), is(true));
+        assertThat(System.nanoTime() - startedAt, lessThan(CpuBudget.SLICE_NANOS));
+    }
+}
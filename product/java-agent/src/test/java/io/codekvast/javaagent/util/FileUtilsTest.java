@@ -1,8 +1,12 @@
 package io.codekvast.javaagent.util;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.not;
@@ -10,6 +14,9 @@ import static org.junit.Assert.assertThat;
 
 public class FileUtilsTest {
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Test
     public void should_expand_hostname_placeholder() throws Exception {
         File file = new File("/tmp/foo-#hostname#.ser");
@@ -25,4 +32,25 @@ public class FileUtilsTest {
 
         assertThat(expanded.getName(), not(is(file.getName())));
     }
+
+    @Test
+    public void should_create_private_directory() throws Exception {
+        File directory = new File(temporaryFolder.getRoot(), "foo/bar");
+
+        assertThat(FileUtils.mkdirsPrivate(directory), is(true));
+        assertThat(directory.isDirectory(), is(true));
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(directory.toPath())), is("rwx------"));
+    }
+
+    @Test
+    public void should_accept_existing_directory_owned_by_current_user() throws Exception {
+        assertThat(FileUtils.mkdirsPrivate(temporaryFolder.getRoot()), is(true));
+    }
+
+    @Test
+    public void should_refuse_directory_that_cannot_be_created() throws Exception {
+        File file = temporaryFolder.newFile();
+
+        assertThat(FileUtils.mkdirsPrivate(new File(file, "foo")), is(false));
+    }
 }
@@ -0,0 +1,59 @@
+package io.codekvast.javaagent.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PrefixTrieTest {
+
+    private final PrefixTrie trie = PrefixTrie.of(Arrays.asList("com.acme", "com.acme.sub", "org.example.app"));
+
+    @Test
+    public void should_match_strings_starting_with_any_prefix() {
+        assertThat(trie.matches("com.acme"), is(true));
+        assertThat(trie.matches("com.acme.Foo"), is(true));
+        assertThat(trie.matches("com.acmex"), is(true));
+        assertThat(trie.matches("org.example.app.Bar"), is(true));
+    }
+
+    @Test
+    public void should_not_match_other_strings() {
+        assertThat(trie.matches(""), is(false));
+        assertThat(trie.matches("com"), is(false));
+        assertThat(trie.matches("com.acm"), is(false));
+        assertThat(trie.matches("org.example"), is(false));
+        assertThat(trie.matches("net.acme"), is(false));
+    }
+
+    @Test
+    public void should_tell_whether_longer_strings_may_match() {
+        assertThat(trie.mayMatchStringsStartingWith(""), is(true));
+        assertThat(trie.mayMatchStringsStartingWith("org"), is(true));
+        assertThat(trie.mayMatchStringsStartingWith("org.example"), is(true));
+        assertThat(trie.mayMatchStringsStartingWith("com.acme.other"), is(true));
+        assertThat(trie.mayMatchStringsStartingWith("org.other"), is(false));
+        assertThat(trie.mayMatchStringsStartingWith("net"), is(false));
+    }
+
+    @Test
+    public void should_match_everything_with_empty_prefix() {
+        PrefixTrie all = PrefixTrie.of(Collections.singletonList(""));
+
+        assertThat(all.matches(""), is(true));
+        assertThat(all.matches("anything"), is(true));
+        assertThat(all.mayMatchStringsStartingWith("anything"), is(true));
+    }
+
+    @Test
+    public void should_match_nothing_without_prefixes() {
+        PrefixTrie none = PrefixTrie.of(Collections.<String>emptyList());
+
+        assertThat(none.matches(""), is(false));
+        assertThat(none.matches("com.acme"), is(false));
+        assertThat(none.mayMatchStringsStartingWith(""), is(false));
+    }
+}
@@ -31,6 +31,19 @@ public class SignatureUtilsTest {
                           ".Collection)"));
     }
 
+    @Test
+    public void should_make_canonical_string_protectedMethod5() throws NoSuchMethodException {
+        String s = signatureToCanonicalString(makeSignature(TestClass.class, findTestMethod("protectedMethod5")));
+        assertThat(s,
+                   is("io.codekvast.javaagent.util.SignatureUtilsTest.TestClass.protectedMethod5(java.lang.String, " +
+                          "io.codekvast.javaagent.util.SignatureUtilsTest.TestInterface)"));
+    }
+
+    @Test
+    public void should_normalize_signature() {
+        assertThat(normalizeSignature("protected final strictfp int foo()"), is("protected strictfp int foo()"));
+    }
+
     private Method findTestMethod(String name) {
         for (Method method : testMethods) {
             if (method.getName().equals(name)) {
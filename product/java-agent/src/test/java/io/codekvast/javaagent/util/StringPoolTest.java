@@ -0,0 +1,34 @@
+package io.codekvast.javaagent.util;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class StringPoolTest {
+
+    private final StringPool pool = new StringPool();
+
+    @Test
+    public void should_return_first_instance_of_equal_strings() {
+        String s1 = new String("java.lang.String");
+        String s2 = new String("java.lang.String");
+
+        assertThat(pool.intern(s1), sameInstance(s1));
+        assertThat(pool.intern(s2), sameInstance(s1));
+        assertThat(pool.size(), is(1));
+    }
+
+    @Test
+    public void should_keep_different_strings_apart() {
+        assertThat(pool.intern("int"), is("int"));
+        assertThat(pool.intern("long"), is("long"));
+        assertThat(pool.size(), is(2));
+    }
+
+    @Test
+    public void should_handle_null() {
+        assertThat(pool.intern(null), nullValue());
+        assertThat(pool.size(), is(0));
+    }
+}
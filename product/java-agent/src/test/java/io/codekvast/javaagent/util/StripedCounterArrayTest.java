@@ -0,0 +1,62 @@
+package io.codekvast.javaagent.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class StripedCounterArrayTest {
+
+    private final StripedCounterArray counters = new StripedCounterArray();
+
+    @Test
+    public void should_count_and_reset() {
+        counters.increment(0);
+        counters.increment(4096);
+        counters.increment(4096);
+        counters.increment(StripedCounterArray.MAX_COUNTERS - 1);
+
+        assertThat(counters.sumThenReset(0), is(1L));
+        assertThat(counters.sumThenReset(1), is(0L));
+        assertThat(counters.sumThenReset(4096), is(2L));
+        assertThat(counters.sumThenReset(4096), is(0L));
+        assertThat(counters.sumThenReset(StripedCounterArray.MAX_COUNTERS - 1), is(1L));
+    }
+
+    @Test
+    public void should_handle_concurrent_increments() throws Exception {
+        final int numThreads = 16;
+        final int numIncrements = 10000;
+        final CountDownLatch startingGun = new CountDownLatch(1);
+        final CountDownLatch finishLine = new CountDownLatch(numThreads);
+
+        for (int i = 0; i < numThreads; i++) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startingGun.await();
+                        for (int j = 0; j < numIncrements; j++) {
+                            counters.increment(j % 10);
+                        }
+                    } catch (InterruptedException ignore) {
+                    } finally {
+                        finishLine.countDown();
+                    }
+                }
+            });
+            t.start();
+        }
+
+        startingGun.countDown();
+        finishLine.await();
+
+        long sum = 0L;
+        for (int i = 0; i < 10; i++) {
+            sum += counters.sumThenReset(i);
+        }
+        assertThat(sum, is((long) numThreads * numIncrements));
+    }
+}
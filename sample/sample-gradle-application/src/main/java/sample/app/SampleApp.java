@@ -6,6 +6,9 @@ import sample.lib.used.Bar1;
 import sample.lib.used.Bar2;
 import untracked.UntrackedClass;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+
 /**
  * @author olle.hallin@crisp.se
  */
@@ -21,7 +24,9 @@ public class SampleApp {
 
     @SneakyThrows(InterruptedException.class)
     private void run() {
-        System.out.printf("Hello, World! from %s%n%n", getClass().getName());
+        System.out.printf("Hello, World! from %s, started in %d ms%n", getClass().getName(),
+                          ManagementFactory.getRuntimeMXBean().getUptime());
+        printMemoryUsage();
         tryToLoadClass("io.codekvast.javaagent.CodekvastAgent");
         tryToLoadClass("org.aspectj.weaver.loadtime.Agent");
 
@@ -39,6 +44,17 @@ public class SampleApp {
         new Bar2().declaredOnBar2();
     }
 
+    private void printMemoryUsage() {
+        System.gc();
+        System.out.printf("Heap used: %,d kB%n", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / 1024);
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals("Metaspace") || pool.getName().equals("Perm Gen") || pool.getName().endsWith(" Perm Gen")) {
+                System.out.printf("%s used: %,d kB%n", pool.getName(), pool.getUsage().getUsed() / 1024);
+            }
+        }
+        System.out.println();
+    }
+
     private void measureMethodCallTrackingOverhead() {
         System.out.println("\nMeasuring method call tracking overhead...");
 